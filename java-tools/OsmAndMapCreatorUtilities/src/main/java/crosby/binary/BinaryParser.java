@@ -7,11 +7,11 @@ import java.util.List;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import crosby.binary.Osmformat;
-import crosby.binary.file.BlockReaderAdapter;
 import crosby.binary.file.FileBlock;
 import crosby.binary.file.FileBlockPosition;
+import crosby.binary.file.ParallelBlockReaderAdapter;
 
-public abstract class BinaryParser implements BlockReaderAdapter {
+public abstract class BinaryParser implements ParallelBlockReaderAdapter {
     protected int granularity;
     private long lat_offset;
     private long lon_offset;
@@ -39,25 +39,37 @@ public abstract class BinaryParser implements BlockReaderAdapter {
 
     @Override
     public void handleBlock(FileBlock message) {
-        // TODO Auto-generated method stub
+        handleDecodedBlock(message, decodeBlock(message));
+    }
+
+    /** Parses the protocol buffer and the string table of a block, safe to call from any thread. */
+    @Override
+    public Object decodeBlock(FileBlock message) {
         try {
             if (message.getType().equals("OSMHeader")) {
-                Osmformat.HeaderBlock headerblock = Osmformat.HeaderBlock
-                        .parseFrom(message.getData());
-                parse(headerblock);
+                return Osmformat.HeaderBlock.parseFrom(message.getData());
             } else if (message.getType().equals("OSMData")) {
                 Osmformat.PrimitiveBlock primblock = Osmformat.PrimitiveBlock
                         .parseFrom(message.getData());
-                parse(primblock);
+                return new DecodedPrimitiveBlock(primblock, decodeStringTable(primblock));
             }
         } catch (InvalidProtocolBufferException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
             throw new Error("ParseError"); // TODO
         }
-
+        return null;
     }
 
+    @Override
+    public void handleDecodedBlock(FileBlock message, Object decoded) {
+        if (decoded instanceof Osmformat.HeaderBlock) {
+            parse((Osmformat.HeaderBlock) decoded);
+        } else if (decoded instanceof DecodedPrimitiveBlock) {
+            DecodedPrimitiveBlock d = (DecodedPrimitiveBlock) decoded;
+            parse(d.block, d.strings);
+        }
+    }
 
     @Override
     public boolean skipBlock(FileBlockPosition block) {
@@ -85,12 +97,21 @@ public abstract class BinaryParser implements BlockReaderAdapter {
 
     /** Parse a Primitive block (containing a string table, other paramaters, and PrimitiveGroups */
     public void parse(Osmformat.PrimitiveBlock block) {
-        Osmformat.StringTable stablemessage = block.getStringtable();
-        strings = new String[stablemessage.getSCount()];
+        parse(block, decodeStringTable(block));
+    }
 
+    private static String[] decodeStringTable(Osmformat.PrimitiveBlock block) {
+        Osmformat.StringTable stablemessage = block.getStringtable();
+        String[] strings = new String[stablemessage.getSCount()];
         for (int i = 0; i < strings.length; i++) {
             strings[i] = stablemessage.getS(i).toStringUtf8();
         }
+        return strings;
+    }
+
+    /** Parse a Primitive block with an already decoded string table */
+    protected void parse(Osmformat.PrimitiveBlock block, String[] strings) {
+        this.strings = strings;
 
         granularity = block.getGranularity();
         lat_offset = block.getLatOffset();
@@ -108,6 +129,16 @@ public abstract class BinaryParser implements BlockReaderAdapter {
         }
     }
 
+    private static class DecodedPrimitiveBlock {
+        final Osmformat.PrimitiveBlock block;
+        final String[] strings;
+
+        DecodedPrimitiveBlock(Osmformat.PrimitiveBlock block, String[] strings) {
+            this.block = block;
+            this.strings = strings;
+        }
+    }
+
     /** Parse a list of Relation protocol buffers and send the resulting relations to a sink.  */
     protected abstract void parseRelations(List<Osmformat.Relation> rels);
     /** Parse a DenseNode protocol buffer and send the resulting nodes to a sink.  */
@@ -2,25 +2,130 @@ package crosby.binary.file;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class BlockInputStream {
+    /** Number of blocks kept in flight per worker thread */
+    private static final int BLOCKS_PER_THREAD = 4;
+
     // TODO: Should be seekable input stream!
     public BlockInputStream(InputStream input, BlockReaderAdapter adaptor) {
+        this(input, adaptor, 1);
+    }
+
+    /**
+     * @param threads number of workers that inflate (and decode, if the adaptor
+     *            is a {@link ParallelBlockReaderAdapter}) blocks; 1 or less
+     *            processes everything on the calling thread
+     */
+    public BlockInputStream(InputStream input, BlockReaderAdapter adaptor, int threads) {
         this.input = input;
         this.adaptor = adaptor;
+        this.threads = threads;
     }
 
     public void process() throws IOException {
-        while (input.available() > 0) {
-            FileBlock.process(input, adaptor);
+        if (threads > 1) {
+            processParallel();
+        } else {
+            while (input.available() > 0) {
+                FileBlock.process(input, adaptor);
+            }
         }
         adaptor.complete();
     }
 
+    /**
+     * Reads blocks on the calling thread, inflates and decodes them on a pool
+     * of workers and hands them to the adaptor in file order.
+     */
+    private void processParallel() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "pbf-block-decoder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final ParallelBlockReaderAdapter parallelAdaptor = adaptor instanceof ParallelBlockReaderAdapter ?
+                (ParallelBlockReaderAdapter) adaptor : null;
+        ArrayDeque<Future<DecodedBlock>> pending = new ArrayDeque<Future<DecodedBlock>>();
+        int window = threads * BLOCKS_PER_THREAD;
+        try {
+            while (input.available() > 0) {
+                final FileBlockHead head = FileBlockHead.readHead(input);
+                if (adaptor.skipBlock(head)) {
+                    head.skipContents(input);
+                    continue;
+                }
+                final byte[] raw = head.readRawContents(input);
+                pending.add(executor.submit(new Callable<DecodedBlock>() {
+                    @Override
+                    public DecodedBlock call() throws Exception {
+                        FileBlock block = head.parseData(raw);
+                        Object decoded = parallelAdaptor == null ? null : parallelAdaptor.decodeBlock(block);
+                        return new DecodedBlock(block, decoded);
+                    }
+                }));
+                while (pending.size() >= window) {
+                    deliver(pending.poll(), parallelAdaptor);
+                }
+            }
+            while (!pending.isEmpty()) {
+                deliver(pending.poll(), parallelAdaptor);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void deliver(Future<DecodedBlock> future, ParallelBlockReaderAdapter parallelAdaptor) throws IOException {
+        DecodedBlock b;
+        try {
+            b = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+        if (parallelAdaptor != null) {
+            parallelAdaptor.handleDecodedBlock(b.block, b.decoded);
+        } else {
+            adaptor.handleBlock(b.block);
+        }
+    }
+
     public void close() throws IOException {
         input.close();
     }
 
+    private static class DecodedBlock {
+        final FileBlock block;
+        final Object decoded;
+
+        DecodedBlock(FileBlock block, Object decoded) {
+            this.block = block;
+            this.decoded = decoded;
+        }
+    }
+
     InputStream input;
     BlockReaderAdapter adaptor;
+    int threads;
 }
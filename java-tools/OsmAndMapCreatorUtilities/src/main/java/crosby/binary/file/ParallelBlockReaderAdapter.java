@@ -0,0 +1,23 @@
+package crosby.binary.file;
+
+import java.io.IOException;
+
+/**
+ * An adaptor whose block handling can be split into a thread-safe decoding
+ * step and an ordered delivery step. Used by {@link BlockInputStream} when
+ * blobs are decoded by a pool of workers.
+ */
+public interface ParallelBlockReaderAdapter extends BlockReaderAdapter {
+    /**
+     * Called on a worker thread with the inflated block. Must not touch any
+     * state shared with other blocks, the result is passed to
+     * handleDecodedBlock.
+     */
+    Object decodeBlock(FileBlock message) throws IOException;
+
+    /**
+     * Called on the reading thread with the result of decodeBlock. Blocks are
+     * delivered in file order.
+     */
+    void handleDecodedBlock(FileBlock message, Object decoded);
+}
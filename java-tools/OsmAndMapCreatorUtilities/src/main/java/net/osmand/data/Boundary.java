@@ -12,21 +12,43 @@ public class Boundary {
 	private long adminCenterId;
 	private CityType cityType;
 	private Multipolygon multipolygon;
+	// built when boundary is queried repeatedly, first queries are checked by multipolygon
+	private static final int PREPARE_AFTER_QUERIES = 4;
+	private PreparedMultipolygon prepared;
+	private boolean preparedBuilt;
+	private int queries;
 
 	public Boundary(MultipolygonBuilder m) {
 		multipolygon = m.build();
 	}
 
 	public boolean containsPoint(double latitude, double longitude) {
-		return multipolygon.containsPoint(latitude, longitude);
+		if (!preparedBuilt && ++queries > PREPARE_AFTER_QUERIES) {
+			prepared = PreparedMultipolygon.prepare(multipolygon);
+			preparedBuilt = true;
+		}
+		if (prepared == null) {
+			return multipolygon.containsPoint(latitude, longitude);
+		}
+		return prepared.containsPoint(latitude, longitude);
 	}
 
 	public void mergeWith(Boundary boundary) {
 		multipolygon.mergeWith(boundary.multipolygon);
+		releasePrepared();
+	}
+
+	/**
+	 * Releases grid of point queries, it is built again if boundary is queried repeatedly
+	 */
+	public void releasePrepared() {
+		prepared = null;
+		preparedBuilt = false;
+		queries = 0;
 	}
 
 	public boolean containsPoint(LatLon location) {
-		return multipolygon.containsPoint(location);
+		return containsPoint(location.getLatitude(), location.getLongitude());
 	}
 
 	public long getBoundaryId() {
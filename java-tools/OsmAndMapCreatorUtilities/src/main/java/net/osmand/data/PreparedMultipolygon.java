@@ -0,0 +1,206 @@
+package net.osmand.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.osmand.osm.edit.Node;
+
+/**
+ * Grid over the box of multipolygon rings to answer repeated point queries of the same multipolygon.
+ *
+ * Cells crossed by ring edges (with a margin) are marked as border cells. The result of
+ * {@link Multipolygon#containsPoint(double, double)} is constant inside any connected area of cells without edges,
+ * so it is calculated by the multipolygon once per such area (and once for all points outside of the box).
+ * Points in border cells and points on lines of vertices latitude or longitude (where ray casting may be degenerate)
+ * are always passed to the multipolygon, so the result is exactly the same.
+ */
+class PreparedMultipolygon {
+
+	// polygons with less vertices are checked directly
+	static final int MIN_VERTICES = 64;
+	private static final int MAX_GRID_SIZE = 1024;
+	// margin in degrees around edges and vertices lines, covers rounding to 31 tile coordinates
+	private static final double EPS = 2e-7;
+
+	private static final int BORDER = -1;
+	private static final byte UNKNOWN = 0;
+	private static final byte INSIDE = 1;
+	private static final byte OUTSIDE = 2;
+
+	private final Multipolygon multipolygon;
+	private final double[] vertexLats;
+	private final double[] vertexLons;
+	private final double minLat;
+	private final double minLon;
+	private final double cellLat;
+	private final double cellLon;
+	private final int size;
+	// area of connected cells without edges or BORDER
+	private final int[] cells;
+	private final byte[] areas;
+	private byte outside = UNKNOWN;
+
+	private PreparedMultipolygon(Multipolygon multipolygon, List<List<Node>> rings, int vertices) {
+		this.multipolygon = multipolygon;
+		vertexLats = new double[vertices];
+		vertexLons = new double[vertices];
+		int k = 0;
+		for (List<Node> ring : rings) {
+			for (Node n : ring) {
+				// + 0.0 avoids -0.0 in sorted arrays
+				vertexLats[k] = n.getLatitude() + 0.0;
+				vertexLons[k] = n.getLongitude() + 0.0;
+				k++;
+			}
+		}
+		Arrays.sort(vertexLats);
+		Arrays.sort(vertexLons);
+		minLat = vertexLats[0];
+		minLon = vertexLons[0];
+		size = Math.min(MAX_GRID_SIZE, (int) Math.ceil(Math.sqrt(vertices)));
+		cellLat = Math.max(vertexLats[vertices - 1] - minLat, EPS) / size;
+		cellLon = Math.max(vertexLons[vertices - 1] - minLon, EPS) / size;
+		cells = new int[size * size];
+		for (List<Node> ring : rings) {
+			// ring could be not closed, last edge is marked as well
+			Node prev = ring.get(ring.size() - 1);
+			for (Node n : ring) {
+				markEdge(prev.getLatitude(), prev.getLongitude(), n.getLatitude(), n.getLongitude());
+				prev = n;
+			}
+		}
+		areas = new byte[fillAreas()];
+	}
+
+	/**
+	 * Numbers connected cells without edges, returns number of areas
+	 */
+	private int fillAreas() {
+		int[] queue = new int[cells.length];
+		int area = 0;
+		for (int i = 0; i < cells.length; i++) {
+			if (cells[i] != 0) {
+				continue;
+			}
+			area++;
+			int head = 0;
+			int tail = 0;
+			cells[i] = area;
+			queue[tail++] = i;
+			while (head < tail) {
+				int c = queue[head++];
+				int x = c % size;
+				int y = c / size;
+				if (x > 0 && cells[c - 1] == 0) {
+					cells[c - 1] = area;
+					queue[tail++] = c - 1;
+				}
+				if (x < size - 1 && cells[c + 1] == 0) {
+					cells[c + 1] = area;
+					queue[tail++] = c + 1;
+				}
+				if (y > 0 && cells[c - size] == 0) {
+					cells[c - size] = area;
+					queue[tail++] = c - size;
+				}
+				if (y < size - 1 && cells[c + size] == 0) {
+					cells[c + size] = area;
+					queue[tail++] = c + size;
+				}
+			}
+		}
+		// areas are numbered from 1
+		return area + 1;
+	}
+
+	/**
+	 * Returns null if multipolygon is too small to prepare
+	 */
+	static PreparedMultipolygon prepare(Multipolygon multipolygon) {
+		List<List<Node>> rings = new ArrayList<List<Node>>();
+		int vertices = 0;
+		for (Ring r : multipolygon.getOuterRings()) {
+			vertices += addBorder(r, rings);
+		}
+		for (Ring r : multipolygon.getInnerRings()) {
+			vertices += addBorder(r, rings);
+		}
+		if (vertices < MIN_VERTICES) {
+			return null;
+		}
+		return new PreparedMultipolygon(multipolygon, rings, vertices);
+	}
+
+	private static int addBorder(Ring r, List<List<Node>> rings) {
+		List<Node> border = r.getBorder();
+		if (border == null || border.isEmpty()) {
+			return 0;
+		}
+		rings.add(border);
+		return border.size();
+	}
+
+	private void markEdge(double lat1, double lon1, double lat2, double lon2) {
+		int c1 = col(Math.min(lon1, lon2) - EPS);
+		int c2 = col(Math.max(lon1, lon2) + EPS);
+		for (int c = c1; c <= c2; c++) {
+			double latFrom;
+			double latTo;
+			if (c1 == c2 || lon1 == lon2) {
+				latFrom = lat1;
+				latTo = lat2;
+			} else {
+				// latitudes of the edge within the column (with margin)
+				double l = Math.max(Math.min(lon1, lon2), minLon + c * cellLon - EPS);
+				double r = Math.min(Math.max(lon1, lon2), minLon + (c + 1) * cellLon + EPS);
+				latFrom = lat1 + (lat2 - lat1) * (l - lon1) / (lon2 - lon1);
+				latTo = lat1 + (lat2 - lat1) * (r - lon1) / (lon2 - lon1);
+			}
+			int r1 = row(Math.min(latFrom, latTo) - EPS);
+			int r2 = row(Math.max(latFrom, latTo) + EPS);
+			for (int r = r1; r <= r2; r++) {
+				cells[r * size + c] = BORDER;
+			}
+		}
+	}
+
+	private int col(double lon) {
+		return Math.max(0, Math.min(size - 1, (int) Math.floor((lon - minLon) / cellLon)));
+	}
+
+	private int row(double lat) {
+		return Math.max(0, Math.min(size - 1, (int) Math.floor((lat - minLat) / cellLat)));
+	}
+
+	public boolean containsPoint(double latitude, double longitude) {
+		if (nearVertexLine(vertexLats, latitude) || nearVertexLine(vertexLons, longitude)) {
+			return multipolygon.containsPoint(latitude, longitude);
+		}
+		double x = (longitude - minLon) / cellLon;
+		double y = (latitude - minLat) / cellLat;
+		if (!(x >= 0 && x < size && y >= 0 && y < size)) {
+			if (outside == UNKNOWN) {
+				outside = multipolygon.containsPoint(latitude, longitude) ? INSIDE : OUTSIDE;
+			}
+			return outside == INSIDE;
+		}
+		int area = cells[((int) y) * size + (int) x];
+		if (area == BORDER) {
+			return multipolygon.containsPoint(latitude, longitude);
+		}
+		if (areas[area] == UNKNOWN) {
+			areas[area] = multipolygon.containsPoint(latitude, longitude) ? INSIDE : OUTSIDE;
+		}
+		return areas[area] == INSIDE;
+	}
+
+	private static boolean nearVertexLine(double[] sorted, double v) {
+		int i = Arrays.binarySearch(sorted, v + 0.0);
+		if (i >= 0) {
+			return true;
+		}
+		i = -i - 1;
+		return (i < sorted.length && sorted[i] - v < EPS) || (i > 0 && v - sorted[i - 1] < EPS);
+	}
+}
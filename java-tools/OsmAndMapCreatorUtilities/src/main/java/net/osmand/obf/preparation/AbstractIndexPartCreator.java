@@ -5,11 +5,17 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -22,6 +28,7 @@ import net.osmand.osm.edit.Entity;
 import net.osmand.osm.edit.Way;
 import net.osmand.util.Algorithms;
 import net.osmand.util.MapUtils;
+import rtree.CachedNodes;
 import rtree.Element;
 import rtree.Pack;
 import rtree.RTree;
@@ -105,7 +112,29 @@ public class AbstractIndexPartCreator {
 
 	}
 
+	/**
+	 * Opens rtree file with node cache size and memory mapping of the settings
+	 */
+	public static RTree createRTree(String fileName, IndexCreatorSettings settings) throws RTreeException {
+		long cacheBytes = settings.rtreeCacheBytes > 0 ? settings.rtreeCacheBytes : CachedNodes.DEFAULT_CACHE_BYTES;
+		return new RTree(fileName, cacheBytes, settings.rtreeMemoryMapped);
+	}
+
 	public static RTree packRtreeFile(RTree tree, String nonPackFileName, String packFileName) throws IOException {
+		return packRtreeFile(tree, nonPackFileName, packFileName, Pack.STR);
+	}
+
+	public static RTree packRtreeFile(RTree tree, String nonPackFileName, String packFileName, int packStrategy)
+			throws IOException {
+		return packRtreeFile(tree, nonPackFileName, packFileName, packStrategy, false);
+	}
+
+	/**
+	 * @param packStrategy {@link Pack#STR} or {@link Pack#HILBERT}
+	 * @param compact packed tree is written in the compact format, it is read only
+	 */
+	public static RTree packRtreeFile(RTree tree, String nonPackFileName, String packFileName, int packStrategy,
+			boolean compact) throws IOException {
 		try {
 			assert rtree.Node.MAX < 50 : "It is better for search performance"; //$NON-NLS-1$
 			tree.flush();
@@ -116,12 +145,13 @@ public class AbstractIndexPartCreator {
 			long rootIndex = tree.getFileHdr().getRootIndex();
 			if (!nodeIsLastSubTree(tree, rootIndex)) {
 				// there is a bug for small files in packing method
-				new Pack().packTree(tree, packFileName);
-				tree.getFileHdr().getFile().close();
+				new Pack(packStrategy, compact).packTree(tree, packFileName);
+				tree.close();
 				file = new File(nonPackFileName);
 				file.delete();
 
-				return new RTree(packFileName);
+				// packed tree keeps settings of the original one
+				return new RTree(packFileName, tree.getFileHdr().getCacheBytes(), tree.getFileHdr().isMemoryMapped());
 			}
 		} catch (RTreeException e) {
 			log.error("Error flushing", e); //$NON-NLS-1$
@@ -129,7 +159,67 @@ public class AbstractIndexPartCreator {
 		}
 		return tree;
 	}
-	
+
+	/**
+	 * Packs trees with several threads (each tree is packed by one thread), trees are replaced by packed ones.
+	 * @param compact which trees are written in the compact format
+	 */
+	public static void packRtreeFiles(final RTree[] trees, final String[] nonPackFileNames, final String[] packFileNames,
+			final int packStrategy, final boolean[] compact, int threads) throws IOException {
+		if (threads <= 1 || trees.length <= 1) {
+			for (int i = 0; i < trees.length; i++) {
+				trees[i] = packRtreeFile(trees[i], nonPackFileNames[i], packFileNames[i], packStrategy, compact[i]);
+			}
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, trees.length));
+		try {
+			List<Future<RTree>> futures = new ArrayList<Future<RTree>>();
+			for (int i = 0; i < trees.length; i++) {
+				final int ind = i;
+				futures.add(executor.submit(new Callable<RTree>() {
+					@Override
+					public RTree call() throws Exception {
+						return packRtreeFile(trees[ind], nonPackFileNames[ind], packFileNames[ind], packStrategy,
+								compact[ind]);
+					}
+				}));
+			}
+			for (int i = 0; i < trees.length; i++) {
+				try {
+					trees[i] = futures.get(i).get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					}
+					throw new IOException(e.getCause());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Makes packed trees read only, they are queried without locks while the sections are written.
+	 * Trees must not be modified afterwards.
+	 */
+	public static void setReadOnly(RTree... trees) throws IOException {
+		try {
+			for (RTree tree : trees) {
+				if (tree != null) {
+					tree.setReadOnly();
+				}
+			}
+		} catch (RTreeException e) {
+			log.error("Error flushing", e); //$NON-NLS-1$
+			throw new IOException(e);
+		}
+	}
+
 	protected void addRegionTag(OsmandRegions or, Entity entity) {
 		if (entity instanceof Way) {
 			try {
@@ -0,0 +1,201 @@
+package net.osmand.obf.preparation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+/**
+ * Points of base routing ways (31 tile coordinates packed in a long) and points removed by simplification
+ * with the way and indexes to reinsert them.
+ *
+ * Recent points are kept in hash maps up to the buffer size, then they are sorted into chunks of long arrays
+ * (8 bytes per point and 24 per removed point instead of hash map entries). Chunks of similar size are merged,
+ * so a lookup is a binary search in a few chunks and reinserted points are dropped from merged chunks.
+ */
+public class BasePointsStore {
+
+	private final int bufferSize;
+	private TLongHashSet points = new TLongHashSet();
+	private TLongLongHashMap removedWays = new TLongLongHashMap();
+	// original index (high 32 bits) and index to insert at (low 32 bits) of removed point
+	private TLongLongHashMap removedInds = new TLongLongHashMap();
+	// larger chunks first
+	private final List<Chunk> chunks = new ArrayList<Chunk>();
+
+	/**
+	 * @param bufferSize points kept in hash maps before they are sorted into a chunk (0 - hash maps only)
+	 */
+	public BasePointsStore(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @return false if point was added before
+	 */
+	public boolean add(long point) {
+		if (points.contains(point)) {
+			return false;
+		}
+		for (Chunk c : chunks) {
+			if (Arrays.binarySearch(c.points, point) >= 0) {
+				return false;
+			}
+		}
+		points.add(point);
+		if (bufferSize > 0 && points.size() >= bufferSize) {
+			flush();
+		}
+		return true;
+	}
+
+	/**
+	 * Registers removed point, it is called once right after the point was added.
+	 */
+	public void putRemoved(long point, long wayId, int originalInd, int insertAt) {
+		removedWays.put(point, wayId);
+		removedInds.put(point, ((long) originalInd << 32) | (insertAt & 0xffffffffl));
+	}
+
+	/**
+	 * Removes registered removed point.
+	 *
+	 * @param wayAndInd way id and packed indexes (see {@link #getOriginalInd(long)}) of the point
+	 * @return false if point is not registered as removed
+	 */
+	public boolean takeRemoved(long point, long[] wayAndInd) {
+		if (removedWays.containsKey(point)) {
+			wayAndInd[0] = removedWays.remove(point);
+			wayAndInd[1] = removedInds.remove(point);
+			return true;
+		}
+		for (Chunk c : chunks) {
+			int i = Arrays.binarySearch(c.removed, point);
+			if (i >= 0) {
+				if (c.isTaken(i)) {
+					return false;
+				}
+				c.take(i);
+				wayAndInd[0] = c.removedWays[i];
+				wayAndInd[1] = c.removedInds[i];
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static int getOriginalInd(long ind) {
+		return (int) (ind >>> 32);
+	}
+
+	public static int getInsertAt(long ind) {
+		return (int) ind;
+	}
+
+	public long size() {
+		long size = points.size();
+		for (Chunk c : chunks) {
+			size += c.points.length;
+		}
+		return size;
+	}
+
+	public int getChunksCount() {
+		return chunks.size();
+	}
+
+	private void flush() {
+		long[] ps = points.toArray();
+		Arrays.sort(ps);
+		long[] rs = removedWays.keys();
+		Arrays.sort(rs);
+		long[] ways = new long[rs.length];
+		long[] inds = new long[rs.length];
+		for (int i = 0; i < rs.length; i++) {
+			ways[i] = removedWays.get(rs[i]);
+			inds[i] = removedInds.get(rs[i]);
+		}
+		chunks.add(new Chunk(ps, rs, ways, inds));
+		points = new TLongHashSet();
+		removedWays = new TLongLongHashMap();
+		removedInds = new TLongLongHashMap();
+		while (chunks.size() > 1) {
+			Chunk last = chunks.get(chunks.size() - 1);
+			Chunk prev = chunks.get(chunks.size() - 2);
+			if (prev.points.length > 2 * last.points.length) {
+				break;
+			}
+			chunks.remove(chunks.size() - 1);
+			chunks.set(chunks.size() - 1, merge(prev, last));
+		}
+	}
+
+	// points of chunks are disjoint as every point is added once
+	private static Chunk merge(Chunk a, Chunk b) {
+		long[] ps = new long[a.points.length + b.points.length];
+		int i = 0;
+		int j = 0;
+		int k = 0;
+		while (i < a.points.length || j < b.points.length) {
+			if (j == b.points.length || (i < a.points.length && a.points[i] < b.points[j])) {
+				ps[k++] = a.points[i++];
+			} else {
+				ps[k++] = b.points[j++];
+			}
+		}
+		int size = a.removed.length - a.takenCount + b.removed.length - b.takenCount;
+		long[] rs = new long[size];
+		long[] ways = new long[size];
+		long[] inds = new long[size];
+		i = 0;
+		j = 0;
+		k = 0;
+		while (i < a.removed.length || j < b.removed.length) {
+			Chunk c;
+			int ind;
+			if (j == b.removed.length || (i < a.removed.length && a.removed[i] < b.removed[j])) {
+				c = a;
+				ind = i++;
+			} else {
+				c = b;
+				ind = j++;
+			}
+			if (!c.isTaken(ind)) {
+				rs[k] = c.removed[ind];
+				ways[k] = c.removedWays[ind];
+				inds[k] = c.removedInds[ind];
+				k++;
+			}
+		}
+		return new Chunk(ps, rs, ways, inds);
+	}
+
+	private static class Chunk {
+		final long[] points;
+		final long[] removed;
+		final long[] removedWays;
+		final long[] removedInds;
+		// removed points which were reinserted
+		final long[] taken;
+		int takenCount;
+
+		Chunk(long[] points, long[] removed, long[] removedWays, long[] removedInds) {
+			this.points = points;
+			this.removed = removed;
+			this.removedWays = removedWays;
+			this.removedInds = removedInds;
+			this.taken = new long[(removed.length + 63) >> 6];
+		}
+
+		boolean isTaken(int i) {
+			return (taken[i >> 6] & (1l << i)) != 0;
+		}
+
+		void take(int i) {
+			taken[i >> 6] |= 1l << i;
+			takenCount++;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package net.osmand.obf.preparation;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.osmand.util.MapUtils;
+
+/**
+ * Objects with lat/lon bounding boxes (points are boxes of zero size) registered in map tiles of one zoom.
+ * Query returns objects which boxes intersect the given box in order of registration, so callers can
+ * replace linear scans of ordered collections and keep the same result.
+ * Objects covering too many tiles are kept in separate list and always checked.
+ */
+class BboxTileIndex<T> {
+
+	private static final int MAX_TILES_PER_OBJECT = 64;
+	private static final Comparator<Entry<?>> ORDER = new Comparator<Entry<?>>() {
+
+		@Override
+		public int compare(Entry<?> o1, Entry<?> o2) {
+			return Long.compare(o1.order, o2.order);
+		}
+	};
+
+	private final int zoom;
+	private final TLongObjectHashMap<List<Entry<T>>> tiles = new TLongObjectHashMap<List<Entry<T>>>();
+	private final List<Entry<T>> large = new ArrayList<Entry<T>>();
+	private final Map<T, Entry<T>> entries = new IdentityHashMap<T, Entry<T>>();
+	private long order;
+
+	private static class Entry<T> {
+		final T object;
+		final long order;
+		final double top;
+		final double left;
+		final double bottom;
+		final double right;
+		final int tileLeft;
+		final int tileTop;
+		final int tileRight;
+		final int tileBottom;
+
+		Entry(T object, long order, double top, double left, double bottom, double right, int zoom) {
+			this.object = object;
+			this.order = order;
+			this.top = top;
+			this.left = left;
+			this.bottom = bottom;
+			this.right = right;
+			this.tileLeft = (int) MapUtils.getTileNumberX(zoom, left);
+			this.tileRight = (int) MapUtils.getTileNumberX(zoom, right);
+			this.tileTop = (int) MapUtils.getTileNumberY(zoom, top);
+			this.tileBottom = (int) MapUtils.getTileNumberY(zoom, bottom);
+		}
+
+		long tilesCount() {
+			return (tileRight - tileLeft + 1l) * (tileBottom - tileTop + 1l);
+		}
+
+		boolean isLarge() {
+			// empty box is checked directly as well
+			long cnt = tilesCount();
+			return cnt > MAX_TILES_PER_OBJECT || cnt <= 0;
+		}
+
+		boolean intersects(double top, double left, double bottom, double right) {
+			return this.left <= right && left <= this.right && this.bottom <= top && bottom <= this.top;
+		}
+	}
+
+	BboxTileIndex(int zoom) {
+		this.zoom = zoom;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public void add(T object, double top, double left, double bottom, double right) {
+		add(new Entry<T>(object, order++, top, left, bottom, right, zoom));
+	}
+
+	public void addPoint(T object, double latitude, double longitude) {
+		add(object, latitude, longitude, latitude, longitude);
+	}
+
+	/**
+	 * Replaces object keeping its position in order of registration
+	 */
+	public void replacePoint(T old, T object, double latitude, double longitude) {
+		Entry<T> e = entries.get(old);
+		if (e == null) {
+			addPoint(object, latitude, longitude);
+		} else {
+			remove(old);
+			add(new Entry<T>(object, e.order, latitude, longitude, latitude, longitude, zoom));
+		}
+	}
+
+	private void add(Entry<T> e) {
+		entries.put(e.object, e);
+		if (e.isLarge()) {
+			large.add(e);
+			return;
+		}
+		for (int x = e.tileLeft; x <= e.tileRight; x++) {
+			for (int y = e.tileTop; y <= e.tileBottom; y++) {
+				long key = tileKey(x, y);
+				List<Entry<T>> list = tiles.get(key);
+				if (list == null) {
+					list = new ArrayList<Entry<T>>(2);
+					tiles.put(key, list);
+				}
+				list.add(e);
+			}
+		}
+	}
+
+	public boolean remove(T object) {
+		Entry<T> e = entries.remove(object);
+		if (e == null) {
+			return false;
+		}
+		if (e.isLarge()) {
+			large.remove(e);
+			return true;
+		}
+		for (int x = e.tileLeft; x <= e.tileRight; x++) {
+			for (int y = e.tileTop; y <= e.tileBottom; y++) {
+				long key = tileKey(x, y);
+				List<Entry<T>> list = tiles.get(key);
+				list.remove(e);
+				if (list.isEmpty()) {
+					tiles.remove(key);
+				}
+			}
+		}
+		return true;
+	}
+
+	public List<T> queryPoint(double latitude, double longitude) {
+		return query(latitude, longitude, latitude, longitude);
+	}
+
+	/**
+	 * Objects which boxes intersect given box (borders included) in order of registration
+	 */
+	public List<T> query(double top, double left, double bottom, double right) {
+		Entry<T> q = new Entry<T>(null, 0, top, left, bottom, right, zoom);
+		List<Entry<T>> found = new ArrayList<Entry<T>>();
+		if (q.tilesCount() > entries.size()) {
+			for (Entry<T> e : entries.values()) {
+				if (e.intersects(top, left, bottom, right)) {
+					found.add(e);
+				}
+			}
+		} else {
+			for (Entry<T> e : large) {
+				if (e.intersects(top, left, bottom, right)) {
+					found.add(e);
+				}
+			}
+			boolean singleTile = q.tilesCount() == 1;
+			for (int x = q.tileLeft; x <= q.tileRight; x++) {
+				for (int y = q.tileTop; y <= q.tileBottom; y++) {
+					List<Entry<T>> list = tiles.get(tileKey(x, y));
+					if (list != null) {
+						for (Entry<T> e : list) {
+							// object in several tiles is added only from its first tile within query
+							boolean first = singleTile || ((x == e.tileLeft || x == q.tileLeft) && (y == e.tileTop || y == q.tileTop));
+							if (first && e.intersects(top, left, bottom, right)) {
+								found.add(e);
+							}
+						}
+					}
+				}
+			}
+		}
+		Collections.sort(found, ORDER);
+		List<T> result = new ArrayList<T>(found.size());
+		for (Entry<T> e : found) {
+			result.add(e.object);
+		}
+		return result;
+	}
+
+	private static long tileKey(int x, int y) {
+		return (((long) x) << 32) + y;
+	}
+}
@@ -33,6 +33,13 @@ public class BinaryFileReference {
 		return val;
 	}
 
+	int writeReference(BufferedChannelOutput out, long pointerToCalculateShifTo) throws IOException {
+		this.pointerToCalculateShiftTo = pointerToCalculateShifTo;
+		int val = (int) (pointerToCalculateShiftTo - pointerToCalculateShiftFrom);
+		out.writeInt(pointerToWrite, val);
+		return val;
+	}
+
 	public static BinaryFileReference createSizeReference(long pointerToWrite){
 		return new BinaryFileReference(pointerToWrite, pointerToWrite + 4);
 	}
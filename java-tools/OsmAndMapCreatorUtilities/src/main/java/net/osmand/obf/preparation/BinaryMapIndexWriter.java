@@ -9,9 +9,12 @@ import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.TIntObjectMap;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -20,12 +23,17 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.Stack;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPOutputStream;
 
 import net.osmand.IndexConstants;
@@ -103,6 +111,8 @@ public class BinaryMapIndexWriter {
 
 	private RandomAccessFile raf;
 	private CodedOutputStream codedOutStream;
+	// null - bytes are written directly to raf
+	private BufferedChannelOutput bufferedOutput;
 
 	protected static final int SHIFT_COORDINATES = BinaryMapIndexReader.SHIFT_COORDINATES;
 	public int MASK_TO_READ = ~((1 << SHIFT_COORDINATES) - 1);
@@ -134,6 +144,11 @@ public class BinaryMapIndexWriter {
 	private Stack<Integer> state = new Stack<Integer>();
 	private Stack<BinaryFileReference> stackSizes = new Stack<BinaryFileReference>();
 
+	// map and route data blocks encoded by the executor and not written yet (in order)
+	private ExecutorService dataBlockExecutor;
+	private final LinkedList<PendingDataBlock> pendingDataBlocks = new LinkedList<PendingDataBlock>();
+	private static final int MAX_PENDING_DATA_BLOCKS = 256;
+
 	private final static int OSMAND_STRUCTURE_INIT = 1;
 	private final static int MAP_INDEX_INIT = 2;
 	private final static int MAP_ROOT_LEVEL_INIT = 3;
@@ -155,24 +170,37 @@ public class BinaryMapIndexWriter {
 
 
 	public BinaryMapIndexWriter(final RandomAccessFile raf, long timestamp) throws IOException {
+		this(raf, timestamp, 0);
+	}
+
+	/**
+	 * @param bufferSize bytes are written to file channel through the buffer of that size (see
+	 *            BufferedChannelOutput), raf is up to date only after {@link #flush()}. 0 - write directly to raf.
+	 */
+	public BinaryMapIndexWriter(final RandomAccessFile raf, long timestamp, int bufferSize) throws IOException {
 		this.raf = raf;
-		codedOutStream = CodedOutputStream.newInstance(new OutputStream() {
-			@Override
-			public void write(int b) throws IOException {
-				raf.write(b);
-			}
+		if (bufferSize > 0) {
+			bufferedOutput = new BufferedChannelOutput(raf, bufferSize);
+			codedOutStream = CodedOutputStream.newInstance(bufferedOutput);
+		} else {
+			codedOutStream = CodedOutputStream.newInstance(new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					raf.write(b);
+				}
 
-			@Override
-			public void write(byte[] b) throws IOException {
-				raf.write(b);
-			}
+				@Override
+				public void write(byte[] b) throws IOException {
+					raf.write(b);
+				}
 
-			@Override
-			public void write(byte[] b, int off, int len) throws IOException {
-				raf.write(b, off, len);
-			}
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					raf.write(b, off, len);
+				}
 
-		});
+			});
+		}
 		codedOutStream.writeUInt32(OsmandOdb.OsmAndStructure.VERSION_FIELD_NUMBER, IndexConstants.BINARY_MAP_VERSION);
 		codedOutStream.writeInt64(OsmandOdb.OsmAndStructure.DATECREATED_FIELD_NUMBER, timestamp);
 		state.push(OSMAND_STRUCTURE_INIT);
@@ -195,6 +223,9 @@ public class BinaryMapIndexWriter {
 
 	public long getFilePointer() throws IOException {
 		codedOutStream.flush();
+		if (bufferedOutput != null) {
+			return bufferedOutput.getPosition();
+		}
 		return raf.getFilePointer();
 		// return codedOutStream.getWrittenBytes(); // doesn't work with route section rewrite (should not take into account)
 	}
@@ -203,11 +234,18 @@ public class BinaryMapIndexWriter {
 		return codedOutStream;
 	}
 
+	private int writeReference(BinaryFileReference ref, long pointerToCalculateShiftTo) throws IOException {
+		if (bufferedOutput != null) {
+			return ref.writeReference(bufferedOutput, pointerToCalculateShiftTo);
+		}
+		return ref.writeReference(raf, pointerToCalculateShiftTo);
+	}
+
 	private int writeInt32Size() throws IOException {
 		long filePointer = getFilePointer();
 		BinaryFileReference ref = stackSizes.pop();
 		codedOutStream.flush();
-		int length = ref.writeReference(raf, filePointer);
+		int length = writeReference(ref, filePointer);
 		return length;
 	}
 
@@ -215,7 +253,7 @@ public class BinaryMapIndexWriter {
 		long filePointer = getFilePointer();
 		BinaryFileReference ref = stackSizes.peek();
 		codedOutStream.flush();
-		int length = ref.writeReference(raf, filePointer);
+		int length = writeReference(ref, filePointer);
 		return length;
 	}
 
@@ -245,6 +283,7 @@ public class BinaryMapIndexWriter {
 
 
 	public void endWriteRouteIndex() throws IOException {
+		finishDataBlocks();
 		popState(ROUTE_INDEX_INIT);
 		int len = writeInt32Size();
 		log.info("- ROUTE TYPE SIZE SIZE " + BinaryMapIndexWriter.ROUTE_TYPES_SIZE); //$NON-NLS-1$
@@ -259,6 +298,7 @@ public class BinaryMapIndexWriter {
 	}
 
 	public void simulateWriteEndRouteIndex() throws IOException {
+		finishDataBlocks();
 		checkPeekState(ROUTE_INDEX_INIT);
 		int len = prewriteInt32Size();
 		log.info("PREROUTE INDEX SIZE : " + len);
@@ -285,6 +325,7 @@ public class BinaryMapIndexWriter {
 	}
 
 	public void endWriteMapLevelIndex() throws IOException {
+		finishDataBlocks();
 		popState(MAP_ROOT_LEVEL_INIT);
 		stackBounds.pop();
 		int len = writeInt32Size();
@@ -507,6 +548,38 @@ public class BinaryMapIndexWriter {
 	public void writeRouteDataBlock(RouteDataBlock.Builder builder, Map<String, Integer> stringTable, BinaryFileReference ref)
 			throws IOException {
 		checkPeekState(ROUTE_INDEX_INIT);
+		ROUTE_STRING_DATA_SIZE += setRouteStringTable(builder, stringTable);
+		codedOutStream.writeTag(OsmAndMapIndex.MapRootLevel.BLOCKS_FIELD_NUMBER, FieldType.MESSAGE.getWireType());
+		codedOutStream.flush();
+		writeReference(ref, getFilePointer());
+		RouteDataBlock block = builder.build();
+		ROUTE_DATA_SIZE += block.getSerializedSize();
+		codedOutStream.writeMessageNoTag(block);
+	}
+
+	/**
+	 * Route data objects are added to the block by <code>encoder</code> with the data block executor (if it is set),
+	 * block is written after the blocks submitted before.
+	 */
+	public void writeRouteDataBlock(final RouteDataBlock.Builder builder, final Map<String, Integer> stringTable,
+			BinaryFileReference ref, final DataBlockEncoder<RouteDataBlock.Builder> encoder) throws IOException {
+		checkPeekState(ROUTE_INDEX_INIT);
+		if (dataBlockExecutor == null) {
+			encoder.encode(builder, stringTable);
+			writeRouteDataBlock(builder, stringTable, ref);
+			return;
+		}
+		submitDataBlock(ref, true, new Callable<EncodedDataBlock>() {
+			@Override
+			public EncodedDataBlock call() throws Exception {
+				encoder.encode(builder, stringTable);
+				int stringTableSize = setRouteStringTable(builder, stringTable);
+				return new EncodedDataBlock(builder.build().toByteArray(), stringTableSize);
+			}
+		});
+	}
+
+	private static int setRouteStringTable(RouteDataBlock.Builder builder, Map<String, Integer> stringTable) {
 		if (stringTable != null && stringTable.size() > 0) {
 			StringTable.Builder bs = OsmandOdb.StringTable.newBuilder();
 			for (String s : stringTable.keySet()) {
@@ -515,18 +588,12 @@ public class BinaryMapIndexWriter {
 			StringTable st = bs.build();
 			builder.setStringTable(st);
 			int size = st.getSerializedSize();
-			ROUTE_STRING_DATA_SIZE += CodedOutputStream.computeTagSize(OsmandOdb.MapDataBlock.STRINGTABLE_FIELD_NUMBER)
+			return CodedOutputStream.computeTagSize(OsmandOdb.MapDataBlock.STRINGTABLE_FIELD_NUMBER)
 					+ CodedOutputStream.computeRawVarint32Size(size) + size;
 		}
-		codedOutStream.writeTag(OsmAndMapIndex.MapRootLevel.BLOCKS_FIELD_NUMBER, FieldType.MESSAGE.getWireType());
-		codedOutStream.flush();
-		ref.writeReference(raf, getFilePointer());
-		RouteDataBlock block = builder.build();
-		ROUTE_DATA_SIZE += block.getSerializedSize();
-		codedOutStream.writeMessageNoTag(block);
+		return 0;
 	}
 
-
 	/**
 	 * Encode and write a varint. {@code value} is treated as unsigned, so it won't be sign-extended if negative.
 	 */
@@ -553,6 +620,10 @@ public class BinaryMapIndexWriter {
 			Map<MapRouteType, String> names, Map<String, Integer> stringTable, List<MapPointName> pointNames, RouteDataBlock.Builder dataBlock,
 			boolean allowCoordinateSimplification, boolean writePointId)
 			throws IOException {
+		DataBuffers buffers = dataBuffers.get();
+		TByteArrayList mapDataBuf = buffers.mapDataBuf;
+		TByteArrayList typesDataBuf = buffers.typesDataBuf;
+		TByteArrayList typesAddDataBuf = buffers.typesAddDataBuf;
 		RouteData.Builder builder = RouteData.newBuilder();
 		builder.setRouteId(diffId);
 		ROUTE_ID_SIZE += CodedOutputStream.computeInt64Size(RouteData.ROUTEID_FIELD_NUMBER, diffId);
@@ -633,6 +704,40 @@ public class BinaryMapIndexWriter {
 			throws IOException {
 
 		checkPeekState(MAP_ROOT_LEVEL_INIT);
+		STRING_TABLE_SIZE += setMapStringTable(builder, stringTable);
+
+		codedOutStream.writeTag(OsmAndMapIndex.MapRootLevel.BLOCKS_FIELD_NUMBER, FieldType.MESSAGE.getWireType());
+
+		codedOutStream.flush();
+		writeReference(ref, getFilePointer());
+		MapDataBlock block = builder.build();
+		MAP_DATA_SIZE += block.getSerializedSize();
+		codedOutStream.writeMessageNoTag(block);
+	}
+
+	/**
+	 * Map data objects are added to the block by <code>encoder</code> with the data block executor (if it is set),
+	 * block is written after the blocks submitted before.
+	 */
+	public void writeMapDataBlock(final MapDataBlock.Builder builder, final Map<String, Integer> stringTable,
+			BinaryFileReference ref, final DataBlockEncoder<MapDataBlock.Builder> encoder) throws IOException {
+		checkPeekState(MAP_ROOT_LEVEL_INIT);
+		if (dataBlockExecutor == null) {
+			encoder.encode(builder, stringTable);
+			writeMapDataBlock(builder, stringTable, ref);
+			return;
+		}
+		submitDataBlock(ref, false, new Callable<EncodedDataBlock>() {
+			@Override
+			public EncodedDataBlock call() throws Exception {
+				encoder.encode(builder, stringTable);
+				int stringTableSize = setMapStringTable(builder, stringTable);
+				return new EncodedDataBlock(builder.build().toByteArray(), stringTableSize);
+			}
+		});
+	}
+
+	private static int setMapStringTable(MapDataBlock.Builder builder, Map<String, Integer> stringTable) {
 		StringTable.Builder bs = OsmandOdb.StringTable.newBuilder();
 		if (stringTable != null) {
 			for (String s : stringTable.keySet()) {
@@ -642,26 +747,122 @@ public class BinaryMapIndexWriter {
 		StringTable st = bs.build();
 		builder.setStringTable(st);
 		int size = st.getSerializedSize();
-		STRING_TABLE_SIZE += CodedOutputStream.computeTagSize(OsmandOdb.MapDataBlock.STRINGTABLE_FIELD_NUMBER)
+		return CodedOutputStream.computeTagSize(OsmandOdb.MapDataBlock.STRINGTABLE_FIELD_NUMBER)
 				+ CodedOutputStream.computeRawVarint32Size(size) + size;
+	}
 
-		codedOutStream.writeTag(OsmAndMapIndex.MapRootLevel.BLOCKS_FIELD_NUMBER, FieldType.MESSAGE.getWireType());
+	/**
+	 * Adds data objects to a map or route data block, strings are registered in the string table of the block.
+	 * Encoders of different blocks run at the same time, so they shouldn't share mutable state.
+	 */
+	public interface DataBlockEncoder<T> {
+		void encode(T dataBlock, Map<String, Integer> stringTable) throws IOException;
+	}
+
+	/**
+	 * Map and route data blocks passed with encoder are encoded by <code>executor</code> (null - encode and write
+	 * on the calling thread). Encoded blocks are written in the order they were submitted and references to them
+	 * are updated as before, so the file is byte identical. Pending blocks are written by
+	 * {@link #finishDataBlocks()}, end of map level and route index. Size statistics of map data (COORDINATES_SIZE...)
+	 * are approximate then as they are counted by different threads.
+	 */
+	public void setDataBlockExecutor(ExecutorService executor) throws IOException {
+		finishDataBlocks();
+		this.dataBlockExecutor = executor;
+	}
+
+	private static class EncodedDataBlock {
+		final byte[] data;
+		final int stringTableSize;
+
+		EncodedDataBlock(byte[] data, int stringTableSize) {
+			this.data = data;
+			this.stringTableSize = stringTableSize;
+		}
+	}
+
+	private static class PendingDataBlock {
+		final Future<EncodedDataBlock> block;
+		final BinaryFileReference ref;
+		final boolean route;
+
+		PendingDataBlock(Future<EncodedDataBlock> block, BinaryFileReference ref, boolean route) {
+			this.block = block;
+			this.ref = ref;
+			this.route = route;
+		}
+	}
 
+	private void submitDataBlock(BinaryFileReference ref, boolean route, Callable<EncodedDataBlock> task) throws IOException {
+		pendingDataBlocks.add(new PendingDataBlock(dataBlockExecutor.submit(task), ref, route));
+		// written blocks free memory of encoded ones
+		while (pendingDataBlocks.size() > MAX_PENDING_DATA_BLOCKS ||
+				(!pendingDataBlocks.isEmpty() && pendingDataBlocks.getFirst().block.isDone())) {
+			writePendingDataBlock(pendingDataBlocks.removeFirst());
+		}
+	}
+
+	/**
+	 * Waits for encoded data blocks and writes them.
+	 */
+	public void finishDataBlocks() throws IOException {
+		while (!pendingDataBlocks.isEmpty()) {
+			writePendingDataBlock(pendingDataBlocks.removeFirst());
+		}
+	}
+
+	private void writePendingDataBlock(PendingDataBlock p) throws IOException {
+		EncodedDataBlock b;
+		try {
+			b = p.block.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+		// same bytes as writeMessageNoTag of the block
+		codedOutStream.writeTag(OsmAndMapIndex.MapRootLevel.BLOCKS_FIELD_NUMBER, FieldType.MESSAGE.getWireType());
 		codedOutStream.flush();
-		ref.writeReference(raf, getFilePointer());
-		MapDataBlock block = builder.build();
-		MAP_DATA_SIZE += block.getSerializedSize();
-		codedOutStream.writeMessageNoTag(block);
+		writeReference(p.ref, getFilePointer());
+		codedOutStream.writeRawVarint32(b.data.length);
+		codedOutStream.writeRawBytes(b.data);
+		if (p.route) {
+			ROUTE_STRING_DATA_SIZE += b.stringTableSize;
+			ROUTE_DATA_SIZE += b.data.length;
+		} else {
+			STRING_TABLE_SIZE += b.stringTableSize;
+			MAP_DATA_SIZE += b.data.length;
+		}
 	}
 
-	private TByteArrayList mapDataBuf = new TByteArrayList();
-	private TByteArrayList typesDataBuf = new TByteArrayList();
-	private TByteArrayList typesAddDataBuf = new TByteArrayList();
+	// encoding buffers of every thread (data blocks are encoded in parallel)
+	private static class DataBuffers {
+		final TByteArrayList mapDataBuf = new TByteArrayList();
+		final TByteArrayList typesDataBuf = new TByteArrayList();
+		final TByteArrayList typesAddDataBuf = new TByteArrayList();
+	}
+
+	private final ThreadLocal<DataBuffers> dataBuffers = new ThreadLocal<DataBuffers>() {
+		@Override
+		protected DataBuffers initialValue() {
+			return new DataBuffers();
+		}
+	};
 
 	public MapData writeMapData(long diffId, int pleft, int ptop, boolean area, byte[] coordinates, byte[] innerPolygonTypes, int[] typeUse,
 			int[] addtypeUse, Map<MapRulType, String> names, byte[] labelCoordinates, Map<Integer, String> namesDiff, Map<String, Integer> stringTable, MapDataBlock.Builder dataBlock,
 			boolean allowCoordinateSimplification)
 			throws IOException {
+		TByteArrayList mapDataBuf = dataBuffers.get().mapDataBuf;
 		MapData.Builder data = MapData.newBuilder();
 		// calculate size
 		mapDataBuf.clear();
@@ -869,7 +1070,7 @@ public class BinaryMapIndexWriter {
 			codedOutStream.flush();
 			long pointer = getFilePointer();
 			if (ref != null) {
-				ref.writeReference(raf, getFilePointer());
+				writeReference(ref, getFilePointer());
 			}
 			AddressNameIndexData.Builder builder = AddressNameIndexData.newBuilder();
 			// collapse same name ?
@@ -965,7 +1166,7 @@ public class BinaryMapIndexWriter {
 		codedOutStream.flush();
 		long startMessage = getFilePointer();
 		long startCityBlock = ref.getStartPointer();
-		ref.writeReference(raf, startMessage);
+		writeReference(ref, startMessage);
 		CityBlockIndex.Builder cityInd = OsmandOdb.CityBlockIndex.newBuilder();
 		cityInd.setShiftToCityIndex((int) (startMessage - startCityBlock));
 		long currentPointer = startMessage + 4 + CodedOutputStream.computeTagSize(CityBlockIndex.SHIFTTOCITYINDEX_FIELD_NUMBER);
@@ -1176,6 +1377,7 @@ public class BinaryMapIndexWriter {
 			List<TransportStop> directStops, List<byte[]> directRoute, Map<String, Integer> stringTable, Map<Long, Long> transportRoutesRegistry,
 			TransportSchedule schedule) throws IOException {
 		checkPeekState(TRANSPORT_ROUTES);
+		TByteArrayList mapDataBuf = dataBuffers.get().mapDataBuf;
 		TransportRoute.Builder tRoute = OsmandOdb.TransportRoute.newBuilder();
 		tRoute.setRef(ref);
 		tRoute.setOperator(registerString(stringTable, operator));
@@ -1247,6 +1449,7 @@ public class BinaryMapIndexWriter {
 
 
 	private void writeTransportRouteCoordinates(List<byte[]> rt) throws IOException {
+		TByteArrayList mapDataBuf = dataBuffers.get().mapDataBuf;
 		int pcalcx = 0;
 		int pcalcy = 0;
 		mapDataBuf.clear();
@@ -1343,6 +1546,7 @@ public class BinaryMapIndexWriter {
 	public void writeTransportStop(long id, int x24, int y24, String name, String nameEn, Map<String, String> names, Map<String, Integer> stringTable,
 			TLongArrayList routesOffsets, TLongArrayList routesIds, TLongArrayList deletedRoutes, Map<Entity.EntityId, List<TransportStopExit>> exits) throws IOException {
 		checkPeekState(TRANSPORT_STOPS_TREE);
+		TByteArrayList mapDataBuf = dataBuffers.get().mapDataBuf;
 
 		Bounds bounds = stackBounds.peek();
 		if (stackBaseIds.peek() == -1) {
@@ -1540,7 +1744,7 @@ public class BinaryMapIndexWriter {
 			codedOutStream.writeTag(OsmandOdb.OsmAndPoiNameIndex.DATA_FIELD_NUMBER, FieldType.MESSAGE.getWireType());
 			BinaryFileReference nameTableRef = indexedTable.get(e.getKey());
 			codedOutStream.flush();
-			nameTableRef.writeReference(raf, getFilePointer());
+			writeReference(nameTableRef, getFilePointer());
 
 			OsmAndPoiNameIndex.OsmAndPoiNameIndexData.Builder builder = OsmAndPoiNameIndex.OsmAndPoiNameIndexData.newBuilder();
 			List<PoiTileBox> tileBoxes = new ArrayList<PoiTileBox>(e.getValue());
@@ -1695,7 +1899,7 @@ public class BinaryMapIndexWriter {
 		codedOutStream.flush();
 		// write shift to that data
 		for (int i = 0; i < fpPoiBox.size(); i++) {
-			fpPoiBox.get(i).writeReference(raf, pointer);
+			writeReference(fpPoiBox.get(i), pointer);
 		}
 
 		codedOutStream.writeUInt32(OsmandOdb.OsmAndPoiBoxData.ZOOM_FIELD_NUMBER, zoom);
@@ -1772,17 +1976,44 @@ public class BinaryMapIndexWriter {
 
 	public void flush() throws IOException {
 		codedOutStream.flush();
+		if (bufferedOutput != null) {
+			bufferedOutput.flush();
+		}
+	}
+
+	/**
+	 * Appends section written by another writer (bytes [from, to) of the file), sections don't contain absolute offsets.
+	 */
+	public void appendSection(File sectionFile, long from, long to) throws IOException {
+		checkPeekState(OSMAND_STRUCTURE_INIT);
+		flush();
+		FileChannel out = raf.getChannel();
+		out.position(raf.getFilePointer());
+		FileInputStream fis = new FileInputStream(sectionFile);
+		try {
+			FileChannel in = fis.getChannel();
+			long pos = from;
+			while (pos < to) {
+				long t = in.transferTo(pos, to - pos, out);
+				if (t <= 0) {
+					throw new IOException("Section " + sectionFile.getName() + " is shorter than " + to);
+				}
+				pos += t;
+			}
+		} finally {
+			fis.close();
+		}
 	}
 
 	public void close() throws IOException {
 		checkPeekState(OSMAND_STRUCTURE_INIT);
 		codedOutStream.writeInt32(OsmandOdb.OsmAndStructure.VERSIONCONFIRM_FIELD_NUMBER, IndexConstants.BINARY_MAP_VERSION);
-		codedOutStream.flush();
+		flush();
 	}
 
 	public void preclose() throws IOException {
 		codedOutStream.writeInt32(OsmandOdb.OsmAndStructure.VERSIONCONFIRM_FIELD_NUMBER, IndexConstants.BINARY_MAP_VERSION);
-		codedOutStream.flush();
+		flush();
 	}
 
 }
@@ -0,0 +1,128 @@
+package net.osmand.obf.preparation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Output of BinaryMapIndexWriter to the file channel through a large buffer.
+ *
+ * Bytes are written with positional writes of aligned chunks, the tail of the buffer is kept so sizes of
+ * recently started messages are patched in memory. Older references are patched with a positional write,
+ * file pointer of the RandomAccessFile is not moved. After {@link #flush()} the file pointer is at the end
+ * of written data and if it is moved afterwards (file is read or truncated) writing continues from it.
+ */
+class BufferedChannelOutput extends OutputStream {
+
+	private static final int ALIGN = 1 << 16;
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	// file position of the first byte of buffer
+	private long bufferStart;
+	private final ByteBuffer patch = ByteBuffer.allocate(4);
+
+	BufferedChannelOutput(RandomAccessFile raf, int bufferSize) throws IOException {
+		this.raf = raf;
+		this.channel = raf.getChannel();
+		this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 2 * ALIGN));
+		this.bufferStart = raf.getFilePointer();
+	}
+
+	private void sync() throws IOException {
+		if (buffer.position() == 0) {
+			bufferStart = raf.getFilePointer();
+		}
+	}
+
+	public long getPosition() throws IOException {
+		sync();
+		return bufferStart + buffer.position();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		sync();
+		if (!buffer.hasRemaining()) {
+			writeChunk();
+		}
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		sync();
+		while (len > 0) {
+			if (!buffer.hasRemaining()) {
+				writeChunk();
+			}
+			int l = Math.min(len, buffer.remaining());
+			buffer.put(b, off, l);
+			off += l;
+			len -= l;
+		}
+	}
+
+	/**
+	 * Writes buffer up to the last aligned position of the file, the rest stays in buffer.
+	 */
+	private void writeChunk() throws IOException {
+		long end = bufferStart + buffer.position();
+		int len = (int) (end - end % ALIGN - bufferStart);
+		if (len <= 0) {
+			len = buffer.position();
+		}
+		buffer.flip();
+		ByteBuffer chunk = buffer.duplicate();
+		chunk.limit(len);
+		writeFully(chunk, bufferStart);
+		buffer.position(len);
+		buffer.compact();
+		bufferStart += len;
+	}
+
+	/**
+	 * Writes 4 bytes (big endian as RandomAccessFile.writeInt) at the position before the current one.
+	 */
+	public void writeInt(long pos, int value) throws IOException {
+		sync();
+		if (pos >= bufferStart && pos + 4 <= bufferStart + buffer.position()) {
+			buffer.putInt((int) (pos - bufferStart), value);
+		} else if (pos + 4 <= bufferStart) {
+			patch.clear();
+			patch.putInt(value);
+			patch.flip();
+			writeFully(patch, pos);
+		} else {
+			// reference crosses buffer start
+			flush();
+			patch.clear();
+			patch.putInt(value);
+			patch.flip();
+			writeFully(patch, pos);
+		}
+	}
+
+	private void writeFully(ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			pos += channel.write(b, pos);
+		}
+	}
+
+	/**
+	 * Writes buffer and moves file pointer to the end of written data.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (buffer.position() > 0) {
+			buffer.flip();
+			writeFully(buffer, bufferStart);
+			bufferStart += buffer.limit();
+			buffer.clear();
+			raf.seek(bufferStart);
+		}
+	}
+}
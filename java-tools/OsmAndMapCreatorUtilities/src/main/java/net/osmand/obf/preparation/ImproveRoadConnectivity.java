@@ -1,6 +1,7 @@
 package net.osmand.obf.preparation;
 
 import gnu.trove.iterator.TLongIterator;
+import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.set.hash.TLongHashSet;
 
@@ -8,12 +9,20 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.osmand.binary.BinaryMapIndexReader;
 import net.osmand.binary.BinaryMapRouteReaderAdapter.RouteRegion;
@@ -29,8 +38,17 @@ import net.osmand.router.RoutingContext.RoutingSubregionTile;
 import net.osmand.router.VehicleRouter;
 import net.osmand.util.MapUtils;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 public class ImproveRoadConnectivity {
+	private static final Log log = LogFactory.getLog(ImproveRoadConnectivity.class);
 	public static boolean TRACE = false;
+	// road ends to check are grouped by tiles of this zoom
+	private static final int TILE_ZOOM = 9;
+
+	private final AtomicLong peakMemory = new AtomicLong();
+	private long duration;
 
 	public static void main(String[] args) throws IOException {
 
@@ -74,11 +92,49 @@ public class ImproveRoadConnectivity {
 	}
 
 	public TLongObjectHashMap<RouteDataObject> collectDisconnectedRoads(BinaryMapIndexReader reader) throws IOException {
+		return collectDisconnectedRoads(reader, 1);
+	}
+
+	/**
+	 * Road ends to check are processed by tiles on several threads, every thread reads the file with its own reader.
+	 * Result doesn't depend on number of threads.
+	 */
+	public TLongObjectHashMap<RouteDataObject> collectDisconnectedRoads(BinaryMapIndexReader reader, int threads) throws IOException {
+		long time = System.currentTimeMillis();
+		peakMemory.set(0);
 		TLongObjectHashMap<List<RouteDataObject>> all = new TLongObjectHashMap<List<RouteDataObject>>();
 		TLongObjectHashMap<List<RouteDataObject>> onlyRoads = new TLongObjectHashMap<List<RouteDataObject>>();
 		TLongHashSet registeredRoadIds = new TLongHashSet();
 		findAllBaseRoadIntersections(reader, all, onlyRoads, registeredRoadIds);
-		return calculateDisconnectedRoadsToAddAndDelete(onlyRoads, all, reader, null, registeredRoadIds);
+		updatePeakMemory();
+		TLongObjectHashMap<RouteDataObject> toAdd = calculateDisconnectedRoadsToAddAndDelete(onlyRoads, all, reader, null,
+				registeredRoadIds, threads);
+		duration = System.currentTimeMillis() - time;
+		return toAdd;
+	}
+
+	/**
+	 * Duration of last {@link #collectDisconnectedRoads(BinaryMapIndexReader, int)} in ms.
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * Max used heap in bytes sampled during last {@link #collectDisconnectedRoads(BinaryMapIndexReader, int)}.
+	 */
+	public long getPeakMemory() {
+		return peakMemory.get();
+	}
+
+	private void updatePeakMemory() {
+		long used = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+		long peak;
+		while (used > (peak = peakMemory.get())) {
+			if (peakMemory.compareAndSet(peak, used)) {
+				break;
+			}
+		}
 	}
 
 	private void findAllBaseRoadIntersections(BinaryMapIndexReader reader,
@@ -137,46 +193,149 @@ public class ImproveRoadConnectivity {
 	}
 
 	private TLongObjectHashMap<RouteDataObject> calculateDisconnectedRoadsToAddAndDelete(TLongObjectHashMap<List<RouteDataObject>> mapOfObjectToCheck,
-			TLongObjectHashMap<List<RouteDataObject>> all, BinaryMapIndexReader reader, TLongHashSet setToRemove, TLongHashSet registeredIds) {
-		RoutePlannerFrontEnd frontEnd = new RoutePlannerFrontEnd();
-		RoutingConfiguration config = RoutingConfiguration.getDefault().build("car", 1000);
-
+			final TLongObjectHashMap<List<RouteDataObject>> all, final BinaryMapIndexReader reader, TLongHashSet setToRemove,
+			final TLongHashSet registeredIds, int threads) throws IOException {
+		// group road ends connected to one road only by tiles
+		TLongObjectHashMap<TLongArrayList> pointsByTile = new TLongObjectHashMap<TLongArrayList>();
 		long[] keys = mapOfObjectToCheck.keys();
+		for (int k = 0; k < keys.length; k++) {
+			long point = keys[k];
+			if (all.get(point).size() == 1) {
+				long tile = calcTileId(point);
+				TLongArrayList list = pointsByTile.get(tile);
+				if (list == null) {
+					list = new TLongArrayList();
+					pointsByTile.put(tile, list);
+				}
+				list.add(point);
+			}
+		}
+		final long[] tileIds = pointsByTile.keys();
+		Arrays.sort(tileIds);
+		final TLongArrayList[] tilePoints = new TLongArrayList[tileIds.length];
+		for (int i = 0; i < tileIds.length; i++) {
+			tilePoints[i] = pointsByTile.get(tileIds[i]);
+			tilePoints[i].sort();
+		}
+		final TileResult[] results = new TileResult[tileIds.length];
+		final AtomicInteger nextTile = new AtomicInteger();
+		threads = Math.max(1, Math.min(threads, tileIds.length));
+		if (threads == 1) {
+			processTiles(reader, RoutingConfiguration.getDefault().build("car", 1000), tilePoints, all, registeredIds,
+					nextTile, results);
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			try {
+				for (int t = 0; t < threads; t++) {
+					// router of configuration is not shared between threads
+					final RoutingConfiguration config = RoutingConfiguration.getDefault().build("car", 1000);
+					futures.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							RandomAccessFile raf = new RandomAccessFile(reader.getFile(), "r");
+							try {
+								BinaryMapIndexReader threadReader = new BinaryMapIndexReader(raf, reader.getFile());
+								processTiles(threadReader, config, tilePoints, all, registeredIds, nextTile, results);
+							} finally {
+								raf.close();
+							}
+							return null;
+						}
+					}));
+				}
+				for (Future<Void> f : futures) {
+					waitTiles(f);
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
 		TLongObjectHashMap<RouteDataObject> toAdd = new TLongObjectHashMap<RouteDataObject>();
 		TLongHashSet beginIsolated = new TLongHashSet();
 		TLongHashSet endIsolated = new TLongHashSet();
-		for(int k = 0; k < keys.length; k++) {
-			long point = keys[k];
-			if(all.get(point).size() == 1) {
-				RouteDataObject rdo = all.get(keys[k]).get(0);
+		for (TileResult r : results) {
+			beginIsolated.addAll(r.beginIsolated);
+			endIsolated.addAll(r.endIsolated);
+			for (RouteDataObject obj : r.toAdd) {
+				toAdd.put(obj.id, obj);
+			}
+		}
+		int begSize = beginIsolated.size();
+		int endSize = endIsolated.size();
+		beginIsolated.retainAll(endIsolated);
+		int intersectionSize = beginIsolated.size();
+		if(setToRemove != null) {
+			setToRemove.addAll(beginIsolated);
+		}
+		log.info("All objects in base file " + mapOfObjectToCheck.size() + " to keep isolated " + (begSize + endSize - 2 * intersectionSize) +
+				" to add " + toAdd.size() + " to remove " + beginIsolated.size() + " (tiles " + tileIds.length + ")");
+		return toAdd;
+	}
+
+	private static class TileResult {
+		TLongArrayList beginIsolated = new TLongArrayList();
+		TLongArrayList endIsolated = new TLongArrayList();
+		List<RouteDataObject> toAdd = new ArrayList<RouteDataObject>();
+	}
+
+	private void processTiles(BinaryMapIndexReader reader, RoutingConfiguration config, TLongArrayList[] tilePoints,
+			TLongObjectHashMap<List<RouteDataObject>> all, TLongHashSet registeredIds, AtomicInteger nextTile,
+			TileResult[] results) {
+		RoutePlannerFrontEnd frontEnd = new RoutePlannerFrontEnd();
+		int t;
+		while ((t = nextTile.getAndIncrement()) < tilePoints.length) {
+			TileResult res = new TileResult();
+			TLongArrayList points = tilePoints[t];
+			for (int k = 0; k < points.size(); k++) {
+				long point = points.get(k);
+				RouteDataObject rdo = all.get(point).get(0);
 				boolean begin = calcPointId(rdo, 0) == point;
 				RoutingContext ctx = frontEnd.buildRoutingContext(config, null, new BinaryMapIndexReader[] {reader}, RouteCalculationMode.NORMAL);
 				List<RouteDataObject> result = findConnectedRoads(ctx, rdo, begin, all);
 				if(result == null) {
 					if(begin) {
-						beginIsolated.add(rdo.getId());
+						res.beginIsolated.add(rdo.getId());
 					} else {
-						endIsolated.add(rdo.getId());
+						res.endIsolated.add(rdo.getId());
 					}
 				} else {
 					for(RouteDataObject obj : result) {
 						if(!registeredIds.contains(obj.id)) {
-							toAdd.put(obj.id, obj);
+							res.toAdd.add(obj);
 						}
 					}
 				}
 			}
+			results[t] = res;
+			updatePeakMemory();
 		}
-		int begSize = beginIsolated.size();
-		int endSize = endIsolated.size();
-		beginIsolated.retainAll(endIsolated);
-		int intersectionSize = beginIsolated.size();
-		if(setToRemove != null) {
-			setToRemove.addAll(beginIsolated);
+	}
+
+	private static void waitTiles(Future<Void> f) throws IOException {
+		try {
+			f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
 		}
-		System.out.println("All objects in base file " + mapOfObjectToCheck.size() + " to keep isolated " + (begSize + endSize - 2 * intersectionSize) +
-				" to add " + toAdd.size() + " to remove " + beginIsolated.size());
-		return toAdd;
+	}
+
+	private static long calcTileId(long point) {
+		long x = point >> 31;
+		long y = point - (x << 31);
+		return ((x >> (31 - TILE_ZOOM)) << TILE_ZOOM) + (y >> (31 - TILE_ZOOM));
 	}
 
 	private List<RouteDataObject> findConnectedRoads(RoutingContext ctx, RouteDataObject initial, boolean begin,
@@ -37,7 +37,6 @@ import net.osmand.data.City.CityType;
 import net.osmand.data.DataTileManager;
 import net.osmand.data.LatLon;
 import net.osmand.data.MapObject;
-import net.osmand.data.Multipolygon;
 import net.osmand.data.MultipolygonBuilder;
 import net.osmand.data.QuadRect;
 import net.osmand.data.Street;
@@ -70,6 +69,8 @@ public class IndexAddressCreator extends AbstractIndexPartCreator {
 	// MEMORY address : address structure
 	// load it in memory
 	private Map<EntityId, City> cities = new LinkedHashMap<EntityId, City>();
+	// cities in order of cities map to look up cities within boundary box
+	private BboxTileIndex<City> citiesIndex = new BboxTileIndex<City>(10);
 	private DataTileManager<City> cityVillageManager = new DataTileManager<City>(13);
 	private DataTileManager<City> cityManager = new DataTileManager<City>(10);
 	private List<Relation> postalCodeRelations = new ArrayList<Relation>();
@@ -121,7 +122,12 @@ public class IndexAddressCreator extends AbstractIndexPartCreator {
 			} else {
 				cityVillageManager.registerObject(l.getLatitude(), l.getLongitude(), city);
 			}
-			cities.put(EntityId.valueOf(e), city);
+			City old = cities.put(EntityId.valueOf(e), city);
+			if (old == null) {
+				citiesIndex.addPoint(city, l.getLatitude(), l.getLongitude());
+			} else {
+				citiesIndex.replacePoint(old, city, l.getLatitude(), l.getLongitude());
+			}
 		}
 	}
 
@@ -212,7 +218,8 @@ public class IndexAddressCreator extends AbstractIndexPartCreator {
 
 	private void attachAllCitiesToBoundary(Boundary boundary) {
 		List<City> list = new ArrayList<City>(1);
-		for (City c : cities.values()) {
+		QuadRect bbox = boundary.getMultipolygon().getLatLonBbox();
+		for (City c : citiesIndex.query(bbox.top, bbox.left, bbox.bottom, bbox.right)) {
 			if (boundary.containsPoint(c.getLocation())) {
 				list.add(c);
 			}
@@ -228,6 +235,12 @@ public class IndexAddressCreator extends AbstractIndexPartCreator {
 		// than suburb and after that findCityPart works incorrectly
 		//for cities without boundaries, try to find the right one
 		int smallestAdminLevel = 7; //start at level 8 for now...
+		// boundaries in order of the list, only boundaries with box containing the city are checked
+		BboxTileIndex<Boundary> boundariesIndex = new BboxTileIndex<Boundary>(9);
+		for (Boundary b : notAssignedBoundaries) {
+			QuadRect bbox = b.getMultipolygon().getLatLonBbox();
+			boundariesIndex.add(b, bbox.top, bbox.left, bbox.bottom, bbox.right);
+		}
 		for (City c : cities.values()) {
 			progress.progress(1);
 			Boundary cityB = cityBoundaries.get(c);
@@ -235,7 +248,7 @@ public class IndexAddressCreator extends AbstractIndexPartCreator {
 				LatLon location = c.getLocation();
 				Boundary smallestBoundary = null;
 				// try to found boundary
-				for (Boundary b : notAssignedBoundaries) {
+				for (Boundary b : boundariesIndex.queryPoint(location.getLatitude(), location.getLongitude())) {
 					if (b.getAdminLevel() >= smallestAdminLevel) {
 						if (b.containsPoint(location.getLatitude(), location.getLongitude())) {
 							// the bigger the admin level, the smaller the boundary :-)
@@ -247,6 +260,7 @@ public class IndexAddressCreator extends AbstractIndexPartCreator {
 				if (smallestBoundary != null) {
 					putCityBoundary(smallestBoundary, c);
 					notAssignedBoundaries.remove(smallestBoundary);
+					boundariesIndex.remove(smallestBoundary);
 				}
 			}
 		}
@@ -1045,6 +1059,10 @@ public class IndexAddressCreator extends AbstractIndexPartCreator {
 		Map<String, City> postcodes = new TreeMap<String, City>();
 		updatePostcodeBoundaries(progress, postcodes);
 		mapConnection.commit();
+		// streets and buildings are assigned, grids of city boundaries are not needed
+		for (Boundary b : cityBoundaries.values()) {
+			b.releasePrepared();
+		}
 		
 		List<String> additionalTags = new ArrayList<String>();
 		Map<String, Integer> tagRules = new HashMap<String, Integer>();
@@ -1141,8 +1159,8 @@ public class IndexAddressCreator extends AbstractIndexPartCreator {
 		while(it.hasNext()) {
 			Entry<Entity, Boundary> e = it.next();
 			String postcode = e.getKey().getTag(OSMTagKey.POSTAL_CODE);
-			Multipolygon mp = e.getValue().getMultipolygon();
-			QuadRect bbox = mp.getLatLonBbox();
+			Boundary boundary = e.getValue();
+			QuadRect bbox = boundary.getMultipolygon().getLatLonBbox();
 			if(bbox.width() > 0) {
 				ps.setDouble(1, bbox.top);
 				ps.setDouble(2, bbox.bottom);
@@ -1152,12 +1170,15 @@ public class IndexAddressCreator extends AbstractIndexPartCreator {
 				while(rs.next()) {
 					String pst = rs.getString(1);
 					if(Algorithms.isEmpty(pst)) {
-						if (mp.containsPoint(rs.getDouble(2), rs.getDouble(3))) {
+						if (boundary.containsPoint(rs.getDouble(2), rs.getDouble(3))) {
 							assignPostcodes.put(rs.getLong(4), postcode);
 						}
 					}
 				}
+				rs.close();
 			}
+			// postcode boundary is not queried anymore
+			boundary.releasePrepared();
 			progress.progress(1);
 		}
 		ps.close();
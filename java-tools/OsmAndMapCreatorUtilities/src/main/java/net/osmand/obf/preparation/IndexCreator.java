@@ -14,6 +14,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 
 import javax.imageio.ImageIO;
@@ -25,6 +30,7 @@ import net.osmand.binary.MapZooms;
 import net.osmand.impl.ConsoleProgressImplementation;
 import net.osmand.map.OsmandRegions;
 import net.osmand.obf.preparation.OsmDbAccessor.OsmDbVisitor;
+import net.osmand.obf.preparation.OsmDbAccessor.ParallelOsmDbVisitor;
 import net.osmand.osm.MapPoiTypes;
 import net.osmand.osm.MapRenderingTypesEncoder;
 import net.osmand.osm.edit.Entity;
@@ -34,6 +40,7 @@ import net.osmand.osm.edit.Node;
 import net.osmand.osm.edit.Relation;
 import net.osmand.osm.edit.Way;
 import net.osmand.osm.io.IOsmStorageFilter;
+import net.osmand.osm.io.IOsmStoragePlainNodeFilter;
 import net.osmand.osm.io.OsmBaseStorage;
 import net.osmand.osm.io.OsmBaseStoragePbf;
 import net.osmand.util.Algorithms;
@@ -139,6 +146,10 @@ public class IndexCreator {
 		this.deleteOsmDB = deleteOsmDB;
 	}
 
+	public void setDeleteDatabaseIndexes(boolean deleteDatabaseIndexes) {
+		this.deleteDatabaseIndexes = deleteDatabaseIndexes;
+	}
+
 	public void setMapFileName(String mapFileName) {
 		this.mapFileName = mapFileName;
 	}
@@ -209,6 +220,10 @@ public class IndexCreator {
 		return mapFile.getAbsolutePath() + ".prtree"; //$NON-NLS-1$
 	}
 
+	private File getNodeLocationsFile() {
+		return new File(dbFile.getAbsolutePath() + ".locations"); //$NON-NLS-1$
+	}
+
 	/* ***** END OF GETTERS/SETTERS ***** */
 
 	private OsmandRegions prepareRegions() throws IOException {
@@ -279,7 +294,7 @@ public class IndexCreator {
 			storage.getFilters().add(addFilter);
 		}
 
-		storage.getFilters().add(new IOsmStorageFilter() {
+		storage.getFilters().add(new IOsmStoragePlainNodeFilter() {
 
 			@Override
 			public boolean acceptEntityToLoad(OsmBaseStorage storage, EntityId entityId, Entity entity) {
@@ -289,6 +304,12 @@ public class IndexCreator {
 				// accept to allow db creator parse it
 				return true;
 			}
+
+			@Override
+			public boolean acceptPlainNodeToLoad(OsmBaseStorage storage, long id, double latitude, double longitude) {
+				// untagged node can't be a city
+				return true;
+			}
 		});
 
 		// 1. Loading osm file
@@ -299,6 +320,7 @@ public class IndexCreator {
 			dbCreator.setRelationIds(previous.getRelationIds());
 		}
 		dbCreator.setBackwardCompatibleIds(settings.backwardCompatibleIds);
+		dbCreator.setNodeLocations(accessor.getNodeLocations());
 		try {
 			setGeneralProgress(progress, "[15 / 100]"); //$NON-NLS-1$
 			progress.startTask(settings.getString("IndexCreator.LOADING_FILE") + readFile.getAbsolutePath(), -1); //$NON-NLS-1$
@@ -306,7 +328,7 @@ public class IndexCreator {
 			dbCreator.initDatabase(osmDBdialect, accessor.getDbConn(), createTables);
 			storage.getFilters().add(dbCreator);
 			if (pbfFile) {
-				((OsmBaseStoragePbf) storage).parseOSMPbf(stream, progress, false);
+				((OsmBaseStoragePbf) storage).parseOSMPbf(stream, progress, false, settings.pbfDecodeThreads);
 			} else {
 				storage.parseOSM(stream, progress, streamFile, false);
 			}
@@ -327,10 +349,18 @@ public class IndexCreator {
 
 	private OsmDbAccessor initDbAccessor(File[] readFile, IProgress progress, IOsmStorageFilter addFilter,
 			boolean generateUniqueIds, boolean overwriteIds, boolean regeenerateNewIds) throws IOException, SQLException, InterruptedException, XmlPullParserException {
+		return initDbAccessor(readFile, progress, addFilter, generateUniqueIds, overwriteIds, regeenerateNewIds, false);
+	}
+
+	/**
+	 * @param reuseOsmDB keep existing temporary osm database (see {@link OsmDbLoadedMarker}), cities are not registered while loading it
+	 */
+	private OsmDbAccessor initDbAccessor(File[] readFile, IProgress progress, IOsmStorageFilter addFilter,
+			boolean generateUniqueIds, boolean overwriteIds, boolean regeenerateNewIds, boolean reuseOsmDB) throws IOException, SQLException, InterruptedException, XmlPullParserException {
 		OsmDbAccessor accessor = new OsmDbAccessor();
 		if (dbFile == null) {
 			dbFile = new File(workingDir, TEMP_NODES_DB);
-			if (osmDBdialect.databaseFileExists(dbFile)) {
+			if (!reuseOsmDB && osmDBdialect.databaseFileExists(dbFile)) {
 				osmDBdialect.removeDatabase(dbFile);
 			}
 		}
@@ -339,12 +369,27 @@ public class IndexCreator {
 			throw new UnsupportedOperationException();
 		}
 		int mapInd = 0;
+		// node locations file can't handle overwritten ids
+		boolean useNodeLocations = settings.nodeLocationsLayout != null && !overwriteIds;
+		NodeLocationStore.Layout nodeLocationsLayout = settings.nodeLocationsLayout;
+		if (nodeLocationsLayout == NodeLocationStore.Layout.DENSE && !settings.backwardCompatibleIds) {
+			// converted node ids are shifted and carry hash bits, dense file would be 64 times bigger
+			log.warn("Dense node locations layout requires backward compatible ids, sparse layout is used"); //$NON-NLS-1$
+			nodeLocationsLayout = NodeLocationStore.Layout.SPARSE;
+		}
+		File nodeLocationsFile = getNodeLocationsFile();
 		Connection dbConn = (Connection) getDatabaseConnection(dbFile.getAbsolutePath(), osmDBdialect);
 		Statement stat = dbConn.createStatement();
 		boolean exists = osmDBdialect.checkTableIfExists("input", stat);
 		if(exists) {
 			ResultSet rs = stat.executeQuery("SELECT shift, ind, file, length from input");
-			boolean recreate = settings.indexAddress;
+			boolean recreate = (settings.indexAddress && !reuseOsmDB);
+			NodeLocationStore.Layout existingLayout = NodeLocationStore.readLayout(nodeLocationsFile);
+			if (existingLayout != (useNodeLocations ? nodeLocationsLayout : null)) {
+				// untagged nodes are stored only in node locations file
+				log.info("Node locations layout has changed in the prepared osm index."); //$NON-NLS-1$
+				recreate = true;
+			}
 			List<File> filteredOut = new ArrayList<File>();
 			int maxInd = 0;
 			while(rs.next() && !recreate) {
@@ -379,6 +424,7 @@ public class IndexCreator {
 				dbConn = (Connection) getDatabaseConnection(dbFile.getAbsolutePath(), osmDBdialect);
 				stat = dbConn.createStatement();
 				stat.execute("CREATE TABLE input(shift int, ind int, file varchar, length int)");
+				nodeLocationsFile.delete();
 			} else {
 				ArrayList<File> list = new ArrayList<File>(Arrays.asList(readFile));
 				list.removeAll(filteredOut);
@@ -387,9 +433,14 @@ public class IndexCreator {
 			}
 		} else {
 			stat.execute("CREATE TABLE input(shift int, ind int, file varchar, length int)");
+			nodeLocationsFile.delete();
 		}
 		
 		accessor.setDbConn(dbConn, osmDBdialect);
+		accessor.setConsumerThreads(settings.osmDbConsumerThreads);
+		if (useNodeLocations) {
+			accessor.setNodeLocations(new NodeLocationStore(nodeLocationsFile, nodeLocationsLayout));
+		}
 		boolean shiftIds = generateUniqueIds || overwriteIds ;
 		OsmDbCreator dbCreator = null;
 		for (File read : readFile) {
@@ -499,7 +550,7 @@ public class IndexCreator {
 					ctx.loadEntityRelation((Relation) e);
 					processor.processEntity(mini, e);
 				}
-			});
+			}, true, true);
 			accessor.closeReadingConnection();
 
 			mapFile = new File(workingDir, getMapFileName());
@@ -584,6 +635,11 @@ public class IndexCreator {
 				settings);
 		this.indexRouteCreator = new IndexRouteCreator(renderingTypes, logMapDataWarn, settings);
 
+		OsmDbLoadedMarker osmDbMarker = null;
+		if (settings.skipOsmDbReload && !recreateOnlyBinaryFile) {
+			osmDbMarker = new OsmDbLoadedMarker(new File(workingDir, getMapFileName() + ".osmdb_loaded"), //$NON-NLS-1$
+					OsmDbLoadedMarker.getFingerprint(readFile, settings, generateUniqueIds, overwriteIds));
+		}
 		// Main generation method
 		try {
 			// ////////////////////////////////////////////////////////////////////////
@@ -612,7 +668,28 @@ public class IndexCreator {
 			} else {
 				// 2. Create index connections and index structure
 				createDatabaseIndexesStructure();
-				OsmDbAccessor accessor = initDbAccessor(readFile, progress, addFilter, generateUniqueIds, overwriteIds, false);
+				boolean reuseOsmDB = osmDbMarker != null && osmDbMarker.isLoaded();
+				// cities are registered with raw osm ids while osm file is loaded, db keeps converted ids,
+				// so they are restored from db only if ids are not converted
+				if (reuseOsmDB && settings.indexAddress && (generateUniqueIds || overwriteIds || !settings.backwardCompatibleIds)) {
+					log.warn("Address index needs backward compatible ids to skip osm database reload, osm files are reloaded"); //$NON-NLS-1$
+					reuseOsmDB = false;
+				}
+				if (osmDbMarker != null) {
+					if (reuseOsmDB) {
+						log.info("Temporary osm database is reused, osm files are not reloaded"); //$NON-NLS-1$
+					} else {
+						osmDbMarker.reset();
+					}
+				}
+				OsmDbAccessor accessor = initDbAccessor(readFile, progress, addFilter, generateUniqueIds, overwriteIds, false,
+						reuseOsmDB);
+				if (reuseOsmDB && settings.indexAddress) {
+					registerCitiesFromDb(accessor, progress);
+				}
+				if (osmDbMarker != null) {
+					osmDbMarker.markLoaded();
+				}
 
 				// 3. Processing all entries
 				// 3.1 write all cities
@@ -627,8 +704,10 @@ public class IndexCreator {
 					osmDBdialect.commitDatabase(accessor.getDbConn());
 					osmDBdialect.closeDatabase(accessor.getDbConn());
 				}
-				if (deleteOsmDB) {
+				// with marker osm db is deleted after binary file is written
+				if (deleteOsmDB && osmDbMarker == null) {
 					osmDBdialect.removeDatabase(dbFile);
+					getNodeLocationsFile().delete();
 				}
 
 				// 3.4 combine all low level ways and simplify them
@@ -669,41 +748,43 @@ public class IndexCreator {
 					mapFile.delete();
 				}
 				mapRAFile = new RandomAccessFile(mapFile, "rw");
-				BinaryMapIndexWriter writer = new BinaryMapIndexWriter(mapRAFile, lastModifiedDate == null ? System.currentTimeMillis() :
-					lastModifiedDate.longValue());
-				if (settings.indexMap) {
-					setGeneralProgress(progress, "[95 of 100]");
-					progress.startTask("Writing map index to binary file...", -1);
-					indexMapCreator.writeBinaryMapIndex(writer, regionName);
-				}
-				if (settings.indexRouting) {
-					setGeneralProgress(progress, "[95 of 100]");
-					progress.startTask("Writing route index to binary file...", -1);
-					indexRouteCreator.writeBinaryRouteIndex(mapFile, writer, regionName, settings.generateLowLevel);
-				}
-
-				if (settings.indexAddress) {
-					setGeneralProgress(progress, "[95 of 100]");
-					progress.startTask("Writing address index to binary file...", -1);
-					indexAddressCreator.writeBinaryAddressIndex(writer, regionName, progress);
-				}
-
-				if (settings.indexPOI) {
-					setGeneralProgress(progress, "[95 of 100]");
-					progress.startTask("Writing poi index to binary file...", -1);
-					indexPoiCreator.writeBinaryPoiIndex(writer, regionName, progress);
+				long timestamp = lastModifiedDate == null ? System.currentTimeMillis() : lastModifiedDate.longValue();
+				BinaryMapIndexWriter writer = new BinaryMapIndexWriter(mapRAFile, timestamp, settings.binaryWriterBufferBytes);
+				List<BinarySection> sections = new ArrayList<BinarySection>();
+				for (BinarySection s : BinarySection.values()) {
+					if (s.isEnabled(settings)) {
+						sections.add(s);
+					}
 				}
-
-				if (settings.indexTransport) {
-					setGeneralProgress(progress, "[95 of 100]");
-					progress.startTask("Writing transport index to binary file...", -1);
-					indexTransportCreator.writeBinaryTransportIndex(writer, regionName, mapConnection, translitJapaneseNames);
+				ExecutorService dataBlockExecutor = settings.dataBlockThreads > 1 ?
+						Executors.newFixedThreadPool(settings.dataBlockThreads) : null;
+				try {
+					writer.setDataBlockExecutor(dataBlockExecutor);
+					if (settings.binarySectionThreads > 1 && sections.size() > 1) {
+						writeBinarySectionsParallel(writer, sections, timestamp, progress, translitJapaneseNames,
+								dataBlockExecutor);
+					} else {
+						for (BinarySection s : sections) {
+							writeBinarySection(s, writer, mapFile, progress, translitJapaneseNames);
+						}
+					}
+				} finally {
+					if (dataBlockExecutor != null) {
+						dataBlockExecutor.shutdownNow();
+					}
 				}
 				progress.finishTask();
 				writer.close();
 				mapRAFile.close();
 				log.info("Finish writing binary file"); //$NON-NLS-1$
 			}
+			if (osmDbMarker != null) {
+				osmDbMarker.delete();
+				if (deleteOsmDB) {
+					osmDBdialect.removeDatabase(dbFile);
+					getNodeLocationsFile().delete();
+				}
+			}
 		} catch (RuntimeException e) {
 			log.error("Log exception", e); //$NON-NLS-1$
 			throw e;
@@ -770,7 +851,13 @@ public class IndexCreator {
 		});
 		setGeneralProgress(progress, "[85 / 100]");
 		progress.startTask(settings.getString("IndexCreator.PROCESS_OSM_REL"), accessor.getAllRelations());
-		accessor.iterateOverEntities(progress, EntityType.RELATION, new OsmDbVisitor() {
+		// members are loaded by consumer threads, index creators are called sequentially
+		accessor.iterateOverEntities(progress, EntityType.RELATION, new ParallelOsmDbVisitor() {
+			@Override
+			public void prepareEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+				ctx.loadEntityRelation((Relation) e);
+			}
+
 			@Override
 			public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
 				iterateMainEntity(e, ctx, translitJapaneseNames);
@@ -802,7 +889,7 @@ public class IndexCreator {
 						indexTransportCreator.indexRelations((Relation) e, ctx);
 					}
 				}
-			});
+			}, true, true);
 			if (settings.indexMap) {
 				indexMapCreator.createMapIndexTableIndexes(mapConnection);
 			}
@@ -845,6 +932,176 @@ public class IndexCreator {
 	}
 
 
+	// sections in order of the binary file
+	private enum BinarySection {
+		MAP,
+		ROUTING,
+		ADDRESS,
+		POI,
+		TRANSPORT;
+
+		public boolean isEnabled(IndexCreatorSettings settings) {
+			switch (this) {
+			case MAP:
+				return settings.indexMap;
+			case ROUTING:
+				return settings.indexRouting;
+			case ADDRESS:
+				return settings.indexAddress;
+			case POI:
+				return settings.indexPOI;
+			default:
+				return settings.indexTransport;
+			}
+		}
+
+		/**
+		 * Sections reading (and updating) temporary map database share its single connection
+		 */
+		public boolean usesMapConnection() {
+			return this != POI;
+		}
+	}
+
+	/**
+	 * @param file binary file written by the writer (route section reads it back to find disconnected roads)
+	 */
+	private void writeBinarySection(BinarySection section, BinaryMapIndexWriter writer, File file, IProgress progress,
+			boolean translitJapaneseNames) throws IOException, SQLException {
+		setGeneralProgress(progress, "[95 of 100]");
+		switch (section) {
+		case MAP:
+			progress.startTask("Writing map index to binary file...", -1);
+			indexMapCreator.writeBinaryMapIndex(writer, regionName);
+			break;
+		case ROUTING:
+			progress.startTask("Writing route index to binary file...", -1);
+			indexRouteCreator.writeBinaryRouteIndex(file, writer, regionName, settings.generateLowLevel);
+			break;
+		case ADDRESS:
+			progress.startTask("Writing address index to binary file...", -1);
+			indexAddressCreator.writeBinaryAddressIndex(writer, regionName, progress);
+			break;
+		case POI:
+			progress.startTask("Writing poi index to binary file...", -1);
+			indexPoiCreator.writeBinaryPoiIndex(writer, regionName, progress);
+			break;
+		case TRANSPORT:
+			progress.startTask("Writing transport index to binary file...", -1);
+			indexTransportCreator.writeBinaryTransportIndex(writer, regionName, mapConnection, translitJapaneseNames);
+			break;
+		}
+	}
+
+	/**
+	 * Every section is written to its own temporary binary file by its own writer (all offsets inside section
+	 * are relative) and then appended to the main file in the usual order, so result is identical to sequential writing.
+	 * Temporary map database is opened in exclusive locking mode, so it can't have other connections:
+	 * sections using it (see {@link BinarySection#usesMapConnection()}) are written one by one by a single thread,
+	 * in parallel with sections having their own database (poi).
+	 */
+	private void writeBinarySectionsParallel(BinaryMapIndexWriter writer, List<BinarySection> sections, final long timestamp,
+			IProgress progress, final boolean translitJapaneseNames, final ExecutorService dataBlockExecutor)
+			throws IOException, SQLException {
+		mapConnection.commit();
+		int ownDatabase = 0;
+		for (BinarySection s : sections) {
+			if (!s.usesMapConnection()) {
+				ownDatabase++;
+			}
+		}
+		ExecutorService mapConnectionExecutor = Executors.newSingleThreadExecutor();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				Math.min(settings.binarySectionThreads - 1, ownDatabase)));
+		List<Future<BinarySectionFile>> futures = new ArrayList<Future<BinarySectionFile>>();
+		final List<File> files = new ArrayList<File>();
+		try {
+			for (final BinarySection s : sections) {
+				final File f = new File(mapFile.getAbsolutePath() + "." + s.name().toLowerCase() + ".section"); //$NON-NLS-1$ //$NON-NLS-2$
+				files.add(f);
+				ExecutorService sectionExecutor = s.usesMapConnection() ? mapConnectionExecutor : executor;
+				futures.add(sectionExecutor.submit(new Callable<BinarySectionFile>() {
+					@Override
+					public BinarySectionFile call() throws Exception {
+						long time = System.currentTimeMillis();
+						RandomAccessFile raf = new RandomAccessFile(f, "rw");
+						try {
+							raf.setLength(0);
+							BinaryMapIndexWriter sectionWriter = new BinaryMapIndexWriter(raf, timestamp,
+									settings.binaryWriterBufferBytes);
+							sectionWriter.setDataBlockExecutor(dataBlockExecutor);
+							long start = sectionWriter.getFilePointer();
+							writeBinarySection(s, sectionWriter, f, IProgress.EMPTY_PROGRESS, translitJapaneseNames);
+							long end = sectionWriter.getFilePointer();
+							sectionWriter.flush();
+							log.info("Section " + s + " written in " + (System.currentTimeMillis() - time) + " ms"); //$NON-NLS-1$
+							return new BinarySectionFile(f, start, end);
+						} finally {
+							raf.close();
+						}
+					}
+				}));
+			}
+			setGeneralProgress(progress, "[95 of 100]");
+			progress.startTask("Writing " + sections.size() + " sections to binary file...", sections.size());
+			for (Future<BinarySectionFile> fut : futures) {
+				BinarySectionFile sf = getSectionFile(fut);
+				writer.appendSection(sf.file, sf.start, sf.end);
+				progress.progress(1);
+			}
+		} finally {
+			mapConnectionExecutor.shutdownNow();
+			executor.shutdownNow();
+			for (File f : files) {
+				f.delete();
+			}
+		}
+	}
+
+	private static BinarySectionFile getSectionFile(Future<BinarySectionFile> fut) throws IOException, SQLException {
+		try {
+			return fut.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof SQLException) {
+				throw (SQLException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private static class BinarySectionFile {
+		final File file;
+		final long start;
+		final long end;
+
+		BinarySectionFile(File file, long start, long end) {
+			this.file = file;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	private void registerCitiesFromDb(OsmDbAccessor accessor, IProgress progress) throws SQLException, InterruptedException {
+		setGeneralProgress(progress, "[15 / 100]"); //$NON-NLS-1$
+		progress.startTask(settings.getString("IndexCreator.INDEX_CITIES"), accessor.getAllNodes()); //$NON-NLS-1$
+		accessor.iterateOverEntities(progress, EntityType.NODE, new OsmDbVisitor() {
+			@Override
+			public void iterateEntity(Entity e, OsmDbAccessorContext ctx) {
+				indexAddressCreator.registerCityIfNeeded(e);
+			}
+		});
+	}
+
 	private void setGeneralProgress(IProgress progress, String genProgress) {
 		progress.setGeneralProgress(genProgress);
 	}
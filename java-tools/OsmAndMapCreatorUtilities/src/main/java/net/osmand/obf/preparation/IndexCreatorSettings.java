@@ -3,6 +3,7 @@ package net.osmand.obf.preparation;
 import java.io.File;
 
 import net.osmand.data.Multipolygon;
+import rtree.Pack;
 
 public class IndexCreatorSettings {
 	
@@ -45,6 +46,68 @@ public class IndexCreatorSettings {
 	public boolean poiZipLongStrings = false;
 	
 	public int poiZipStringLimit = 100;
+
+	// number of threads to inflate and decode pbf blocks (1 - read on the calling thread)
+	public int pbfDecodeThreads = 1;
+
+	// keep untagged node coordinates in memory-mapped file instead of sqlite node table (null - sqlite)
+	// DENSE layout is addressed by raw osm id, so it is used only with backward compatible ids (otherwise SPARSE)
+	public NodeLocationStore.Layout nodeLocationsLayout = null;
+
+	// number of threads preparing entities of OsmDbAccessor.ParallelOsmDbVisitor (relations of main pass are loaded
+	// concurrently), entities are still indexed sequentially in the same order
+	public int osmDbConsumerThreads = 1;
+
+	// keep temporary osm database with completion marker (<map file>.osmdb_loaded) until binary file is written,
+	// so rerun with the same input and settings skips reload of osm files (indexing is always repeated).
+	// With indexAddress it requires backwardCompatibleIds, otherwise osm database is reloaded
+	public boolean skipOsmDbReload = false;
+
+	// number of threads writing binary sections (map, routing, address, poi, transport) into temporary files
+	// which are concatenated afterwards (1 - write sequentially into the map file).
+	// Sections of temporary map database share one thread, the other threads write poi section
+	public int binarySectionThreads = 1;
+
+	// byte budget of node cache of every rtree file (0 - rtree.CachedNodes default)
+	public long rtreeCacheBytes = 0;
+
+	// memory map node pages of rtree files instead of reading and writing them with seek
+	public boolean rtreeMemoryMapped = false;
+
+	// number of rtrees (map zoom levels, routing and base routing) packed at the same time
+	public int rtreePackThreads = 1;
+
+	// packing of map and routing rtrees (rtree.Pack.STR or rtree.Pack.HILBERT), see RTreePackBenchmark
+	public int mapRtreePackStrategy = Pack.STR;
+	public int routeRtreePackStrategy = Pack.STR;
+
+	// write packed map and routing rtrees in the compact read only node format (rtree.CompactNodeFile),
+	// temporary rtree files are several times smaller
+	public boolean rtreeCompactNodes = false;
+
+	// byte budget of nodes and names of low level map ways kept in memory while they are combined,
+	// the others are spilled to a temporary file
+	public long lowLevelWaysMemoryBytes = 256l << 20;
+
+	// points of base routing ways kept in hash maps, then they are sorted into compact chunks
+	// (0 - hash maps only)
+	public int basePointsBufferSize = 1 << 20;
+
+	// number of threads encoding map and routing data blocks, blocks are written in the same order
+	// so binary file is identical (1 - encode on writing thread)
+	public int dataBlockThreads = 1;
+
+	// buffer of binary file writer, written with file channel in large chunks and sizes of sections are
+	// patched in memory when possible, e.g. 8 << 20 (0 - write through RandomAccessFile)
+	public int binaryWriterBufferBytes = 0;
+
+	// number of threads combining and simplifying base routing roads, groups of clusters connected
+	// by roads are processed concurrently with the same result
+	public int routeGeneralizationThreads = 1;
+
+	// number of threads looking for roads connecting isolated base routing roads, every thread
+	// opens its own reader of the written file
+	public int roadConnectivityThreads = 1;
 	
 	
 
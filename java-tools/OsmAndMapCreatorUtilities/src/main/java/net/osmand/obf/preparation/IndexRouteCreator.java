@@ -32,6 +32,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import net.osmand.IProgress;
 import net.osmand.binary.BinaryMapIndexReader;
@@ -67,6 +69,7 @@ import net.osmand.util.Algorithms;
 import net.osmand.util.MapUtils;
 
 import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import rtree.Element;
 import rtree.IllegalValueException;
@@ -77,6 +80,7 @@ import rtree.RTreeInsertException;
 import rtree.Rect;
 
 public class IndexRouteCreator extends AbstractIndexPartCreator {
+	private final static Log log = LogFactory.getLog(IndexRouteCreator.class);
 
 	private Connection mapConnection;
 	private final Log logMapDataWarn;
@@ -91,7 +95,9 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 
 
 	private TLongObjectHashMap<List<RestrictionInfo>> highwayRestrictions = new TLongObjectHashMap<List<RestrictionInfo>>();
-	private TLongObjectHashMap<WayNodeId> basemapRemovedNodes = new TLongObjectHashMap<WayNodeId>();
+	// points of base ways and removed points until they are reinserted
+	private BasePointsStore basemapNodes;
+	private final long[] basemapRemovedNode = new long[2];
 	private TLongObjectHashMap<RouteMissingPoints> basemapNodesToReinsert = new TLongObjectHashMap<RouteMissingPoints> ();
 
 	// local purpose to speed up processing cache allocation
@@ -151,6 +157,7 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 		this.logMapDataWarn = logMapDataWarn;
 		this.settings = settings;
 		this.routeTypes = new MapRoutingTypes(renderingTypes);
+		this.basemapNodes = new BasePointsStore(settings.basePointsBufferSize);
 	}
 	public void indexRelations(Entity e, OsmDbAccessorContext ctx) throws SQLException {
 		indexHighwayRestrictions(e, ctx);
@@ -182,6 +189,9 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 	public void iterateMainEntity(Entity es, OsmDbAccessorContext ctx, OsmandRegions or) throws SQLException {
 		if (es instanceof Way) {
 			Way e = (Way) es;
+			// point types are reset by every encoding, names are kept only for nodes of this way
+			// (base encoding reuses names of normal encoding)
+			pointNames.clear();
 			if (or != null) {
 				try {
 					addRegionTag(or, e);
@@ -250,36 +260,22 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 		return result;
 	}
 
-	private static class WayNodeId {
-		long wayId;
-		int originalInd;
-		int insertAt;
-
-		public WayNodeId(long wayId, int originalInd, int insertAt) {
-			this.wayId = wayId;
-			this.originalInd = originalInd;
-			this.insertAt = insertAt;
-		}
-
-
-	}
-
 	private boolean registerBaseIntersectionPoint(long pointLoc, boolean register, long wayId, int insertAt, int originalInd) {
-		if(basemapRemovedNodes.containsKey(pointLoc)) {
-			WayNodeId exNode = basemapRemovedNodes.get(pointLoc);
-			if(exNode != null) {
-				if(!basemapNodesToReinsert.containsKey(exNode.wayId)) {
-					basemapNodesToReinsert.put(exNode.wayId, new RouteMissingPoints());
+		if(!basemapNodes.add(pointLoc)) {
+			if(basemapNodes.takeRemoved(pointLoc, basemapRemovedNode)) {
+				long exWayId = basemapRemovedNode[0];
+				long ind = basemapRemovedNode[1];
+				if(!basemapNodesToReinsert.containsKey(exWayId)) {
+					basemapNodesToReinsert.put(exWayId, new RouteMissingPoints());
 				}
-				RouteMissingPoints mp = basemapNodesToReinsert.get(exNode.wayId);
-				mp.addPoint(exNode.originalInd, exNode.insertAt, pointLoc);
-				basemapRemovedNodes.put(pointLoc, null);
+				RouteMissingPoints mp = basemapNodesToReinsert.get(exWayId);
+				mp.addPoint(BasePointsStore.getOriginalInd(ind), BasePointsStore.getInsertAt(ind), pointLoc);
 			}
 			return true;
 		}
-		WayNodeId genKey = register ?
-				new WayNodeId(wayId ,originalInd, insertAt) : null;
-		basemapRemovedNodes.put(pointLoc, genKey);
+		if(register) {
+			basemapNodes.putRemoved(pointLoc, wayId, originalInd, insertAt);
+		}
 		return false;
 	}
 
@@ -390,20 +386,26 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 		List<Node> ns = e.getNodes();
 
 		GeneralizedWay w = new GeneralizedWay(e.getId());
-		TIntArrayList px = w.px;
-		TIntArrayList py = w.py;
-		GeneralizedCluster cluster = null;
 		for (Node n : ns) {
 			if (n != null) {
 				int x31 = MapUtils.get31TileNumberX(n.getLongitude());
 				int y31 = MapUtils.get31TileNumberY(n.getLatitude());
-				px.add(x31);
-				py.add(y31);
+				w.addPoint(x31, y31);
 			}
 		}
 		if(w.size() < 2) {
 			return;
 		}
+		int mt = getMainType(outTypes); // routeTypes.getTypeByInternalId(mt)
+		outTypes.remove(mt);
+		w.mainType = mt;
+		w.addtypes.addAll(outTypes);
+		w.names.putAll(names);
+		registerGeneralizedWay(w);
+	}
+
+	void registerGeneralizedWay(GeneralizedWay w) {
+		GeneralizedCluster cluster = null;
 		for (int i = 0; i < w.size(); i++) {
 			GeneralizedCluster ncluster = getCluster(w, i, cluster);
 			if (ncluster != cluster) {
@@ -411,11 +413,6 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 			}
 			ncluster.addWayFromLocation(w, i);
 		}
-		int mt = getMainType(outTypes); // routeTypes.getTypeByInternalId(mt)
-		outTypes.remove(mt);
-		w.mainType = mt;
-		w.addtypes.addAll(outTypes);
-		w.names.putAll(names);
 	}
 
 	private static final char SPECIAL_CHAR = ((char) 0x60000);
@@ -481,7 +478,7 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 		stat.close();
 		mapRouteInsertStat = createStatementRouteObjInsert(mapConnection, false);
 		try {
-			routeTree = new RTree(rtreeMapIndexNonPackFileName);
+			routeTree = createRTree(rtreeMapIndexNonPackFileName, settings);
 		} catch (RTreeException e) {
 			throw new IOException(e);
 		}
@@ -489,7 +486,7 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 		if (settings.generateLowLevel) {
 			basemapRouteInsertStat = createStatementRouteObjInsert(mapConnection, true);
 			try {
-				baserouteTree = new RTree(rtreeMapIndexNonPackFileName + "b");
+				baserouteTree = createRTree(rtreeMapIndexNonPackFileName + "b", settings);
 			} catch (RTreeException e) {
 				throw new IOException(e);
 			}
@@ -516,8 +513,7 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 	private void deleteRouteTreeFiles(String rTreeMapIndexNonPackFileName, String rTreeMapIndexPackFileName, boolean deleteDatabaseIndexes,
 			RTree rte) throws IOException {
 		if (rte != null) {
-			RandomAccessFile file = rte.getFileHdr().getFile();
-			file.close();
+			rte.close();
 		}
 		if (rTreeMapIndexNonPackFileName != null) {
 			File f = new File(rTreeMapIndexNonPackFileName);
@@ -594,17 +590,27 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 	}
 
 	public void createRTreeFiles(String rTreeRouteIndexPackFileName) throws RTreeException {
-		routeTree = new RTree(rTreeRouteIndexPackFileName);
+		routeTree = createRTree(rTreeRouteIndexPackFileName, settings);
 		if(settings.generateLowLevel) {
-			baserouteTree = new RTree(rTreeRouteIndexPackFileName+"b");
+			baserouteTree = createRTree(rTreeRouteIndexPackFileName + "b", settings);
 		}
 	}
 
 	public void packRtreeFiles(String rTreeRouteIndexNonPackFileName, String rTreeRouteIndexPackFileName) throws IOException {
-		routeTree = packRtreeFile(routeTree, rTreeRouteIndexNonPackFileName, rTreeRouteIndexPackFileName);
 		if (settings.generateLowLevel) {
-			baserouteTree = packRtreeFile(baserouteTree, rTreeRouteIndexNonPackFileName + "b",
-					rTreeRouteIndexPackFileName + "b");
+			RTree[] trees = new RTree[] { routeTree, baserouteTree };
+			packRtreeFiles(trees, new String[] { rTreeRouteIndexNonPackFileName, rTreeRouteIndexNonPackFileName + "b" },
+					new String[] { rTreeRouteIndexPackFileName, rTreeRouteIndexPackFileName + "b" },
+					settings.routeRtreePackStrategy, new boolean[] { settings.rtreeCompactNodes, false },
+					settings.rtreePackThreads);
+			routeTree = trees[0];
+			baserouteTree = trees[1];
+			// base tree is appended by missing roads before writing
+			setReadOnly(routeTree);
+		} else {
+			routeTree = packRtreeFile(routeTree, rTreeRouteIndexNonPackFileName, rTreeRouteIndexPackFileName,
+					settings.routeRtreePackStrategy, settings.rtreeCompactNodes);
+			setReadOnly(routeTree);
 		}
 	}
 
@@ -638,7 +644,9 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 				appendMissingRoadsForBaseMap(mapConnection, new BinaryMapIndexReader(raf, fl));
 				// repack
 				fname = baserouteTree.getFileName();
-				baserouteTree = packRtreeFile(baserouteTree, fname, fname + "p");
+				baserouteTree = packRtreeFile(baserouteTree, fname, fname + "p", settings.routeRtreePackStrategy,
+						settings.rtreeCompactNodes);
+				setReadOnly(baserouteTree);
 
 				// seek to previous position
 				raf.seek(fp);
@@ -650,6 +658,9 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 			writer.endWriteRouteIndex();
 			writer.flush();
 			if (generateLowLevel) {
+				if (baserouteTree != null) {
+					baserouteTree.close();
+				}
 				baserouteTree = null;
 				new File(fname + "p").delete();
 			}
@@ -672,7 +683,11 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 	}
 
 	private void appendMissingRoadsForBaseMap(Connection conn, BinaryMapIndexReader reader) throws IOException, SQLException {
-		TLongObjectHashMap<RouteDataObject> map = new ImproveRoadConnectivity().collectDisconnectedRoads(reader);
+		ImproveRoadConnectivity connectivity = new ImproveRoadConnectivity();
+		TLongObjectHashMap<RouteDataObject> map = connectivity.collectDisconnectedRoads(reader,
+				settings.roadConnectivityThreads);
+		log.info("Disconnected roads collected in " + connectivity.getDuration() + " ms, threads "
+				+ settings.roadConnectivityThreads + ", peak memory " + (connectivity.getPeakMemory() >> 20) + " MB");
 		// to add
 		PreparedStatement ps = conn.prepareStatement(COPY_BASE);
 		for(RouteDataObject rdo : map.valueCollection()) {
@@ -790,26 +805,7 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 		}
 		pointTypes.clear();
 		pointNames.clear();
-		Collection<GeneralizedCluster> clusters = new ArrayList<IndexRouteCreator.GeneralizedCluster>(
-				generalClusters.valueCollection());
-		// 1. roundabouts
-		processRoundabouts(clusters);
-
-		// 2. way combination based
-		for (GeneralizedCluster cluster : clusters) {
-			ArrayList<GeneralizedWay> copy = new ArrayList<GeneralizedWay>(cluster.ways);
-			for (GeneralizedWay gw : copy) {
-				// already deleted
-				if (!cluster.ways.contains(gw)) {
-					continue;
-				}
-				attachWays(gw, true);
-				attachWays(gw, false);
-			}
-		}
-
-		// 3. Douglas peuker simplifications
-		douglasPeukerSimplificationStep(clusters);
+		Collection<GeneralizedCluster> clusters = generalizeClusters(settings.routeGeneralizationThreads);
 
 		// 5. write to db
 		TLongHashSet ids = new TLongHashSet();
@@ -857,6 +853,128 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 
 
 
+	/**
+	 * Steps 1-3 of generalization, returns clusters in order of processing.
+	 * Ways are combined and simplified only with ways of clusters they pass through, so groups of clusters
+	 * connected by ways are processed concurrently (after roundabouts) and result is the same as sequential.
+	 */
+	Collection<GeneralizedCluster> generalizeClusters(int threads) {
+		Collection<GeneralizedCluster> clusters = new ArrayList<IndexRouteCreator.GeneralizedCluster>(
+				generalClusters.valueCollection());
+		// 1. roundabouts (center point could be in any cluster)
+		processRoundabouts(clusters);
+
+		if (threads > 1) {
+			List<List<GeneralizedCluster>> groups = groupConnectedClusters(clusters);
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				pool.invoke(new GeneralizeClustersTask(groups, 0, groups.size()));
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			// 2. way combination based
+			attachWaysStep(clusters);
+			// 3. Douglas peuker simplifications
+			douglasPeukerSimplificationStep(clusters);
+		}
+		return clusters;
+	}
+
+	private class GeneralizeClustersTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<List<GeneralizedCluster>> groups;
+		private final int from;
+		private final int to;
+
+		GeneralizeClustersTask(List<List<GeneralizedCluster>> groups, int from, int to) {
+			this.groups = groups;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new GeneralizeClustersTask(groups, from, mid), new GeneralizeClustersTask(groups, mid, to));
+			} else if (to > from) {
+				attachWaysStep(groups.get(from));
+				douglasPeukerSimplificationStep(groups.get(from));
+			}
+		}
+	}
+
+	/**
+	 * Clusters sharing ways (connected components), every group keeps order of clusters.
+	 */
+	private List<List<GeneralizedCluster>> groupConnectedClusters(Collection<GeneralizedCluster> clusters) {
+		Map<GeneralizedCluster, GeneralizedCluster> parents = new HashMap<GeneralizedCluster, GeneralizedCluster>();
+		Set<GeneralizedWay> visited = new HashSet<GeneralizedWay>();
+		for (GeneralizedCluster cluster : clusters) {
+			for (GeneralizedWay gw : cluster.ways) {
+				if (!visited.add(gw)) {
+					continue;
+				}
+				GeneralizedCluster c = null;
+				for (int i = 0; i < gw.size(); i++) {
+					GeneralizedCluster nc = getCluster(gw, i, c);
+					if (nc != c) {
+						c = nc;
+						union(parents, cluster, c);
+					}
+				}
+			}
+		}
+		Map<GeneralizedCluster, List<GeneralizedCluster>> groups = new LinkedHashMap<GeneralizedCluster, List<GeneralizedCluster>>();
+		for (GeneralizedCluster cluster : clusters) {
+			GeneralizedCluster root = findRoot(parents, cluster);
+			List<GeneralizedCluster> group = groups.get(root);
+			if (group == null) {
+				group = new ArrayList<GeneralizedCluster>();
+				groups.put(root, group);
+			}
+			group.add(cluster);
+		}
+		return new ArrayList<List<GeneralizedCluster>>(groups.values());
+	}
+
+	private static GeneralizedCluster findRoot(Map<GeneralizedCluster, GeneralizedCluster> parents, GeneralizedCluster c) {
+		GeneralizedCluster root = c;
+		GeneralizedCluster p;
+		while ((p = parents.get(root)) != null) {
+			root = p;
+		}
+		// compress path
+		while ((p = parents.get(c)) != null && p != root) {
+			parents.put(c, root);
+			c = p;
+		}
+		return root;
+	}
+
+	private static void union(Map<GeneralizedCluster, GeneralizedCluster> parents, GeneralizedCluster a, GeneralizedCluster b) {
+		GeneralizedCluster ra = findRoot(parents, a);
+		GeneralizedCluster rb = findRoot(parents, b);
+		if (ra != rb) {
+			parents.put(rb, ra);
+		}
+	}
+
+	private void attachWaysStep(Collection<GeneralizedCluster> clusters) {
+		for (GeneralizedCluster cluster : clusters) {
+			ArrayList<GeneralizedWay> copy = new ArrayList<GeneralizedWay>(cluster.ways);
+			for (GeneralizedWay gw : copy) {
+				// already deleted
+				if (!cluster.ways.contains(gw)) {
+					continue;
+				}
+				attachWays(gw, true);
+				attachWays(gw, false);
+			}
+		}
+	}
+
 	private static double scalarMultiplication(double xA, double yA, double xB, double yB, double xC, double yC) {
 		// Scalar multiplication between (AB, AC)
 		double multiple = (xB - xA) * (xC - xA) + (yB- yA) * (yC -yA);
@@ -1192,7 +1310,6 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 		}
 		
 		
-		Map<String, Integer> stringTable = new LinkedHashMap<String, Integer>();
 		Map<MapRouteType, String> wayNames = createTreeMap();
 		List<MapPointName> pointNames = new ArrayList<MapRoutingTypes.MapPointName>();
 		TLongArrayList wayMapIds = new TLongArrayList();
@@ -1388,8 +1505,16 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 
 	
 
-	public static void writeBinaryMapBlock(rtree.Node parent, Rect parentBounds, RTree r, BinaryMapIndexWriter writer, RouteWriteContext wc, boolean basemap)
-					throws IOException, RTreeException, SQLException {
+	private static class RouteObjectToWrite {
+		int cid;
+		int[] types;
+		RoutePointToWrite[] points;
+		Map<MapRouteType, String> names;
+		List<MapPointName> pointNames;
+	}
+
+	public static void writeBinaryMapBlock(rtree.Node parent, final Rect parentBounds, RTree r, final BinaryMapIndexWriter writer,
+			RouteWriteContext wc, boolean basemap) throws IOException, RTreeException, SQLException {
 		Element[] e = parent.getAllElements();
 
 		RouteDataBlock.Builder dataBlock = null;
@@ -1397,6 +1522,8 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 		wc.wayMapIds.clear();
 		wc.wayMapIdsCache.clear();
 		wc.pointMapIds.clear();
+		// objects are encoded later by the data block executor of writer (if it is set)
+		final List<RouteObjectToWrite> blockObjects = new ArrayList<RouteObjectToWrite>();
 		for (int i = 0; i < parent.getTotalElements(); i++) {
 			if (e[i].getElementType() == rtree.Node.LEAF_NODE) {
 				long id = e[i].getPtr();
@@ -1406,7 +1533,6 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 				if (retrieveObject) {
 					if (dataBlock == null) {
 						dataBlock = RouteDataBlock.newBuilder();
-						wc.stringTable.clear();
 						wc.wayMapIds.clear();
 						wc.wayMapIdsCache.clear();
 						wc.pointMapIds.clear();
@@ -1429,12 +1555,14 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 							dataBlock.addRestrictions(restriction.build());
 						}
 					}
-					RouteData routeData = writer.writeRouteData(cid, parentBounds.getMinX(), parentBounds.getMinY(), wc.wayTypes,
-							wc.points.toArray(new RoutePointToWrite[wc.points.size()]),
-							wc.wayNames, wc.stringTable, wc.pointNames, dataBlock, true, false);
-					if (routeData != null) {
-						dataBlock.addDataObjects(routeData);
-					}
+					RouteObjectToWrite obj = new RouteObjectToWrite();
+					obj.cid = cid;
+					obj.types = wc.wayTypes;
+					obj.points = wc.points.toArray(new RoutePointToWrite[wc.points.size()]);
+					obj.names = createTreeMap();
+					obj.names.putAll(wc.wayNames);
+					obj.pointNames = new ArrayList<MapPointName>(wc.pointNames);
+					blockObjects.add(obj);
 				} else {
 					if(wc.logMapDataWarn != null) {
 						wc.logMapDataWarn.error("Something goes wrong with id = " + id); //$NON-NLS-1$
@@ -1458,7 +1586,19 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 //				}
 //			}
 			dataBlock.setIdTable(idTable.build());
-			writer.writeRouteDataBlock(dataBlock, wc.stringTable, ref);
+			writer.writeRouteDataBlock(dataBlock, new LinkedHashMap<String, Integer>(), ref,
+					new BinaryMapIndexWriter.DataBlockEncoder<RouteDataBlock.Builder>() {
+						@Override
+						public void encode(RouteDataBlock.Builder block, Map<String, Integer> stringTable) throws IOException {
+							for (RouteObjectToWrite obj : blockObjects) {
+								RouteData routeData = writer.writeRouteData(obj.cid, parentBounds.getMinX(), parentBounds.getMinY(),
+										obj.types, obj.points, obj.names, stringTable, obj.pointNames, block, true, false);
+								if (routeData != null) {
+									block.addDataObjects(routeData);
+								}
+							}
+						}
+					});
 		}
 		for (int i = 0; i < parent.getTotalElements(); i++) {
 			if (e[i].getElementType() != rtree.Node.LEAF_NODE) {
@@ -1603,6 +1743,22 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 			this.id = id;
 		}
 
+		GeneralizedWay(long id, int mainType) {
+			this.id = id;
+			this.mainType = mainType;
+		}
+
+		void addPoint(int x31, int y31) {
+			px.add(x31);
+			py.add(y31);
+		}
+
+		// ways are still compared by identity, hash of id keeps order of cluster ways the same from run to run
+		@Override
+		public int hashCode() {
+			return (int) (id ^ (id >>> 32));
+		}
+
 		public double getDistance() {
 			double dx = 0;
 			for (int i = 1; i < px.size(); i++) {
@@ -70,6 +70,7 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 	public static final String MISSING_STOP_NAME = TransportStop.MISSING_STOP_NAME;
 
 	private Set<Long> visitedStops = new HashSet<Long>();
+	private IndexCreatorSettings settings;
 	private PreparedStatement transRouteStat;
 	private PreparedStatement transRouteStopsStat;
 	private PreparedStatement transStopsStat;
@@ -112,6 +113,7 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 	}
 
 	public IndexTransportCreator(IndexCreatorSettings settings) throws SQLException {
+		this.settings = settings;
 		File gtfs = settings.gtfsData;
 		if(gtfs != null && gtfs.exists()) {
 			DBDialect dialect = DBDialect.SQLITE;
@@ -121,7 +123,7 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 
 
 	public void createRTreeFile(String rtreeTransportStopFile) throws RTreeException {
-		transportStopsTree = new RTree(rtreeTransportStopFile);
+		transportStopsTree = createRTree(rtreeTransportStopFile, settings);
 	}
 
 	public void writeBinaryTransportTree(rtree.Node parent, RTree r, BinaryMapIndexWriter writer,
@@ -254,6 +256,7 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 
 	public void packRTree(String rtreeTransportStopsFileName, String rtreeTransportStopsPackFileName) throws IOException {
 		transportStopsTree = packRtreeFile(transportStopsTree, rtreeTransportStopsFileName, rtreeTransportStopsPackFileName);
+		setReadOnly(transportStopsTree);
 	}
 
 	public void indexRelations(Relation e, OsmDbAccessorContext ctx) throws SQLException {
@@ -346,7 +349,7 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 			if (file.exists()) {
 				file.delete();
 			}
-			transportStopsTree = new RTree(file.getAbsolutePath());
+			transportStopsTree = createRTree(file.getAbsolutePath(), settings);
 		} catch (RTreeException e) {
 			throw new IOException(e);
 		}
@@ -702,7 +705,7 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 	public void commitAndCloseFiles(String rtreeStopsFileName, String rtreeStopsPackFileName, boolean deleteDatabaseIndexes) throws IOException, SQLException {
 		// delete transport rtree files
 		if (transportStopsTree != null) {
-			transportStopsTree.getFileHdr().getFile().close();
+			transportStopsTree.close();
 			File f = new File(rtreeStopsFileName);
 			if (f.exists() && deleteDatabaseIndexes) {
 				f.delete();
@@ -4,13 +4,13 @@ package net.osmand.obf.preparation;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -400,18 +400,6 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		return lowLevelWays;
 	}
 
-	private void loadNodes(byte[] nodes, List<Float> toPut) {
-		toPut.clear();
-		for (int i = 0; i < nodes.length;) {
-			int lat = Algorithms.parseIntFromBytes(nodes, i);
-			i += 4;
-			int lon = Algorithms.parseIntFromBytes(nodes, i);
-			i += 4;
-			toPut.add(Float.intBitsToFloat(lat));
-			toPut.add(Float.intBitsToFloat(lon));
-		}
-	}
-
 	private void parseAndSort(TIntArrayList ts, byte[] bs) {
 		ts.clear();
 		if (bs != null && bs.length > 0) {
@@ -423,8 +411,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 	}
 
 	private static class LowLevelWayCandidate {
-		public byte[] nodes;
-		public long wayId;
+		public int way;
 		public long otherNodeId;
 		public Map<MapRulType, String> names;
 		public int namesCount = 0;
@@ -432,26 +419,25 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 
 	}
 
-	public List<LowLevelWayCandidate> readLowLevelCandidates(ResultSet fs,
-			List<LowLevelWayCandidate> l, TIntArrayList temp, TIntArrayList tempAdd, TLongHashSet visitedWays) throws SQLException {
+	/**
+	 * Unvisited ways of <code>ways</code> with the same types as the combined way.
+	 */
+	private List<LowLevelWayCandidate> readLowLevelCandidates(LowLevelWaysIndex index, TIntArrayList ways,
+			boolean start, int typeKey, List<LowLevelWayCandidate> l, BitSet visitedWays) throws IOException {
 		l.clear();
-		while (fs.next()) {
-			if (!visitedWays.contains(fs.getLong(1))) {
-				parseAndSort(temp, fs.getBytes(5));
-				parseAndSort(tempAdd, fs.getBytes(6));
-				if(temp.equals(typeUse) && tempAdd.equals(addtypeUse)){
-					LowLevelWayCandidate llwc = new LowLevelWayCandidate();
-					llwc.wayId = fs.getLong(1);
-					llwc.names = decodeNames(fs.getString(4), new HashMap<MapRulType, String>());
-					llwc.nodes = fs.getBytes(3);
-					llwc.otherNodeId = fs.getLong(2);
-					for(MapRulType mr : namesUse.keySet()) {
-						if(Algorithms.objectEquals(namesUse.get(mr), llwc.names.get(mr))) {
-							llwc.namesCount++;
-						}
+		for (int i = 0; i < ways.size(); i++) {
+			int w = ways.get(i);
+			if (!visitedWays.get(w) && index.getTypeKey(w) == typeKey) {
+				LowLevelWayCandidate llwc = new LowLevelWayCandidate();
+				llwc.way = w;
+				llwc.names = decodeNames(index.getName(w), new HashMap<MapRulType, String>());
+				llwc.otherNodeId = start ? index.getEndNode(w) : index.getStartNode(w);
+				for (MapRulType mr : namesUse.keySet()) {
+					if (Algorithms.objectEquals(namesUse.get(mr), llwc.names.get(mr))) {
+						llwc.namesCount++;
 					}
-					l.add(llwc);
 				}
+				l.add(llwc);
 			}
 		}
 		return l;
@@ -464,49 +450,65 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		mapLowLevelBinaryStat = null;
 		mapConnection.commit();
 
-		PreparedStatement startStat = mapConnection.prepareStatement("SELECT id, end_node, nodes, name, type, addType FROM low_level_map_objects"
-				+ " WHERE start_node = ? AND level = ?");
-		PreparedStatement endStat = mapConnection.prepareStatement("SELECT id, start_node, nodes, name, type, addType FROM low_level_map_objects"
-				+ " WHERE end_node = ? AND level = ?");
-		Statement selectStatement = mapConnection.createStatement();
-		ResultSet rs = selectStatement.executeQuery("SELECT id, start_node, end_node, nodes, name, type, addType, level FROM low_level_map_objects");
-		TLongHashSet visitedWays = new TLongHashSet();
-		ArrayList<Float> list = new ArrayList<Float>(100);
-		TIntArrayList temp = new TIntArrayList();
-		TIntArrayList tempAdd = new TIntArrayList();
-		while (rs.next()) {
+		LowLevelWaysIndex index = new LowLevelWaysIndex(settings.lowLevelWaysMemoryBytes,
+				new File(mapTree[0].getFileName()).getAbsoluteFile().getParentFile());
+		try {
+			index.load(mapConnection);
+			processingLowLevelWays(progress, index);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			try {
+				index.close();
+			} catch (IOException e) {
+				log.warn("Low level ways temporary file is not deleted", e);
+			}
+		}
+	}
+
+	private void processingLowLevelWays(IProgress progress, LowLevelWaysIndex index) throws SQLException, IOException {
+		BitSet visitedWays = new BitSet(index.size());
+		TIntArrayList ways = new TIntArrayList();
+		// prepended ways (the last one is the first) and appended ways
+		List<byte[]> head = new ArrayList<byte[]>();
+		List<byte[]> tail = new ArrayList<byte[]>();
+		List<LowLevelWayCandidate> candidates = new ArrayList<LowLevelWayCandidate>();
+		Comparator<LowLevelWayCandidate> cmpCandidates = new Comparator<LowLevelWayCandidate>() {
+			@Override
+			public int compare(LowLevelWayCandidate o1, LowLevelWayCandidate o2) {
+				return -Integer.compare(o1.namesCount, o2.namesCount);
+			}
+		};
+		for (int w = 0; w < index.size(); w++) {
 			if (lowLevelWays != -1) {
 				progress.progress(1);
 			}
-			long id = rs.getLong(1);
-			if (visitedWays.contains(id)) {
+			if (visitedWays.get(w)) {
 				continue;
 			}
-			visitedWays.add(id);
+			visitedWays.set(w);
+			long id = index.getId(w);
 
-			int level = rs.getInt(8);
+			int level = index.getLevel(w);
 			int zoom = mapZooms.getLevel(level).getMaxZoom();
 			int minZoom = mapZooms.getLevel(level).getMinZoom();
 
-			long startNode = rs.getLong(2);
-			long endNode = rs.getLong(3);
+			long startNode = index.getStartNode(w);
+			long endNode = index.getEndNode(w);
 
 			namesUse.clear();
-			decodeNames(rs.getString(5), namesUse);
-			parseAndSort(typeUse, rs.getBytes(6));
-			parseAndSort(addtypeUse, rs.getBytes(7));
- 
-			loadNodes(rs.getBytes(4), list);
-			ArrayList<Float> wayNodes = new ArrayList<Float>(list);
+			decodeNames(index.getName(w), namesUse);
+			parseAndSort(typeUse, index.getTypes(w));
+			parseAndSort(addtypeUse, index.getAddTypes(w));
+			int typeKey = index.getTypeKey(w);
+
+			byte[] wayNodes = index.getNodes(w);
+			head.clear();
+			tail.clear();
+			// 2 coordinates per point
+			int coordinates = wayNodes.length / 4;
 
 			// combine startPoint with EndPoint
-			List<LowLevelWayCandidate> candidates = new ArrayList<LowLevelWayCandidate>();
-			Comparator<LowLevelWayCandidate> cmpCandidates = new Comparator<LowLevelWayCandidate>() {
-				@Override
-				public int compare(LowLevelWayCandidate o1, LowLevelWayCandidate o2) {
-					return -Integer.compare(o1.namesCount, o2.namesCount);
-				}
-			};
 			boolean dontCombine = false;
 			if (minZoom >= LOW_LEVEL_ZOOM_TO_COMBINE) {
 				// disable combine
@@ -519,25 +521,19 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 			}
 			boolean combined = !dontCombine;
 			
-			while (combined && wayNodes.size() < LOW_LEVEL_COMBINE_WAY_POINS_LIMIT) {
+			while (combined && coordinates < LOW_LEVEL_COMBINE_WAY_POINS_LIMIT) {
 				combined = false;
-				endStat.setLong(1, startNode);
-				endStat.setShort(2, (short) level);
-				ResultSet fs = endStat.executeQuery();
-				readLowLevelCandidates(fs, candidates, temp, tempAdd, visitedWays);
-				fs.close();
+				index.getWays(startNode, level, false, ways);
+				readLowLevelCandidates(index, ways, false, typeKey, candidates, visitedWays);
 				LowLevelWayCandidate cand = getCandidate(candidates, cmpCandidates);
 				if (cand != null) {
 					combined = true;
 					startNode = cand.otherNodeId;
-					visitedWays.add(cand.wayId);
-					loadNodes(cand.nodes, list);
-					ArrayList<Float> li = new ArrayList<Float>(list);
-					// remove first lat/lon point
-					wayNodes.remove(0);
-					wayNodes.remove(0);
-					li.addAll(wayNodes);
-					wayNodes = li;
+					visitedWays.set(cand.way);
+					byte[] candNodes = index.getNodes(cand.way);
+					head.add(candNodes);
+					// first lat/lon point is replaced
+					coordinates += candNodes.length / 4 - 2;
 					for (MapRulType rt : new ArrayList<MapRulType>(namesUse.keySet())) {
 						if (!Algorithms.objectEquals(namesUse.get(rt), cand.names.get(rt)) &&
 								!checkOneLocaleHasSameName(namesUse, cand.names, rt) ) {
@@ -549,22 +545,18 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 
 			// combined end point
 			combined = !dontCombine;
-			while (combined && wayNodes.size() < LOW_LEVEL_COMBINE_WAY_POINS_LIMIT) {
+			while (combined && coordinates < LOW_LEVEL_COMBINE_WAY_POINS_LIMIT) {
 				combined = false;
-				startStat.setLong(1, endNode);
-				startStat.setShort(2, (short) level);
-				ResultSet fs = startStat.executeQuery();
-				readLowLevelCandidates(fs, candidates, temp, tempAdd, visitedWays);
-				fs.close();
+				index.getWays(endNode, level, true, ways);
+				readLowLevelCandidates(index, ways, true, typeKey, candidates, visitedWays);
 				LowLevelWayCandidate cand = getCandidate(candidates, cmpCandidates);
 				if (cand != null) {
 					combined = true;
 					endNode = cand.otherNodeId;
-					visitedWays.add(cand.wayId);
-					loadNodes(cand.nodes, list);
-					for (int i = 2; i < list.size(); i++) {
-						wayNodes.add(list.get(i));
-					}
+					visitedWays.set(cand.way);
+					byte[] candNodes = index.getNodes(cand.way);
+					tail.add(candNodes);
+					coordinates += Math.max(0, candNodes.length / 4 - 2);
 					for (MapRulType rt : new ArrayList<MapRulType>(namesUse.keySet())) {
 						if (!Algorithms.objectEquals(namesUse.get(rt), cand.names.get(rt)) &&
 								!checkOneLocaleHasSameName(namesUse, cand.names, rt) ) {
@@ -574,10 +566,13 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 				}
 			}
 
-			List<Node> wNodes = new ArrayList<Node>();
-			int wNsize = wayNodes.size();
-			for (int i = 0; i < wNsize; i += 2) {
-				wNodes.add(new Node(wayNodes.get(i), wayNodes.get(i + 1), i == 0 ? startNode : endNode));
+			List<Node> wNodes = new ArrayList<Node>(coordinates / 2);
+			for (int i = head.size() - 1; i >= 0; i--) {
+				addLowLevelNodes(head.get(i), wNodes, startNode, endNode);
+			}
+			addLowLevelNodes(wayNodes, wNodes, startNode, endNode);
+			for (int i = 0; i < tail.size(); i++) {
+				addLowLevelNodes(tail.get(i), wNodes, startNode, endNode);
 			}
 			boolean skip = false;
 			boolean cycle = startNode == endNode;
@@ -603,6 +598,18 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 
 	}
 
+	/**
+	 * Adds points of a combined way, the first point is skipped as it is the last point of the previous way.
+	 * The first point of the combined way has id of start node and others of end node.
+	 */
+	private static void addLowLevelNodes(byte[] nodes, List<Node> wNodes, long startNode, long endNode) {
+		for (int i = wNodes.isEmpty() ? 0 : 8; i + 8 <= nodes.length; i += 8) {
+			float lat = Float.intBitsToFloat(Algorithms.parseIntFromBytes(nodes, i));
+			float lon = Float.intBitsToFloat(Algorithms.parseIntFromBytes(nodes, i + 4));
+			wNodes.add(new Node(lat, lon, wNodes.isEmpty() ? startNode : endNode));
+		}
+	}
+
 	private boolean checkOneLocaleHasSameName(TreeMap<MapRulType, String> nu1, Map<MapRulType, String> nu2,
 			MapRulType rt) {
 		String tg = rt.getTag();
@@ -832,8 +839,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 			// write map encoding rules
 			writer.writeMapEncodingRules(renderingTypes.getEncodingRuleTypes());
 
-			PreparedStatement selectData = mapConnection
-					.prepareStatement("SELECT area, coordinates, innerPolygons, types, additionalTypes, name, labelCoordinates FROM binary_map_objects WHERE id = ?");
+			PreparedStatement selectData = mapConnection.prepareStatement(selectLeafDataQuery());
 
 			// write map levels and map index
 			TLongObjectHashMap<BinaryFileReference> treeHeader = new TLongObjectHashMap<BinaryFileReference>();
@@ -847,8 +853,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 							rootBounds.getMinX(), rootBounds.getMaxX(), rootBounds.getMinY(), rootBounds.getMaxY());
 					writeBinaryMapTree(root, rootBounds, rtree, writer, treeHeader);
 
-					writeBinaryMapBlock(root,  rootBounds, rtree, writer, selectData, treeHeader, new LinkedHashMap<String, Integer>(),
-								new LinkedHashMap<MapRulType, String>(), mapZooms.getLevel(i));
+					writeBinaryMapBlock(root,  rootBounds, rtree, writer, selectData, treeHeader, mapZooms.getLevel(i));
 
 					writer.endWriteMapLevelIndex();
 				}
@@ -905,71 +910,144 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		return tempNames;
 	}
 
+	/**
+	 * Objects of all the leaves of a node are selected with one query, ids are passed by batches of
+	 * rtree.Node.MAX (unused parameters repeat the first id).
+	 */
+	private static String selectLeafDataQuery() {
+		StringBuilder b = new StringBuilder("SELECT id, area, coordinates, innerPolygons, types, additionalTypes, name, labelCoordinates "
+				+ "FROM binary_map_objects WHERE id IN (?");
+		for (int i = 1; i < rtree.Node.MAX; i++) {
+			b.append(", ?");
+		}
+		return b.append(")").toString();
+	}
+
+	private static class MapObjectRow {
+		boolean area;
+		byte[] coordinates;
+		byte[] innerPolygons;
+		byte[] types;
+		byte[] additionalTypes;
+		String name;
+		byte[] labelCoordinates;
+		// decoded before the block is encoded
+		long cid;
+		int[] typeUse;
+		int[] addtypeUse;
+		Map<MapRulType, String> names;
+		boolean allowWaySimplification;
+	}
+
+	private static void loadLeafObjects(Element[] e, int total, PreparedStatement selectData,
+			TLongObjectHashMap<MapObjectRow> rows) throws SQLException {
+		rows.clear();
+		int i = 0;
+		while (i < total) {
+			int p = 0;
+			long first = 0;
+			for (; i < total && p < rtree.Node.MAX; i++) {
+				if (e[i].getElementType() == rtree.Node.LEAF_NODE) {
+					if (p == 0) {
+						first = e[i].getPtr();
+					}
+					selectData.setLong(++p, e[i].getPtr());
+				}
+			}
+			if (p == 0) {
+				break;
+			}
+			while (p < rtree.Node.MAX) {
+				selectData.setLong(++p, first);
+			}
+			ResultSet rs = selectData.executeQuery();
+			while (rs.next()) {
+				MapObjectRow row = new MapObjectRow();
+				row.area = rs.getBoolean(2);
+				row.coordinates = rs.getBytes(3);
+				row.innerPolygons = rs.getBytes(4);
+				row.types = rs.getBytes(5);
+				row.additionalTypes = rs.getBytes(6);
+				row.name = rs.getString(7);
+				row.labelCoordinates = rs.getBytes(8);
+				rows.put(rs.getLong(1), row);
+			}
+			rs.close();
+		}
+	}
+
 	public void writeBinaryMapBlock(rtree.Node parent, Rect parentBounds, RTree r, BinaryMapIndexWriter writer, PreparedStatement selectData,
-			TLongObjectHashMap<BinaryFileReference> bounds, Map<String, Integer> tempStringTable, LinkedHashMap<MapRulType, String> tempNames, MapZoomPair level)
+			TLongObjectHashMap<BinaryFileReference> bounds, MapZoomPair level)
 			throws IOException, RTreeException, SQLException {
+		writeBinaryMapBlock(parent, parentBounds, r, writer, selectData, bounds, level, new TLongObjectHashMap<MapObjectRow>());
+	}
+
+	private void writeBinaryMapBlock(rtree.Node parent, final Rect parentBounds, RTree r, final BinaryMapIndexWriter writer,
+			PreparedStatement selectData, TLongObjectHashMap<BinaryFileReference> bounds, MapZoomPair level,
+			TLongObjectHashMap<MapObjectRow> rows) throws IOException, RTreeException, SQLException {
 		Element[] e = parent.getAllElements();
 
-		MapDataBlock.Builder dataBlock = null;
 		BinaryFileReference ref = bounds.get(parent.getNodeIndex());
-		long baseId = 0;
+		final List<MapObjectRow> blockObjects = new ArrayList<MapObjectRow>();
+		loadLeafObjects(e, parent.getTotalElements(), selectData, rows);
 		for (int i = 0; i < parent.getTotalElements(); i++) {
 			if (e[i].getElementType() == rtree.Node.LEAF_NODE) {
 				long id = e[i].getPtr();
-				selectData.setLong(1, id);
-				// selectData = mapConnection.prepareStatement("SELECT area, coordinates, innerPolygons, types, additionalTypes, name FROM binary_map_objects WHERE id = ?");
-				ResultSet rs = selectData.executeQuery();
-				if (rs.next()) {
-					long cid = convertGeneratedIdToObfWrite(id);
-					if (dataBlock == null) {
-						baseId = cid;
-						dataBlock = writer.createWriteMapDataBlock(baseId);
-						tempStringTable.clear();
-
-					}
-					tempNames.clear();
-					decodeNames(rs.getString(6), tempNames);
-					boolean allowWaySimplification = level.getMaxZoom() > 15;
-					byte[] types = rs.getBytes(4);
-					int[] typeUse = new int[types.length / 2];
+				MapObjectRow row = rows.get(id);
+				if (row != null) {
+					row.cid = convertGeneratedIdToObfWrite(id);
+					row.names = decodeNames(row.name, new LinkedHashMap<MapRulType, String>());
+					row.allowWaySimplification = level.getMaxZoom() > 15;
+					byte[] types = row.types;
+					row.typeUse = new int[types.length / 2];
 					for (int j = 0; j < types.length; j += 2) {
 						int ids = Algorithms.parseSmallIntFromBytes(types, j);
 						MapRulType mapRulType = renderingTypes.getTypeByInternalId(ids);
 						if("railway".equals(mapRulType.getTag()) && "tram".equals(mapRulType.getValue())) {
-							allowWaySimplification = false;
+							row.allowWaySimplification = false;
 						}
-						typeUse[j / 2] = mapRulType.getTargetId();
+						row.typeUse[j / 2] = mapRulType.getTargetId();
 					}
-					byte[] addTypes = rs.getBytes(5);
-					int[] addtypeUse = null ;
+					byte[] addTypes = row.additionalTypes;
 					if (addTypes != null) {
-						addtypeUse = new int[addTypes.length / 2];
+						row.addtypeUse = new int[addTypes.length / 2];
 						for (int j = 0; j < addTypes.length; j += 2) {
 							int ids = Algorithms.parseSmallIntFromBytes(addTypes, j);
 							MapRulType mapRulType = renderingTypes.getTypeByInternalId(ids);
-							addtypeUse[j / 2] = mapRulType.getTargetId();
+							row.addtypeUse[j / 2] = mapRulType.getTargetId();
 						}
 					}
-					
-					
-					MapData mapData = writer.writeMapData(cid - baseId, parentBounds.getMinX(), parentBounds.getMinY(), rs.getBoolean(1), rs.getBytes(2), rs.getBytes(3),
-							typeUse, addtypeUse, tempNames,  rs.getBytes(7),  null, tempStringTable, dataBlock, allowWaySimplification);
-					if(mapData != null) {
-						dataBlock.addDataObjects(mapData);
-					}
+					blockObjects.add(row);
 				} else {
 					logMapDataWarn.error("Something goes wrong with id = " + id); //$NON-NLS-1$
 				}
 			}
 		}
-		if (dataBlock != null) {
-			writer.writeMapDataBlock(dataBlock, tempStringTable, ref);
+		rows.clear();
+		if (!blockObjects.isEmpty()) {
+			final long baseId = blockObjects.get(0).cid;
+			MapDataBlock.Builder dataBlock = writer.createWriteMapDataBlock(baseId);
+			// objects are encoded by the data block executor of writer (if it is set)
+			writer.writeMapDataBlock(dataBlock, new LinkedHashMap<String, Integer>(), ref,
+					new BinaryMapIndexWriter.DataBlockEncoder<MapDataBlock.Builder>() {
+						@Override
+						public void encode(MapDataBlock.Builder block, Map<String, Integer> stringTable) throws IOException {
+							for (MapObjectRow row : blockObjects) {
+								MapData mapData = writer.writeMapData(row.cid - baseId, parentBounds.getMinX(), parentBounds.getMinY(),
+										row.area, row.coordinates, row.innerPolygons, row.typeUse, row.addtypeUse, row.names,
+										row.labelCoordinates, null, stringTable, block, row.allowWaySimplification);
+								if (mapData != null) {
+									block.addDataObjects(mapData);
+								}
+							}
+						}
+					});
 		}
 		for (int i = 0; i < parent.getTotalElements(); i++) {
 			if (e[i].getElementType() != rtree.Node.LEAF_NODE) {
 				long ptr = e[i].getPtr();
 				rtree.Node ns = r.getReadNode(ptr);
-				writeBinaryMapBlock(ns, e[i].getRect(), r, writer, selectData, bounds, tempStringTable, tempNames,level);
+				writeBinaryMapBlock(ns, e[i].getRect(), r, writer, selectData, bounds, level, rows);
 			}
 		}
 	}
@@ -1095,7 +1173,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 				if (file.exists()) {
 					file.delete();
 				}
-				mapTree[i] = new RTree(rtreeMapIndexNonPackFileName + i);
+				mapTree[i] = createRTree(rtreeMapIndexNonPackFileName + i, settings);
 				// very slow
 				// mapTree[i].getFileHdr().setBufferPolicy(true);
 			}
@@ -1279,15 +1357,23 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 	public void createRTreeFiles(String rTreeMapIndexPackFileName) throws RTreeException {
 		mapTree = new RTree[mapZooms.size()];
 		for (int i = 0; i < mapZooms.size(); i++) {
-			mapTree[i] = new RTree(rTreeMapIndexPackFileName + i);
+			mapTree[i] = createRTree(rTreeMapIndexPackFileName + i, settings);
 		}
 
 	}
 
 	public void packRtreeFiles(String rTreeMapIndexNonPackFileName, String rTreeMapIndexPackFileName) throws IOException {
+		String[] nonPackFileNames = new String[mapZooms.size()];
+		String[] packFileNames = new String[mapZooms.size()];
+		boolean[] compact = new boolean[mapZooms.size()];
 		for (int i = 0; i < mapZooms.size(); i++) {
-			mapTree[i] = packRtreeFile(mapTree[i], rTreeMapIndexNonPackFileName + i, rTreeMapIndexPackFileName + i);
+			nonPackFileNames[i] = rTreeMapIndexNonPackFileName + i;
+			packFileNames[i] = rTreeMapIndexPackFileName + i;
+			compact[i] = settings.rtreeCompactNodes;
 		}
+		packRtreeFiles(mapTree, nonPackFileNames, packFileNames, settings.mapRtreePackStrategy, compact,
+				settings.rtreePackThreads);
+		setReadOnly(mapTree);
 	}
 
 	public void commitAndCloseFiles(String rTreeMapIndexNonPackFileName, String rTreeMapIndexPackFileName, boolean deleteDatabaseIndexes)
@@ -1297,8 +1383,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		if (mapTree != null) {
 			for (int i = 0; i < mapTree.length; i++) {
 				if (mapTree[i] != null) {
-					RandomAccessFile file = mapTree[i].getFileHdr().getFile();
-					file.close();
+					mapTree[i].close();
 				}
 
 			}
@@ -0,0 +1,328 @@
+package net.osmand.obf.preparation;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+import net.osmand.util.Algorithms;
+
+/**
+ * Low level ways (low_level_map_objects table) indexed by their end points, so ways are combined without a
+ * query per end point.
+ *
+ * Ways are numbered in the order of the table scan. Ways starting (ending) at a node are linked in a list
+ * whose head is kept in a primitive hash map. Ways at a node are returned in the order of the sqlite index
+ * on (node, type) : by type blob and then by table order, so combining gives the same result as with
+ * queries.
+ *
+ * Nodes and names of ways are kept in memory up to the byte budget, the others are spilled to a temporary
+ * file.
+ */
+public class LowLevelWaysIndex {
+	private static final Log log = LogFactory.getLog(LowLevelWaysIndex.class);
+
+	private int size;
+	private long[] ids;
+	private long[] startNodes;
+	private long[] endNodes;
+	private short[] levels;
+	// index in typeBlobs
+	private int[] typeIds;
+	private int[] nextByStart;
+	private int[] nextByEnd;
+	private final TLongIntHashMap firstByStart;
+	private final TLongIntHashMap firstByEnd;
+
+	// distinct (type, addType) blobs
+	private final List<byte[]> typeBlobs = new ArrayList<byte[]>();
+	private final List<byte[]> addTypeBlobs = new ArrayList<byte[]>();
+	// same key - same sorted types and additional types
+	private final TIntArrayList typeKeys = new TIntArrayList();
+	// order of type blobs in sqlite index
+	private int[] typeRanks;
+
+	private final long memoryBytes;
+	private long usedBytes;
+	private byte[][] nodes;
+	private String[] names;
+	private final File spillDir;
+	private File spillFile;
+	private RandomAccessFile spill;
+	private long[] spillOffsets;
+
+	/**
+	 * @param memoryBytes budget of nodes and names of ways kept in memory
+	 * @param spillDir directory of the temporary file
+	 */
+	public LowLevelWaysIndex(long memoryBytes, File spillDir) {
+		this.memoryBytes = memoryBytes;
+		this.spillDir = spillDir;
+		firstByStart = new TLongIntHashMap(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR,
+				Constants.DEFAULT_LONG_NO_ENTRY_VALUE, -1);
+		firstByEnd = new TLongIntHashMap(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR,
+				Constants.DEFAULT_LONG_NO_ENTRY_VALUE, -1);
+	}
+
+	/**
+	 * Reads all the low level ways with one table scan.
+	 */
+	public void load(Connection conn) throws SQLException, IOException {
+		Statement stat = conn.createStatement();
+		ResultSet rs = stat.executeQuery("SELECT count(*) FROM low_level_map_objects");
+		int count = rs.next() ? rs.getInt(1) : 0;
+		rs.close();
+		init(count);
+		Map<ByteBuffer, Integer> typeIdsMap = new HashMap<ByteBuffer, Integer>();
+		Map<String, Integer> typeKeysMap = new HashMap<String, Integer>();
+		DataOutputStream spillOut = null;
+		long spillPos = 0;
+		rs = stat.executeQuery("SELECT id, start_node, end_node, nodes, name, type, addType, level FROM low_level_map_objects");
+		try {
+			while (rs.next()) {
+				if (size == ids.length) {
+					// rows inserted after count
+					init(size * 2);
+				}
+				int i = size++;
+				ids[i] = rs.getLong(1);
+				startNodes[i] = rs.getLong(2);
+				endNodes[i] = rs.getLong(3);
+				levels[i] = rs.getShort(8);
+				typeIds[i] = getTypeId(rs.getBytes(6), rs.getBytes(7), typeIdsMap, typeKeysMap);
+				byte[] n = rs.getBytes(4);
+				String name = rs.getString(5);
+				long bytes = n.length + (name == null ? 0 : 2 * name.length());
+				if (usedBytes + bytes <= memoryBytes && spillOut == null) {
+					usedBytes += bytes;
+					nodes[i] = n;
+					names[i] = name;
+				} else {
+					if (spillOut == null) {
+						spillFile = File.createTempFile("low_level_ways", ".tmp", spillDir);
+						spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+						spillOffsets = new long[ids.length];
+						log.info("Low level ways over memory budget, spill to " + spillFile.getName());
+					}
+					spillOffsets[i] = spillPos;
+					spillOut.writeInt(n.length);
+					spillOut.write(n);
+					byte[] nm = name == null ? null : name.getBytes("UTF-8");
+					spillOut.writeInt(nm == null ? -1 : nm.length);
+					if (nm != null) {
+						spillOut.write(nm);
+					}
+					spillPos += 8 + n.length + (nm == null ? 0 : nm.length);
+				}
+			}
+		} finally {
+			rs.close();
+			stat.close();
+			if (spillOut != null) {
+				spillOut.close();
+			}
+		}
+		if (spillFile != null) {
+			spill = new RandomAccessFile(spillFile, "r");
+		}
+		// lists are built backwards, so ways of a node are in table order
+		for (int i = size - 1; i >= 0; i--) {
+			nextByStart[i] = firstByStart.put(startNodes[i], i);
+			nextByEnd[i] = firstByEnd.put(endNodes[i], i);
+		}
+		rankTypes();
+	}
+
+	private void init(int capacity) {
+		capacity = Math.max(capacity, 16);
+		ids = Arrays.copyOf(ids == null ? new long[0] : ids, capacity);
+		startNodes = Arrays.copyOf(startNodes == null ? new long[0] : startNodes, capacity);
+		endNodes = Arrays.copyOf(endNodes == null ? new long[0] : endNodes, capacity);
+		levels = Arrays.copyOf(levels == null ? new short[0] : levels, capacity);
+		typeIds = Arrays.copyOf(typeIds == null ? new int[0] : typeIds, capacity);
+		nextByStart = new int[capacity];
+		nextByEnd = new int[capacity];
+		nodes = Arrays.copyOf(nodes == null ? new byte[0][] : nodes, capacity);
+		names = Arrays.copyOf(names == null ? new String[0] : names, capacity);
+		if (spillOffsets != null) {
+			spillOffsets = Arrays.copyOf(spillOffsets, capacity);
+		}
+	}
+
+	private int getTypeId(byte[] type, byte[] addType, Map<ByteBuffer, Integer> typeIdsMap,
+			Map<String, Integer> typeKeysMap) {
+		type = type == null ? new byte[0] : type;
+		addType = addType == null ? new byte[0] : addType;
+		ByteBuffer raw = ByteBuffer.allocate(4 + type.length + addType.length);
+		raw.putInt(type.length).put(type).put(addType);
+		raw.flip();
+		Integer id = typeIdsMap.get(raw);
+		if (id == null) {
+			id = typeBlobs.size();
+			typeIdsMap.put(raw, id);
+			typeBlobs.add(type);
+			addTypeBlobs.add(addType);
+			String key = Arrays.toString(sortedTypes(type)) + Arrays.toString(sortedTypes(addType));
+			Integer k = typeKeysMap.get(key);
+			if (k == null) {
+				k = typeKeysMap.size();
+				typeKeysMap.put(key, k);
+			}
+			typeKeys.add(k);
+		}
+		return id;
+	}
+
+	private static int[] sortedTypes(byte[] bs) {
+		int[] ts = new int[bs.length / 2];
+		for (int j = 0; j < ts.length; j++) {
+			ts[j] = Algorithms.parseSmallIntFromBytes(bs, j * 2);
+		}
+		Arrays.sort(ts);
+		return ts;
+	}
+
+	/**
+	 * Blobs are compared by sqlite as unsigned bytes, shorter blob is less if it is a prefix.
+	 */
+	private void rankTypes() {
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < typeBlobs.size(); i++) {
+			order.add(i);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				byte[] b1 = typeBlobs.get(o1);
+				byte[] b2 = typeBlobs.get(o2);
+				for (int i = 0; i < b1.length && i < b2.length; i++) {
+					int c = Integer.compare(b1[i] & 0xff, b2[i] & 0xff);
+					if (c != 0) {
+						return c;
+					}
+				}
+				return Integer.compare(b1.length, b2.length);
+			}
+		});
+		typeRanks = new int[typeBlobs.size()];
+		int rank = 0;
+		for (int i = 0; i < order.size(); i++) {
+			if (i > 0 && !Arrays.equals(typeBlobs.get(order.get(i - 1)), typeBlobs.get(order.get(i)))) {
+				rank++;
+			}
+			typeRanks[order.get(i)] = rank;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getId(int way) {
+		return ids[way];
+	}
+
+	public long getStartNode(int way) {
+		return startNodes[way];
+	}
+
+	public long getEndNode(int way) {
+		return endNodes[way];
+	}
+
+	public int getLevel(int way) {
+		return levels[way];
+	}
+
+	public byte[] getTypes(int way) {
+		return typeBlobs.get(typeIds[way]);
+	}
+
+	public byte[] getAddTypes(int way) {
+		return addTypeBlobs.get(typeIds[way]);
+	}
+
+	/**
+	 * Ways with the same key have the same (sorted) types and additional types.
+	 */
+	public int getTypeKey(int way) {
+		return typeKeys.get(typeIds[way]);
+	}
+
+	public byte[] getNodes(int way) throws IOException {
+		if (spillOffsets == null || nodes[way] != null) {
+			return nodes[way];
+		}
+		spill.seek(spillOffsets[way]);
+		byte[] n = new byte[spill.readInt()];
+		spill.readFully(n);
+		return n;
+	}
+
+	public String getName(int way) throws IOException {
+		if (spillOffsets == null || nodes[way] != null) {
+			return names[way];
+		}
+		spill.seek(spillOffsets[way]);
+		spill.skipBytes(spill.readInt());
+		int len = spill.readInt();
+		if (len < 0) {
+			return null;
+		}
+		byte[] nm = new byte[len];
+		spill.readFully(nm);
+		return new String(nm, "UTF-8");
+	}
+
+	/**
+	 * Ways of the level starting at the node (or ending at the node if <code>start</code> is false) in
+	 * the order sqlite returns them.
+	 */
+	public TIntArrayList getWays(long node, int level, boolean start, TIntArrayList res) {
+		res.clear();
+		int[] next = start ? nextByStart : nextByEnd;
+		for (int w = (start ? firstByStart : firstByEnd).get(node); w != -1; w = next[w]) {
+			if (levels[w] == level) {
+				// insertion sort by type rank, table order is kept for the same rank
+				int r = typeRanks[typeIds[w]];
+				int p = res.size();
+				while (p > 0 && typeRanks[typeIds[res.get(p - 1)]] > r) {
+					p--;
+				}
+				res.insert(p, w);
+			}
+		}
+		return res;
+	}
+
+	public void close() throws IOException {
+		if (spill != null) {
+			spill.close();
+			spill = null;
+		}
+		if (spillFile != null) {
+			spillFile.delete();
+			spillFile = null;
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package net.osmand.obf.preparation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Memory-mapped store of untagged node coordinates, replacement of the sqlite node table for way geometry.
+ * Coordinates are packed as 2 ints (1e-7 degree as in osm).
+ *
+ * Layouts :
+ * DENSE - record is addressed by node id (8 bytes per id), only not negative ids are supported,
+ *         file size is proportional to max id, so it is meant for raw (not converted) osm ids
+ * SPARSE - (id, lat, lon) records sorted by id, looked up with binary search
+ */
+public class NodeLocationStore {
+	private static final Log log = LogFactory.getLog(NodeLocationStore.class);
+
+	public enum Layout {
+		SPARSE,
+		DENSE
+	}
+
+	public static final long MISSING = 0;
+
+	private static final int MAGIC = 0x4f4e4c53;
+	private static final int HEADER_SIZE = 16;
+	private static final int SPARSE_RECORD_SIZE = 16;
+	private static final int DENSE_RECORD_SIZE = 8;
+	// shift to keep encoded latitude > 0, so 0 could mean missing record
+	private static final int LAT_SHIFT = 1000000000;
+	private static final double COORDINATES_MULT = 1e7;
+	// 1 GB, multiple of record sizes
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1l << SEGMENT_SHIFT;
+
+	private final File file;
+	private final Layout layout;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private long count;
+	private long lastId = Long.MIN_VALUE;
+	private boolean sorted = true;
+
+	/**
+	 * Opens existing store or creates a new one.
+	 *
+	 * @throws IOException if existing file is not a node locations store or has another layout (check it with
+	 *             {@link #readLayout(File)} and delete the file to recreate the store)
+	 */
+	public NodeLocationStore(File file, Layout layout) throws IOException {
+		this.file = file;
+		this.layout = layout;
+		boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+		if (exists) {
+			Layout existing = readLayout(file);
+			if (existing != layout) {
+				throw new IOException("Node locations file " + file.getName() + " has " +
+						(existing == null ? "unknown format" : existing + " layout") + ", " + layout + " layout is requested");
+			}
+		}
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		if (exists) {
+			raf.seek(8);
+			count = raf.readLong();
+			mapAllSegments();
+			if (layout == Layout.SPARSE && count > 0) {
+				lastId = getSparseId(count - 1);
+			}
+		} else {
+			raf.setLength(0);
+			raf.writeInt(MAGIC);
+			raf.writeInt(layout.ordinal());
+			raf.writeLong(0);
+		}
+	}
+
+	/**
+	 * @return layout stored in the header or null if file doesn't exist or is not a node locations store
+	 */
+	public static Layout readLayout(File file) throws IOException {
+		if (!file.exists() || file.length() < HEADER_SIZE) {
+			return null;
+		}
+		RandomAccessFile r = new RandomAccessFile(file, "r");
+		try {
+			if (r.readInt() != MAGIC) {
+				return null;
+			}
+			int l = r.readInt();
+			return l >= 0 && l < Layout.values().length ? Layout.values()[l] : null;
+		} finally {
+			r.close();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return false if node can't be stored (negative id for dense layout)
+	 */
+	public boolean put(long id, double lat, double lon) throws IOException {
+		int ilat = (int) Math.round(lat * COORDINATES_MULT) + LAT_SHIFT;
+		int ilon = (int) Math.round(lon * COORDINATES_MULT);
+		if (layout == Layout.DENSE) {
+			if (id < 0) {
+				return false;
+			}
+			long pos = HEADER_SIZE + id * DENSE_RECORD_SIZE;
+			MappedByteBuffer b = getSegment(pos, true);
+			int ind = (int) (pos & (SEGMENT_SIZE - 1));
+			b.putInt(ind, ilat);
+			b.putInt(ind + 4, ilon);
+			count = Math.max(count, id + 1);
+		} else {
+			long pos = HEADER_SIZE + count * SPARSE_RECORD_SIZE;
+			MappedByteBuffer b = getSegment(pos, true);
+			int ind = (int) (pos & (SEGMENT_SIZE - 1));
+			b.putLong(ind, id);
+			b.putInt(ind + 8, ilat);
+			b.putInt(ind + 12, ilon);
+			if (id <= lastId) {
+				sorted = false;
+			}
+			lastId = id;
+			count++;
+		}
+		return true;
+	}
+
+	/**
+	 * Thread safe after {@link #finishLoading()}
+	 * @return packed coordinates or {@link #MISSING}
+	 */
+	public long get(long id) throws IOException {
+		if (layout == Layout.DENSE) {
+			if (id < 0 || id >= count) {
+				return MISSING;
+			}
+			long pos = HEADER_SIZE + id * DENSE_RECORD_SIZE;
+			MappedByteBuffer b = readSegment(pos);
+			if (b == null) {
+				return MISSING;
+			}
+			return b.getLong((int) (pos & (SEGMENT_SIZE - 1)));
+		}
+		long lo = 0;
+		long hi = count - 1;
+		while (lo <= hi) {
+			long mid = (lo + hi) >>> 1;
+			long pos = HEADER_SIZE + mid * SPARSE_RECORD_SIZE;
+			long midId = readSegment(pos).getLong((int) (pos & (SEGMENT_SIZE - 1)));
+			if (midId < id) {
+				lo = mid + 1;
+			} else if (midId > id) {
+				hi = mid - 1;
+			} else {
+				return readSegment(pos).getLong((int) (pos & (SEGMENT_SIZE - 1)) + 8);
+			}
+		}
+		return MISSING;
+	}
+
+	public static double getLatitude(long packed) {
+		return ((int) (packed >> 32) - LAT_SHIFT) / COORDINATES_MULT;
+	}
+
+	public static double getLongitude(long packed) {
+		return ((int) packed) / COORDINATES_MULT;
+	}
+
+	/**
+	 * Sorts sparse records if they were not added in id order and writes header.
+	 */
+	public void finishLoading() throws IOException {
+		if (layout == Layout.SPARSE && !sorted) {
+			long time = System.currentTimeMillis();
+			sortSparseRecords();
+			sorted = true;
+			lastId = count > 0 ? getSparseId(count - 1) : Long.MIN_VALUE;
+			log.info("Node locations sorted in " + (System.currentTimeMillis() - time) + " ms");
+		}
+		raf.seek(8);
+		raf.writeLong(count);
+		mapAllSegments();
+		for (MappedByteBuffer b : segments) {
+			if (b != null) {
+				b.force();
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		if (raf != null) {
+			finishLoading();
+			segments.clear();
+			channel.close();
+			raf.close();
+			raf = null;
+		}
+	}
+
+	private long getSparseId(long i) throws IOException {
+		long pos = HEADER_SIZE + i * SPARSE_RECORD_SIZE;
+		return getSegment(pos, false).getLong((int) (pos & (SEGMENT_SIZE - 1)));
+	}
+
+	// map everything, so readers don't modify segments list
+	private void mapAllSegments() throws IOException {
+		for (long pos = 0; pos < channel.size(); pos += SEGMENT_SIZE) {
+			getSegment(pos, false);
+		}
+	}
+
+	private MappedByteBuffer readSegment(long pos) {
+		int s = (int) (pos >> SEGMENT_SHIFT);
+		return s < segments.size() ? segments.get(s) : null;
+	}
+
+	private MappedByteBuffer getSegment(long pos, boolean create) throws IOException {
+		int s = (int) (pos >> SEGMENT_SHIFT);
+		while (segments.size() <= s) {
+			segments.add(null);
+		}
+		MappedByteBuffer b = segments.get(s);
+		if (b == null) {
+			if (!create && channel.size() <= (long) s << SEGMENT_SHIFT) {
+				return null;
+			}
+			// mapping extends file, for dense layout it stays sparse on disk
+			b = channel.map(FileChannel.MapMode.READ_WRITE, (long) s << SEGMENT_SHIFT, SEGMENT_SIZE);
+			segments.set(s, b);
+		}
+		return b;
+	}
+
+	// in place heap sort, input is normally sorted so it is only a fallback for unordered files
+	private void sortSparseRecords() throws IOException {
+		for (long i = count / 2 - 1; i >= 0; i--) {
+			siftDown(i, count);
+		}
+		for (long end = count - 1; end > 0; end--) {
+			swapSparse(0, end);
+			siftDown(0, end);
+		}
+	}
+
+	private void siftDown(long root, long end) throws IOException {
+		while (true) {
+			long child = 2 * root + 1;
+			if (child >= end) {
+				return;
+			}
+			if (child + 1 < end && getSparseId(child) < getSparseId(child + 1)) {
+				child++;
+			}
+			if (getSparseId(root) >= getSparseId(child)) {
+				return;
+			}
+			swapSparse(root, child);
+			root = child;
+		}
+	}
+
+	private void swapSparse(long i, long j) throws IOException {
+		long pi = HEADER_SIZE + i * SPARSE_RECORD_SIZE;
+		long pj = HEADER_SIZE + j * SPARSE_RECORD_SIZE;
+		MappedByteBuffer bi = getSegment(pi, false);
+		MappedByteBuffer bj = getSegment(pj, false);
+		int oi = (int) (pi & (SEGMENT_SIZE - 1));
+		int oj = (int) (pj & (SEGMENT_SIZE - 1));
+		long id = bi.getLong(oi);
+		long coords = bi.getLong(oi + 8);
+		bi.putLong(oi, bj.getLong(oj));
+		bi.putLong(oi + 8, bj.getLong(oj + 8));
+		bj.putLong(oj, id);
+		bj.putLong(oj + 8, coords);
+	}
+}
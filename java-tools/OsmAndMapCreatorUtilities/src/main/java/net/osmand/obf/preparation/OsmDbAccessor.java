@@ -1,19 +1,32 @@
 package net.osmand.obf.preparation;
 
 
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import net.osmand.IProgress;
 import net.osmand.osm.edit.Entity;
@@ -29,9 +42,7 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 
 	//private static final Log log = LogFactory.getLog(OsmDbAccessor.class);
 
-	private PreparedStatement pselectNode;
-	private PreparedStatement pselectWay;
-	private PreparedStatement pselectRelation;
+	private EntityLoader loader;
 	private int allRelations;
 	private int allWays;
 	private int allNodes;
@@ -45,26 +56,52 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 	private PreparedStatement iterateWays;
 	private PreparedStatement iterateRelations;
 	private PreparedStatement iterateWayBoundaries;
+	private NodeLocationStore nodeLocations;
+	private OsmDbTagsDictionary tagsDictionary;
+	private int consumerThreads = 1;
+
+	// relations loaded together by one bulk query
+	public static final int RELATION_BATCH_SIZE = 500;
+	// ids passed to one "in" query
+	private static final int IDS_QUERY_SIZE = 1000;
 
 	public interface OsmDbVisitor {
 		public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException;
 	}
 
+	/**
+	 * Visitor with thread safe preparation step. {@link #prepareEntity} is called concurrently from
+	 * {@link #setConsumerThreads} threads, each thread has its own context. {@link #iterateEntity} is still called
+	 * from the iterating thread in the order of entities, so output doesn't depend on number of threads
+	 * (with one thread both are called sequentially).
+	 * Plain visitors are always called sequentially.
+	 */
+	public interface ParallelOsmDbVisitor extends OsmDbVisitor {
+		public void prepareEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException;
+	}
+
 
 	public void initDatabase(OsmDbCreator dbCreator)
 			throws SQLException {
 		updateCounts(dbCreator);
+		if (nodeLocations != null) {
+			try {
+				nodeLocations.finishLoading();
+			} catch (IOException e) {
+				throw new SQLException(e);
+			}
+		}
 		if(this.allNodes == 0) {
 			final Statement stmt = dbConn.createStatement();
 			computeRealCounts(stmt);
 			stmt.close();
 		}
+		if (OsmDbTagsDictionary.exists(dialect, dbConn)) {
+			tagsDictionary = new OsmDbTagsDictionary();
+			tagsDictionary.load(dbConn);
+		}
 
-		pselectNode = dbConn.prepareStatement("select n.latitude, n.longitude, n.tags from node n where n.id = ?"); //$NON-NLS-1$
-		pselectWay = dbConn.prepareStatement("select w.node, w.ord, w.tags, n.latitude, n.longitude, n.tags " + //$NON-NLS-1$
-				"from ways w left join node n on w.node = n.id where w.id = ? order by w.ord"); //$NON-NLS-1$
-		pselectRelation = dbConn.prepareStatement("select r.member, r.type, r.role, r.ord, r.tags " + //$NON-NLS-1$
-				"from relations r where r.id = ? and r.del = ? order by r.ord"); //$NON-NLS-1$
+		loader = new EntityLoader();
 
 		iterateNodes = dbConn
 				.prepareStatement("select n.id, n.latitude, n.longitude, n.tags from node n where length(n.tags) > 0"); //$NON-NLS-1$
@@ -84,6 +121,31 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 		}
 	}
 
+	public NodeLocationStore getNodeLocations() {
+		return nodeLocations;
+	}
+
+	/**
+	 * Untagged nodes missing in the node table are resolved from the node locations file
+	 */
+	public void setNodeLocations(NodeLocationStore nodeLocations) {
+		this.nodeLocations = nodeLocations;
+	}
+
+	private Node readNodeLocation(long id) throws SQLException {
+		if (nodeLocations != null) {
+			try {
+				long l = nodeLocations.get(id);
+				if (l != NodeLocationStore.MISSING) {
+					return new Node(NodeLocationStore.getLatitude(l), NodeLocationStore.getLongitude(l), id);
+				}
+			} catch (IOException e) {
+				throw new SQLException(e);
+			}
+		}
+		return null;
+	}
+
 	public Connection getDbConn() {
 		return dbConn;
 	}
@@ -101,90 +163,35 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 	}
 
 
+	/**
+	 * Number of threads calling {@link ParallelOsmDbVisitor#prepareEntity}
+	 */
+	public void setConsumerThreads(int consumerThreads) {
+		this.consumerThreads = consumerThreads;
+	}
+
+	public int getConsumerThreads() {
+		return consumerThreads;
+	}
+
 	@Override
 	public void loadEntityWay(Way e) throws SQLException {
-		if (e.getEntityIds().isEmpty()) {
-			pselectWay.setLong(1, e.getId());
-			if (pselectWay.execute()) {
-				ResultSet rs = pselectWay.getResultSet();
-				while (rs.next()) {
-					int ord = rs.getInt(2);
-					if (ord == 0) {
-						readTags(e, rs.getBytes(3));
-					}
-					if (rs.getObject(5) != null) {
-						Node n = new Node(rs.getDouble(4), rs.getDouble(5), rs.getLong(1));
-						((Way) e).addNode(n);
-						readTags(n, rs.getBytes(6));
-					} else {
-						((Way) e).addNode(rs.getLong(1));
-					}
-				}
-				rs.close();
-			}
-		}
+		loader.loadEntityWay(e);
 	}
 
 	@Override
 	public void loadEntityRelation(Relation e) throws SQLException {
-		loadEntityRelation(e, 1);
+		loader.loadEntityRelation(e);
 	}
 
 	public void loadEntityRelation(Relation e, int level) throws SQLException {
-		if (e.isDataLoaded()) { //data was already loaded, nothing to do
-			return;
-		}
-		Map<EntityId, Entity> map = new LinkedHashMap<EntityId, Entity>();
-		if (e.getMembers().isEmpty()) {
-			pselectRelation.setLong(1, e.getId());
-			pselectRelation.setInt(2, e.getModify() == Entity.MODIFY_DELETED ? 1 : 0);
-			if (pselectRelation.execute()) {
-				ResultSet rs = pselectRelation.getResultSet();
-				while (rs.next()) {
-					int ord = rs.getInt(4);
-					if (ord == 0 ) {
-						readTags(e, rs.getBytes(5));
-					}
-					e.addMember(rs.getLong(1), EntityType.values()[rs.getInt(2)], rs.getString(3));
-				}
-				rs.close();
-			}
-		}
-		Collection<RelationMember> ids = e.getMembers() ;
-		if (level > 0) {
-			for (RelationMember i : ids) {
-				if (i.getEntityId().getType() == EntityType.NODE) {
-					pselectNode.setLong(1, i.getEntityId().getId());
-					if (pselectNode.execute()) {
-						ResultSet rs = pselectNode.getResultSet();
-						Node n = null;
-						while (rs.next()) {
-							if (n == null) {
-								n = new Node(rs.getDouble(1), rs.getDouble(2), i.getEntityId().getId());
-								readTags(n, rs.getBytes(3));
-							}
-						}
-						map.put(i.getEntityId(), n);
-						rs.close();
-					}
-				} else if (i.getEntityId().getType() == EntityType.WAY) {
-					Way way = new Way(i.getEntityId().getId());
-					loadEntityWay(way);
-					map.put(i.getEntityId(), way);
-				} else if (i.getEntityId().getType() == EntityType.RELATION) {
-					Relation rel = new Relation(i.getEntityId().getId());
-					loadEntityRelation(rel, level - 1);
-					map.put(i.getEntityId(), rel);
-				}
-			}
-
-			e.initializeLinks(map);
-			e.entityDataLoaded();
-		}
+		loader.loadEntityRelation(e, level);
 	}
 
 	public void readTags(Entity e, byte[] tags){
-		if (tags != null) {
+		if (tags != null && tagsDictionary != null) {
+			tagsDictionary.decode(e, tags);
+		} else if (tags != null) {
 			try {
 				int prev = 0;
 				List<String> vs = new ArrayList<String>();
@@ -208,6 +215,15 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 	}
 
 	public int iterateOverEntities(IProgress progress, EntityType type, OsmDbVisitor visitor, boolean realCounts) throws SQLException, InterruptedException {
+		return iterateOverEntities(progress, type, visitor, realCounts, false);
+	}
+
+	/**
+	 * @param preloadRelations relations are passed to visitor with loaded members
+	 *            (members of {@link #RELATION_BATCH_SIZE} relations are loaded by few bulk queries)
+	 */
+	public int iterateOverEntities(IProgress progress, EntityType type, OsmDbVisitor visitor, boolean realCounts,
+			boolean preloadRelations) throws SQLException, InterruptedException {
 
 		PreparedStatement select;
 		int count = 0;
@@ -217,7 +233,9 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 			statement.close();
 		}
 
-		BlockingQueue<Entity> toProcess = new ArrayBlockingQueue<Entity>(100000);
+		preloadRelations = preloadRelations && type == EntityType.RELATION;
+		// loaded relations are heavy, keep only few batches in memory
+		BlockingQueue<Entity> toProcess = new ArrayBlockingQueue<Entity>(preloadRelations ? RELATION_BATCH_SIZE * 2 : 100000);
 		AbstractProducer entityProducer = null;
 		if (type == EntityType.NODE) {
 			// filter out all nodes without tags
@@ -233,7 +251,7 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 			select = iterateRelations;
 			count = allRelations;
 		}
-		entityProducer = new EntityProducer(toProcess, type, select);
+		entityProducer = new EntityProducer(toProcess, type, select, true, preloadRelations);
 		progress.startWork(count);
 
 		//produce
@@ -244,17 +262,91 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 		} catch (InterruptedException e) {
 		}
 
-		Entity entityToProcess = null;
 		Entity endEntity = entityProducer.getEndingEntity();
+		if (consumerThreads > 1 && visitor instanceof ParallelOsmDbVisitor) {
+			consumeParallel(progress, toProcess, endEntity, (ParallelOsmDbVisitor) visitor);
+			return count;
+		}
+		Entity entityToProcess = null;
 		while ((entityToProcess = toProcess.take())  != endEntity) {
 			if (progress != null) {
 				progress.progress(1);
 			}
+			if (visitor instanceof ParallelOsmDbVisitor) {
+				((ParallelOsmDbVisitor) visitor).prepareEntity(entityToProcess, this);
+			}
 			visitor.iterateEntity(entityToProcess, this);
 		}
 		return count;
 	}
 
+	private void consumeParallel(IProgress progress, BlockingQueue<Entity> toProcess, Entity endEntity,
+			final ParallelOsmDbVisitor visitor) throws SQLException, InterruptedException {
+		final List<EntityLoader> loaders = new ArrayList<EntityLoader>();
+		final ThreadLocal<EntityLoader> threadLoader = new ThreadLocal<EntityLoader>() {
+			@Override
+			protected EntityLoader initialValue() {
+				try {
+					EntityLoader l = new EntityLoader();
+					synchronized (loaders) {
+						loaders.add(l);
+					}
+					return l;
+				} catch (SQLException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(consumerThreads);
+		// entities are prepared concurrently and passed to iterateEntity in the order of the queue
+		ArrayDeque<Future<Entity>> prepared = new ArrayDeque<Future<Entity>>();
+		int window = consumerThreads * 64;
+		try {
+			Entity entityToProcess;
+			while ((entityToProcess = toProcess.take()) != endEntity) {
+				final Entity e = entityToProcess;
+				prepared.add(executor.submit(new Callable<Entity>() {
+					@Override
+					public Entity call() throws SQLException {
+						visitor.prepareEntity(e, threadLoader.get());
+						return e;
+					}
+				}));
+				while (!prepared.isEmpty() && (prepared.size() >= window || prepared.peek().isDone())) {
+					iteratePrepared(progress, prepared.poll(), visitor);
+				}
+			}
+			while (!prepared.isEmpty()) {
+				iteratePrepared(progress, prepared.poll(), visitor);
+			}
+		} finally {
+			executor.shutdownNow();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+			for (EntityLoader l : loaders) {
+				l.close();
+			}
+		}
+	}
+
+	private void iteratePrepared(IProgress progress, Future<Entity> f, OsmDbVisitor visitor)
+			throws SQLException, InterruptedException {
+		Entity e;
+		try {
+			e = f.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof SQLException) {
+				throw (SQLException) ex.getCause();
+			} else if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new SQLException(ex.getCause());
+		}
+		if (progress != null) {
+			progress.progress(1);
+		}
+		visitor.iterateEntity(e, this);
+	}
+
 
 	public void computeRealCounts(Statement statement) throws SQLException {
 		if (!realCounts) {
@@ -270,14 +362,8 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 
 
 	public void closeReadingConnection() throws SQLException {
-		if (pselectNode != null) {
-			pselectNode.close();
-		}
-		if (pselectWay != null) {
-			pselectWay.close();
-		}
-		if (pselectRelation != null) {
-			pselectRelation.close();
+		if (loader != null) {
+			loader.close();
 		}
 		if (iterateNodes != null) {
 			iterateNodes.close();
@@ -291,9 +377,338 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 		if (iterateWayBoundaries != null) {
 			iterateWayBoundaries.close();
 		}
+		if (nodeLocations != null) {
+			try {
+				nodeLocations.close();
+			} catch (IOException e) {
+				throw new SQLException(e);
+			}
+		}
 
 	}
 
+	/**
+	 * Loads entities with its own prepared statements, so every consumer thread and batch loading use separate loader
+	 */
+	public class EntityLoader implements OsmDbAccessorContext {
+		private final PreparedStatement pselectNode;
+		private final PreparedStatement pselectWay;
+		private final PreparedStatement pselectRelation;
+
+		public EntityLoader() throws SQLException {
+			pselectNode = dbConn.prepareStatement("select n.latitude, n.longitude, n.tags from node n where n.id = ?"); //$NON-NLS-1$
+			pselectWay = dbConn.prepareStatement("select w.node, w.ord, w.tags, n.latitude, n.longitude, n.tags " + //$NON-NLS-1$
+					"from ways w left join node n on w.node = n.id where w.id = ? order by w.ord"); //$NON-NLS-1$
+			pselectRelation = dbConn.prepareStatement("select r.member, r.type, r.role, r.ord, r.tags " + //$NON-NLS-1$
+					"from relations r where r.id = ? and r.del = ? order by r.ord"); //$NON-NLS-1$
+		}
+
+		@Override
+		public void loadEntityWay(Way e) throws SQLException {
+			if (e.getEntityIds().isEmpty()) {
+				pselectWay.setLong(1, e.getId());
+				if (pselectWay.execute()) {
+					ResultSet rs = pselectWay.getResultSet();
+					while (rs.next()) {
+						int ord = rs.getInt(2);
+						if (ord == 0) {
+							readTags(e, rs.getBytes(3));
+						}
+						if (rs.getObject(5) != null) {
+							Node n = new Node(rs.getDouble(4), rs.getDouble(5), rs.getLong(1));
+							((Way) e).addNode(n);
+							readTags(n, rs.getBytes(6));
+						} else {
+							Node n = readNodeLocation(rs.getLong(1));
+							if (n != null) {
+								((Way) e).addNode(n);
+							} else {
+								((Way) e).addNode(rs.getLong(1));
+							}
+						}
+					}
+					rs.close();
+				}
+			}
+		}
+
+		@Override
+		public void loadEntityRelation(Relation e) throws SQLException {
+			loadEntityRelation(e, 1);
+		}
+
+		public void loadEntityRelation(Relation e, int level) throws SQLException {
+			if (e.isDataLoaded()) { //data was already loaded, nothing to do
+				return;
+			}
+			Map<EntityId, Entity> map = new LinkedHashMap<EntityId, Entity>();
+			if (e.getMembers().isEmpty()) {
+				pselectRelation.setLong(1, e.getId());
+				pselectRelation.setInt(2, e.getModify() == Entity.MODIFY_DELETED ? 1 : 0);
+				if (pselectRelation.execute()) {
+					ResultSet rs = pselectRelation.getResultSet();
+					while (rs.next()) {
+						int ord = rs.getInt(4);
+						if (ord == 0 ) {
+							readTags(e, rs.getBytes(5));
+						}
+						e.addMember(rs.getLong(1), EntityType.values()[rs.getInt(2)], rs.getString(3));
+					}
+					rs.close();
+				}
+			}
+			Collection<RelationMember> ids = e.getMembers() ;
+			if (level > 0) {
+				for (RelationMember i : ids) {
+					if (i.getEntityId().getType() == EntityType.NODE) {
+						pselectNode.setLong(1, i.getEntityId().getId());
+						if (pselectNode.execute()) {
+							ResultSet rs = pselectNode.getResultSet();
+							Node n = null;
+							while (rs.next()) {
+								if (n == null) {
+									n = new Node(rs.getDouble(1), rs.getDouble(2), i.getEntityId().getId());
+									readTags(n, rs.getBytes(3));
+								}
+							}
+							if (n == null) {
+								n = readNodeLocation(i.getEntityId().getId());
+							}
+							map.put(i.getEntityId(), n);
+							rs.close();
+						}
+					} else if (i.getEntityId().getType() == EntityType.WAY) {
+						Way way = new Way(i.getEntityId().getId());
+						loadEntityWay(way);
+						map.put(i.getEntityId(), way);
+					} else if (i.getEntityId().getType() == EntityType.RELATION) {
+						Relation rel = new Relation(i.getEntityId().getId());
+						loadEntityRelation(rel, level - 1);
+						map.put(i.getEntityId(), rel);
+					}
+				}
+
+				e.initializeLinks(map);
+				e.entityDataLoaded();
+			}
+		}
+
+		/**
+		 * Same as {@link #loadEntityRelation(Relation, int)} for many relations, but members are selected with
+		 * few "in" queries instead of point queries per member. Every relation gets its own member entities.
+		 */
+		public void loadEntityRelations(List<Relation> relations, int level) throws SQLException {
+			TLongObjectHashMap<List<Relation>> withoutMembers = new TLongObjectHashMap<List<Relation>>();
+			for (Relation r : relations) {
+				if (!r.isDataLoaded() && r.getMembers().isEmpty()) {
+					long key = (r.getId() << 1) + (r.getModify() == Entity.MODIFY_DELETED ? 1 : 0);
+					List<Relation> l = withoutMembers.get(key);
+					if (l == null) {
+						l = new ArrayList<Relation>();
+						withoutMembers.put(key, l);
+					}
+					l.add(r);
+				}
+			}
+			loadRelationMembers(withoutMembers);
+			if (level <= 0) {
+				return;
+			}
+			TLongHashSet nodeIds = new TLongHashSet();
+			TLongHashSet wayIds = new TLongHashSet();
+			List<Relation> subRelations = new ArrayList<Relation>();
+			for (Relation r : relations) {
+				if (r.isDataLoaded()) {
+					continue;
+				}
+				for (RelationMember i : r.getMembers()) {
+					EntityType t = i.getEntityId().getType();
+					if (t == EntityType.NODE) {
+						nodeIds.add(i.getEntityId().getId());
+					} else if (t == EntityType.WAY) {
+						wayIds.add(i.getEntityId().getId());
+					} else if (t == EntityType.RELATION) {
+						subRelations.add(new Relation(i.getEntityId().getId()));
+					}
+				}
+			}
+			TLongObjectHashMap<Node> nodes = loadNodes(nodeIds.toArray());
+			TLongObjectHashMap<LoadedWay> ways = loadWays(wayIds.toArray());
+			loadEntityRelations(subRelations, level - 1);
+			int subRelation = 0;
+			for (Relation r : relations) {
+				if (r.isDataLoaded()) {
+					continue;
+				}
+				Map<EntityId, Entity> map = new LinkedHashMap<EntityId, Entity>();
+				for (RelationMember i : r.getMembers()) {
+					long id = i.getEntityId().getId();
+					EntityType t = i.getEntityId().getType();
+					if (t == EntityType.NODE) {
+						Node n = nodes.get(id);
+						map.put(i.getEntityId(), n == null ? null : copyNode(n));
+					} else if (t == EntityType.WAY) {
+						map.put(i.getEntityId(), copyWay(id, ways.get(id)));
+					} else if (t == EntityType.RELATION) {
+						map.put(i.getEntityId(), subRelations.get(subRelation++));
+					}
+				}
+				r.initializeLinks(map);
+				r.entityDataLoaded();
+			}
+		}
+
+		private void loadRelationMembers(TLongObjectHashMap<List<Relation>> relations) throws SQLException {
+			TLongHashSet ids = new TLongHashSet();
+			for (long key : relations.keys()) {
+				ids.add(key >> 1);
+			}
+			long[] arr = ids.toArray();
+			Statement stat = dbConn.createStatement();
+			for (int i = 0; i < arr.length; i += IDS_QUERY_SIZE) {
+				ResultSet rs = stat.executeQuery("select r.id, r.del, r.member, r.type, r.role, r.ord, r.tags " + //$NON-NLS-1$
+						"from relations r where r.id in (" + joinIds(arr, i) + ") order by r.id, r.del, r.ord"); //$NON-NLS-1$ //$NON-NLS-2$
+				while (rs.next()) {
+					List<Relation> l = relations.get((rs.getLong(1) << 1) + rs.getInt(2));
+					if (l == null) {
+						continue;
+					}
+					for (Relation e : l) {
+						if (rs.getInt(6) == 0) {
+							readTags(e, rs.getBytes(7));
+						}
+						e.addMember(rs.getLong(3), EntityType.values()[rs.getInt(4)], rs.getString(5));
+					}
+				}
+				rs.close();
+			}
+			stat.close();
+		}
+
+		private TLongObjectHashMap<Node> loadNodes(long[] ids) throws SQLException {
+			TLongObjectHashMap<Node> nodes = new TLongObjectHashMap<Node>();
+			Statement stat = dbConn.createStatement();
+			for (int i = 0; i < ids.length; i += IDS_QUERY_SIZE) {
+				ResultSet rs = stat.executeQuery("select n.id, n.latitude, n.longitude, n.tags from node n where n.id in (" //$NON-NLS-1$
+						+ joinIds(ids, i) + ")"); //$NON-NLS-1$
+				while (rs.next()) {
+					long id = rs.getLong(1);
+					if (!nodes.containsKey(id)) {
+						Node n = new Node(rs.getDouble(2), rs.getDouble(3), id);
+						readTags(n, rs.getBytes(4));
+						nodes.put(id, n);
+					}
+				}
+				rs.close();
+			}
+			stat.close();
+			for (long id : ids) {
+				if (!nodes.containsKey(id)) {
+					Node n = readNodeLocation(id);
+					if (n != null) {
+						nodes.put(id, n);
+					}
+				}
+			}
+			return nodes;
+		}
+
+		private TLongObjectHashMap<LoadedWay> loadWays(long[] ids) throws SQLException {
+			TLongObjectHashMap<LoadedWay> ways = new TLongObjectHashMap<LoadedWay>();
+			Statement stat = dbConn.createStatement();
+			for (int i = 0; i < ids.length; i += IDS_QUERY_SIZE) {
+				ResultSet rs = stat.executeQuery("select w.id, w.node, w.ord, w.tags, n.latitude, n.longitude, n.tags " + //$NON-NLS-1$
+						"from ways w left join node n on w.node = n.id where w.id in (" + joinIds(ids, i) + ") " + //$NON-NLS-1$ //$NON-NLS-2$
+						"order by w.id, w.ord"); //$NON-NLS-1$
+				LoadedWay e = null;
+				while (rs.next()) {
+					long id = rs.getLong(1);
+					if (e == null || e.id != id) {
+						e = new LoadedWay(id);
+						ways.put(id, e);
+					}
+					if (rs.getInt(3) == 0) {
+						readTags(e.tags, rs.getBytes(4));
+					}
+					Node n;
+					if (rs.getObject(6) != null) {
+						n = new Node(rs.getDouble(5), rs.getDouble(6), rs.getLong(2));
+						readTags(n, rs.getBytes(7));
+					} else {
+						n = readNodeLocation(rs.getLong(2));
+					}
+					e.nodeIds.add(rs.getLong(2));
+					e.nodes.add(n);
+				}
+				rs.close();
+			}
+			stat.close();
+			return ways;
+		}
+
+		public void close() throws SQLException {
+			pselectNode.close();
+			pselectWay.close();
+			pselectRelation.close();
+		}
+	}
+
+	private static String joinIds(long[] ids, int start) {
+		StringBuilder b = new StringBuilder();
+		int end = Math.min(ids.length, start + IDS_QUERY_SIZE);
+		for (int i = start; i < end; i++) {
+			if (i > start) {
+				b.append(',');
+			}
+			b.append(ids[i]);
+		}
+		return b.toString();
+	}
+
+	private static Node copyNode(Node n) {
+		Node c = new Node(n.getLatitude(), n.getLongitude(), n.getId());
+		for (Entry<String, String> t : n.getTags().entrySet()) {
+			c.putTag(t.getKey(), t.getValue());
+		}
+		return c;
+	}
+
+	private static class LoadedWay {
+		final long id;
+		// holder of way tags
+		final Way tags;
+		final TLongArrayList nodeIds = new TLongArrayList();
+		// null for nodes missing in database
+		final List<Node> nodes = new ArrayList<Node>();
+
+		LoadedWay(long id) {
+			this.id = id;
+			this.tags = new Way(id);
+		}
+	}
+
+	/**
+	 * Copy of loaded way as it would be created by {@link EntityLoader#loadEntityWay(Way)}
+	 */
+	private static Way copyWay(long id, LoadedWay loaded) {
+		Way c = new Way(id);
+		if (loaded == null) {
+			return c;
+		}
+		for (Entry<String, String> t : loaded.tags.getTags().entrySet()) {
+			c.putTag(t.getKey(), t.getValue());
+		}
+		for (int i = 0; i < loaded.nodeIds.size(); i++) {
+			Node n = loaded.nodes.get(i);
+			if (n != null) {
+				c.addNode(copyNode(n));
+			} else {
+				c.addNode(loaded.nodeIds.get(i));
+			}
+		}
+		return c;
+	}
+
 	public class AbstractProducer extends Thread {
 		private final Entity endingEntity = new Node(0,0,0);
 
@@ -309,16 +724,25 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 		private final PreparedStatement select;
 		private final EntityType type;
 		private final boolean putEndingEntity;
+		private final boolean preloadRelations;
+		private final List<Relation> batch = new ArrayList<Relation>();
+		private EntityLoader batchLoader;
 
 		public EntityProducer(BlockingQueue<Entity> toProcess, EntityType type, PreparedStatement select) {
 			this(toProcess,type,select,true);
 		}
 
 		public EntityProducer(BlockingQueue<Entity> toProcess, EntityType type, PreparedStatement select, boolean putEndingEntity) {
+			this(toProcess, type, select, putEndingEntity, false);
+		}
+
+		public EntityProducer(BlockingQueue<Entity> toProcess, EntityType type, PreparedStatement select,
+				boolean putEndingEntity, boolean preloadRelations) {
 			this.toProcess = toProcess;
 			this.type = type;
 			this.select = select;
 			this.putEndingEntity = putEndingEntity;
+			this.preloadRelations = preloadRelations;
 			setDaemon(true);
 			setName("EntityProducer");
 		}
@@ -348,7 +772,12 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 							readTags(e, rs.getBytes(4));
 						}
 						if (rs.getObject(6) == null) {
-							((Way) e).addNode(rs.getLong(2));
+							Node n = readNodeLocation(rs.getLong(2));
+							if (n != null) {
+								((Way) e).addNode(n);
+							} else {
+								((Way) e).addNode(rs.getLong(2));
+							}
 						} else {
 							Node n = new Node(rs.getDouble(5), rs.getDouble(6), rs.getLong(2));
 							readTags(n, rs.getBytes(7));
@@ -361,21 +790,29 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 					}
 					if (newEntity) {
 						if (prevEntity != null) {
-							toProcess.put(prevEntity);
+							putEntity(prevEntity);
 						}
 						prevEntity = e;
 					}
 					prevId = curId;
 				}
 				if (prevEntity != null) {
-					toProcess.put(prevEntity);
+					putEntity(prevEntity);
 				}
+				flushBatch();
 				rs.close();
 			} catch (SQLException e1) {
 				e1.printStackTrace();
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			} finally {
+				if (batchLoader != null) {
+					try {
+						batchLoader.close();
+					} catch (SQLException e) {
+						e.printStackTrace();
+					}
+				}
 				if (putEndingEntity) {
 					try {
 						toProcess.put(getEndingEntity());
@@ -386,6 +823,30 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 			}
 		}
 
+		private void putEntity(Entity e) throws InterruptedException, SQLException {
+			if (!preloadRelations) {
+				toProcess.put(e);
+				return;
+			}
+			batch.add((Relation) e);
+			if (batch.size() >= RELATION_BATCH_SIZE) {
+				flushBatch();
+			}
+		}
+
+		private void flushBatch() throws InterruptedException, SQLException {
+			if (batch.isEmpty()) {
+				return;
+			}
+			if (batchLoader == null) {
+				batchLoader = new EntityLoader();
+			}
+			batchLoader.loadEntityRelations(batch, 1);
+			for (Relation r : batch) {
+				toProcess.put(r);
+			}
+			batch.clear();
+		}
 	}
 
 	public void setDbConn(Connection dbConnection, DBDialect dialect) {
@@ -27,14 +27,14 @@ import net.osmand.osm.edit.OSMSettings.OSMTagKey;
 import net.osmand.osm.edit.Relation;
 import net.osmand.osm.edit.Relation.RelationMember;
 import net.osmand.osm.edit.Way;
-import net.osmand.osm.io.IOsmStorageFilter;
+import net.osmand.osm.io.IOsmStoragePlainNodeFilter;
 import net.osmand.osm.io.OsmBaseStorage;
 import net.osmand.util.MapUtils;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-public class OsmDbCreator implements IOsmStorageFilter {
+public class OsmDbCreator implements IOsmStoragePlainNodeFilter {
 
 	public static String OSMAND_DELETE_TAG = "osmand_change";
 	public static String OSMAND_DELETE_VALUE = "delete";
@@ -45,6 +45,7 @@ public class OsmDbCreator implements IOsmStorageFilter {
 
 	// do not store these tags in the database, just ignore them
 	final String[] tagsToIgnore= {"created_by","source","converted_by"};
+	private static final byte[] EMPTY_TAGS = new byte[0];
 	
 	DBDialect dialect;
 	int currentCountNode = 0;
@@ -73,6 +74,8 @@ public class OsmDbCreator implements IOsmStorageFilter {
 	private boolean ovewriteIds;
 	private boolean generateNewIds;
 	private long generatedId = -100;
+	private NodeLocationStore nodeLocations;
+	private OsmDbTagsDictionary tagsDictionary;
 
 	private static boolean VALIDATE_DUPLICATES = false;
 	private boolean backwardComptibleIds;
@@ -102,11 +105,7 @@ public class OsmDbCreator implements IOsmStorageFilter {
 		boolean simpleConvertId = !ovewriteIds && shiftId > 0;
 		int ord = EntityType.valueOf(e).ordinal();
 		if (e instanceof Node) {
-			if (simpleConvertId) {
-				return getSimpleConvertId(id, EntityType.NODE, true);
-			}
-			int hash = getNodeHash(e);
-			return getConvertId(id, ord, hash);
+			return convertNodeId(id, ((Node) e).getLatitude(), ((Node) e).getLongitude());
 		} else if (e instanceof Way) {
 			TLongArrayList lids = ((Way) e).getNodeIds();
 			long hash = 0;
@@ -154,6 +153,16 @@ public class OsmDbCreator implements IOsmStorageFilter {
 		}
 	}
 
+	private long convertNodeId(long id, double lat, double lon) {
+		if (backwardComptibleIds) {
+			return id;
+		}
+		if (!ovewriteIds && shiftId > 0) {
+			return getSimpleConvertId(id, EntityType.NODE, true);
+		}
+		return getConvertId(id, EntityType.NODE.ordinal(), getNodeHash(lat, lon));
+	}
+
 	private long getSimpleConvertId(long id, EntityType type, boolean newId) {
 		if (generateNewIds) {
 			long key = (id << 2) + type.ordinal();
@@ -168,13 +177,20 @@ public class OsmDbCreator implements IOsmStorageFilter {
 		return (id << shiftId) + additionId;
 	}
 
-	private int getNodeHash(Entity e) {
-		int y = MapUtils.get31TileNumberY(((Node) e).getLatitude());
-		int x = MapUtils.get31TileNumberX(((Node) e).getLongitude());
+	private int getNodeHash(double lat, double lon) {
+		int y = MapUtils.get31TileNumberY(lat);
+		int x = MapUtils.get31TileNumberX(lon);
 		int hash = (x + y) >> 10;
 		return hash;
 	}
 	
+	/**
+	 * Untagged nodes are stored in the node locations file instead of the node table
+	 */
+	public void setNodeLocations(NodeLocationStore nodeLocations) {
+		this.nodeLocations = nodeLocations;
+	}
+
 	public TLongHashSet getNodeIds() {
 		return nodeIds;
 	}
@@ -251,6 +267,13 @@ public class OsmDbCreator implements IOsmStorageFilter {
 			stat.executeUpdate("create table relations (id bigint, member bigint, type smallint, role varchar(1024), ord smallint, tags blob, del int, primary key (id, ord, del))"); //$NON-NLS-1$
 			stat.executeUpdate("create index IdRIndex ON relations (id)"); //$NON-NLS-1$
 			stat.close();
+			OsmDbTagsDictionary.createTable(dialect, dbConn);
+		}
+		// database created without dictionary keeps plain utf-8 tags
+		if (OsmDbTagsDictionary.exists(dialect, dbConn)) {
+			tagsDictionary = new OsmDbTagsDictionary();
+			tagsDictionary.load(dbConn);
+			tagsDictionary.prepareToWrite(dbConn);
 		}
 		initIds("node", nodeIds);
 		initIds("ways", wayIds);
@@ -296,6 +319,9 @@ public class OsmDbCreator implements IOsmStorageFilter {
 			if (currentRelationsCount > 0) {
 				prepRelations.executeBatch();
 			}
+			if (tagsDictionary != null) {
+				tagsDictionary.finishWriting();
+			}
 		} catch (SQLException ex) {
 			log.error("TODO FIX: Could not save in db ", ex); //$NON-NLS-1$
 		}
@@ -314,17 +340,21 @@ public class OsmDbCreator implements IOsmStorageFilter {
 	
 	
 	private void checkEntityExists(Entity e, long id, boolean delete) throws SQLException {
+		checkEntityExists(EntityType.valueOf(e), id, delete);
+	}
+
+	private void checkEntityExists(EntityType type, long id, boolean delete) throws SQLException {
 		if (delNode == null) {
 			delNode = dbConn.prepareStatement("delete from node where id = ?"); //$NON-NLS-1$
 			delWays = dbConn.prepareStatement("delete from ways where id = ?"); //$NON-NLS-1$
 			delRelations = dbConn.prepareStatement("delete from relations where id = ? and del = ?"); //$NON-NLS-1$
 		}
 		boolean present = false;
-		if (e instanceof Node) {
+		if (type == EntityType.NODE) {
 			present = !nodeIds.add(id);
-		} else if (e instanceof Way) {
+		} else if (type == EntityType.WAY) {
 			present = !wayIds.add(id);
-		} else if (e instanceof Relation) {
+		} else if (type == EntityType.RELATION) {
 			long rid = (id << 1) | (delete ? 1 : 0); 
 			present = !relationIds.add(rid);
 		}
@@ -337,13 +367,13 @@ public class OsmDbCreator implements IOsmStorageFilter {
 		currentWaysCount = 0;
 		currentCountNode = 0;
 		currentRelationsCount = 0;
-		if (e instanceof Node) {
+		if (type == EntityType.NODE) {
 			delNode.setLong(1, id);
 			delNode.execute();
-		} else if (e instanceof Way) {
+		} else if (type == EntityType.WAY) {
 			delWays.setLong(1, id);
 			delWays.execute();
-		} else if (e instanceof Relation) {
+		} else if (type == EntityType.RELATION) {
 			delRelations.setLong(1, id);
 			delRelations.setLong(2, delete ? 1 : 0);
 			delRelations.execute();
@@ -362,18 +392,7 @@ public class OsmDbCreator implements IOsmStorageFilter {
 		}
 		try {
 			e.removeTags(tagsToIgnore);
-			ByteArrayOutputStream tags = new ByteArrayOutputStream();
-			try {
-				for (Entry<String, String> i : e.getTags().entrySet()) {
-					// UTF-8 default
-					tags.write(i.getKey().getBytes("UTF-8"));
-					tags.write(0);
-					tags.write(i.getValue().getBytes("UTF-8"));
-					tags.write(0);
-				}
-			} catch (IOException es) {
-				throw new RuntimeException(es);
-			}
+			byte[] tags = tagsDictionary != null ? tagsDictionary.encode(e.getTags()) : encodePlainTags(e);
 			long id = convertId(e);
 			boolean delete = OSMAND_DELETE_VALUE.
 					equals(e.getTag(OSMAND_DELETE_TAG));
@@ -386,20 +405,10 @@ public class OsmDbCreator implements IOsmStorageFilter {
 				checkEntityExists(e, id, delete);
 			}
 			if (e instanceof Node) {
-				currentCountNode++;
 				if (!e.getTags().isEmpty()) {
 					allNodes++;
 				}
-				prepNode.setLong(1, id);
-				prepNode.setDouble(2, ((Node) e).getLatitude());
-				prepNode.setDouble(3, ((Node) e).getLongitude());
-				prepNode.setBytes(4, tags.toByteArray());
-				prepNode.addBatch();
-				if (currentCountNode >= BATCH_SIZE_OSM) {
-					prepNode.executeBatch();
-					dbConn.commit(); // clear memory
-					currentCountNode = 0;
-				}
+				insertNode(id, ((Node) e).getLatitude(), ((Node) e).getLongitude(), tags);
 			} else if (e instanceof Way) {
 				allWays++;
 				int ord = 0;
@@ -409,7 +418,7 @@ public class OsmDbCreator implements IOsmStorageFilter {
 				for (int j = 0; j < nodeIds.size(); j++) {
 					currentWaysCount++;
 					if (ord == 0) {
-						prepWays.setBytes(4, tags.toByteArray());
+						prepWays.setBytes(4, tags);
 					}
 					prepWays.setLong(1, id);
 					prepWays.setLong(2, nodeIds.get(j));
@@ -429,7 +438,7 @@ public class OsmDbCreator implements IOsmStorageFilter {
 				for (RelationMember i : ((Relation) e).getMembers()) {
 					currentRelationsCount++;
 					if (ord == 0) {
-						prepRelations.setBytes(6, tags.toByteArray());
+						prepRelations.setBytes(6, tags);
 					}
 					prepRelations.setLong(1, id);
 					prepRelations.setLong(2, i.getEntityId().getId());
@@ -447,6 +456,8 @@ public class OsmDbCreator implements IOsmStorageFilter {
 				}
 			}
 
+		} catch (IOException ex) {
+			log.error("Could not save node location (entity " + entityId + ") ", ex); //$NON-NLS-1$
 		} catch (SQLException ex) {
 			log.error("TODO FIX: Could not save in db (entity " + entityId + ") ", ex); //$NON-NLS-1$
 		}
@@ -456,6 +467,64 @@ public class OsmDbCreator implements IOsmStorageFilter {
 
 
 
+	private byte[] encodePlainTags(Entity e) {
+		ByteArrayOutputStream tags = new ByteArrayOutputStream();
+		try {
+			for (Entry<String, String> i : e.getTags().entrySet()) {
+				// UTF-8 default
+				tags.write(i.getKey().getBytes("UTF-8"));
+				tags.write(0);
+				tags.write(i.getValue().getBytes("UTF-8"));
+				tags.write(0);
+			}
+		} catch (IOException es) {
+			throw new RuntimeException(es);
+		}
+		return tags.toByteArray();
+	}
+
+	@Override
+	public boolean acceptPlainNodeToLoad(OsmBaseStorage storage, long nodeId, double lat, double lon) {
+		// same as acceptEntityToLoad for a node without tags (marked with delete tag)
+		if (VALIDATE_DUPLICATES) {
+			long l = (nodeId << 2) + EntityType.NODE.ordinal();
+			if (!idSet.add(l)) {
+				throw new IllegalStateException("Duplicate id '" + nodeId + "' " + EntityType.NODE);
+			}
+		}
+		try {
+			long id = convertNodeId(nodeId, lat, lon);
+			if (ovewriteIds) {
+				checkEntityExists(EntityType.NODE, id, true);
+			}
+			allNodes++;
+			insertNode(id, lat, lon, EMPTY_TAGS);
+		} catch (IOException ex) {
+			log.error("Could not save node location (node " + nodeId + ") ", ex); //$NON-NLS-1$
+		} catch (SQLException ex) {
+			log.error("TODO FIX: Could not save in db (node " + nodeId + ") ", ex); //$NON-NLS-1$
+		}
+		// do not add to storage
+		return false;
+	}
+
+	private void insertNode(long id, double lat, double lon, byte[] tags) throws SQLException, IOException {
+		if (tags.length == 0 && nodeLocations != null && nodeLocations.put(id, lat, lon)) {
+			return;
+		}
+		currentCountNode++;
+		prepNode.setLong(1, id);
+		prepNode.setDouble(2, lat);
+		prepNode.setDouble(3, lon);
+		prepNode.setBytes(4, tags);
+		prepNode.addBatch();
+		if (currentCountNode >= BATCH_SIZE_OSM) {
+			prepNode.executeBatch();
+			dbConn.commit(); // clear memory
+			currentCountNode = 0;
+		}
+	}
+
 	public int getAllNodes() {
 		return allNodes;
 	}
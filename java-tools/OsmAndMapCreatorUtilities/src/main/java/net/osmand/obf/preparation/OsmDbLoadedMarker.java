@@ -0,0 +1,110 @@
+package net.osmand.obf.preparation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Completion marker of loading temporary osm database (and node locations) of {@link IndexCreator}
+ * stored next to the temporary files together with fingerprint of input files and settings.
+ * It only allows to skip reload of osm files, all indexing phases after loading keep their results in memory
+ * (encoding rules, cities, low level ways) and are always repeated.
+ * Marker file is written atomically, so it is consistent after crash.
+ */
+public class OsmDbLoadedMarker {
+	private static final Log log = LogFactory.getLog(OsmDbLoadedMarker.class);
+
+	private static final String FINGERPRINT = "fingerprint"; //$NON-NLS-1$
+	private static final String OSM_DB_LOADED = "osmDbLoaded"; //$NON-NLS-1$
+
+	private final File file;
+	private final String fingerprint;
+	private final Properties props = new Properties();
+
+	public OsmDbLoadedMarker(File file, String fingerprint) throws IOException {
+		this.file = file;
+		this.fingerprint = fingerprint;
+		if (file.exists()) {
+			InputStream is = new FileInputStream(file);
+			try {
+				props.load(is);
+			} finally {
+				is.close();
+			}
+			if (!fingerprint.equals(props.getProperty(FINGERPRINT))) {
+				log.info("Input files or settings have changed since last run, osm database is reloaded (marker "
+						+ file.getName() + " is discarded)");
+				props.clear();
+			}
+		}
+		props.setProperty(FINGERPRINT, fingerprint);
+	}
+
+	public static String getFingerprint(File[] readFile, IndexCreatorSettings settings, boolean generateUniqueIds,
+			boolean overwriteIds) {
+		StringBuilder b = new StringBuilder();
+		for (File f : readFile) {
+			b.append(f.getAbsolutePath()).append(':').append(f.length()).append(':').append(f.lastModified()).append(';');
+		}
+		b.append("map=").append(settings.indexMap);
+		b.append(",poi=").append(settings.indexPOI);
+		b.append(",transport=").append(settings.indexTransport);
+		b.append(",address=").append(settings.indexAddress);
+		b.append(",routing=").append(settings.indexRouting);
+		b.append(",lowLevel=").append(settings.generateLowLevel);
+		b.append(",backwardCompatibleIds=").append(settings.backwardCompatibleIds);
+		b.append(",nodeLocations=").append(settings.nodeLocationsLayout);
+		b.append(",uniqueIds=").append(generateUniqueIds);
+		b.append(",overwriteIds=").append(overwriteIds);
+		return b.toString();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	public boolean isLoaded() {
+		return props.containsKey(OSM_DB_LOADED);
+	}
+
+	public void markLoaded() throws IOException {
+		props.setProperty(OSM_DB_LOADED, Long.toString(System.currentTimeMillis()));
+		write();
+	}
+
+	public void reset() throws IOException {
+		props.remove(OSM_DB_LOADED);
+		write();
+	}
+
+	public void delete() {
+		file.delete();
+	}
+
+	private void write() throws IOException {
+		File tmp = new File(file.getAbsolutePath() + ".tmp"); //$NON-NLS-1$
+		OutputStream os = new FileOutputStream(tmp);
+		try {
+			props.store(os, "Temporary osm database is loaded"); //$NON-NLS-1$
+		} finally {
+			os.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Can't write marker " + file.getAbsolutePath());
+			}
+		}
+	}
+}
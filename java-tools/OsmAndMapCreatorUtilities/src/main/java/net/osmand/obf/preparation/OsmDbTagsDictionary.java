@@ -0,0 +1,180 @@
+package net.osmand.obf.preparation;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.osmand.osm.edit.Entity;
+
+/**
+ * Dictionary of tag keys and frequent tag values stored in the tags_dictionary table of the temporary osm database.
+ *
+ * Tags blob is a sequence of (varint key id, varint value) where value is (dictionary id << 1) or
+ * (utf-8 length << 1 | 1) followed by utf-8 bytes of value which is not in dictionary.
+ * Decoded dictionary strings are shared between all entities.
+ */
+public class OsmDbTagsDictionary {
+
+	public static final String TABLE = "tags_dictionary";
+
+	// values longer than that are mostly unique
+	private static final int MAX_VALUE_LENGTH = 32;
+	private static final int MAX_DICTIONARY_SIZE = 1 << 20;
+	private static final int BATCH_SIZE = 1000;
+
+	private final List<String> strings = new ArrayList<String>();
+	private final TObjectIntHashMap<String> ids = new TObjectIntHashMap<String>(1000, 0.5f, -1);
+	private PreparedStatement insert;
+	private int batch = 0;
+
+	public static boolean exists(DBDialect dialect, Connection conn) throws SQLException {
+		Statement stat = conn.createStatement();
+		boolean exists = dialect.checkTableIfExists(TABLE, stat);
+		stat.close();
+		return exists;
+	}
+
+	public static void createTable(DBDialect dialect, Connection conn) throws SQLException {
+		Statement stat = conn.createStatement();
+		dialect.deleteTableIfExists(TABLE, stat);
+		stat.executeUpdate("create table " + TABLE + " (id int primary key, value varchar)"); //$NON-NLS-1$
+		stat.close();
+	}
+
+	public void load(Connection conn) throws SQLException {
+		strings.clear();
+		ids.clear();
+		Statement stat = conn.createStatement();
+		ResultSet rs = stat.executeQuery("select id, value from " + TABLE + " order by id"); //$NON-NLS-1$
+		while (rs.next()) {
+			int id = rs.getInt(1);
+			while (strings.size() < id) {
+				strings.add(null);
+			}
+			String s = rs.getString(2);
+			strings.add(s);
+			ids.put(s, id);
+		}
+		rs.close();
+		stat.close();
+	}
+
+	/**
+	 * New dictionary entries are inserted into the connection database
+	 */
+	public void prepareToWrite(Connection conn) throws SQLException {
+		insert = conn.prepareStatement("insert into " + TABLE + "(id, value) values (?, ?)"); //$NON-NLS-1$
+	}
+
+	public void finishWriting() throws SQLException {
+		if (insert != null) {
+			if (batch > 0) {
+				insert.executeBatch();
+				batch = 0;
+			}
+			insert.close();
+			insert = null;
+		}
+	}
+
+	public byte[] encode(Map<String, String> tags) throws SQLException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			for (Entry<String, String> e : tags.entrySet()) {
+				writeVarint(out, getOrCreateId(e.getKey()));
+				String value = e.getValue();
+				int id = ids.get(value);
+				if (id == -1 && isDictionaryValue(e.getKey(), value)) {
+					id = getOrCreateId(value);
+				}
+				if (id != -1) {
+					writeVarint(out, id << 1);
+				} else {
+					byte[] bytes = value.getBytes("UTF-8");
+					writeVarint(out, (bytes.length << 1) | 1);
+					out.write(bytes, 0, bytes.length);
+				}
+			}
+		} catch (UnsupportedEncodingException es) {
+			throw new RuntimeException(es);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Thread safe as long as dictionary is not modified
+	 */
+	public void decode(Entity e, byte[] tags) {
+		try {
+			int[] pos = new int[1];
+			while (pos[0] < tags.length) {
+				String key = strings.get(readVarint(tags, pos));
+				int v = readVarint(tags, pos);
+				String value;
+				if ((v & 1) == 0) {
+					value = strings.get(v >>> 1);
+				} else {
+					int len = v >>> 1;
+					value = new String(tags, pos[0], len, "UTF-8");
+					pos[0] += len;
+				}
+				e.putTag(key, value);
+			}
+		} catch (UnsupportedEncodingException es) {
+			throw new RuntimeException(es);
+		}
+	}
+
+	private boolean isDictionaryValue(String key, String value) {
+		return value.length() <= MAX_VALUE_LENGTH && strings.size() < MAX_DICTIONARY_SIZE
+				&& !key.contains("name") && !key.startsWith("addr:") && !key.contains("ref"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	private int getOrCreateId(String s) throws SQLException {
+		int id = ids.get(s);
+		if (id == -1) {
+			id = strings.size();
+			strings.add(s);
+			ids.put(s, id);
+			insert.setInt(1, id);
+			insert.setString(2, s);
+			insert.addBatch();
+			if (++batch >= BATCH_SIZE) {
+				insert.executeBatch();
+				batch = 0;
+			}
+		}
+		return id;
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int v) {
+		while ((v & ~0x7f) != 0) {
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	private static int readVarint(byte[] b, int[] pos) {
+		int v = 0;
+		int shift = 0;
+		while (true) {
+			byte t = b[pos[0]++];
+			v |= (t & 0x7f) << shift;
+			if ((t & 0x80) == 0) {
+				return v;
+			}
+			shift += 7;
+		}
+	}
+}
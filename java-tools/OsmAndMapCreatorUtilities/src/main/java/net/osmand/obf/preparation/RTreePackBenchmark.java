@@ -0,0 +1,188 @@
+package net.osmand.obf.preparation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xmlpull.v1.XmlPullParserException;
+
+import net.osmand.binary.BinaryIndexPart;
+import net.osmand.binary.BinaryMapIndexReader;
+import net.osmand.binary.MapZooms;
+import net.osmand.impl.ConsoleProgressImplementation;
+import rtree.Element;
+import rtree.IllegalValueException;
+import rtree.Node;
+import rtree.Pack;
+import rtree.RTree;
+import rtree.RTreeException;
+import rtree.Rect;
+
+/**
+ * Compares STR and Hilbert packing of map and routing rtrees on a real extract :
+ * obf section sizes, node count, overlap of sibling nodes and nodes visited by window queries.
+ *
+ * Usage : RTreePackBenchmark <osm or pbf file> <working dir> [queries]
+ */
+public class RTreePackBenchmark {
+	private static final Log log = LogFactory.getLog(RTreePackBenchmark.class);
+
+	// query window is 1/QUERY_FRACTION of the tree bounds
+	private static final int QUERY_FRACTION = 64;
+
+	public static class TreeStats {
+		public int nodes;
+		public int leafNodes;
+		public int elements;
+		// sum of pairwise intersection areas of sibling nodes divided by area of the root
+		public double overlap;
+		public long queryNodes;
+		public long queryResults;
+
+		@Override
+		public String toString() {
+			return String.format("nodes %d (leaf %d), elements %d, overlap %.3f, visited nodes %d, results %d", nodes,
+					leafNodes, elements, overlap, queryNodes, queryResults);
+		}
+	}
+
+	public static void main(String[] args) throws IOException, SQLException, InterruptedException,
+			XmlPullParserException, RTreeException, IllegalValueException {
+		if (args.length < 2) {
+			System.out.println("Usage : RTreePackBenchmark <osm or pbf file> <working dir> [queries]");
+			return;
+		}
+		File input = new File(args[0]);
+		File workDir = new File(args[1]);
+		int queries = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		Map<String, Integer> strategies = new LinkedHashMap<String, Integer>();
+		strategies.put("STR", Pack.STR);
+		strategies.put("HILBERT", Pack.HILBERT);
+		for (String name : strategies.keySet()) {
+			File dir = new File(workDir, name.toLowerCase());
+			dir.mkdirs();
+			long time = System.currentTimeMillis();
+			IndexCreator creator = generate(input, dir, strategies.get(name));
+			System.out.println(name + " : generated in " + (System.currentTimeMillis() - time) + " ms");
+			printSections(new File(dir, creator.getMapFileName()));
+			List<String> trees = new ArrayList<String>();
+			MapZooms zooms = MapZooms.getDefault();
+			for (int i = 0; i < zooms.size(); i++) {
+				trees.add(treeFile(creator.getRTreeMapIndexPackFileName() + i, creator.getRTreeMapIndexNonPackFileName() + i));
+			}
+			trees.add(treeFile(creator.getRTreeRouteIndexPackFileName(), creator.getRTreeRouteIndexNonPackFileName()));
+			trees.add(treeFile(creator.getRTreeRouteIndexPackFileName() + "b",
+					creator.getRTreeRouteIndexNonPackFileName() + "b"));
+			for (String tree : trees) {
+				if (tree != null) {
+					RTree rtree = new RTree(tree);
+					System.out.println("  " + new File(tree).getName() + " : " + calculateStats(rtree, queries));
+					rtree.close();
+				}
+			}
+		}
+	}
+
+	private static IndexCreator generate(File input, File dir, int strategy) throws IOException, SQLException,
+			InterruptedException, XmlPullParserException {
+		IndexCreatorSettings settings = new IndexCreatorSettings();
+		settings.indexMap = true;
+		settings.indexRouting = true;
+		settings.mapRtreePackStrategy = strategy;
+		settings.routeRtreePackStrategy = strategy;
+		IndexCreator creator = new IndexCreator(dir, settings);
+		creator.setDeleteDatabaseIndexes(false);
+		String name = input.getName();
+		creator.setMapFileName(name.substring(0, name.indexOf('.')) + ".obf");
+		creator.generateIndexes(input, new ConsoleProgressImplementation(1), null, MapZooms.getDefault(), null, log);
+		return creator;
+	}
+
+	private static String treeFile(String packed, String nonPacked) {
+		// small trees are not packed
+		if (new File(packed).exists()) {
+			return packed;
+		}
+		return new File(nonPacked).exists() ? nonPacked : null;
+	}
+
+	private static void printSections(File obf) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(obf, "r");
+		try {
+			BinaryMapIndexReader reader = new BinaryMapIndexReader(raf, obf);
+			System.out.println("  " + obf.getName() + " : " + obf.length() + " bytes");
+			for (BinaryIndexPart p : reader.getIndexes()) {
+				System.out.println("  section " + p.getPartName() + " " + p.getName() + " : " + p.getLength() + " bytes");
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	public static TreeStats calculateStats(RTree tree, int queries) throws RTreeException, IllegalValueException {
+		TreeStats stats = new TreeStats();
+		long root = tree.getFileHdr().getRootIndex();
+		Rect bounds = tree.getReadNode(root).getNodeMBR();
+		double rootArea = Math.max(1d, (double) bounds.getWidth() * bounds.getHeight());
+		collect(tree, root, stats, rootArea);
+		Random rnd = new Random(bounds.getMinX() ^ bounds.getMaxY());
+		int w = Math.max(1, bounds.getWidth() / QUERY_FRACTION);
+		int h = Math.max(1, bounds.getHeight() / QUERY_FRACTION);
+		for (int i = 0; i < queries; i++) {
+			int x = bounds.getMinX() + (int) (rnd.nextDouble() * Math.max(1, bounds.getWidth() - w));
+			int y = bounds.getMinY() + (int) (rnd.nextDouble() * Math.max(1, bounds.getHeight() - h));
+			query(tree, root, new Rect(x, y, x + w, y + h), stats);
+		}
+		return stats;
+	}
+
+	private static void collect(RTree tree, long index, TreeStats stats, double rootArea) throws RTreeException {
+		Node node = tree.getReadNode(index);
+		Element[] e = node.getAllElements();
+		int total = node.getTotalElements();
+		stats.nodes++;
+		for (int i = 0; i < total; i++) {
+			for (int j = i + 1; j < total; j++) {
+				Rect r1 = e[i].getRect();
+				Rect r2 = e[j].getRect();
+				long dx = (long) Math.min(r1.getMaxX(), r2.getMaxX()) - Math.max(r1.getMinX(), r2.getMinX());
+				long dy = (long) Math.min(r1.getMaxY(), r2.getMaxY()) - Math.max(r1.getMinY(), r2.getMinY());
+				if (dx > 0 && dy > 0) {
+					stats.overlap += (double) dx * dy / rootArea;
+				}
+			}
+		}
+		if (node.getElementType() == Node.LEAF_NODE) {
+			stats.leafNodes++;
+			stats.elements += total;
+		} else {
+			for (int i = 0; i < total; i++) {
+				collect(tree, e[i].getPtr(), stats, rootArea);
+			}
+		}
+	}
+
+	private static void query(RTree tree, long index, Rect rect, TreeStats stats) throws RTreeException,
+			IllegalValueException {
+		Node node = tree.getReadNode(index);
+		Element[] e = node.getAllElements();
+		stats.queryNodes++;
+		for (int i = 0; i < node.getTotalElements(); i++) {
+			if (!e[i].getRect().disjoint(rect)) {
+				if (e[i].getElementType() == Node.LEAF_NODE) {
+					stats.queryResults++;
+				} else {
+					query(tree, e[i].getPtr(), rect, stats);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,11 @@
+package net.osmand.osm.io;
+
+/**
+ * Filter that is able to accept untagged nodes as plain coordinates. When every filter of a storage implements it,
+ * {@link OsmBaseStoragePbf} does not create node objects for untagged dense nodes.
+ */
+public interface IOsmStoragePlainNodeFilter extends IOsmStorageFilter {
+
+	public boolean acceptPlainNodeToLoad(OsmBaseStorage storage, long id, double latitude, double longitude);
+
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -25,6 +26,16 @@ import crosby.binary.file.BlockInputStream;
 public class OsmBaseStoragePbf extends OsmBaseStorage {
 
 	public synchronized void parseOSMPbf(final InputStream stream, final IProgress progress, final boolean entityInfo) throws IOException {
+		parseOSMPbf(stream, progress, entityInfo, 1);
+	}
+
+	/**
+	 * @param decodeThreads number of threads inflating and decoding pbf blobs, entities are still registered
+	 *            on the calling thread in file order
+	 */
+	public synchronized void parseOSMPbf(final InputStream stream, final IProgress progress, final boolean entityInfo,
+			int decodeThreads) throws IOException {
+		final List<IOsmStoragePlainNodeFilter> plainNodeFilters = entityInfo ? null : getPlainNodeFilters();
 		BinaryParser parser = new BinaryParser() {
 			public void updateProgress(int count) {
 				progressEntity += count;
@@ -51,6 +62,18 @@ public class OsmBaseStoragePbf extends OsmBaseStorage {
 				}
 			}
 
+			public void registerPlainNode(long id, double lat, double lon) {
+				for (IOsmStoragePlainNodeFilter f : plainNodeFilters) {
+					if (!f.acceptPlainNodeToLoad(OsmBaseStoragePbf.this, id, lat, lon)) {
+						return;
+					}
+				}
+				Entity oldEntity = entities.put(new EntityId(EntityType.NODE, id), new Node(lat, lon, id));
+				if (!supressWarnings && oldEntity != null) {
+					throw new UnsupportedOperationException("Entity with id=" + oldEntity.getId() + " is duplicated in osm map"); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+			}
+
 			@Override
 			protected void parse(HeaderBlock header) {
 			}
@@ -73,6 +96,14 @@ public class OsmBaseStoragePbf extends OsmBaseStorage {
 					id += n.getId(i);
 					lat += n.getLat(i);
 					lon += n.getLon(i);
+					if (plainNodeFilters != null && (tagsEmpty || n.getKeysVals(keyInd) == 0)) {
+						// untagged node: skip node, tags and entity id allocation
+						if (!tagsEmpty) {
+							keyInd++;
+						}
+						registerPlainNode(id, parseLat(lat), parseLon(lon));
+						continue;
+					}
 					Node node = new Node(parseLat(lat), parseLon(lon), id);
 
 					if (entityInfo && n.getDenseinfo() != null) {
@@ -210,7 +241,7 @@ public class OsmBaseStoragePbf extends OsmBaseStorage {
 			progress.startWork(stream.available());
 		}
 
-		BlockInputStream bis = new BlockInputStream(stream, parser);
+		BlockInputStream bis = new BlockInputStream(stream, parser, decodeThreads);
 		bis.process();
 
 		if(progress != null){
@@ -218,4 +249,18 @@ public class OsmBaseStoragePbf extends OsmBaseStorage {
 		}
 		completeReading();
 	}
+
+	/**
+	 * @return filters as plain node filters or null if any of them needs node objects
+	 */
+	private List<IOsmStoragePlainNodeFilter> getPlainNodeFilters() {
+		List<IOsmStoragePlainNodeFilter> res = new ArrayList<IOsmStoragePlainNodeFilter>();
+		for (IOsmStorageFilter f : getFilters()) {
+			if (!(f instanceof IOsmStoragePlainNodeFilter)) {
+				return null;
+			}
+			res.add((IOsmStoragePlainNodeFilter) f);
+		}
+		return res;
+	}
 }
@@ -4,7 +4,7 @@ import net.osmand.osm.edit.Entity;
 import net.osmand.osm.edit.Node;
 import net.osmand.osm.edit.Entity.EntityId;
 
-public class OsmBoundsFilter implements IOsmStorageFilter {
+public class OsmBoundsFilter implements IOsmStoragePlainNodeFilter {
 
 	private final double lonEnd;
 	private final double latDown;
@@ -22,15 +22,16 @@ public class OsmBoundsFilter implements IOsmStorageFilter {
 	@Override
 	public boolean acceptEntityToLoad(OsmBaseStorage storage, EntityId entityId, Entity entity) {
 		if(entity instanceof Node){
-			double lon = ((Node) entity).getLongitude();
-			double lat = ((Node) entity).getLatitude();
-			if (latDown <= lat && lat <= latUp && lonStart <= lon && lon <= lonEnd) {
-				return true;
-			}
-			return false;
+			return acceptPlainNodeToLoad(storage, entity.getId(), ((Node) entity).getLatitude(),
+					((Node) entity).getLongitude());
 		}
 		// unknown for other locations
 		return true;
 	}
 
+	@Override
+	public boolean acceptPlainNodeToLoad(OsmBaseStorage storage, long id, double lat, double lon) {
+		return latDown <= lat && lat <= latUp && lonStart <= lon && lon <= lonEnd;
+	}
+
 }
@@ -14,6 +14,7 @@ import java.net.URL;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.Iterator;
@@ -22,9 +23,13 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Filter;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
 import java.util.logging.SimpleFormatter;
 
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -54,6 +59,9 @@ import rtree.RTree;
 public class IndexBatchCreator {
 
 	private static final int INMEM_LIMIT = 2000;
+	// rough estimate of heap needed to generate region : base + factor * input file size
+	private static final long REGION_MEMORY_BASE = 256l << 20;
+	private static final double DEFAULT_REGION_MEMORY_FACTOR = 4;
 
 	protected static final Log log = PlatformUtil.getLog(IndexBatchCreator.class);
 
@@ -102,6 +110,21 @@ public class IndexBatchCreator {
 
 	private String renderingTypesFile;
 
+	// parallel generation of regions (regionThreads > 1)
+	int regionThreads = 1;
+	long memoryBudgetMb = Runtime.getRuntime().maxMemory() >> 20;
+	double regionMemoryFactor = DEFAULT_REGION_MEMORY_FACTOR;
+	private List<RegionTask> scheduledRegions = new ArrayList<RegionTask>();
+	// input file name of the region generated by the thread (inherited by generation worker threads)
+	private static final InheritableThreadLocal<String> currentRegion = new InheritableThreadLocal<String>();
+
+	private static class RegionTask {
+		File file;
+		String rName;
+		RegionSpecificData rdata;
+		long memoryEstimate;
+	}
+
 
 	public static void main(String[] args) {
 		IndexBatchCreator creator = new IndexBatchCreator();
@@ -299,10 +322,23 @@ public class IndexBatchCreator {
 			} catch (RuntimeException e) {
 			}
 		}
+
+		String regionThreads = process.getAttribute("regionThreads");
+		if (regionThreads != null && !regionThreads.isEmpty()) {
+			this.regionThreads = Integer.parseInt(regionThreads);
+		}
+		String memoryBudgetMb = process.getAttribute("memoryBudgetMb");
+		if (memoryBudgetMb != null && !memoryBudgetMb.isEmpty()) {
+			this.memoryBudgetMb = Long.parseLong(memoryBudgetMb);
+		}
+		String regionMemoryFactor = process.getAttribute("regionMemoryFactor");
+		if (regionMemoryFactor != null && !regionMemoryFactor.isEmpty()) {
+			this.regionMemoryFactor = Double.parseDouble(regionMemoryFactor);
+		}
 	}
 
 	public void runBatch(List<RegionCountries> countriesToDownload ){
-		Set<String> alreadyGeneratedFiles = new LinkedHashSet<String>();
+		Set<String> alreadyGeneratedFiles = Collections.synchronizedSet(new LinkedHashSet<String>());
 		if(!countriesToDownload.isEmpty()){
 			downloadFilesAndGenerateIndex(countriesToDownload, alreadyGeneratedFiles);
 		}
@@ -467,16 +503,103 @@ public class IndexBatchCreator {
 				generateIndex(f, null, null, alreadyGeneratedFiles);
 			}
 		}
+		generateScheduledRegions();
 		log.info("GENERATING INDEXES FINISHED ");
 	}
 
 
 
 	protected void generateIndex(File file, String rName, RegionSpecificData rdata, Set<String> alreadyGeneratedFiles) {
+		if (regionThreads > 1) {
+			// generated after all files are downloaded
+			RegionTask task = new RegionTask();
+			task.file = file;
+			task.rName = rName;
+			task.rdata = rdata;
+			task.memoryEstimate = REGION_MEMORY_BASE + (long) (file.length() * regionMemoryFactor);
+			alreadyGeneratedFiles.add(file.getName());
+			scheduledRegions.add(task);
+			return;
+		}
+		// be independent of previous results
+		RTree.clearCache();
+		generateRegion(file, rName, rdata, alreadyGeneratedFiles);
+	}
+
+	/**
+	 * Generates scheduled regions with regionThreads workers, largest input first.
+	 * Region starts only if its memory estimate fits into the rest of memory budget (or nothing else is running),
+	 * smaller regions fill the budget while larger wait.
+	 */
+	protected void generateScheduledRegions() {
+		if (scheduledRegions.isEmpty()) {
+			return;
+		}
+		final List<RegionTask> pending = new ArrayList<RegionTask>(scheduledRegions);
+		scheduledRegions.clear();
+		Collections.sort(pending, new Comparator<RegionTask>() {
+			@Override
+			public int compare(RegionTask o1, RegionTask o2) {
+				return Long.compare(o2.file.length(), o1.file.length());
+			}
+		});
+		log.info("Generate " + pending.size() + " regions with " + regionThreads + " threads, memory budget " + memoryBudgetMb + " MB");
+		ExecutorService executor = Executors.newFixedThreadPool(regionThreads);
+		final long[] available = new long[] { memoryBudgetMb << 20 };
+		final int[] running = new int[] { 0 };
+		final Set<String> generatedFiles = Collections.synchronizedSet(new LinkedHashSet<String>());
 		try {
-			// be independent of previous results
-			RTree.clearCache();
+			synchronized (available) {
+				while (!pending.isEmpty()) {
+					RegionTask next = null;
+					if (running[0] < regionThreads) {
+						for (RegionTask t : pending) {
+							if (running[0] == 0 || t.memoryEstimate <= available[0]) {
+								next = t;
+								break;
+							}
+						}
+					}
+					if (next == null) {
+						available.wait();
+						continue;
+					}
+					final RegionTask task = next;
+					pending.remove(task);
+					available[0] -= task.memoryEstimate;
+					running[0]++;
+					log.info("Start " + task.file.getName() + ", estimated memory " + (task.memoryEstimate >> 20) + " MB, running " + running[0]);
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							currentRegion.set(task.file.getName());
+							try {
+								generateRegion(task.file, task.rName, task.rdata, generatedFiles);
+							} finally {
+								currentRegion.remove();
+								synchronized (available) {
+									available[0] += task.memoryEstimate;
+									running[0]--;
+									available.notifyAll();
+								}
+							}
+						}
+					});
+				}
+				while (running[0] > 0) {
+					available.wait();
+				}
+			}
+		} catch (InterruptedException e) {
+			log.error("Interrupted generation of regions", e);
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdown();
+		}
+	}
 
+	protected void generateRegion(File file, String rName, RegionSpecificData rdata, Set<String> alreadyGeneratedFiles) {
+		try {
 			String regionName = file.getName();
 			log.warn("-------------------------------------------");
 			log.warn("----------- Generate " + file.getName() + "\n\n\n");
@@ -537,6 +660,12 @@ public class IndexBatchCreator {
 			indexCreator.setRegionName(rName);
 			String mapFileName = regionName + "_" + IndexConstants.BINARY_MAP_VERSION + IndexConstants.BINARY_MAP_INDEX_EXT;
 			indexCreator.setMapFileName(mapFileName);
+			if (regionThreads > 1) {
+				// default temporary osm db is shared by all regions of working dir
+				File nodesDB = new File(workDir, mapFileName + "." + IndexCreator.TEMP_NODES_DB);
+				Algorithms.removeAllFiles(nodesDB);
+				indexCreator.setNodesDBFile(nodesDB);
+			}
 			try {
 				alreadyGeneratedFiles.add(file.getName());
 				Log warningsAboutMapData = null;
@@ -552,7 +681,17 @@ public class IndexBatchCreator {
 					fh = new FileHandler(logFileName.getAbsolutePath(), 10*1000*1000, 1, true);
 					fh.setFormatter(new SimpleFormatter());
 					fh.setLevel(Level.ALL);
-					Jdk14Logger jdk14Logger = new Jdk14Logger("tempLogger");
+					final String region = currentRegion.get();
+					if (region != null) {
+						// root logger receives records of all regions generated in parallel
+						fh.setFilter(new Filter() {
+							@Override
+							public boolean isLoggable(LogRecord record) {
+								return region.equals(currentRegion.get());
+							}
+						});
+					}
+					Jdk14Logger jdk14Logger = new Jdk14Logger(region == null ? "tempLogger" : "tempLogger." + region);
 					jdk14Logger.getLogger().setLevel(Level.ALL);
 					jdk14Logger.getLogger().setUseParentHandlers(false);
 					jdk14Logger.getLogger().addHandler(fh);
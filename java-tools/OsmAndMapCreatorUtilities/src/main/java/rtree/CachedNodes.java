@@ -1,4 +1,4 @@
-//BufferHeader.java,CachedNodes.java
+//CachedNodes.java
 //
 //This library is free software; you can redistribute it and/or
 //modify it under the terms of the GNU Lesser General Public
@@ -11,295 +11,169 @@
 //Lesser General Public License for more details.
 package rtree;
 //package rtree;
-import java.util.*;
 import java.io.*;
 import rtree.seeded.SdNode;
 /**
-   <b>A circular linked list of cached nodes using hashtable ?!!</b>
-   <p>This class will wrap a list of recently used nodes.
-   If the requested node is in <tt>Hashtable</tt> of the class then the node would
-   be returned from the <tt>Hashtable</tt>, else it would be read from the
-   disk.
-   <br>This will be a static object in the class RTree. Therefore no matter how
-   many RTree objects you create they all would have one cache for all the files
-   the object handles.
-   TODO : keep a set that keeps all the nodes that are dirty. With each node registering themselves
-   hara when thhey are dity, this is maageable.
+   <b>Cache of recently used nodes of one tree file.</b>
+   <p>If the requested node is in the cache then the node would be returned from the cache, else it would
+   be read from the disk.
+   <br>There is one cache per tree file (see <code>FileHdr.getCachedNodes</code>), so trees of
+   different files never share or invalidate each other's nodes.
+   <p>The cache is split into lock striped LRU segments keyed by the primitive node index, so lookups of
+   different nodes don't wait for each other. Disk reads and writes of the nodes are serialized on the
+   file as the nodes share one <code>RandomAccessFile</code>.
+   <p>The size of the cache is given in bytes, each node is counted as <code>Node.NODE_SIZE</code>.
    @author Prachuryya Barua
 */
-class BufferHeader
+public class CachedNodes
 {
-  int recent;//the most recently inserted node
-  int last;//the least recently inserted node
-  int size;//max size of the link list
-  Hashtable cache;
-  BufferHeader(int size,Hashtable ch)
-  {
-    this.cache = ch;
-    this.size = size;
-  }
+  private static final int NODE = 0;
+  private static final int SDNODE = 1;
+  private static final int MAX_STRIPES = 16;
+  /**minimal number of nodes in a stripe*/
+  private static final int MIN_STRIPE_SIZE = 64;
+  /**byte budget of the cache of a tree file if no other is given*/
+  public static final long DEFAULT_CACHE_BYTES = (long)Node.CACHE_SIZE * Node.NODE_SIZE;
 
-  void flush()
-    throws NodeWriteException
-  {
-    //if(!RTree.writeThr){
-    for (Iterator it = cache.values().iterator(); it.hasNext();){
-      NodeValue node = (NodeValue)it.next();
-      node.node.flush();
-    } // end of for (Iterator  = .iterator(); .hasNext();)
-    //}
-  }
-  /*for a fresh key when the array is not full.This will be called when the
-    buffer is not fully warm*/
-  void put(int key, Node node)
+  private Stripe[] stripes;
+  private int stripeMask;
+  int size;
+
+  CachedNodes()
   {
-    try{
-      //the following two conditions  happens in multithreaded programs
-      if(cache.containsKey(new Integer(key))){
-        update(key);
-        return;
-      }
-      if(cache.size() == size){
-        replace(key,node);
-        return;
-      }
-      if(cache.size() == 0){
-        last = key;
-        cache.put(new Integer(key), new NodeValue(node,key,key));
-      }else{
-        //remove recent
-        NodeValue tmpPrev = (NodeValue)(cache.remove(new Integer(recent)));
-        if(last == recent){//there is only one node in cache
-          cache.put(new Integer(key), new NodeValue(node,tmpPrev.next,tmpPrev.next));
-          cache.put(new Integer(recent), new NodeValue(tmpPrev.node,key,key));
-        }
-        else{
-          //remove next of previous
-          NodeValue tmpPNext = (NodeValue)(cache.remove(new Integer(tmpPrev.next)));
-          cache.put(new Integer(key), new NodeValue(node,tmpPrev.next,recent));
-          cache.put(new Integer(tmpPrev.next), new NodeValue(tmpPNext.node,tmpPNext.next,key));
-          cache.put(new Integer(recent), new NodeValue(tmpPrev.node,key,tmpPrev.prev));
-        }
-      }
-      recent = key;
-    }
-    catch(Exception e){
-      e.printStackTrace();
-    }
+    this(DEFAULT_CACHE_BYTES);
   }
-  /*a new key in a filled array*/
-  void replace(int key,Node node)
-    throws NodeWriteException
+  CachedNodes(long bytes)
   {
-    try{
-      if(cache.containsKey(new Integer(key))){
-        update(key);
-        return;
-      }
-      if(cache.size() < size){
-        put(key,node);
-        return;
-      }
-      //remove the 'last' node
-      NodeValue lastNode = (NodeValue)(cache.remove(new Integer(last)));
-      lastNode.node.flush();
-      NodeValue pNode = (NodeValue)(cache.remove(new Integer(lastNode.prev)));
-      NodeValue nNode = (NodeValue)(cache.remove(new Integer(lastNode.next)));
-      //put back the three nodes
-      cache.put(new Integer(key), new NodeValue(node,lastNode.next, lastNode.prev));
-      cache.put(new Integer(lastNode.prev), new NodeValue(pNode.node,key,pNode.prev));
-      cache.put(new Integer(lastNode.next), new NodeValue(nNode.node,nNode.next,key));
-      recent = key;//this is the latest node
-      last = lastNode.next;//set the next in chain as the new 'last'
-
-    }
-    catch(Exception e){
-      e.printStackTrace();
-    }
+    init(bytes);
   }
-  /**make a node that is present as 'recent'*/
-  void update(int key)
+  private void init(long bytes)
   {
-    try{
-      if(key != recent){
-        NodeValue node,nextNode,prevNode,rcntNode,lastNode;//temp variables
-        node = (NodeValue)(cache.remove(new Integer(key)));
-        if(node == null){//will not happen
-          System.out.println("CachedNodes.update: unlikely flow");
-          return;
-        }
-        if(key == last){
-          last = node.next;
-          cache.put(new Integer(key), new NodeValue(node.node, node.next, node.prev));
-        }
-        else{
-          //adjust next node and the recent node
-          nextNode = (NodeValue)(cache.remove(new Integer(node.next)));
-          if(recent != node.next){//if next node is not the recent node
-            rcntNode = (NodeValue)(cache.remove(new Integer(recent)));
-            rcntNode.next = key;
-            cache.put(new Integer(recent), new NodeValue(rcntNode.node, rcntNode.next,rcntNode.prev));
-          }
-          else{//next node is the recent node
-            nextNode.next = key;
-          }
-          cache.put(new Integer(node.next), new NodeValue(nextNode.node, nextNode.next,node.prev));
-
-          //adjust previous node and the last node - if unequal
-          prevNode = (NodeValue)(cache.remove(new Integer(node.prev)));
-          if(last != node.prev){//if last node is not the prev node
-            lastNode = (NodeValue)(cache.remove(new Integer(last)));
-            lastNode.prev = key;
-            cache.put(new Integer(last),new NodeValue(lastNode.node, lastNode.next,lastNode.prev));
-          }
-          else{//if the last node is the prev node.
-            prevNode.prev = key;
-          }
-          cache.put(new Integer(node.prev), new NodeValue(prevNode.node, node.next,prevNode.prev));
-
-          //put the new node
-          cache.put(new Integer(key), new NodeValue(node.node,last,recent));
-        }
-        //update local variables
-      }
-      recent = key;
-    }
-    catch(Exception e){
-      e.printStackTrace();
-    }
+    if(bytes < 0)
+      throw new IllegalArgumentException("CachedNodes:: size is less than zero");
+    size = (int)Math.max(1, Math.min(Integer.MAX_VALUE, bytes / Node.NODE_SIZE));
+    int n = 1;
+    while(n < MAX_STRIPES && (n * 2) * MIN_STRIPE_SIZE <= size)
+      n *= 2;
+    Stripe[] s = new Stripe[n];
+    for(int i = 0; i < n; i++)
+      s[i] = new Stripe((size + n - 1) / n);
+    stripeMask = n - 1;
+    stripes = s;
   }
-  void remove(int key)
+  /**
+     Flushes and drops all the cached nodes and resizes the cache.
+  */
+  public synchronized void setCacheBytes(long bytes)
     throws NodeWriteException
   {
-    try{
-      NodeValue node = (NodeValue)(cache.remove(new Integer(key)));
-      if((cache.size() != 0) && (node != null)){
-        //if(!RTree.writeThr)
-        node.node.flush();
-        if(cache.size() == 1){
-          NodeValue oNode = (NodeValue)(cache.remove(new Integer(node.prev)));
-          cache.put(new Integer(node.prev), new NodeValue(oNode.node, node.prev,node.prev));
-          recent = last = node.prev;
-        }
-        else{
-          //if(!RTree.writeThr)
-          node.node.flush();
-          NodeValue pNode = (NodeValue)(cache.remove(new Integer(node.prev)));
-          NodeValue nNode = (NodeValue)(cache.remove(new Integer(node.next)));
-          cache.put(new Integer(node.prev), new NodeValue(pNode.node, node.next,pNode.prev));
-          cache.put(new Integer(node.next), new NodeValue(nNode.node, nNode.next,node.prev));
-          if(key == recent)
-            recent = node.prev;
-          if(key == last)
-            last = node.next;
-        }
-      }
-    }
-    catch(Exception e){
-      e.printStackTrace();
-    }
+    removeAll();
+    init(bytes);
   }
-  void reset()
+  public synchronized void setCacheSize(int size)
     throws NodeWriteException
   {
-    //if(!RTree.writeThr)
-    flush();
-    cache.clear();
+    if(size < 0)
+      throw new IllegalArgumentException("CachedNodes:: size is less than zero");
+    setCacheBytes((long)size * Node.NODE_SIZE);
   }
-}
-public class CachedNodes
-{
-  private static final int NODE = 0;
-  private static final int SDNODE = 1;
-  Hashtable cache;
-  BufferHeader buffHeader;
-  int size = Node.CACHE_SIZE;
-  CachedNodes()
+  public long getCacheBytes()
   {
-    //System.out.println("CachedNodes : cache called");
-    cache = new Hashtable(Node.CACHE_SIZE+1,1);
-    buffHeader = new BufferHeader(Node.CACHE_SIZE,cache);
-    size = Node.CACHE_SIZE;
+    return (long)size * Node.NODE_SIZE;
   }
   /**
-     This one is still under construction.
+     @return number of the cached nodes
   */
-  CachedNodes(int size)
-  {
-    if(size < 0)
-      throw new IllegalArgumentException("CachedNodes:: size is less than zero");
-    cache = new Hashtable(size+1,1);
-    buffHeader = new BufferHeader(size, cache);
-    this.size = size;
-  }
-  public synchronized void setCacheSize(int size)
-    throws NodeWriteException
+  public int getSize()
   {
-    if(size < 0)
-      throw new IllegalArgumentException("CachedNodes:: size is less than zero");
-    removeAll();
-    cache = new Hashtable(size+1,1);
-    buffHeader = new BufferHeader(size, cache);
-    this.size = size;
+    int res = 0;
+    for(Stripe s : stripes){
+      synchronized(s){
+        res += s.count;
+      }
+    }
+    return res;
   }
-  public synchronized int getSize()
+  private Stripe stripe(long key)
   {
-    return cache.size();
+    long h = key * 0x9E3779B97F4A7C15L;
+    return stripes[(int)(h >>> 40) & stripeMask];
   }
   private Node getNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr, int type)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
-    int ndIndex = (int)lndIndex;
-    int key = calKey(fileName,ndIndex);
-    NodeValue node = (NodeValue)(cache.get(new Integer(key)));
+    long key = (int)lndIndex;
+    Stripe s = stripe(key);
     Node nNode;
-    if(node == null){//Node not in cache
-      if(type == NODE){
-        nNode = new Node(file, fileName, ndIndex, flHdr);
-      }else{
-        nNode = new SdNode(file, fileName, ndIndex, flHdr);
-      }
-      key = calKey(fileName, (int)nNode.getNodeIndex());//this is for the case where index is NOT_DEFINED
-      nNode.sweepSort();
-      //cache not full
-      if(cache.size() < Node.CACHE_SIZE){
-        buffHeader.put(key,nNode);//(Node)nNode.clone());
-      }else if(cache.size() == Node.CACHE_SIZE){//cache Is full
-        buffHeader.replace(key,nNode);//(Node)nNode.clone());
+    synchronized(s){
+      nNode = s.get(key);
+      if(nNode == null){//Node not in cache
+        synchronized(file){
+          if(type == NODE){
+            nNode = new Node(file, fileName, key, flHdr);
+          }else{
+            nNode = new SdNode(file, fileName, key, flHdr);
+          }
+        }
+        nNode.sweepSort();
+        long nKey = (int)nNode.getNodeIndex();//this is for the case where index is NOT_DEFINED
+        if(nKey == key)
+          flushEvicted(file, s.put(key, nNode));
+        else
+          cacheNew(nNode);
+      }else{//node found in the cache
+        nNode.sweepSort();
       }
-      return nNode;
-    }
-    else{//node found in the cache
-      buffHeader.update(key);
-      node.node.sweepSort();
-      return (node.node);
     }
+    return nNode;
   }
   private Node getNode(RandomAccessFile file,String fileName,long parentIndex, int elmtType, FileHdr flHdr,
                        int type)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
     Node nNode;
-    if(type == NODE){
-      nNode = new Node(file,fileName,parentIndex, elmtType, flHdr);
-    }else{
-      nNode = new SdNode(file,fileName,parentIndex, elmtType, flHdr);
+    synchronized(file){
+      if(type == NODE){
+        nNode = new Node(file,fileName,parentIndex, elmtType, flHdr);
+      }else{
+        nNode = new SdNode(file,fileName,parentIndex, elmtType, flHdr);
+      }
     }
-    int key = calKey(fileName, (int)nNode.getNodeIndex());
     nNode.sweepSort();
-    //cache not full
-    if(cache.size() < Node.CACHE_SIZE)
-      buffHeader.put(key,nNode);
-    //cache Is full
-    else if(cache.size() == Node.CACHE_SIZE)
-      buffHeader.replace(key,nNode);
+    cacheNew(nNode);
     return nNode;
   }
+  /**
+     Puts a new node, any node with the same index is stale and replaced.
+  */
+  private void cacheNew(Node nNode)
+    throws NodeWriteException
+  {
+    long key = (int)nNode.getNodeIndex();
+    Stripe s = stripe(key);
+    synchronized(s){
+      s.remove(key);
+      flushEvicted(nNode.file, s.put(key, nNode));
+    }
+  }
+  /**
+     Writes the evicted node back, the caller must hold the lock of its stripe. Otherwise a concurrent miss
+     on the same index could read the old page from the file and the write would be lost.
+  */
+  private void flushEvicted(RandomAccessFile file, Node evicted)
+    throws NodeWriteException
+  {
+    if(evicted != null){
+      synchronized(file){
+        evicted.flush();
+      }
+    }
+  }
   //-----------------------Methods for client to get Node they prefer------------
   /**
      This one returns an existing <code>SdNode</code>
   */
-  public synchronized SdNode getSdNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
+  public SdNode getSdNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
     return (SdNode)getNode(file,fileName,lndIndex,flHdr, SDNODE);
@@ -307,7 +181,7 @@ public class CachedNodes
   /**
      This one returns an existing <code>SdNode</code>.
   */
-  public synchronized SdNode getSdNode(RandomAccessFile file,String fileName,long parentIndex,
+  public SdNode getSdNode(RandomAccessFile file,String fileName,long parentIndex,
                                        int elmtType, FileHdr flHdr)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
@@ -316,7 +190,7 @@ public class CachedNodes
   /**
      This one returns an existing <code>Node</code>.
   */
-  public synchronized Node getNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
+  public Node getNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
     return getNode(file,fileName,lndIndex,flHdr, NODE);
@@ -324,7 +198,7 @@ public class CachedNodes
   /**
      This one returns an new <code>SdNode</code>.
   */
-  public synchronized Node getNode(RandomAccessFile file,String fileName,long parentIndex,
+  public Node getNode(RandomAccessFile file,String fileName,long parentIndex,
                                    int elmtType, FileHdr flHdr)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
@@ -333,7 +207,7 @@ public class CachedNodes
   /**
      This one returns an new <code>Node</code>.
   */
-  public synchronized Node getNode(RandomAccessFile file,String fileName,long parentIndex,
+  public Node getNode(RandomAccessFile file,String fileName,long parentIndex,
                                    int elmtType, FileHdr flHdr, Node type)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
@@ -348,10 +222,17 @@ public class CachedNodes
      return a clones ReadNode, so that concurrent reads can take place (because none of the methods
      of <code>Node</code> are <code>synchronized</code>.
   */
-  public synchronized ReadNode getReadNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
+  public ReadNode getReadNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
-    return ReadNode.makeReadNode(getNode(file,fileName,lndIndex,flHdr));
+    //nodes of a read only tree are immutable, they are shared without locks
+    if(flHdr.isReadOnly())
+      return flHdr.getReadOnlyNodes().getNode(lndIndex);
+    Node node = getNode(file,fileName,lndIndex,flHdr);
+    //the cached node is copied under its stripe lock
+    synchronized(stripe((int)node.getNodeIndex())){
+      return ReadNode.makeReadNode(node);
+    }
   }
   /**
      Write all the diry nodes to the disc.
@@ -359,66 +240,205 @@ public class CachedNodes
   synchronized void flush()
     throws NodeWriteException
   {
-    //if(!RTree.writeThr)
-    buffHeader.flush();
+    for(Stripe s : stripes){
+      synchronized(s){
+        s.flush();
+      }
+    }
   }
   /**
      This method would be called only by those threads that need to modify the
-     tree. Hence this method is automatically synchronized.
+     tree.
   */
-  synchronized void remove(String fileName,long ndIndex)
+  void remove(String fileName,long ndIndex)
     throws NodeWriteException
   {
-    int key = calKey(fileName,(int)ndIndex);
-    buffHeader.remove(key);
+    long key = (int)ndIndex;
+    Stripe s = stripe(key);
+    synchronized(s){
+      //written back under the stripe lock, see flushEvicted
+      Node node = s.remove(key);
+      if(node != null)
+        flushEvicted(node.file, node);
+    }
   }
-
-
   synchronized void removeAll()
     throws NodeWriteException
   {
-    buffHeader.reset();
-  }
-
-  static Map<String, Integer> fileNamesMap = new LinkedHashMap<String, Integer>();
-
-  static void clearFileNamesMap(){
-	  fileNamesMap.clear();
+    for(Stripe s : stripes){
+      synchronized(s){
+        s.flush();
+        s.clear();
+      }
+    }
   }
 
-  int calKey(String fileName,int idx)
+  /**
+     LRU of one stripe: entries are kept in arrays linked by index, an open addressing table
+     (linear probing) maps the node index to the entry.
+  */
+  static final class Stripe
   {
-    if(fileName != null) {
-    	Integer i = fileNamesMap.get(fileName);
-    	if(i == null){
-    		if(fileNamesMap.size() > 1023){
-    			throw new ArrayIndexOutOfBoundsException();
-    		}
-    		fileNamesMap.put(fileName, fileNamesMap.size());
-    		i = fileNamesMap.get(fileName);
-    	}
-//      System.out.println(idx + " " + fileName + " " + ((idx << 5)+ fileName.toLowerCase().hashCode() % 32));
-      return ((idx << 10)+ i);
-    } else{
-      System.out.println("CachedNodes.calKey: fileName null");
-      return 0;
+    private static final int NONE = -1;
+    final int capacity;
+    final long[] keys;
+    final Node[] nodes;
+    final int[] prev;
+    final int[] next;
+    /**entry index + 1, 0 is an empty slot*/
+    final int[] table;
+    final int mask;
+    int head = NONE;//the most recently used entry
+    int tail = NONE;//the least recently used entry
+    int free = NONE;//list of free entries linked by next
+    int used;//entries taken from the arrays
+    int count;
+
+    Stripe(int capacity)
+    {
+      this.capacity = capacity;
+      keys = new long[capacity];
+      nodes = new Node[capacity];
+      prev = new int[capacity];
+      next = new int[capacity];
+      int t = 1;
+      while(t < capacity * 2)
+        t <<= 1;
+      table = new int[t];
+      mask = t - 1;
+    }
+    private int slot(long key)
+    {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int)(h ^ (h >>> 32)) & mask;
+    }
+    private int find(long key)
+    {
+      int i = slot(key);
+      while(table[i] != 0){
+        int e = table[i] - 1;
+        if(keys[e] == key)
+          return i;
+        i = (i + 1) & mask;
+      }
+      return NONE;
+    }
+    Node get(long key)
+    {
+      int i = find(key);
+      if(i == NONE)
+        return null;
+      int e = table[i] - 1;
+      unlink(e);
+      linkHead(e);
+      return nodes[e];
+    }
+    /**
+       @return evicted node that has to be flushed or null
+    */
+    Node put(long key, Node node)
+    {
+      int i = find(key);
+      if(i != NONE){
+        int e = table[i] - 1;
+        nodes[e] = node;
+        unlink(e);
+        linkHead(e);
+        return null;
+      }
+      Node evicted = null;
+      if(count == capacity){
+        int e = tail;
+        evicted = nodes[e];
+        removeEntry(find(keys[e]));
+      }
+      int e;
+      if(free != NONE){
+        e = free;
+        free = next[e];
+      }else{
+        e = used++;
+      }
+      keys[e] = key;
+      nodes[e] = node;
+      linkHead(e);
+      i = slot(key);
+      while(table[i] != 0)
+        i = (i + 1) & mask;
+      table[i] = e + 1;
+      count++;
+      return evicted;
+    }
+    Node remove(long key)
+    {
+      int i = find(key);
+      if(i == NONE)
+        return null;
+      return removeEntry(i);
+    }
+    private Node removeEntry(int i)
+    {
+      int e = table[i] - 1;
+      Node node = nodes[e];
+      unlink(e);
+      nodes[e] = null;
+      next[e] = free;
+      free = e;
+      count--;
+      //backward shift deletion to keep probe sequences without holes
+      int j = i;
+      while(true){
+        table[j] = 0;
+        int k = j;
+        while(true){
+          k = (k + 1) & mask;
+          if(table[k] == 0)
+            return node;
+          int home = slot(keys[table[k] - 1]);
+          //move the entry if its home slot is not in (j, k]
+          if(j <= k ? (home <= j || home > k) : (home <= j && home > k))
+            break;
+        }
+        table[j] = table[k];
+        j = k;
+      }
+    }
+    private void unlink(int e)
+    {
+      if(prev[e] != NONE)
+        next[prev[e]] = next[e];
+      else
+        head = next[e];
+      if(next[e] != NONE)
+        prev[next[e]] = prev[e];
+      else
+        tail = prev[e];
+    }
+    private void linkHead(int e)
+    {
+      prev[e] = NONE;
+      next[e] = head;
+      if(head != NONE)
+        prev[head] = e;
+      head = e;
+      if(tail == NONE)
+        tail = e;
+    }
+    void flush()
+      throws NodeWriteException
+    {
+      for(int e = head; e != NONE; e = next[e]){
+        synchronized(nodes[e].file){
+          nodes[e].flush();
+        }
+      }
+    }
+    void clear()
+    {
+      java.util.Arrays.fill(table, 0);
+      java.util.Arrays.fill(nodes, null);
+      head = tail = free = NONE;
+      used = count = 0;
     }
   }
 }
-class NodeValue
-{
-  Node node;
-  int next;//the next node's key
-  int prev;//the prev node's key
-  NodeValue(Node node,int n,int p)
-  {
-    this.node = node;
-    next = n;
-    prev = p;
-  }
-}
-/**
-   TODO:
-   2) A way to pin an node. Obviously the client must also unpinn the node.
-
-*/
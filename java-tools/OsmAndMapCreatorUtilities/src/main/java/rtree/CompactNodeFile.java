@@ -0,0 +1,253 @@
+//CompactNodeFile.java
+//
+//This library is free software; you can redistribute it and/or
+//modify it under the terms of the GNU Lesser General Public
+//License as published by the Free Software Foundation; either
+//version 2.1 of the License, or (at your option) any later version.
+//
+//This library is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//Lesser General Public License for more details.
+package rtree;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+/**
+   Compact node format of a packed tree, written by <code>Pack</code> when asked for. Nodes are not kept in
+   fixed pages of <code>Node.NODE_SIZE</code> bytes but in records of variable length:
+   <pre>
+   parent            long (8 bytes, filled in when the upper level is written)
+   total elements    varint
+   element type      varint
+   node MBR          minX, minY zigzag varints, width, height varints
+   for each element  minX - node minX, minY - node minY, node maxX - maxX, node maxY - maxY varints
+                     pointer - previous pointer zigzag varint
+   </pre>
+   The child rectangles are relative to the MBR of the node, which for tile coordinates takes 2 or 3 bytes
+   instead of 4 and the pointers of the elements of a node are close to each other. A node takes a few
+   hundred bytes instead of a page.
+   <p>Records are appended in the order they are written (levels are written in parallel), a table of the
+   offset and the length of every node is written at the end of the file. The file header has an empty
+   free node list followed by <code>MAGIC</code> and the position of the table.
+   <p>The tree of a compact file can't be modified, <code>FileHdr</code> makes it read only when it is
+   opened.
+*/
+class CompactNodeFile
+{
+  static final int MAGIC = 0x43504e44;
+  /**parent, count, type, node MBR*/
+  private static final int MAX_NODE_HDR_SIZE = Node.LONG_SIZE + 5 + 5 + 4 * 5;
+  /**rectangle and pointer of an element*/
+  private static final int MAX_ELEMENT_SIZE = 4 * 5 + 10;
+
+  private final FileChannel channel;
+  private final long[] offsets;
+  private final int[] lengths;
+
+  /**
+     Reads the table of the nodes.
+  */
+  CompactNodeFile(RandomAccessFile file, long tablePos, int totalNodes)
+    throws IOException
+  {
+    channel = file.getChannel();
+    offsets = new long[totalNodes];
+    lengths = new int[totalNodes];
+    ByteBuffer table = ByteBuffer.allocate(totalNodes * (Node.LONG_SIZE + Node.INTEGER_SIZE));
+    read(channel, table, tablePos);
+    table.flip();
+    for(int i = 0; i < totalNodes; i++){
+      offsets[i] = table.getLong();
+      lengths[i] = table.getInt();
+    }
+  }
+  /**
+     Reads the node <code>ndIndex</code> into <code>node</code>.
+  */
+  void readNode(Node node, long ndIndex)
+    throws IOException
+  {
+    int idx = (int)ndIndex;
+    ByteBuffer b = ByteBuffer.allocate(lengths[idx]);
+    read(channel, b, offsets[idx]);
+    b.flip();
+    decode(node, b);
+  }
+  /**
+     Fills the header and the elements of <code>node</code> from the record <code>b</code>.
+  */
+  static void decode(Node node, ByteBuffer b)
+    throws IOException
+  {
+    try{
+      node.parent = b.getLong();
+      node.totalElements = (int)readVarint(b);
+      node.elementType = (int)readVarint(b);
+      node.elementSize = node.elementType == Node.LEAF_NODE ? LeafElement.sizeInBytes() :
+        NonLeafElement.sizeInBytes();
+      long minX = zigzagDecode(readVarint(b));
+      long minY = zigzagDecode(readVarint(b));
+      long maxX = minX + readVarint(b);
+      long maxY = minY + readVarint(b);
+      node.nodeMBR = new Rect((int)minX, (int)minY, (int)maxX, (int)maxY);
+      long ptr = 0;
+      for(int i = 0; i < node.totalElements; i++){
+        Rect r = new Rect((int)(minX + readVarint(b)), (int)(minY + readVarint(b)),
+                          (int)(maxX - readVarint(b)), (int)(maxY - readVarint(b)));
+        ptr += zigzagDecode(readVarint(b));
+        if(node.elementType == Node.LEAF_NODE)
+          node.elements[i] = new LeafElement(r, ptr);
+        else
+          node.elements[i] = new NonLeafElement(r, ptr);
+      }
+    }catch(Exception e){
+      throw new IOException("CompactNodeFile.decode : Can't read the node " + e.getMessage());
+    }
+  }
+  /**
+     Encodes the elements <code>from</code> - <code>to</code> as a node record, the parent is not defined.
+  */
+  static ByteBuffer encode(Element[] elmts, int from, int to, Rect mbr)
+  {
+    ByteBuffer b = ByteBuffer.allocate(MAX_NODE_HDR_SIZE + (to - from) * MAX_ELEMENT_SIZE);
+    b.putLong(Node.NOT_DEFINED);
+    writeVarint(b, to - from);
+    writeVarint(b, elmts[from].getElementType());
+    writeVarint(b, zigzagEncode(mbr.getMinX()));
+    writeVarint(b, zigzagEncode(mbr.getMinY()));
+    writeVarint(b, (long)mbr.getMaxX() - mbr.getMinX());
+    writeVarint(b, (long)mbr.getMaxY() - mbr.getMinY());
+    long ptr = 0;
+    for(int i = from; i < to; i++){
+      Rect r = elmts[i].getRect();
+      writeVarint(b, (long)r.getMinX() - mbr.getMinX());
+      writeVarint(b, (long)r.getMinY() - mbr.getMinY());
+      writeVarint(b, (long)mbr.getMaxX() - r.getMaxX());
+      writeVarint(b, (long)mbr.getMaxY() - r.getMaxY());
+      writeVarint(b, zigzagEncode(elmts[i].getPtr() - ptr));
+      ptr = elmts[i].getPtr();
+    }
+    b.flip();
+    return b;
+  }
+  private static void writeVarint(ByteBuffer b, long v)
+  {
+    while((v & ~0x7fL) != 0){
+      b.put((byte)((v & 0x7f) | 0x80));
+      v >>>= 7;
+    }
+    b.put((byte)v);
+  }
+  private static long readVarint(ByteBuffer b)
+  {
+    long v = 0;
+    for(int shift = 0; ; shift += 7){
+      byte n = b.get();
+      v |= (long)(n & 0x7f) << shift;
+      if(n >= 0)
+        return v;
+    }
+  }
+  private static long zigzagEncode(long v)
+  {
+    return (v << 1) ^ (v >> 63);
+  }
+  private static long zigzagDecode(long v)
+  {
+    return (v >>> 1) ^ -(v & 1);
+  }
+  private static void read(FileChannel channel, ByteBuffer b, long pos)
+    throws IOException
+  {
+    while(b.hasRemaining()){
+      if(channel.read(b, pos + b.position()) < 0)
+        throw new IOException("CompactNodeFile.read : unexpected end of file at " + pos);
+    }
+  }
+  private static void write(FileChannel channel, ByteBuffer b, long pos)
+    throws IOException
+  {
+    while(b.hasRemaining())
+      channel.write(b, pos + b.position());
+  }
+
+  /**
+     Writes the nodes of a packed tree, any number of threads may write nodes at the same time.
+  */
+  static class Writer implements Pack.NodeWriter
+  {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int totalNodes;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final AtomicLong end = new AtomicLong(Node.FILE_HDR_SIZE);
+
+    Writer(RandomAccessFile file, int totalNodes)
+    {
+      this.file = file;
+      this.channel = file.getChannel();
+      this.totalNodes = totalNodes;
+      offsets = new long[totalNodes];
+      lengths = new int[totalNodes];
+    }
+    /**
+       The children are written before, so their parent is updated in place.
+    */
+    public Element writeNode(Element[] elmts, int from, int to, long nodeIndex)
+      throws Exception
+    {
+      int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+      for(int i = from; i < to; i++){
+        Rect r = elmts[i].getRect();
+        minX = Math.min(minX, r.getMinX());
+        minY = Math.min(minY, r.getMinY());
+        maxX = Math.max(maxX, r.getMaxX());
+        maxY = Math.max(maxY, r.getMaxY());
+      }
+      Rect mbr = new Rect(minX, minY, maxX, maxY);
+      ByteBuffer record = encode(elmts, from, to, mbr);
+      int length = record.remaining();
+      long pos = end.getAndAdd(length);
+      write(channel, record, pos);
+      offsets[(int)nodeIndex] = pos;
+      lengths[(int)nodeIndex] = length;
+      if(elmts[from].getElementType() == Node.NONLEAF_NODE){
+        for(int i = from; i < to; i++){
+          ByteBuffer parent = ByteBuffer.allocate(Node.LONG_SIZE);
+          parent.putLong(nodeIndex);
+          parent.flip();
+          write(channel, parent, offsets[(int)elmts[i].getPtr()]);
+        }
+      }
+      return new NonLeafElement(mbr, nodeIndex);
+    }
+    /**
+       Writes the table of the nodes and the file header, the root is the last node.
+    */
+    void finish()
+      throws IOException
+    {
+      long tablePos = end.get();
+      ByteBuffer table = ByteBuffer.allocate(totalNodes * (Node.LONG_SIZE + Node.INTEGER_SIZE));
+      for(int i = 0; i < totalNodes; i++){
+        table.putLong(offsets[i]);
+        table.putInt(lengths[i]);
+      }
+      table.flip();
+      write(channel, table, tablePos);
+      ByteBuffer hdr = ByteBuffer.allocate(Node.FILE_HDR_SIZE);
+      hdr.putInt(totalNodes);
+      hdr.putLong(totalNodes - 1);
+      hdr.putInt(Node.NOT_DEFINED);//no free nodes
+      hdr.putInt(MAGIC);
+      hdr.putLong(tablePos);
+      hdr.clear();
+      write(channel, hdr, 0);
+      file.setLength(tablePos + table.capacity());
+    }
+  }
+}
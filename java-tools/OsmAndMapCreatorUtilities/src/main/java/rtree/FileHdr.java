@@ -12,6 +12,7 @@
 package rtree;
 //package rtree;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Vector;
 import java.util.Enumeration;
 /**
@@ -49,6 +50,19 @@ public class FileHdr
   private boolean interested;
   /**The wait thread queue*/
   private Vector waiters;
+  /**Nodes of this file, created on first use*/
+  private CachedNodes cachedNodes;
+  /**Set once the tree is not modified any more, then nodes are read without locks*/
+  private volatile boolean readOnly = false;
+  private ReadOnlyNodes readOnlyNodes;
+  /**Nodes of a compact packed tree, null for the file of fixed size pages*/
+  private CompactNodeFile compact;
+  /**Memory mapped node pages, null if the nodes are read and written through <code>file</code>*/
+  private MappedNodeFile mapped;
+  /**Byte budget of the node cache of this file*/
+  private final long cacheBytes;
+  /**Whether the nodes of a modifiable file are memory mapped*/
+  private final boolean memoryMapped;
   /**
      Although this 'stack' is part of the file header but it acts totally
      independently of the rest of the file header. All of the file reads and
@@ -65,6 +79,20 @@ public class FileHdr
   FileHdr(int stkLimit,String fileName)
     throws RTreeException
   {
+    this(stkLimit, fileName, CachedNodes.DEFAULT_CACHE_BYTES, false);
+  }
+  /**
+     @param cacheBytes byte budget of the node cache of this file
+     @param memoryMapped whether the nodes are memory mapped. Mapped nodes are read without a system call
+     and dirty nodes are only copied to the mapping on flush.
+  */
+  FileHdr(int stkLimit,String fileName, long cacheBytes, boolean memoryMapped)
+    throws RTreeException
+  {
+    if(cacheBytes < 0)
+      throw new IllegalArgumentException("FileHdr:: cache size is less than zero");
+    this.cacheBytes = cacheBytes;
+    this.memoryMapped = memoryMapped;
     try{
       this.file = new RandomAccessFile(fileName,"rw");
       this.fileName = fileName;
@@ -96,13 +124,76 @@ public class FileHdr
         while((topIdx<stkLimit) &&
               ((frNode = ds.readInt()) != Node.NOT_DEFINED))
           S[++topIdx] = frNode;
+        readCompactHeader(ds);
         ds.close();
       }
+      if(compact != null)
+        openReadOnlyNodes();
+      else if(memoryMapped)
+        mapped = new MappedNodeFile(file);
     }
     catch(Exception e){
       throw new RTreeException("FileHdr.FileHdr: " +e.getMessage());
     }
   }
+  public long getCacheBytes()
+  {
+    return cacheBytes;
+  }
+  public boolean isMemoryMapped()
+  {
+    return mapped != null;
+  }
+  /**
+     Makes the file read only, the nodes must be flushed and the caller must hold the write lock.
+     The cached nodes are dropped, read only nodes are cached up to the same size.
+  */
+  synchronized void setReadOnly()
+    throws NodeWriteException
+  {
+    if(readOnly)
+      return;
+    getCachedNodes().removeAll();
+    openReadOnlyNodes();
+  }
+  public boolean isReadOnly()
+  {
+    return readOnly;
+  }
+  /**
+     The header of a compact tree has <code>CompactNodeFile.MAGIC</code> and the position of the node table
+     after the empty free node list.
+  */
+  private void readCompactHeader(DataInputStream ds)
+    throws IOException
+  {
+    compact = null;
+    if(topIdx == -1 && ds.readInt() == CompactNodeFile.MAGIC)
+      compact = new CompactNodeFile(file, ds.readLong(), totalNodes);
+  }
+  /**
+     A compact tree can't be modified, it is read only as soon as it is opened.
+  */
+  private void openReadOnlyNodes()
+  {
+    readOnlyNodes = new ReadOnlyNodes(this, fileName, getCachedNodes().size);
+    readOnly = true;
+  }
+  /**
+     Whether the nodes are in the compact format written by <code>Pack</code>.
+  */
+  public boolean isCompact()
+  {
+    return compact != null;
+  }
+  CompactNodeFile getCompactNodes()
+  {
+    return compact;
+  }
+  ReadOnlyNodes getReadOnlyNodes()
+  {
+    return readOnlyNodes;
+  }
   /**
      This method at the moment is only for Pack. This one has potential!
   */
@@ -121,6 +212,8 @@ public class FileHdr
     throws RTreeException
   {
     try{
+      boolean wasMapped = mapped != null;
+      closeMapping();
       file.close();
       this.file = new RandomAccessFile(fileName,"rw");
       //file.getFD().sync();
@@ -149,8 +242,13 @@ public class FileHdr
         while((topIdx<stkLimit)
               && ((frNode = ds.readInt()) != Node.NOT_DEFINED))
           S[++topIdx] = frNode;
+        readCompactHeader(ds);
         ds.close();
       }
+      if(compact == null && wasMapped)
+        mapped = new MappedNodeFile(file);
+      if(compact != null || readOnly)//the nodes are read from the new file
+        openReadOnlyNodes();
     }
     catch(Exception e){
       e.printStackTrace();
@@ -166,6 +264,11 @@ public class FileHdr
     S = new int[this.stkLimit];
     topIdx = -1;
     int frNode;
+    boolean wasMapped = mapped != null;
+    if(wasMapped){
+      mapped.close(1);
+      mapped = new MappedNodeFile(file);
+    }
     file.setLength(1);
     file.seek(0);
     file.writeInt(0);
@@ -289,6 +392,63 @@ public class FileHdr
       return  Node.NOT_DEFINED;
     }
   }
+  /**
+     Reads the node page (or part of it) at <code>pos</code>. The caller holds the lock of
+     <code>file</code>.
+     @return the bytes, a view of the mapping for the memory mapped files
+  */
+  ByteBuffer read(long pos, int len)
+    throws IOException
+  {
+    if(mapped != null)
+      return mapped.read(pos, len);
+    byte[] data = new byte[len];
+    file.seek(pos);
+    file.read(data);
+    return ByteBuffer.wrap(data);
+  }
+  /**
+     Writes node data at <code>pos</code>. The caller holds the lock of <code>file</code>.
+  */
+  void write(long pos, byte[] data)
+    throws IOException
+  {
+    if(mapped != null){
+      mapped.write(pos, data);
+    }else{
+      file.seek(pos);
+      file.write(data);
+    }
+  }
+  /**
+     The length of the file, for the memory mapped files it includes the mapped but not written nodes.
+  */
+  long length()
+    throws IOException
+  {
+    if(mapped != null)
+      return mapped.length();
+    return file.length();
+  }
+  /**
+     Writes the file header and closes the file. Memory mapped pages are written and the file is cut to
+     its nodes.
+  */
+  void close()
+    throws IOException
+  {
+    flush();
+    closeMapping();
+    file.close();
+  }
+  private void closeMapping()
+    throws IOException
+  {
+    if(mapped != null){
+      mapped.close(Node.FILE_HDR_SIZE + (long)totalNodes * Node.NODE_SIZE);
+      mapped = null;
+    }
+  }
   /**
      Returns the <code>RandomAccessFile</code> object
   */
@@ -296,6 +456,15 @@ public class FileHdr
   {
     return this.file;
   }
+  /**
+     Returns the cache of the nodes of this file.
+  */
+  public synchronized CachedNodes getCachedNodes()
+  {
+    if(cachedNodes == null)
+      cachedNodes = new CachedNodes(cacheBytes);
+    return cachedNodes;
+  }
   /**
      Will return the total nodes in the tree. This does not include the nodes that are deleted and are
      in the stack.
@@ -315,6 +484,7 @@ public class FileHdr
 protected void finalize() throws Throwable
   {
     try {
+      //the mapping isn't closed here, another header of the same file may still write to it (Pack)
       flush();
       file.close();
     }catch (Exception e) {
@@ -380,7 +550,18 @@ protected void finalize() throws Throwable
     return -1;
   }
 
-  public synchronized void lockRead()
+  /**
+     Takes the read lock unless the tree is read only.
+     @return whether the lock was taken and <code>unlock</code> has to be called
+  */
+  public boolean lockRead()
+  {
+    if(readOnly)
+      return false;
+    lockReadWait();
+    return true;
+  }
+  private synchronized void lockReadWait()
   {
     ThreadInfo threadinfo;
     Thread me = Thread.currentThread();
@@ -421,6 +602,8 @@ protected void finalize() throws Throwable
 
   public synchronized void lockWrite() throws IllegalArgumentException
   {
+    if(readOnly)
+      throw new IllegalStateException("FileHdr.lockWrite: " + fileName + " is read only");
     ThreadInfo threadinfo;
     Thread me= Thread.currentThread();
     int index = getIndex(me);
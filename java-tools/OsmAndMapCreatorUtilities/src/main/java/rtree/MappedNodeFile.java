@@ -0,0 +1,125 @@
+//MappedNodeFile.java
+//
+//This library is free software; you can redistribute it and/or
+//modify it under the terms of the GNU Lesser General Public
+//License as published by the Free Software Foundation; either
+//version 2.1 of the License, or (at your option) any later version.
+//
+//This library is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//Lesser General Public License for more details.
+package rtree;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+/**
+   Memory mapped node pages of an rtree file. The file after the file header is mapped in segments of
+   <code>SEGMENT_SIZE</code> bytes which are mapped when first touched, mapping a segment grows the file.
+   A node never crosses a segment as the segment size is a multiple of <code>Node.NODE_SIZE</code>.
+   <p>The file header is still read and written by <code>FileHdr</code> through the
+   <code>RandomAccessFile</code>, it doesn't overlap the mapped pages.
+   <p>Reads return views of the mapping, therefore there is no copy nor system call for a cached page.
+   Writes of dirty nodes only copy them to the mapping, the pages are written by the OS or by
+   <code>force</code>.
+*/
+class MappedNodeFile
+{
+  /**16 MBytes - 4096 nodes*/
+  static final int SEGMENT_SHIFT = 24;
+  static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+  private FileChannel channel;
+  /**copied on growth, so readers don't lock*/
+  private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+  private volatile long length;
+
+  MappedNodeFile(RandomAccessFile file)
+    throws IOException
+  {
+    channel = file.getChannel();
+    length = channel.size();
+  }
+  /**
+     The length of the file, it includes the mapped segments which are not written yet.
+  */
+  long length()
+  {
+    return length;
+  }
+  /**
+     @return view of <code>len</code> bytes at the position <code>pos</code> of the file, it may also be
+     written.
+  */
+  ByteBuffer read(long pos, int len)
+    throws IOException
+  {
+    ByteBuffer b = segment(pos).duplicate();
+    int off = offset(pos);
+    b.limit(off + len);
+    b.position(off);
+    return b;
+  }
+  void write(long pos, byte[] data)
+    throws IOException
+  {
+    ByteBuffer b = segment(pos).duplicate();
+    b.position(offset(pos));
+    b.put(data);
+  }
+  /**
+     Writes all the pages to the disk.
+  */
+  void force()
+  {
+    MappedByteBuffer[] s = segments;
+    for(int i = 0; i < s.length; i++)
+      if(s[i] != null)
+        s[i].force();
+  }
+  /**
+     Forgets the mappings and cuts the file to <code>newLength</code> to drop the unused tail of the last
+     segment. The buffers are unmapped by GC.
+     @throws IOException if the file can't be cut (the length of the file is used for new node indices)
+  */
+  synchronized void close(long newLength)
+    throws IOException
+  {
+    force();
+    segments = new MappedByteBuffer[0];
+    if(channel.isOpen() && channel.size() > newLength)
+      channel.truncate(newLength);
+  }
+  private static int offset(long pos)
+  {
+    return (int)((pos - Node.FILE_HDR_SIZE) & (SEGMENT_SIZE - 1));
+  }
+  private MappedByteBuffer segment(long pos)
+    throws IOException
+  {
+    if(pos < Node.FILE_HDR_SIZE)
+      throw new IOException("MappedNodeFile.segment: position in the file header " + pos);
+    int idx = (int)((pos - Node.FILE_HDR_SIZE) >> SEGMENT_SHIFT);
+    MappedByteBuffer[] s = segments;
+    if(idx < s.length && s[idx] != null)
+      return s[idx];
+    return map(idx);
+  }
+  private synchronized MappedByteBuffer map(int idx)
+    throws IOException
+  {
+    MappedByteBuffer[] s = segments;
+    if(idx < s.length && s[idx] != null)
+      return s[idx];
+    long start = Node.FILE_HDR_SIZE + ((long)idx << SEGMENT_SHIFT);
+    MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE, start, SEGMENT_SIZE);
+    MappedByteBuffer[] ns = new MappedByteBuffer[Math.max(s.length, idx + 1)];
+    System.arraycopy(s, 0, ns, 0, s.length);
+    ns[idx] = b;
+    segments = ns;
+    length = Math.max(length, start + SEGMENT_SIZE);
+    return b;
+  }
+}
@@ -17,6 +17,7 @@ import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -212,7 +213,7 @@ public class Node implements Cloneable //can be made abstract if leaf and non le
     //if an old file with an existing node
     else{
       //if out of bond index
-      if((FILE_HDR_SIZE+(NODE_SIZE*ndIndex)) > file.length())
+      if((FILE_HDR_SIZE+(NODE_SIZE*ndIndex)) > fileHdr.length())
         throw new NodeReadException("Node.Node.: nodeIndex is out of bound");
       //update the local variable
       this.nodeIndex = ndIndex;
@@ -276,8 +277,7 @@ public Object clone()
         int minX,minY,maxX,maxY;
         //create a buffer
         byte[] data = new byte[NODE_SIZE];
-        seekCurrNode();
-        file.read(data);
+        fileHdr.read(currNodePos(), NODE_SIZE).get(data);
         DataInputStream ds = new DataInputStream(new ByteArrayInputStream(data));
         //skip the header - check for error value
         int skipValue = NODE_HDR_SIZE + (elementSize * (int)index);
@@ -317,7 +317,7 @@ public Object clone()
     if((index > (totalElements-1)))
       throw new IllegalValueException("Node.deleteElement: index out of bound");
     if(fileHdr.isWriteThr())
-      RTree.chdNodes.remove(fileName,nodeIndex);
+      fileHdr.getCachedNodes().remove(fileName,nodeIndex);
     int j = -1;
     try{
       nodeMBR = new Rect();//remove
@@ -350,8 +350,7 @@ public Object clone()
       if(fileHdr.isWriteThr() || force){
         bs.flush();
         ds.flush();
-        seekCurrNode();
-        file.write(bs.toByteArray());
+        fileHdr.write(currNodePos(), bs.toByteArray());
         setDirty(false);
       }else{//if we do not write through
         setDirty(true);
@@ -408,7 +407,7 @@ public Object clone()
       if(((totalElements+1)*elementSize) > NODE_BODY_SIZE)//no space left
         throw new NodeWriteException("Node.insertElement: Node size is becoming more than allowed");
       if(fileHdr.isWriteThr())
-        RTree.chdNodes.remove(fileName,nodeIndex);
+        fileHdr.getCachedNodes().remove(fileName,nodeIndex);
       writeLastElement(elmt);
     }
     else{//else set the header values depending upon the new object header
@@ -420,10 +419,10 @@ public Object clone()
         Node child = null;
         if(fileHdr.isWriteThr()){
           child = new Node(file, fileName, elmt.getPtr(), fileHdr);
-          RTree.chdNodes.remove(fileName, child.getNodeIndex());
+          fileHdr.getCachedNodes().remove(fileName, child.getNodeIndex());
         }
         else{
-          child = RTree.chdNodes.getNode(file, fileName, elmt.getPtr(), fileHdr);
+          child = fileHdr.getCachedNodes().getNode(file, fileName, elmt.getPtr(), fileHdr);
         }
         child.setParent(nodeIndex);
       }
@@ -454,7 +453,7 @@ public Object clone()
     int oldTotalElements = totalElements;
     //boolean oldIsNodeEmpty = isNodeEmpty;
     if(fileHdr.isWriteThr())
-      RTree.chdNodes.remove(fileName,nodeIndex);
+      fileHdr.getCachedNodes().remove(fileName,nodeIndex);
     try{
       //setting local variables first
       if(elmt instanceof LeafElement){
@@ -480,8 +479,7 @@ public Object clone()
         bs.flush();
         ds.flush();
         //write to the file
-        seekLastElement();//uses var.
-        file.write(bs.toByteArray());
+        fileHdr.write(lastElementPos(), bs.toByteArray());//uses var.
         setDirty(false);
       }else
         setDirty(true);
@@ -529,7 +527,7 @@ public Object clone()
       if(((totalElements+elmts.length)*elementSize) > NODE_BODY_SIZE)//no space left
         throw new NodeWriteException("Node.insertElement: Node size is becoming more than allowed");
       if(fileHdr.isWriteThr())
-        RTree.chdNodes.remove(fileName,nodeIndex);
+        fileHdr.getCachedNodes().remove(fileName,nodeIndex);
       writeLastElements(elmts);
     }
     else{//else set the header values depending upon the new object header
@@ -546,9 +544,9 @@ public Object clone()
           Node child = null;
           if(fileHdr.isWriteThr()){
             child = new Node(file, fileName, elmts[i].getPtr(), fileHdr);
-            RTree.chdNodes.remove(fileName, child.getNodeIndex());
+            fileHdr.getCachedNodes().remove(fileName, child.getNodeIndex());
           }else
-            child = RTree.chdNodes.getNode(file, fileName, elmts[i].getPtr(), fileHdr);
+            child = fileHdr.getCachedNodes().getNode(file, fileName, elmts[i].getPtr(), fileHdr);
           //child = new Node(file, fileName, elmts[i].getPtr(), fileHdr);
           child.setParent(nodeIndex);
         }
@@ -582,7 +580,7 @@ public Object clone()
     int oldTotalElements = totalElements;
     //boolean oldIsNodeEmpty = isNodeEmpty;
     if(fileHdr.isWriteThr())
-      RTree.chdNodes.remove(fileName,nodeIndex);
+      fileHdr.getCachedNodes().remove(fileName,nodeIndex);
     try{
       //setting local variables first
       if(elmts[0] instanceof LeafElement){
@@ -633,8 +631,7 @@ public Object clone()
         bs.flush();
         ds.flush();
         //write to the file
-        seekNode(nodeIndex);
-        file.write(bs.toByteArray());
+        fileHdr.write(nodePos(nodeIndex), bs.toByteArray());
       }
       //local variables
       //isNodeEmpty = false;
@@ -654,37 +651,37 @@ public Object clone()
     }
   }
 
-  /**this function simply places the file pointer, it does not check for any
+  /**position of the current node in the file, it does not check for any
      condition like placing the pointer beyond the end of file
   */
-  private void seekCurrNode() throws IOException
+  private long currNodePos()
   {
-    file.seek(FILE_HDR_SIZE + (nodeIndex * NODE_SIZE));
+    return FILE_HDR_SIZE + (nodeIndex * NODE_SIZE);
   }
-  /**seek the specified node*/
-  private void seekNode(long nodeIdx) throws IOException
+  /**position of the specified node*/
+  private long nodePos(long nodeIdx)
   {
-    file.seek(FILE_HDR_SIZE + (nodeIdx * NODE_SIZE));
+    return FILE_HDR_SIZE + (nodeIdx * NODE_SIZE);
   }
 
-  /**Seek the last element of the node. No checking*/
-  private void seekLastElement() throws IOException
+  /**position of the last element of the node. No checking*/
+  private long lastElementPos()
   {
-    file.seek(FILE_HDR_SIZE + (nodeIndex * NODE_SIZE)
-              + (NODE_HDR_SIZE) +(elementSize * totalElements));
+    return FILE_HDR_SIZE + (nodeIndex * NODE_SIZE)
+      + (NODE_HDR_SIZE) +(elementSize * totalElements);
   }
-  /**seek the specified element.No checking*/
-  private void seekElement(int elmtIndex) throws IOException
+  /**position of the specified element.No checking*/
+  private long elementPos(int elmtIndex)
   {
-    file.seek(FILE_HDR_SIZE + (nodeIndex * NODE_SIZE)
-              + (NODE_HDR_SIZE) + (elementSize * elmtIndex));
+    return FILE_HDR_SIZE + (nodeIndex * NODE_SIZE)
+      + (NODE_HDR_SIZE) + (elementSize * elmtIndex);
   }
-  /**seek the specified element's pointer.No checking*/
-  private void seekElementPtr(int elmtIndex) throws IOException
+  /**position of the specified element's pointer.No checking*/
+  private long elementPtrPos(int elmtIndex)
   {
-    file.seek(FILE_HDR_SIZE + (nodeIndex * NODE_SIZE)
-              + (NODE_HDR_SIZE) + (elementSize * elmtIndex)
-              + Rect.sizeInBytes());
+    return FILE_HDR_SIZE + (nodeIndex * NODE_SIZE)
+      + (NODE_HDR_SIZE) + (elementSize * elmtIndex)
+      + Rect.sizeInBytes();
   }
   public int getElementType()
   {
@@ -697,7 +694,7 @@ public Object clone()
     throws IOException, NodeWriteException
   {
     if(fileHdr.isWriteThr())
-      RTree.chdNodes.remove(fileName,nodeIndex);
+      fileHdr.getCachedNodes().remove(fileName,nodeIndex);
     if(fileHdr.isWriteThr()){
       ByteArrayOutputStream bs = new ByteArrayOutputStream(FILE_HDR_SIZE);
       DataOutputStream ds =  new DataOutputStream(bs);
@@ -709,8 +706,7 @@ public Object clone()
       bs.flush();
       ds.flush();
       //write to the file
-      seekNode(nodeIdx);
-      file.write(bs.toByteArray());
+      fileHdr.write(nodePos(nodeIdx), bs.toByteArray());
       setDirty(false);
     }else
       setDirty(true);
@@ -729,7 +725,7 @@ public Object clone()
     throws IOException, NodeWriteException
   {
     if(fileHdr.isWriteThr())
-      RTree.chdNodes.remove(fileName,nodeIndex);
+      fileHdr.getCachedNodes().remove(fileName,nodeIndex);
     if(fileHdr.isWriteThr()){
       ds.writeInt(totElmt);//total elements
       ds.writeLong(prnt);//parent
@@ -754,18 +750,22 @@ public Object clone()
   }
   private void refreshNode()//see wherever it is called from for writethr
     throws IOException
+  {
+    //read the whole node, for a memory mapped file it is a view of the page
+    readNode(fileHdr.read(currNodePos(), NODE_SIZE));
+  }
+  /**
+     Reads the header and the elements of the node from the page <code>ds</code>.
+  */
+  void readNode(ByteBuffer ds)
+    throws IOException
   {
     try{
-      byte[] data = new byte[NODE_SIZE];
-      seekCurrNode();
-      //read the whole node
-      file.read(data);
       //get the header details into the variables
-      DataInputStream ds = new DataInputStream(new ByteArrayInputStream(data));
-      totalElements = ds.readInt();
-      parent = ds.readLong();//ds.readInt();
-      elementSize = ds.readInt();
-      elementType = ds.readInt();
+      totalElements = ds.getInt();
+      parent = ds.getLong();//ds.getInt();
+      elementSize = ds.getInt();
+      elementType = ds.getInt();
       if(totalElements <= 0)//set local variable
         return;
       //  else
@@ -777,21 +777,20 @@ public Object clone()
       int minX,minY,maxX,maxY;
       for(int i=0; i< totalElements; i++){
         //read the points
-        minX = ds.readInt();
-        minY = ds.readInt();
-        maxX = ds.readInt();
-        maxY = ds.readInt();
+        minX = ds.getInt();
+        minY = ds.getInt();
+        maxX = ds.getInt();
+        maxY = ds.getInt();
         Rect rectangle = new Rect(minX,minY,maxX,maxY);
         nodeMBR.expandToInclude(rectangle);//remove
         if(elementType == LEAF_NODE){// modified see [1]
-          long ptr = ds.readLong();
+          long ptr = ds.getLong();
           elements[i] = new LeafElement(rectangle,ptr);
         }else if(elementType == NONLEAF_NODE){//if non leaf type then...
-          long nodePtr = ds.readLong();
+          long nodePtr = ds.getLong();
           elements[i] = new NonLeafElement(rectangle,nodePtr);
         }
       }
-      ds.close();
     }
     catch(Exception e){
       throw new IOException("Node.refreshNode : Can't read from node header " + e.getMessage());
@@ -825,7 +824,7 @@ public Object clone()
       throw new NodeEmptyException("Node.getBestFitElement : Node does not have any elements");
     }
     if(fileHdr.isWriteThr())
-      RTree.chdNodes.remove(fileName,nodeIndex);
+      fileHdr.getCachedNodes().remove(fileName,nodeIndex);
     Element retElmt;//initialize with first element
     int area;
 
@@ -889,7 +888,7 @@ public Object clone()
     if((totalElements < MAX) || (elmtM1.getElementType() != elementType))
       throw new RTreeException("Node.splitNode: Node is not full or new element is of wrong type");
     if(fileHdr.isWriteThr())
-      RTree.chdNodes.remove(fileName,nodeIndex);
+      fileHdr.getCachedNodes().remove(fileName,nodeIndex);
     try{
       int rem = totalElements+1;//no. of elements remaining + the new element
       Element[] elmtPlusOne = new Element[rem];
@@ -914,8 +913,8 @@ public Object clone()
         nodeA = new Node(file,fileName,parent,elmtType,fileHdr);
         nodeB = new Node(file,fileName,parent,elmtType,fileHdr);
       }else{
-        nodeA = RTree.chdNodes.getNode(file,fileName,parent,elmtType,fileHdr);
-        nodeB = RTree.chdNodes.getNode(file,fileName,parent,elmtType,fileHdr);
+        nodeA = fileHdr.getCachedNodes().getNode(file,fileName,parent,elmtType,fileHdr);
+        nodeB = fileHdr.getCachedNodes().getNode(file,fileName,parent,elmtType,fileHdr);
       }
       nodeA.insertElement(elmtPlusOne[seeds[0]]);
       nodeB.insertElement(elmtPlusOne[seeds[1]]);
@@ -1053,9 +1052,9 @@ public Object clone()
         if(fileHdr.isWriteThr())
           parentN = new Node(file,fileName,parent,fileHdr);
         else
-          parentN = RTree.chdNodes.getNode(file,fileName,parent,fileHdr);
+          parentN = fileHdr.getCachedNodes().getNode(file,fileName,parent,fileHdr);
         if(fileHdr.isWriteThr())
-          RTree.chdNodes.remove(fileName,parent);
+          fileHdr.getCachedNodes().remove(fileName,parent);
         //get the parent element of nodes[0]
         int parentElmtIndex = parentN.getElementIndex(nodeIndex);
         parentN.modifyElement(parentElmtIndex, nodeA.getNodeIndex());
@@ -1233,7 +1232,7 @@ public Object clone()
     if(elmt.getElementType() != elementType)
       throw new  IllegalValueException("Node.modifyElmtMBR : Element of wrong type");
     if(fileHdr.isWriteThr())
-      RTree.chdNodes.remove(fileName,nodeIndex);
+      fileHdr.getCachedNodes().remove(fileName,nodeIndex);
     if(fileHdr.isWriteThr()){
       ByteArrayOutputStream bs = new ByteArrayOutputStream(elementSize);
       DataOutputStream ds =  new DataOutputStream(bs);
@@ -1246,8 +1245,7 @@ public Object clone()
       bs.flush();
       ds.flush();
       //write to the file
-      seekElement(index);
-      file.write(bs.toByteArray());
+      fileHdr.write(elementPos(index), bs.toByteArray());
       setDirty(false);
     }else
       setDirty(true);
@@ -1274,7 +1272,7 @@ public Object clone()
       }
     }
     if(fileHdr.isWriteThr())
-      RTree.chdNodes.remove(fileName,nodeIndex);
+      fileHdr.getCachedNodes().remove(fileName,nodeIndex);
     if(fileHdr.isWriteThr()){
       ByteArrayOutputStream bs = new ByteArrayOutputStream(LONG_SIZE);
       DataOutputStream ds =  new DataOutputStream(bs);
@@ -1282,8 +1280,7 @@ public Object clone()
       bs.flush();
       ds.flush();
       //write to the file
-      seekElementPtr(index);
-      file.write(bs.toByteArray());
+      fileHdr.write(elementPtrPos(index), bs.toByteArray());
       setDirty(false);
     }
     else
@@ -1300,7 +1297,7 @@ public Object clone()
     if((index > totalElements) || (index < 0))
       throw new IllegalValueException("Node.modifyElmtMBR : index out of bound or MBR is null");
     if(fileHdr.isWriteThr())
-      RTree.chdNodes.remove(fileName,nodeIndex);
+      fileHdr.getCachedNodes().remove(fileName,nodeIndex);
     if(fileHdr.isWriteThr()){
       ByteArrayOutputStream bs = new ByteArrayOutputStream(Rect.sizeInBytes());
       DataOutputStream ds =  new DataOutputStream(bs);
@@ -1311,8 +1308,7 @@ public Object clone()
       bs.flush();
       ds.flush();
       //write to the file
-      seekElement(index);
-      file.write(bs.toByteArray());
+      fileHdr.write(elementPos(index), bs.toByteArray());
       setDirty(false);
     }else
       setDirty(true);
@@ -1365,7 +1361,7 @@ public Object clone()
     if(prnt == NOT_DEFINED)//if this is the new root then update the file hdr
       fileHdr.writeFileHeader(fileHdr.totalNodes,nodeIndex);
     if(fileHdr.isWriteThr())
-      RTree.chdNodes.remove(fileName,nodeIndex);
+      fileHdr.getCachedNodes().remove(fileName,nodeIndex);
     writeNodeHeader(nodeIndex,totalElements,prnt,elementSize,elementType);
   }
   /**
@@ -1430,7 +1426,7 @@ public String toString()
     throws NodeWriteException
   {
     setDirty(false);//this is intentional
-    RTree.chdNodes.remove(fileName,nodeIndex);//we do not check for writeThr here
+    fileHdr.getCachedNodes().remove(fileName,nodeIndex);//we do not check for writeThr here
     try{
       fileHdr.push(nodeIndex);
     }catch(StackOverflowException e){
@@ -11,7 +11,10 @@
 //Lesser General Public License for more details.
 package rtree;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 /**
    Modified again on 9/1/2003
    This class can now be used Pack rtrees at run time i.e an rtree object can now be packed and later used
@@ -21,21 +24,79 @@ import java.util.*;
    <br>Pack is a special utility class. This class can also be used to maintain
    a R-Tree after many insertions and deletions.(Just like defragmentation
    in windows).
-   <p><b> Never create more than one instance of this class.
-   <br>Never run the methods of this class in any other thread except the main
-   thread and make sure it is the only thread running.
-   <br>Positively remember to reinitialise all the rtree objects after you
+   <p>The packed tree is written straight to the new file, its levels are sorted and written in parallel.
+   Different trees may be packed at the same time from different threads.
+   <p>Two packings are available: <code>STR</code> (Sort-Tile-Recursive) and <code>HILBERT</code> which cuts
+   the elements sorted along the Hilbert curve of their centres into nodes. Hilbert packing gives less
+   overlapping nodes for long and thin rectangles (roads, coastlines).
+   <p>The packed tree may be written in the compact read only format of <code>CompactNodeFile</code>.
+   <p><b>Positively remember to reinitialise all the rtree objects after you
    call <code>packTree</code>.</b>
    @author Prachuryya Barua
 */
 public class Pack
 {
-  public Pack(){};
+  /**Sort-Tile-Recursive packing*/
+  public static final int STR = 0;
+  /**Hilbert curve packing*/
+  public static final int HILBERT = 1;
+  /**bits of a Hilbert curve coordinate*/
+  private static final int HILBERT_ORDER = 16;
+  /**nodes written by one task*/
+  private static final int NODES_PER_TASK = 256;
+
+  private final int strategy;
+  private final boolean compact;
+
+  /**
+     Writes a node of the packed tree from the elements <code>from</code> - <code>to</code>.
+  */
+  interface NodeWriter
+  {
+    /**
+       @return the element of the new node for the upper level
+    */
+    Element writeNode(Element[] elmts, int from, int to, long nodeIndex)
+      throws Exception;
+  }
+
+  public Pack()
+  {
+    this(STR);
+  }
+  /**
+     @param strategy <code>STR</code> or <code>HILBERT</code>
+  */
+  public Pack(int strategy)
+  {
+    this(strategy, false);
+  }
+  /**
+     @param strategy <code>STR</code> or <code>HILBERT</code>
+     @param compact whether the nodes are written in the compact format (see <code>CompactNodeFile</code>).
+     A compact tree is much smaller but it is read only, don't use it for trees which are modified after
+     packing.
+  */
+  public Pack(int strategy, boolean compact)
+  {
+    if(strategy != STR && strategy != HILBERT)
+      throw new IllegalArgumentException("Pack.Pack: unknown strategy " + strategy);
+    this.strategy = strategy;
+    this.compact = compact;
+  }
+  public int getStrategy()
+  {
+    return strategy;
+  }
+  public boolean isCompact()
+  {
+    return compact;
+  }
 
   /**
      Added this new method that takes a list of <code>Element</code>s and builds a
   */
-  public synchronized int packTree(List elmts, String newFile)
+  public int packTree(List elmts, String newFile)
   {
     try{
       if(elmts.size() <= Node.MAX){
@@ -67,7 +128,7 @@ public class Pack
      file is not created and the old file is left untouched,
      <br> Greater than zero if all fail.
   */
-  public synchronized int packTree(RTree rtree,String newFile)
+  public int packTree(RTree rtree,String newFile)
   {
     try{
       if(rtree == null)
@@ -88,42 +149,26 @@ public class Pack
     try{
       //long t = System.currentTimeMillis();
       //rtree.flush();
-      File tmpPckFile = File.createTempFile("pack",null);
-      RandomAccessFile rFile = new RandomAccessFile(tmpPckFile.getAbsolutePath(),"rw");
-
       if(newFile.equalsIgnoreCase(rtree.getFileName())){//we need a write lock
         rtree.getFileHdr().lockWrite();
       }
       /*the following is required as we may pack an existing tree.. until we find a way to remove nodes of
         a particular rtree*/
-      RTree.chdNodes.removeAll();
-      //rtree.getFileHdr().getFile().getFD().sync();
+      rtree.getFileHdr().getCachedNodes().removeAll();
       if(elmts.length <= Node.MAX)//change this for the first method
         return(1);
       System.out.println("Pack.packTree : Size of elmts: "+ elmts.length);
 
-      packRec(rFile,tmpPckFile,elmts,elmts.length);
-
-      //craete the new file
+      //craete the new file, an open file of the old tree (same name) keeps its own copy
       File fo = new File(newFile);
       //delete the new file if it exists !!
-      if(fo.exists()){
+      if(fo.exists())
         fo.delete();
-        fo.createNewFile();
-      }
-      //overwrite the old rtree file with the temp file
-      FileInputStream fis=new FileInputStream(tmpPckFile);
-      FileOutputStream fos=new FileOutputStream(fo);
-      byte b[]=new byte[BUFFER_SIZE];
-      int i;
-      while((i=fis.read(b))!=-1){
-        fos.write(b, 0, i);
-      }
-      fos.close();
-      fis.close();
-      rFile.close();
-      if (!tmpPckFile.delete()) {
-    	  tmpPckFile.deleteOnExit();
+      RandomAccessFile rFile = new RandomAccessFile(fo,"rw");
+      try{
+        writePckFile(rFile, elmts);
+      }finally{
+        rFile.close();
       }
       //System.out.println("Pack.packTree : packing took " + (System.currentTimeMillis() - t));
       return(0);
@@ -150,94 +195,258 @@ public class Pack
       }//synchronized
     }
   }
-  private void packRec(RandomAccessFile rFile,File tmpPckFile, Element[] elmts,int length)
+  /**
+     Writes all the levels of the packed tree, the leaves first and the root last. The nodes are written
+     straight to the memory mapped file, the parent of a node is filled in when the upper level is written.
+  */
+  private void writePckFile(RandomAccessFile rFile, Element[] elmts)
+    throws Exception
+  {
+    int totalNodes = 0;
+    for(int length = elmts.length; length > 1; length = levelNodes(length))
+      totalNodes += levelNodes(length);
+    if(compact){
+      CompactNodeFile.Writer writer = new CompactNodeFile.Writer(rFile, totalNodes);
+      writeLevels(writer, elmts);
+      writer.finish();
+      return;
+    }
+    long fileLength = Node.FILE_HDR_SIZE + (long)totalNodes * Node.NODE_SIZE;
+    rFile.setLength(fileLength);
+    //file header, the free node list is empty
+    rFile.seek(0);
+    rFile.writeInt(totalNodes);
+    rFile.writeLong(totalNodes - 1);//the root is the last node
+    rFile.writeInt(Node.NOT_DEFINED);
+    final MappedNodeFile mapped = new MappedNodeFile(rFile);
+    try{
+      writeLevels(new NodeWriter()
+        {
+          public Element writeNode(Element[] elmts, int from, int to, long nodeIndex)
+            throws Exception
+          {
+            return Pack.writeNode(mapped, elmts, from, to, nodeIndex);
+          }
+        }, elmts);
+    }finally{
+      mapped.close(fileLength);
+    }
+  }
+  private void writeLevels(NodeWriter writer, Element[] elmts)
     throws Exception
   {
+    Element[] level = elmts;
+    int length = elmts.length;
+    int firstNode = 0;
+    while(length > 1){
+      level = packLevel(writer, level, length, firstNode);
+      firstNode += level.length;
+      length = level.length;
+    }
+  }
+  /**
+     Sort-Tile-Recursive for one level: the elements are sorted on X, cut into vertical slices, each slice is
+     sorted on Y and cut into nodes. Slices are sorted and written in parallel.
+     @return elements of the new nodes in the order of their indices
+  */
+  private Element[] packLevel(final NodeWriter writer, final Element[] elmts, int length,
+                              int firstNode)
+    throws Exception
+  {
+    if(strategy == HILBERT)
+      return packHilbertLevel(writer, elmts, length, firstNode);
     //P the no. of leaf nodes - ceil(objects/max objects per node)
-    Double temp = new Double(Node.MAX);//temp
-    temp = new Double(Math.ceil(length/temp.doubleValue()));
-    //int P = temp.intValue();//leaves
+    int P = (length + Node.MAX - 1) / Node.MAX;
     //no. of vertical slices
-    temp = new Double(Math.ceil(Math.sqrt(temp.doubleValue())));
-    int S = temp.intValue();
-    //System.out.println("total slices: "+S);
-    Slice sls[] =  new Slice[S];
-
+    int S = (int)Math.ceil(Math.sqrt(P));
     //sort all the rectangles on X axis
-    NonLeafElement.twoWayMerge(elmts,0,length-1,0);
-
-    //divide into slices
-    int start = 0;
-    int end;
-    for(int i=0; i<S; i++){
-      if((start + (S*Node.MAX)) <= length)
-        end = start+((S*Node.MAX)-1);
-      else
-        end = length - 1;
-      sls[i] = new Slice(start,end);
-      start = end+1;
-    }
-    //sort each slice on Y axis and write to file
-    for(int i=0; i<S; i++)
-      NonLeafElement.twoWayMerge(elmts,sls[i].start,sls[i].end,1);
-    int newLength = writePckFile(rFile,tmpPckFile,elmts,sls);
-    if(newLength == 1)//last insertion was a root
-      return;
-    packRec(rFile,tmpPckFile,elmts,newLength);
+    sort(elmts, 0, length, 0, true);
+    final Element[] next = new Element[levelNodes(length)];
+    List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(S);
+    int nodeIdx = 0;
+    for(int start = 0; start < length; start += S*Node.MAX){
+      final int from = start;
+      final int to = Math.min(length, start + S*Node.MAX);
+      final int firstSliceNode = nodeIdx;
+      final long nodeOffset = firstNode;
+      tasks.add(new RecursiveAction()
+        {
+          @Override
+          protected void compute()
+          {
+            try{
+              //sort the slice on Y axis and write to file
+              sort(elmts, from, to, 1, false);
+              int n = firstSliceNode;
+              for(int i = from; i < to; i += Node.MAX, n++)
+                next[n] = writer.writeNode(elmts, i, Math.min(to, i + Node.MAX), nodeOffset + n);
+            }catch(Exception e){
+              throw new RuntimeException(e);
+            }
+          }
+        });
+      nodeIdx += (to - from + Node.MAX - 1) / Node.MAX;
+    }
+    ForkJoinTask.invokeAll(tasks);
+    return next;
   }
   /**
-     Method that handles the low level details of nodes, leaves, file headers etc.
-     It writes the details to the rtree file.
-     @return the no. of new leaf elements created. The element themselves are in
-     the 'elmts' array.
+     Hilbert packing of one level: the elements are sorted on the Hilbert value of their centres and cut
+     into nodes in that order. Nodes are written in parallel.
+     @return elements of the new nodes in the order of their indices
   */
-  private int writePckFile(RandomAccessFile rFile,File tmpPckFile,
-                           Element[] elmts,Slice[] sls)
+  private Element[] packHilbertLevel(final NodeWriter writer, final Element[] elmts, final int length,
+                                     final int firstNode)
     throws Exception
   {
-    FileHdr hdr = new FileHdr(Node.FREE_LIST_LIMIT,tmpPckFile.getAbsolutePath());
-    hdr.setBufferPolicy(true);
-    int length;
-    Double totNodes;//total nodes for the slice
-    int netNodes = 0;// !?!!
-    int l=0;//the position on to which the old elmt. would be replaced
-    for(int i=0; i<sls.length; i++){//for each slice
-      //cal. the length of this slice
-      length = sls[i].end - sls[i].start + 1;
-      //calculate the no. of new nodes for the slice
-      totNodes = new Double(length);
-      totNodes= new Double(Math.ceil(totNodes.doubleValue()/Node.MAX));
-      netNodes += totNodes.intValue();
-      //make nodes of the elements in the slice
-      for(int j=0; j<totNodes.intValue(); j++){//loop for each new node
-        Node node = new Node(rFile,tmpPckFile.getAbsolutePath(), Node.NOT_DEFINED,
-                             elmts[sls[i].start].getElementType(), hdr);
-        //add elements to the node
-        ArrayList list = new ArrayList(Node.MAX);
-        for(int k=0; (k<Node.MAX) && (sls[i].start <= sls[i].end); k++){
-          //node.insertElement(elmts[sls[i].start++]);
-          list.add(elmts[sls[i].start++]);
+    sortHilbert(elmts, length);
+    final Element[] next = new Element[levelNodes(length)];
+    List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+    for(int n = 0; n < next.length; n += NODES_PER_TASK){
+      final int fromNode = n;
+      final int toNode = Math.min(next.length, n + NODES_PER_TASK);
+      tasks.add(new RecursiveAction()
+        {
+          @Override
+          protected void compute()
+          {
+            try{
+              for(int k = fromNode; k < toNode; k++)
+                next[k] = writer.writeNode(elmts, k * Node.MAX, Math.min(length, (k + 1) * Node.MAX),
+                                    firstNode + k);
+            }catch(Exception e){
+              throw new RuntimeException(e);
+            }
+          }
+        });
+    }
+    ForkJoinTask.invokeAll(tasks);
+    return next;
+  }
+  /**
+     Stable sort on the Hilbert value of the centres, the centres are scaled to the bounds of the level.
+  */
+  private static void sortHilbert(Element[] elmts, int length)
+  {
+    long minX = Long.MAX_VALUE, minY = Long.MAX_VALUE, maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE;
+    for(int i = 0; i < length; i++){
+      Rect r = elmts[i].getRect();
+      long x = ((long)r.getMinX() + r.getMaxX()) >> 1;
+      long y = ((long)r.getMinY() + r.getMaxY()) >> 1;
+      minX = Math.min(minX, x);
+      maxX = Math.max(maxX, x);
+      minY = Math.min(minY, y);
+      maxY = Math.max(maxY, y);
+    }
+    long side = (1 << HILBERT_ORDER) - 1;
+    long w = Math.max(1, maxX - minX);
+    long h = Math.max(1, maxY - minY);
+    long[] keys = new long[length];
+    for(int i = 0; i < length; i++){
+      Rect r = elmts[i].getRect();
+      long x = ((((long)r.getMinX() + r.getMaxX()) >> 1) - minX) * side / w;
+      long y = ((((long)r.getMinY() + r.getMaxY()) >> 1) - minY) * side / h;
+      //the value has 2*HILBERT_ORDER = 32 bits, shifted to keep the order of signed keys
+      keys[i] = ((hilbertValue((int)x, (int)y) - (1L << 31)) << 32) | i;
+    }
+    Arrays.parallelSort(keys);
+    Element[] sorted = new Element[length];
+    for(int i = 0; i < length; i++)
+      sorted[i] = elmts[(int)keys[i]];
+    System.arraycopy(sorted, 0, elmts, 0, length);
+  }
+  /**
+     @return distance of the point along the Hilbert curve filling the square of side 2^HILBERT_ORDER
+  */
+  static long hilbertValue(int x, int y)
+  {
+    int n = 1 << HILBERT_ORDER;
+    long d = 0;
+    for(int s = n / 2; s > 0; s /= 2){
+      int rx = (x & s) > 0 ? 1 : 0;
+      int ry = (y & s) > 0 ? 1 : 0;
+      d += (long)s * s * ((3 * rx) ^ ry);
+      //rotate the quadrant
+      if(ry == 0){
+        if(rx == 1){
+          x = n - 1 - x;
+          y = n - 1 - y;
         }
-        node.insertElement((Element[])list.toArray(new Element[list.size()]), true);
-
-        //create the new nonleaf element - always nonleaf
-        NonLeafElement nlf = new NonLeafElement(node.getNodeMBR(),node.getNodeIndex());
-
-        elmts[l++] = (NonLeafElement)nlf.clone();
+        int t = x;
+        x = y;
+        y = t;
       }
     }
-    return netNodes;
+    return d;
   }
-  /**An inner class for the packing method*/
-  class Slice
+  /**
+     Writes a node of the elements <code>from</code> - <code>to</code> and sets it as the parent of the
+     nodes the elements point to.
+     @return the new nonleaf element - always nonleaf
+  */
+  private static Element writeNode(MappedNodeFile mapped, Element[] elmts, int from, int to, long nodeIndex)
+    throws Exception
   {
-    int start;
-    int end;
-    Slice(int start,int stop)
-    {
-      this.start = start;
-      this.end = stop;
+    int elmtType = elmts[from].getElementType();
+    ByteBuffer page = mapped.read(Node.FILE_HDR_SIZE + nodeIndex * Node.NODE_SIZE, Node.NODE_SIZE);
+    page.putInt(to - from);
+    page.putLong(Node.NOT_DEFINED);//parent, written with the upper level
+    page.putInt(elmtType == Node.LEAF_NODE ? LeafElement.sizeInBytes() : NonLeafElement.sizeInBytes());
+    page.putInt(elmtType);
+    int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+    for(int i = from; i < to; i++){
+      Rect r = elmts[i].getRect();
+      page.putInt(r.getMinX());
+      page.putInt(r.getMinY());
+      page.putInt(r.getMaxX());
+      page.putInt(r.getMaxY());
+      page.putLong(elmts[i].getPtr());
+      minX = Math.min(minX, r.getMinX());
+      minY = Math.min(minY, r.getMinY());
+      maxX = Math.max(maxX, r.getMaxX());
+      maxY = Math.max(maxY, r.getMaxY());
+      if(elmtType == Node.NONLEAF_NODE)//update the children's parent
+        mapped.read(Node.FILE_HDR_SIZE + elmts[i].getPtr() * Node.NODE_SIZE + Node.INTEGER_SIZE,
+                    Node.LONG_SIZE).putLong(nodeIndex);
+    }
+    return new NonLeafElement(new Rect(minX, minY, maxX, maxY), nodeIndex);
+  }
+  /**
+     @return the no. of nodes of a level with <code>length</code> elements
+  */
+  private int levelNodes(int length)
+  {
+    if(strategy == HILBERT)
+      return (length + Node.MAX - 1) / Node.MAX;
+    int S = (int)Math.ceil(Math.sqrt((length + Node.MAX - 1) / Node.MAX));
+    int nodes = 0;
+    for(int start = 0; start < length; start += S*Node.MAX)
+      nodes += (Math.min(length - start, S*Node.MAX) + Node.MAX - 1) / Node.MAX;
+    return nodes;
+  }
+  /**
+     Stable sort of the elements on the mid value in the given dimension. The mid values are sorted
+     as primitives together with the positions of the elements.
+     <br>The mid value is calculated in long. The old merge sort summed the coordinates in int, which
+     overflowed for x (or y) above 2^30 and put such elements before the others, so the layout of packed
+     trees east of the prime meridian differs from the one of the old sort.
+  */
+  private static void sort(Element[] elmts, int from, int to, int on, boolean parallel)
+  {
+    long[] keys = new long[to - from];
+    for(int i = from; i < to; i++){
+      Rect r = elmts[i].getRect();
+      long mid = on == 0 ? ((long)r.getMinX() + r.getMaxX()) >> 1 : ((long)r.getMinY() + r.getMaxY()) >> 1;
+      keys[i - from] = (mid << 32) | (i - from);
     }
+    if(parallel)
+      Arrays.parallelSort(keys);
+    else
+      Arrays.sort(keys);
+    Element[] sorted = new Element[keys.length];
+    for(int i = 0; i < keys.length; i++)
+      sorted[i] = elmts[from + (int)keys[i]];
+    System.arraycopy(sorted, 0, elmts, from, sorted.length);
   }
   /**A wrapper class for int*/
   class Int
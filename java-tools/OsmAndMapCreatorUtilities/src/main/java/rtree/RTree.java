@@ -13,6 +13,7 @@ package rtree;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -43,7 +44,8 @@ import rtree.join.SweepLine;
  * <p><b>8:</b>For developers: Always obtain a lock from the <code>lockRead</code> or
  * <code>lockWrite</code> method before going into a <code>public</code> method of the
  * <code>RTree</code> class. Unlock by calling the <code>unlock</code> method.
- * See any existing method to understand the mechanism.
+ * See any existing method to understand the mechanism. <code>lockRead</code> doesn't lock a read only
+ * tree (see <code>setReadOnly</code>), unlock only if it returned <code>true</code>.
  * <p><b>9:</b>To adjust the cache buffer size, see the <code>Node</code> class documentation.
  * @author Prachuryya Barua
  ******************************************************************************************************/
@@ -53,10 +55,11 @@ public class RTree //the tree that would be made
      of the fact that this package was developed on a Linux(RH7.0) platform.
   */
   protected String fileName;
-  static Map fileList;//the no. of files open
+  static Map<String, Header> fileList = Collections.synchronizedMap(new HashMap<String, Header>());//the no. of files open
   // static for the other way
   protected FileHdr fileHdr;
-  public static CachedNodes chdNodes;
+  /**Cache of the nodes of this tree file, shared by all the <code>RTree</code> objects of the file*/
+  protected CachedNodes chdNodes;
   /**Inner class for the fileList vector - A List of files*/
   class Header
   {
@@ -69,29 +72,53 @@ public class RTree //the tree that would be made
     }
   }
   public static void clearCache(){
-	  chdNodes = new CachedNodes();
-	  fileList = new HashMap();
-	  CachedNodes.clearFileNamesMap();
+	  fileList.clear();
+  }
+
+  /**
+     Forgets the header and the cached nodes of the file, so that the next <code>RTree</code> with the same
+     name reads the file again. Unlike <code>clearCache</code> it doesn't affect trees of other files.
+  */
+  public static void releaseFile(String fileName)
+  {
+    fileList.remove(fileName);
+  }
+
+  /**
+     Closes the tree file and releases it. Nodes are not flushed, call <code>flush</code> before.
+  */
+  public void close()
+    throws IOException
+  {
+    fileHdr.close();
+    releaseFile(fileName);
   }
 
   public RTree(String fileName)
     throws  RTreeException
+  {
+    this(fileName, CachedNodes.DEFAULT_CACHE_BYTES, false);
+  }
+
+  /**
+     @param cacheBytes byte budget of the node cache of the file
+     @param memoryMapped whether the nodes of the file are memory mapped
+     Both are used only when the file is opened, other <code>RTree</code> objects of an open file share its settings.
+  */
+  public RTree(String fileName, long cacheBytes, boolean memoryMapped)
+    throws  RTreeException
   {
     try{
       this.fileName = fileName;
-      if(fileList == null)
-        fileList = new HashMap();
       synchronized(fileList){//this may give problem
-        if(fileList.get(fileName) != null){
-          fileHdr = ((Header)fileList.get(fileName)).flHdr;
-          return;
+        if(fileList.get(fileName) == null){
+          //a new file
+          fileList.put(fileName, new Header(new FileHdr(Node.FREE_LIST_LIMIT, fileName, cacheBytes, memoryMapped),
+                                            fileName));
         }
-        //a new file
-        fileList.put(fileName, new Header(new FileHdr(Node.FREE_LIST_LIMIT, fileName),fileName));
-        fileHdr = ((Header)fileList.get(fileName)).flHdr;
-        //the cache of nodes - one cache for all the tree files.
-        if(chdNodes == null)
-          chdNodes = new CachedNodes();
+        fileHdr = fileList.get(fileName).flHdr;
+        //the cache of nodes - one cache per tree file.
+        chdNodes = fileHdr.getCachedNodes();
       }
     }
     catch(Exception e){
@@ -105,7 +132,7 @@ public class RTree //the tree that would be made
   void updateHdr()
     throws RTreeException, IOException, FileNotFoundException, NodeWriteException
   {
-    Header tmp = (Header)fileList.get(fileName);
+    Header tmp = fileList.get(fileName);
     if(tmp != null){
       //chdNodes.removeAll();//XXX check this out
       fileHdr.update(fileName);
@@ -135,6 +162,8 @@ public class RTree //the tree that would be made
   public void flush()
     throws RTreeException
   {
+    if(fileHdr.isReadOnly())
+      return;
     fileHdr.lockWrite();
     try{
       fileHdr.flush();
@@ -145,6 +174,30 @@ public class RTree //the tree that would be made
       fileHdr.unlock();
     }
   }
+  /**
+     Flushes the tree and makes it read only, it must not be modified any more. Queries of a read only
+     tree don't take the read lock and the nodes are read with positional reads, so any number of
+     threads query it in parallel. Meant for packed trees which are only queried afterwards.
+  */
+  public void setReadOnly()
+    throws RTreeException
+  {
+    if(isReadOnly())//compact trees are read only when opened
+      return;
+    flush();
+    fileHdr.lockWrite();
+    try{
+      fileHdr.setReadOnly();
+    }catch(Exception e){
+      throw new RTreeException("RTree.setReadOnly: " + e.getMessage());
+    }finally{
+      fileHdr.unlock();
+    }
+  }
+  public boolean isReadOnly()
+  {
+    return fileHdr.isReadOnly();
+  }
   /**
    * Adjust Tree from <b>Guttman the Great</b>.
    * @param Node[] The nodes that was has the new element and also the element
@@ -164,10 +217,10 @@ public class RTree //the tree that would be made
           Node newRoot;
           if(fileHdr.isWriteThr())
             newRoot = new Node(fileHdr.getFile(),fileName, slotIndex, Node.NONLEAF_NODE,
-                               ((Header)fileList.get(fileName)).flHdr);
+                               fileHdr);
           else
             newRoot = chdNodes.getNode(fileHdr.getFile(),fileName, slotIndex, Node.NONLEAF_NODE,
-                                       ((Header)fileList.get(fileName)).flHdr, nodes[0]);
+                                       fileHdr, nodes[0]);
           NonLeafElement branchA = new NonLeafElement(nodes[0].getNodeMBR(),nodes[0].getNodeIndex());
           NonLeafElement branchB = new NonLeafElement(nodes[1].getNodeMBR(),nodes[1].getNodeIndex());
           newRoot.insertElement(branchB);
@@ -443,7 +496,7 @@ public class RTree //the tree that would be made
   public List overlaps(Rect rect)
     throws  RTreeException,FileNotFoundException
   {
-    fileHdr.lockRead();
+    boolean locked = fileHdr.lockRead();
     //System.out.println("RTree.overlaps : in for thread " + Thread.currentThread().toString());
     long root;
     if(rect ==  null)
@@ -460,7 +513,8 @@ public class RTree //the tree that would be made
     }
     finally{
       //System.out.println("RTree.overlaps : out for thread " + Thread.currentThread().toString());
-      fileHdr.unlock();
+      if(locked)
+        fileHdr.unlock();
     }
   }
   /**
@@ -492,7 +546,7 @@ public class RTree //the tree that would be made
   public List overlapsSweep(Rect rect)
     throws  RTreeException,FileNotFoundException
   {
-    fileHdr.lockRead();
+    boolean locked = fileHdr.lockRead();
     long root;
     if(rect ==  null)
       throw new  RTreeException("RTree.overlaps: Rect is null");
@@ -505,7 +559,8 @@ public class RTree //the tree that would be made
       throw new  RTreeException("RTree.overlaps: "+e.getMessage());
     }
     finally{
-      fileHdr.unlock();
+      if(locked)
+        fileHdr.unlock();
     }
   }
   private List getRPostOvrlapSweep(Node node, Rect rect)
@@ -550,7 +605,7 @@ public class RTree //the tree that would be made
   public List nonDisjoint(Rect rect)
     throws  RTreeException,FileNotFoundException
   {
-    fileHdr.lockRead();
+    boolean locked = fileHdr.lockRead();
     long root;
     if(rect ==  null)
       throw new  RTreeException("RTree.nonDisjoint: Rect is null");
@@ -562,7 +617,8 @@ public class RTree //the tree that would be made
       throw new  RTreeException("RTree.nonDisjoint: "+e.getMessage());
     }
     finally{
-      fileHdr.unlock();
+      if(locked)
+        fileHdr.unlock();
     }
   }
   /**
@@ -602,7 +658,7 @@ public class RTree //the tree that would be made
   public List containedBy(Rect rect)
     throws  RTreeException,FileNotFoundException
   {
-    fileHdr.lockRead();
+    boolean locked = fileHdr.lockRead();
     long root;
     if(rect ==  null)
       throw new  RTreeException("RTree.containedBy: Rect is null");
@@ -614,7 +670,8 @@ public class RTree //the tree that would be made
       throw new  RTreeException("RTree.containedBy: "+e.getMessage());
     }
     finally{
-      fileHdr.unlock();
+      if(locked)
+        fileHdr.unlock();
     }
   }
   /**
@@ -655,7 +712,7 @@ public class RTree //the tree that would be made
     throws  RTreeException,
     FileNotFoundException
   {
-    fileHdr.lockRead();
+    boolean locked = fileHdr.lockRead();
     long root;
     if(rect ==  null)
       throw new  RTreeException("RTree.equal: Rect is null");
@@ -667,7 +724,8 @@ public class RTree //the tree that would be made
       throw new  RTreeException("RTree.equal: "+e.getMessage());
     }
     finally{
-      fileHdr.unlock();
+      if(locked)
+        fileHdr.unlock();
     }
   }
   /**
@@ -708,7 +766,7 @@ public class RTree //the tree that would be made
   public List meet(Rect rect)
     throws  RTreeException,FileNotFoundException
   {
-    fileHdr.lockRead();
+    boolean locked = fileHdr.lockRead();
     long root;
     if(rect ==  null)
       throw new  RTreeException("RTree.meet: Rect is null");
@@ -720,7 +778,8 @@ public class RTree //the tree that would be made
       throw new  RTreeException("RTree.meet: "+e.getMessage());
     }
     finally{
-      fileHdr.unlock();
+      if(locked)
+        fileHdr.unlock();
     }
   }
   /**
@@ -760,7 +819,7 @@ public class RTree //the tree that would be made
   public List contains(Rect rect)
     throws  RTreeException,FileNotFoundException
   {
-    fileHdr.lockRead();
+    boolean locked = fileHdr.lockRead();
     long root;
     if(rect ==  null)
       throw new  RTreeException("RTree.contains: Rect is null");
@@ -772,7 +831,8 @@ public class RTree //the tree that would be made
       throw new  RTreeException("RTree.contains: " +e.getMessage());
     }
     finally{
-      fileHdr.unlock();
+      if(locked)
+        fileHdr.unlock();
     }
   }
   /**
@@ -811,7 +871,7 @@ public class RTree //the tree that would be made
     throws  RTreeException, FileNotFoundException
   {
     //fileHdr.enter(Node.READ);
-    fileHdr.lockRead();
+    boolean locked = fileHdr.lockRead();
     //System.out.println("RTree.getAllElements : in for thread " + Thread.currentThread().toString());
     long root;
     root = fileHdr.getRootIndex();
@@ -825,7 +885,8 @@ public class RTree //the tree that would be made
     finally{
       //fileHdr.leave();
       //System.out.println("RTree.getAllElements : out for thread " + Thread.currentThread().toString());
-      fileHdr.unlock();
+      if(locked)
+        fileHdr.unlock();
     }
   }
   /**
@@ -865,7 +926,7 @@ public class RTree //the tree that would be made
   public void printTree()
     throws  RTreeException,FileNotFoundException
   {
-    fileHdr.lockRead();
+    boolean locked = fileHdr.lockRead();
     long root;
     root = fileHdr.getRootIndex();
     try{
@@ -875,7 +936,8 @@ public class RTree //the tree that would be made
       throw new  RTreeException("RTree.printTree: "+e.getMessage());
     }
     finally{
-      fileHdr.unlock();
+      if(locked)
+        fileHdr.unlock();
     }
   }
   /**
@@ -883,7 +945,7 @@ public class RTree //the tree that would be made
   */
   public Rect getTreeMBR()
   {
-    fileHdr.lockRead();
+    boolean locked = fileHdr.lockRead();
     long root;
     try{
       root = fileHdr.getRootIndex();
@@ -894,7 +956,8 @@ public class RTree //the tree that would be made
       return null;
     }
     finally{
-      fileHdr.unlock();
+      if(locked)
+        fileHdr.unlock();
     }
   }
   public void deleteAllElements()
@@ -959,7 +1022,7 @@ public class RTree //the tree that would be made
   public ABL[] nearestSearch(Point pt,long range,int n)
     throws  RTreeException, IllegalValueException
   {
-    fileHdr.lockRead();
+    boolean locked = fileHdr.lockRead();
     if((pt == null) || (range < 0) || (n <= 0))
       throw new  IllegalValueException("RTree.nearestSearch: Illegal arguments");
     try{
@@ -976,7 +1039,8 @@ public class RTree //the tree that would be made
       throw new RTreeException("RTree.nearestSearch: " +e.getMessage());
     }
     finally{
-      fileHdr.unlock();
+      if(locked)
+        fileHdr.unlock();
     }
   }
   /**
@@ -1095,7 +1159,7 @@ public class RTree //the tree that would be made
   public List nearestSearch(Point pt,long range)
     throws  RTreeException, IllegalValueException
   {
-    fileHdr.lockRead();
+    boolean locked = fileHdr.lockRead();
     if((pt == null) || (range < 0))
       throw new  IllegalValueException("RTree.nearestSearch: "
                                        +"Point null or int less than one");
@@ -1112,7 +1176,8 @@ public class RTree //the tree that would be made
       throw new  RTreeException("RTree.nearestSearch: " + e.getMessage());
     }
     finally{
-      fileHdr.unlock();
+      if(locked)
+        fileHdr.unlock();
     }
   }
   private List INNSearch(Node node, Point pt, List  nrstElements,long nrstDist)
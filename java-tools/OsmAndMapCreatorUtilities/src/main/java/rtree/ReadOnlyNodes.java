@@ -0,0 +1,81 @@
+//ReadOnlyNodes.java
+//
+//This library is free software; you can redistribute it and/or
+//modify it under the terms of the GNU Lesser General Public
+//License as published by the Free Software Foundation; either
+//version 2.1 of the License, or (at your option) any later version.
+//
+//This library is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//Lesser General Public License for more details.
+package rtree;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+/**
+   Nodes of a tree that is not modified any more (see <code>RTree.setReadOnly</code>).
+   <p>Nodes are read with positional reads of the file channel (or from the memory mapped pages), so no
+   lock is taken. The nodes of a compact tree are decoded from their records. The nodes are immutable and
+   shared by all the threads. The last nodes of the file are kept in a lock free array, for a packed tree
+   these are the upper levels with the root.
+*/
+class ReadOnlyNodes
+{
+  private final FileHdr fileHdr;
+  private final String fileName;
+  private final FileChannel channel;
+  private final long firstCached;
+  private final AtomicReferenceArray<ReadNode> cache;
+
+  ReadOnlyNodes(FileHdr fileHdr, String fileName, int cacheSize)
+  {
+    this.fileHdr = fileHdr;
+    this.fileName = fileName;
+    this.channel = fileHdr.getFile().getChannel();
+    int size = Math.max(0, Math.min(cacheSize, fileHdr.totalNodes));
+    firstCached = fileHdr.totalNodes - size;
+    cache = new AtomicReferenceArray<ReadNode>(size);
+  }
+  ReadNode getNode(long ndIndex)
+    throws IOException, NodeReadException
+  {
+    if(ndIndex < 0 || ndIndex >= fileHdr.totalNodes)
+      throw new NodeReadException("ReadOnlyNodes.getNode: nodeIndex is out of bound " + ndIndex);
+    int c = (int)(ndIndex - firstCached);
+    if(c >= 0){
+      ReadNode node = cache.get(c);
+      if(node != null)
+        return node;
+    }
+    ReadNode node = new ReadNode();
+    node.file = fileHdr.getFile();
+    node.fileName = fileName;
+    node.fileHdr = fileHdr;
+    node.nodeIndex = ndIndex;
+    node.elements = new Element[Node.MAX];
+    node.nodeMBR = new Rect();
+    if(fileHdr.isCompact())
+      fileHdr.getCompactNodes().readNode(node, ndIndex);
+    else
+      node.readNode(readPage(Node.FILE_HDR_SIZE + ndIndex * Node.NODE_SIZE));
+    node.sweepSort();
+    if(c >= 0)//another thread may have read it as well, any of the copies will do
+      cache.lazySet(c, node);
+    return node;
+  }
+  private ByteBuffer readPage(long pos)
+    throws IOException
+  {
+    if(fileHdr.isMemoryMapped())
+      return fileHdr.read(pos, Node.NODE_SIZE);
+    ByteBuffer b = ByteBuffer.allocate(Node.NODE_SIZE);
+    while(b.hasRemaining()){
+      if(channel.read(b, pos + b.position()) < 0)
+        break;//last node may be shorter
+    }
+    b.clear();
+    return b;
+  }
+}
@@ -15,6 +15,8 @@ import rtree.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
 	 A class to join two RTrees.
@@ -22,7 +24,8 @@ import java.util.List;
    Make another buffer just for this algorithm of 512 bytes (or should you?).
    It is best to have this method's own cache. Read the document well before deciding on it.
    FIXME:
-   1) This thing goes out of memory for large randomly generated trees.
+   1) This thing goes out of memory for large randomly generated trees (use a <code>JoinCallback</code>
+   instead of the list of <code>relate()</code>).
    2) The result for point objects are not correct. The extra check done at Rect class is not done at sweep line algorithm.
    3) Better documentation
 
@@ -35,6 +38,7 @@ public class Join
   private RTree ltTree = null;
   private RTree rtTree = null;
   private Pair p = null;
+  private int parallelLevels = 2;
   SweepLine spLine = new SweepLine();//our sweep line always return a pair of pointers
 
   /**
@@ -58,6 +62,17 @@ public class Join
       this.p = p;
   }
 
+  /**
+     Number of levels below the roots which are split in parallel tasks by
+     <code>relate(JoinCallback, ForkJoinPool)</code>, the pairs of subtrees below are joined by one thread.
+  */
+  public void setParallelLevels(int parallelLevels)
+  {
+    if(parallelLevels < 0)
+      throw new IllegalArgumentException("Join.setParallelLevels : levels less than zero");
+    this.parallelLevels = parallelLevels;
+  }
+
   /**
      Will return all the record pointers of the left tree that intersects with the right tree.
      At the moment I assume that the heights of the trees are same.
@@ -66,39 +81,127 @@ public class Join
   public List relate()
     throws JoinException
   {
+    final List vct = new ArrayList();
+    relate(new JoinCallback()
+      {
+        public void joined(Pair pair)
+        {
+          vct.add(pair);
+        }
+      });
+    return vct;
+  }
+  /**
+     Same as <code>relate()</code> but the pairs are passed to <code>callback</code> as they are found
+     instead of being collected in a list.
+  */
+  public void relate(JoinCallback callback)
+    throws JoinException
+  {
+    relate(callback, null);
+  }
+  /**
+     Joins the trees with the threads of <code>pool</code>. The join is split in tasks at the top
+     <code>parallelLevels</code> levels, each task joins a pair of intersecting subtrees. The pairs are
+     passed to <code>callback</code> from the threads of the pool in no particular order, so the callback
+     has to be thread safe. Both the trees should be read only (see <code>RTree.setReadOnly</code>) so
+     that the nodes are read without locks.
+     @param pool the pool of the join, the join is done by the calling thread if it is <code>null</code>.
+  */
+  public void relate(JoinCallback callback, ForkJoinPool pool)
+    throws JoinException
+  {
+    if(callback == null)
+      throw new IllegalArgumentException("Join.relate : callback null");
+    //lock the files
+    boolean ltLocked = ltTree.getFileHdr().lockRead();
+    boolean rtLocked = rtTree.getFileHdr().lockRead();
     try{
-      //lock the files
-      ltTree.getFileHdr().lockRead();
-      rtTree.getFileHdr().lockRead();
-      List vct = new ArrayList();
       long ltRoot = ltTree.getFileHdr().getRootIndex();
       long rtRoot = rtTree.getFileHdr().getRootIndex();
 
       /*We can't do anything when we do not have any mbrs in either of the trees*/
       if(ltRoot == Node.NOT_DEFINED || rtRoot == Node.NOT_DEFINED)
-        return vct;
+        return;
 
       Node ltRootNd = ltTree.getReadNode(ltRoot);
       Node rtRootNd = rtTree.getReadNode(rtRoot);
 
-      relateRec(ltRootNd, rtRootNd, ltRootNd.getNodeMBR().intersection(rtRootNd.getNodeMBR()), vct);
-      return vct;
+      if(pool == null)
+        relateRec(ltRootNd, rtRootNd, callback);
+      else
+        pool.invoke(new JoinTask(ltRootNd, rtRootNd, 0, callback));
     }catch(Exception e){
-      e.printStackTrace();
-      throw new JoinException("Join.intersectsInt : " + e.getMessage());
+      Throwable t = e;
+      while(t instanceof TaskException && t.getCause() != null)//rethrown by the pool with the cause
+        t = t.getCause();
+      t.printStackTrace();
+      throw new JoinException("Join.intersectsInt : " + t.getMessage());
     }finally{
-      ltTree.getFileHdr().lockRead();
-      rtTree.getFileHdr().lockRead();
+      if(ltLocked)
+        ltTree.getFileHdr().unlock();
+      if(rtLocked)
+        rtTree.getFileHdr().unlock();
+    }
+  }
+  /**
+     Joins a pair of nodes, the intersecting pairs of non leaf children are joined by subtasks.
+  */
+  private class JoinTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+    private final Node ltNode;
+    private final Node rtNode;
+    private final int level;
+    private final JoinCallback callback;
+
+    JoinTask(Node ltNode, Node rtNode, int level, JoinCallback callback)
+    {
+      this.ltNode = ltNode;
+      this.rtNode = rtNode;
+      this.level = level;
+      this.callback = callback;
+    }
+    protected void compute()
+    {
+      try{
+        if(level >= parallelLevels || ltNode.getElementType() != Node.NONLEAF_NODE ||
+           rtNode.getElementType() != Node.NONLEAF_NODE){
+          relateRec(ltNode, rtNode, callback);
+          return;
+        }
+        List pairs = sweep(ltNode, rtNode);
+        List<JoinTask> tasks = new ArrayList<JoinTask>(pairs.size());
+        for(int i=0; i<pairs.size(); i++){
+          PairElmt intPair = (PairElmt)pairs.get(i);
+          tasks.add(new JoinTask(ltTree.getReadNode(intPair.getLtPtr()), rtTree.getReadNode(intPair.getRtPtr()),
+                                 level + 1, callback));
+        }
+        invokeAll(tasks);
+      }catch(TaskException e){
+        throw e;
+      }catch(Exception e){
+        throw new TaskException(e);
+      }
+    }
+  }
+  /**
+     Carries the checked exceptions out of the join tasks.
+  */
+  private static class TaskException extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+    TaskException(Throwable cause)
+    {
+      super(cause);
     }
   }
   /**
      @param ltNode
      @param rtNode
-     @param ret
-     @param intsect The intersection between the two <code>Node</code>.
-     @param ret A <code>List</code> that would be filled with the pairs that intersect.
+     @param callback Gets the pairs that intersect.
   */
-  private void relateRec(Node ltNode, Node rtNode, Rect intsect, List ret)
+  private void relateRec(Node ltNode, Node rtNode, JoinCallback callback)
     throws Exception
   {
     if(ltNode == null || rtNode == null)
@@ -108,64 +211,66 @@ public class Join
 
     if(ltNode.getElementType() == Node.NONLEAF_NODE &&
        rtNode.getElementType() == Node.LEAF_NODE){//both sides are of different types
-      ret.addAll(joinMismatch(ltElmts, rtElmts, Join.LEFT));
+      joinMismatch(ltElmts, rtElmts, Join.LEFT, callback);
     }else if(ltNode.getElementType() == Node.LEAF_NODE &&
              rtNode.getElementType() == Node.NONLEAF_NODE){//both sides are of different types
-      ret.addAll(joinMismatch(rtElmts, ltElmts, Join.RIGHT));
+      joinMismatch(rtElmts, ltElmts, Join.RIGHT, callback);
     }else {//either both are leaf or both non-leaf
-      //this is where I remove elemensts which do no intersect with the intersection rectangle
-      ltElmts = filterRect(ltElmts, intsect);
-      rtElmts = filterRect(rtElmts, intsect);
-      List pairs = spLine.sortedIntersectionTest(ltElmts, rtElmts);//get the intersecting pairs
+      List pairs = sweep(ltNode, rtNode);//get the intersecting pairs
       for(int i=0; i<pairs.size(); i++){//for each pair
         PairElmt intPair = (PairElmt)pairs.get(i);//the intersecting pair at i
         if(intPair.getLtElmt() instanceof NonLeafElement &&
            intPair.getRtElmt() instanceof NonLeafElement){//both are non leaf elements
-          Node newLtNode = ltTree.getReadNode(intPair.getLtPtr());
-          Node newRtNode = rtTree.getReadNode(intPair.getRtPtr());
-          relateRec(newLtNode, newRtNode, newLtNode.getNodeMBR().intersection(newRtNode.getNodeMBR()),
-                    ret);
+          relateRec(ltTree.getReadNode(intPair.getLtPtr()), rtTree.getReadNode(intPair.getRtPtr()), callback);
         }else if(intPair.getLtElmt() instanceof LeafElement &&
                  intPair.getRtElmt() instanceof LeafElement){//LeafElement
-          ret.add(p.paired(intPair.getLtElmt(), intPair.getRtElmt()));
-          //System.out.println("Join.intersectRec with size of ret - leaf " + ret.size());
+          callback.joined(p.paired(intPair.getLtElmt(), intPair.getRtElmt()));
         }
       }//for
     }
   }
+  /**
+     Sweep line join of the elements of two nodes of the same type.
+     @return A <code>List</code> of <code>PairElmt</code> of elements that intersect.
+  */
+  private List sweep(Node ltNode, Node rtNode)
+    throws Exception
+  {
+    Rect intsect = ltNode.getNodeMBR().intersection(rtNode.getNodeMBR());
+    //this is where I remove elemensts which do no intersect with the intersection rectangle
+    Element[] ltElmts = filterRect(ltNode.getAllElements(), intsect);
+    Element[] rtElmts = filterRect(rtNode.getAllElements(), intsect);
+    return spLine.sortedIntersectionTest(ltElmts, rtElmts);
+  }
   /**
      Joins two nodes of different types.
      @param nlElmts non-leaf elements
      @param lfElmts leaf elements
      @param side The side of <code>nlElmts</code>. (Join.LEFT or Join.RIGHT)
-     @return Pair of joins between leaf and non leaf elements (after window query).
+     @param callback Gets the pairs between leaf and non leaf elements (after window query).
   */
-  private List joinMismatch(Element[] nlElmts, Element[] lfElmts, int side)
+  private void joinMismatch(Element[] nlElmts, Element[] lfElmts, int side, JoinCallback callback)
     throws Exception
   {
-    List ret = new ArrayList();
     for(int i=0; (i<nlElmts.length) && (nlElmts[i] != null); i++){//for each elmt in non-leaf
       for(int j=0; (j<lfElmts.length) &&(lfElmts[j] != null); j++){
         if(nlElmts[i].getRect().overlaps(lfElmts[j].getRect())){
           if(side == Join.LEFT)
-            ret.addAll(windowQuery(ltTree.getReadNode(nlElmts[i].getPtr()),
-                                   (LeafElement)lfElmts[j], side ));
+            windowQuery(ltTree.getReadNode(nlElmts[i].getPtr()), (LeafElement)lfElmts[j], side, callback);
           else//non leaf is the right tree
-            ret.addAll(windowQuery(rtTree.getReadNode(nlElmts[i].getPtr()),
-                                   (LeafElement)lfElmts[j], side ));
+            windowQuery(rtTree.getReadNode(nlElmts[i].getPtr()), (LeafElement)lfElmts[j], side, callback);
 
         }//if
       }//for leaf-elements - j
     }//for non-leaf-elements - i
-    return ret;
   }
 
   /**
    * This method actually performs a simple window query on <code>nlNode</code> (a non-leaf Node).
-   * Will return a <code>List</code> of <code>Pair</code>. The pair is made accordingly <code>side</code>.
+   * The pairs are passed to <code>callback</code>. The pair is made accordingly <code>side</code>.
    * @param side The side of <code>nlNode</code>.
    */
-  private List windowQuery(Node nlNode, LeafElement lfElmt, int side)
+  private void windowQuery(Node nlNode, LeafElement lfElmt, int side, JoinCallback callback)
     throws Exception
   {
     RTree nlTree = null;//the non leaf tree
@@ -173,24 +278,22 @@ public class Join
       nlTree = ltTree;
     else
       nlTree = rtTree;
-    List list = new ArrayList();
     Element[] elmts = nlNode.getAllElements();
     int totElements = nlNode.getTotalElements();
     for(int i=0; i<totElements; i++){//for every element; we can use sweepline algorithm here
       //if(elmts[i].getRect().overlaps(lfElmt.getRect())){ //select elements that overlap
       if(spLine.getPredicate().relateMismatch(elmts[i], lfElmt, side)){//select elements that overlap
         if(elmts[i].getElementType() == Node.NONLEAF_NODE){//non leaf
-          list.addAll(windowQuery( nlTree.getReadNode(elmts[i].getPtr()), lfElmt, side));
+          windowQuery(nlTree.getReadNode(elmts[i].getPtr()), lfElmt, side, callback);
         }
         else{//if leaf element
           if(side == Join.LEFT)//here we add another condiation of the specified predicate
-            list.add(p.paired(elmts[i], lfElmt));
+            callback.joined(p.paired(elmts[i], lfElmt));
           else
-            list.add(p.paired(lfElmt, elmts[i]));
+            callback.joined(p.paired(lfElmt, elmts[i]));
         }
       }
     }
-    return list;
   }
   /**
      This method removes those elements from <code>elmts</code> that do not intersect <code>rect</code>.
@@ -0,0 +1,24 @@
+//JoinCallback.java
+//
+//This library is free software; you can redistribute it and/or
+//modify it under the terms of the GNU Lesser General Public
+//License as published by the Free Software Foundation; either
+//version 2.1 of the License, or (at your option) any later version.
+//
+//This library is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//Lesser General Public License for more details.
+package rtree.join;
+
+/**
+   Receives the pairs of a join as they are found, so that the result of a join of large trees is not
+   kept in memory. A parallel join calls it from several threads.
+*/
+public interface JoinCallback
+{
+  /**
+     @param pair the <code>Pair</code> (of the type given to <code>Join</code>) that satisfies the predicate.
+  */
+  public void joined(Pair pair);
+}
@@ -0,0 +1,61 @@
+package net.osmand.data;
+
+import java.util.Random;
+
+import net.osmand.osm.edit.Node;
+import net.osmand.osm.edit.Way;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BoundaryContainsPointTest {
+
+	private long id = 1;
+
+	@Test
+	public void testPreparedEqualsMultipolygon() {
+		Random r = new Random(3);
+		MultipolygonBuilder bld = new MultipolygonBuilder();
+		bld.addOuterWay(star(r, 50, 10, 1, 500));
+		bld.addInnerWay(star(r, 50.2, 10.1, 0.2, 100));
+		Boundary boundary = new Boundary(bld);
+		Multipolygon mp = boundary.getMultipolygon();
+		int inside = 0;
+		for (int i = 0; i < 100000; i++) {
+			double lat = 48.5 + r.nextDouble() * 3;
+			double lon = 8.5 + r.nextDouble() * 3;
+			if (i % 10 == 0) {
+				// points on the lattice of vertices
+				lat = Math.round(lat * 100) / 100d;
+				lon = Math.round(lon * 100) / 100d;
+			}
+			if (i == 50000) {
+				// grid is built again after release
+				boundary.releasePrepared();
+			}
+			boolean expected = mp.containsPoint(lat, lon);
+			Assert.assertEquals(lat + " " + lon, expected, boundary.containsPoint(lat, lon));
+			if (expected) {
+				inside++;
+			}
+		}
+		Assert.assertTrue(inside > 0);
+	}
+
+	private Way star(Random r, double lat, double lon, double radius, int vertices) {
+		Way w = new Way(id++);
+		Node first = null;
+		for (int i = 0; i < vertices; i++) {
+			double a = 2 * Math.PI * i / vertices;
+			double d = radius * (0.5 + r.nextDouble() / 2);
+			Node n = new Node(Math.round((lat + d * Math.sin(a)) * 100) / 100d,
+					Math.round((lon + d * Math.cos(a)) * 100) / 100d, id++);
+			if (first == null) {
+				first = n;
+			}
+			w.addNode(n);
+		}
+		w.addNode(first);
+		return w;
+	}
+}
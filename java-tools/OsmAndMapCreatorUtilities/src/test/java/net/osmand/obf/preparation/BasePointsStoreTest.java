@@ -0,0 +1,82 @@
+package net.osmand.obf.preparation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BasePointsStoreTest {
+
+	@Test
+	public void testChunksEqualHashSets() {
+		List<String> expected = register(null, new Random(7));
+		Assert.assertTrue(expected.size() > 1000);
+		Assert.assertEquals(expected, register(new BasePointsStore(0), new Random(7)));
+		Assert.assertEquals(expected, register(new BasePointsStore(1), new Random(7)));
+		Assert.assertEquals(expected, register(new BasePointsStore(100), new Random(7)));
+		Assert.assertEquals(expected, register(new BasePointsStore(1000), new Random(7)));
+	}
+
+	@Test
+	public void testChunksAreMerged() {
+		BasePointsStore store = new BasePointsStore(16);
+		for (long p = 0; p < 16 * 1024; p++) {
+			Assert.assertTrue(store.add(p * 31));
+		}
+		Assert.assertEquals(16 * 1024, store.size());
+		Assert.assertTrue(store.getChunksCount() <= 11);
+		for (long p = 0; p < 16 * 1024; p++) {
+			Assert.assertFalse(store.add(p * 31));
+			Assert.assertTrue(store.add(p * 31 + 1));
+		}
+	}
+
+	/**
+	 * Registers points of random ways as IndexRouteCreator does, store null - hash sets used before
+	 * BasePointsStore.
+	 */
+	private static List<String> register(BasePointsStore store, Random r) {
+		TLongHashSet nodes = new TLongHashSet();
+		TLongLongHashMap removedNodes = new TLongLongHashMap();
+		TLongLongHashMap removedNodesInd = new TLongLongHashMap();
+		long[] wayAndInd = new long[2];
+		List<String> res = new ArrayList<String>();
+		for (long wayId = 1; wayId <= 3000; wayId++) {
+			int points = 2 + r.nextInt(20);
+			int insertAt = 0;
+			for (int i = 0; i < points; i++) {
+				long point = ((long) r.nextInt(200) << 31) + r.nextInt(200);
+				boolean register = r.nextBoolean();
+				boolean forceKeep;
+				if (store == null) {
+					forceKeep = !nodes.add(point);
+					if (forceKeep && removedNodes.containsKey(point)) {
+						long ind = removedNodesInd.remove(point);
+						res.add(removedNodes.remove(point) + " " + (int) (ind >>> 32) + " " + (int) ind + " " + point);
+					} else if (!forceKeep && register) {
+						removedNodes.put(point, wayId);
+						removedNodesInd.put(point, ((long) i << 32) | (insertAt & 0xffffffffl));
+					}
+				} else {
+					forceKeep = !store.add(point);
+					if (forceKeep && store.takeRemoved(point, wayAndInd)) {
+						res.add(wayAndInd[0] + " " + BasePointsStore.getOriginalInd(wayAndInd[1]) + " "
+								+ BasePointsStore.getInsertAt(wayAndInd[1]) + " " + point);
+					} else if (!forceKeep && register) {
+						store.putRemoved(point, wayId, i, insertAt);
+					}
+				}
+				res.add(wayId + " " + i + " " + forceKeep);
+				if (!register || forceKeep) {
+					insertAt++;
+				}
+			}
+		}
+		return res;
+	}
+}
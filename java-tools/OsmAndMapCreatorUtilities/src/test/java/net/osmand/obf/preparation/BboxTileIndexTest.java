@@ -0,0 +1,46 @@
+package net.osmand.obf.preparation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BboxTileIndexTest {
+
+	@Test
+	public void testQueryEqualsLinearScan() {
+		Random r = new Random(11);
+		BboxTileIndex<double[]> index = new BboxTileIndex<double[]>(9);
+		List<double[]> boxes = new ArrayList<double[]>();
+		for (int i = 0; i < 3000; i++) {
+			double[] b = randomBox(r, i % 10 == 0 ? 20 : (i % 3 == 0 ? 0 : 0.5));
+			boxes.add(b);
+			index.add(b, b[0], b[1], b[2], b[3]);
+		}
+		for (int i = 0; i < 500; i++) {
+			double[] b = boxes.remove(r.nextInt(boxes.size()));
+			Assert.assertTrue(index.remove(b));
+		}
+		for (int i = 0; i < 1000; i++) {
+			double[] q = randomBox(r, i % 2 == 0 ? 0 : 3);
+			List<double[]> expected = new ArrayList<double[]>();
+			for (double[] b : boxes) {
+				if (b[1] <= q[3] && q[1] <= b[3] && b[2] <= q[0] && q[2] <= b[0]) {
+					expected.add(b);
+				}
+			}
+			Assert.assertEquals(expected, index.query(q[0], q[1], q[2], q[3]));
+		}
+	}
+
+	// top, left, bottom, right
+	private static double[] randomBox(Random r, double size) {
+		double lat = 40 + r.nextDouble() * 10;
+		double lon = 5 + r.nextDouble() * 10;
+		double h = r.nextDouble() * size;
+		double w = r.nextDouble() * size;
+		return new double[] { lat + h, lon, lat, lon + w };
+	}
+}
@@ -0,0 +1,111 @@
+package net.osmand.obf.preparation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.osmand.binary.OsmandOdb.MapData;
+import net.osmand.binary.OsmandOdb.MapDataBlock;
+import net.osmand.util.Algorithms;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BinaryMapIndexWriterTest {
+
+	private static final int BOX = 1 << 16;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testDataBlockExecutorEqualsSequential() throws Exception {
+		byte[] sequential = write(new File(folder.getRoot(), "sequential.obf"), null);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		byte[] parallel;
+		try {
+			parallel = write(new File(folder.getRoot(), "parallel.obf"), executor);
+		} finally {
+			executor.shutdownNow();
+		}
+		Assert.assertTrue(sequential.length > 0);
+		Assert.assertArrayEquals(sequential, parallel);
+	}
+
+	private static byte[] write(File f, ExecutorService executor) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			BinaryMapIndexWriter writer = new BinaryMapIndexWriter(raf, 1500000000000l);
+			writer.setDataBlockExecutor(executor);
+			writer.startWriteMapIndex("Test");
+			// more blocks than pending window, written while other blocks are submitted
+			writeLevel(writer, 13, 600, new Random(11));
+			// fewer blocks than pending window, all written at the end of level
+			writeLevel(writer, 11, 100, new Random(13));
+			writer.endWriteMapIndex();
+			writer.close();
+		} finally {
+			raf.close();
+		}
+		return Files.readAllBytes(f.toPath());
+	}
+
+	private static void writeLevel(final BinaryMapIndexWriter writer, int zoom, int blocks, Random r)
+			throws IOException {
+		int right = BOX * blocks;
+		writer.startWriteMapLevelIndex(zoom, zoom, 0, right, 0, BOX);
+		writer.startMapTreeElement(0, right, 0, BOX, false);
+		List<BinaryFileReference> refs = new ArrayList<BinaryFileReference>();
+		for (int i = 0; i < blocks; i++) {
+			refs.add(writer.startMapTreeElement(i * BOX, (i + 1) * BOX, 0, BOX, true));
+			writer.endWriteMapTreeElement();
+		}
+		writer.endWriteMapTreeElement();
+		for (int i = 0; i < blocks; i++) {
+			final int left = i * BOX;
+			final long baseId = (long) i << 10;
+			final int objects = 1 + r.nextInt(20);
+			final long seed = r.nextLong();
+			MapDataBlock.Builder dataBlock = writer.createWriteMapDataBlock(baseId);
+			writer.writeMapDataBlock(dataBlock, new LinkedHashMap<String, Integer>(), refs.get(i),
+					new BinaryMapIndexWriter.DataBlockEncoder<MapDataBlock.Builder>() {
+						@Override
+						public void encode(MapDataBlock.Builder block, Map<String, Integer> stringTable)
+								throws IOException {
+							// own random, so encoded objects don't depend on the thread
+							Random br = new Random(seed);
+							for (int k = 0; k < objects; k++) {
+								int points = 2 + br.nextInt(30);
+								byte[] coordinates = new byte[points * 8];
+								for (int p = 0; p < points; p++) {
+									Algorithms.putIntToBytes(coordinates, p * 8, left + br.nextInt(BOX));
+									Algorithms.putIntToBytes(coordinates, p * 8 + 4, br.nextInt(BOX));
+								}
+								Map<Integer, String> names = new LinkedHashMap<Integer, String>();
+								names.put(1, "Name" + br.nextInt(50));
+								if (br.nextBoolean()) {
+									names.put(2, "Ref" + br.nextInt(10));
+								}
+								MapData mapData = writer.writeMapData(k, left, 0, br.nextInt(5) == 0, coordinates,
+										null, new int[] { 1 + br.nextInt(100) }, null, null, null, names, stringTable,
+										block, br.nextBoolean());
+								if (mapData != null) {
+									block.addDataObjects(mapData);
+								}
+							}
+						}
+					});
+		}
+		writer.endWriteMapLevelIndex();
+	}
+}
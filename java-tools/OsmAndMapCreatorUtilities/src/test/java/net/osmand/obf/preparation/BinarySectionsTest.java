@@ -0,0 +1,109 @@
+package net.osmand.obf.preparation;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+
+import net.osmand.impl.ConsoleProgressImplementation;
+import net.osmand.osm.MapRenderingTypesEncoder;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BinarySectionsTest {
+
+	private static final String MAP_FILE = "Test.obf";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testParallelSectionsEqualSequential() throws Exception {
+		byte[] sequential = generate(folder.newFolder("sequential"), 1);
+		byte[] parallel = generate(folder.newFolder("parallel"), 3);
+		Assert.assertTrue(sequential.length > 0);
+		Assert.assertArrayEquals(sequential, parallel);
+	}
+
+	private static byte[] generate(File workingDir, int sectionThreads) throws Exception {
+		File osm = writeOsm(new File(workingDir, "test.osm"));
+		IndexCreatorSettings settings = new IndexCreatorSettings();
+		settings.indexMap = true;
+		settings.indexRouting = true;
+		settings.indexTransport = false;
+		settings.indexPOI = true;
+		settings.indexAddress = true;
+		settings.binarySectionThreads = sectionThreads;
+		IndexCreator creator = new IndexCreator(workingDir, settings);
+		creator.setMapFileName(MAP_FILE);
+		creator.setLastModifiedDate(1500000000000l);
+		creator.generateIndexes(osm, new ConsoleProgressImplementation(1), null, null,
+				new MapRenderingTypesEncoder(null, "Test"), null);
+		File obf = new File(workingDir, MAP_FILE);
+		// temporary section files are removed
+		Assert.assertEquals(0, workingDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".section");
+			}
+		}).length);
+		return Files.readAllBytes(obf.toPath());
+	}
+
+	private static File writeOsm(File f) throws IOException {
+		Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+		try {
+			w.write("<?xml version='1.0' encoding='UTF-8'?>\n<osm version='0.6'>\n");
+			long id = 1;
+			// cities with streets, buildings, shops and parks
+			for (int c = 0; c < 3; c++) {
+				double lat = 52 + c * 0.1;
+				double lon = 5 + c * 0.1;
+				w.write(node(id++, lat, lon, "place", c == 0 ? "city" : "village", "name", "City" + c));
+				long prev = -1;
+				for (int s = 0; s < 6; s++) {
+					long n1 = id++;
+					long n2 = id++;
+					w.write(node(n1, lat + s * 0.001, lon, "addr:street", "Street" + s, "addr:housenumber",
+							Integer.toString(s + 1), "shop", "bakery", "name", "Shop" + c + s));
+					w.write(node(n2, lat + s * 0.001, lon + 0.003));
+					w.write("<way id='" + (id++) + "'><nd ref='" + n1 + "'/><nd ref='" + n2 + "'/>"
+							+ "<tag k='highway' v='residential'/><tag k='name' v='Street" + s + "'/></way>\n");
+					if (prev != -1) {
+						w.write("<way id='" + (id++) + "'><nd ref='" + prev + "'/><nd ref='" + n1 + "'/>"
+								+ "<tag k='highway' v='primary'/><tag k='ref' v='N" + c + "'/></way>\n");
+					}
+					prev = n1;
+				}
+				long p1 = id++;
+				long p2 = id++;
+				long p3 = id++;
+				w.write(node(p1, lat - 0.01, lon - 0.01));
+				w.write(node(p2, lat - 0.01, lon - 0.005));
+				w.write(node(p3, lat - 0.005, lon - 0.005));
+				w.write("<way id='" + (id++) + "'><nd ref='" + p1 + "'/><nd ref='" + p2 + "'/><nd ref='" + p3
+						+ "'/><nd ref='" + p1 + "'/><tag k='leisure' v='park'/><tag k='name' v='Park" + c
+						+ "'/></way>\n");
+			}
+			w.write("</osm>\n");
+		} finally {
+			w.close();
+		}
+		return f;
+	}
+
+	private static String node(long id, double lat, double lon, String... tags) {
+		StringBuilder b = new StringBuilder();
+		b.append("<node id='").append(id).append("' lat='").append(lat).append("' lon='").append(lon).append("'>");
+		for (int i = 0; i < tags.length; i += 2) {
+			b.append("<tag k='").append(tags[i]).append("' v='").append(tags[i + 1]).append("'/>");
+		}
+		return b.append("</node>\n").toString();
+	}
+}
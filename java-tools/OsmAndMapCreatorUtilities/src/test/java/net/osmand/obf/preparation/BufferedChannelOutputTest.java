@@ -0,0 +1,231 @@
+package net.osmand.obf.preparation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.Stack;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BufferedChannelOutputTest {
+
+	// aligned chunk of BufferedChannelOutput
+	private static final int ALIGN = 1 << 16;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRandomSequenceEqualsStream() throws Exception {
+		for (int seed = 0; seed < 10; seed++) {
+			assertSameBytes(new RandomSequence(seed));
+		}
+	}
+
+	@Test
+	public void testReferenceCrossingChunk() throws Exception {
+		assertSameBytes(new Sequence() {
+			@Override
+			void run(Output out) throws IOException {
+				// size is written at the end of the first chunk (after 3 bytes of header)
+				out.write(new byte[2 * ALIGN - 5]);
+				out.preserveSize();
+				out.write(new byte[ALIGN]);
+				out.writeSize();
+			}
+		});
+	}
+
+	@Test
+	public void testWriteAfterFlush() throws Exception {
+		assertSameBytes(new Sequence() {
+			@Override
+			void run(Output out) throws IOException {
+				out.preserveSize();
+				out.write(new byte[3 * ALIGN + 7]);
+				out.preserveSize();
+				out.flush();
+				out.write(new byte[100]);
+				out.writeSize();
+				out.flush();
+				out.write(new byte[ALIGN]);
+				out.writeSize();
+			}
+		});
+	}
+
+	private void assertSameBytes(Sequence seq) throws Exception {
+		File streamFile = File.createTempFile("stream", ".obf", folder.getRoot());
+		File bufferedFile = File.createTempFile("buffered", ".obf", folder.getRoot());
+		RandomAccessFile streamRaf = new RandomAccessFile(streamFile, "rw");
+		RandomAccessFile bufferedRaf = new RandomAccessFile(bufferedFile, "rw");
+		try {
+			// header written before the buffered output is created
+			streamRaf.write(new byte[] { 1, 2, 3 });
+			bufferedRaf.write(new byte[] { 1, 2, 3 });
+			Output stream = new StreamOutput(streamRaf);
+			Output buffered = new ChannelOutput(new BufferedChannelOutput(bufferedRaf, 1000));
+			seq.run(stream);
+			seq.reset();
+			seq.run(buffered);
+			Assert.assertEquals(stream.positions.toString(), buffered.positions.toString());
+			buffered.flush();
+			Assert.assertEquals(streamRaf.getFilePointer(), bufferedRaf.getFilePointer());
+		} finally {
+			streamRaf.close();
+			bufferedRaf.close();
+		}
+		Assert.assertArrayEquals(Files.readAllBytes(streamFile.toPath()), Files.readAllBytes(bufferedFile.toPath()));
+	}
+
+	private static abstract class Sequence {
+		abstract void run(Output out) throws IOException;
+
+		void reset() {
+		}
+	}
+
+	private static class RandomSequence extends Sequence {
+		private final long seed;
+		private Random r;
+
+		RandomSequence(long seed) {
+			this.seed = seed;
+			reset();
+		}
+
+		@Override
+		void reset() {
+			r = new Random(seed);
+		}
+
+		@Override
+		void run(Output out) throws IOException {
+			int depth = 0;
+			for (int i = 0; i < 2000; i++) {
+				int op = r.nextInt(10);
+				if (op < 2 || depth == 0) {
+					out.preserveSize();
+					depth++;
+				} else if (op < 4) {
+					out.writeSize();
+					depth--;
+				} else if (op == 4) {
+					byte[] b = new byte[r.nextInt(3 * ALIGN)];
+					r.nextBytes(b);
+					out.write(b);
+				} else if (op == 5 && r.nextInt(20) == 0) {
+					out.flush();
+				} else {
+					byte[] b = new byte[r.nextInt(200)];
+					r.nextBytes(b);
+					out.write(b);
+					out.write(r.nextInt(256));
+				}
+			}
+			while (depth-- > 0) {
+				out.writeSize();
+			}
+		}
+	}
+
+	/**
+	 * Writes as BinaryMapIndexWriter does : size is reserved by 4 zero bytes and back-patched by a reference.
+	 */
+	private static abstract class Output {
+		final Stack<BinaryFileReference> sizes = new Stack<BinaryFileReference>();
+		final StringBuilder positions = new StringBuilder();
+
+		abstract long getPosition() throws IOException;
+
+		abstract void write(byte[] b) throws IOException;
+
+		abstract void write(int b) throws IOException;
+
+		abstract int writeReference(BinaryFileReference ref, long pointer) throws IOException;
+
+		abstract void flush() throws IOException;
+
+		void preserveSize() throws IOException {
+			long pos = getPosition();
+			positions.append(pos).append(' ');
+			sizes.push(BinaryFileReference.createSizeReference(pos));
+			write(new byte[4]);
+		}
+
+		void writeSize() throws IOException {
+			long pos = getPosition();
+			positions.append(writeReference(sizes.pop(), pos)).append(' ');
+		}
+	}
+
+	private static class StreamOutput extends Output {
+		private final RandomAccessFile raf;
+
+		StreamOutput(RandomAccessFile raf) {
+			this.raf = raf;
+		}
+
+		@Override
+		long getPosition() throws IOException {
+			return raf.getFilePointer();
+		}
+
+		@Override
+		void write(byte[] b) throws IOException {
+			raf.write(b);
+		}
+
+		@Override
+		void write(int b) throws IOException {
+			raf.write(b);
+		}
+
+		@Override
+		int writeReference(BinaryFileReference ref, long pointer) throws IOException {
+			return ref.writeReference(raf, pointer);
+		}
+
+		@Override
+		void flush() {
+		}
+	}
+
+	private static class ChannelOutput extends Output {
+		private final BufferedChannelOutput out;
+
+		ChannelOutput(BufferedChannelOutput out) {
+			this.out = out;
+		}
+
+		@Override
+		long getPosition() throws IOException {
+			return out.getPosition();
+		}
+
+		@Override
+		void write(byte[] b) throws IOException {
+			out.write(b);
+		}
+
+		@Override
+		void write(int b) throws IOException {
+			out.write(b);
+		}
+
+		@Override
+		int writeReference(BinaryFileReference ref, long pointer) throws IOException {
+			return ref.writeReference(out, pointer);
+		}
+
+		@Override
+		void flush() throws IOException {
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package net.osmand.obf.preparation;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Arrays;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+import net.osmand.binary.BinaryMapIndexReader;
+import net.osmand.binary.RouteDataObject;
+import net.osmand.impl.ConsoleProgressImplementation;
+import net.osmand.osm.MapRenderingTypesEncoder;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImproveRoadConnectivityTest {
+
+	private static final String MAP_FILE = "Test.obf";
+	// regions are in different tiles of road ends
+	private static final int REGIONS = 4;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testThreadsAddSameRoads() throws Exception {
+		File obf = generate(folder.getRoot());
+		RandomAccessFile raf = new RandomAccessFile(obf, "r");
+		try {
+			BinaryMapIndexReader reader = new BinaryMapIndexReader(raf, obf);
+			long[] sequential = collect(reader, 1);
+			Assert.assertTrue(sequential.length > 0);
+			Assert.assertArrayEquals(sequential, collect(reader, 3));
+			Assert.assertArrayEquals(sequential, collect(reader, REGIONS + 2));
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static long[] collect(BinaryMapIndexReader reader, int threads) throws IOException {
+		TLongObjectHashMap<RouteDataObject> toAdd = new ImproveRoadConnectivity().collectDisconnectedRoads(reader,
+				threads);
+		long[] ids = toAdd.keys();
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	private static File generate(File workingDir) throws Exception {
+		File osm = writeOsm(new File(workingDir, "test.osm"));
+		IndexCreatorSettings settings = new IndexCreatorSettings();
+		settings.indexMap = false;
+		settings.indexRouting = true;
+		settings.indexTransport = false;
+		settings.indexPOI = false;
+		settings.indexAddress = false;
+		IndexCreator creator = new IndexCreator(workingDir, settings);
+		creator.setMapFileName(MAP_FILE);
+		creator.setLastModifiedDate(1500000000000l);
+		creator.generateIndexes(osm, new ConsoleProgressImplementation(1), null, null,
+				new MapRenderingTypesEncoder(null, "Test"), null);
+		return new File(workingDir, MAP_FILE);
+	}
+
+	/**
+	 * Every region has two trunk roads (base routing roads) which are connected only by residential roads.
+	 */
+	private static File writeOsm(File f) throws IOException {
+		Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+		try {
+			w.write("<?xml version='1.0' encoding='UTF-8'?>\n<osm version='0.6'>\n");
+			long id = 1;
+			for (int c = 0; c < REGIONS; c++) {
+				double lat = 52 + c * 0.3;
+				double lon = 5 + c;
+				long[] first = new long[6];
+				long[] road = new long[4];
+				long[] second = new long[6];
+				for (int i = 0; i < first.length; i++) {
+					first[i] = id++;
+					w.write(node(first[i], lat, lon + i * 0.01));
+				}
+				road[0] = first[first.length - 1];
+				for (int i = 1; i < road.length - 1; i++) {
+					road[i] = id++;
+					w.write(node(road[i], lat + 0.002 * (i % 2), lon + 0.05 + i * 0.005));
+				}
+				for (int i = 0; i < second.length; i++) {
+					second[i] = id++;
+					w.write(node(second[i], lat, lon + 0.065 + i * 0.01));
+				}
+				road[road.length - 1] = second[0];
+				w.write(way(id++, first, "trunk", "T" + c));
+				w.write(way(id++, road, "residential", null));
+				w.write(way(id++, second, "trunk", "T" + c));
+			}
+			w.write("</osm>\n");
+		} finally {
+			w.close();
+		}
+		return f;
+	}
+
+	private static String node(long id, double lat, double lon) {
+		return "<node id='" + id + "' lat='" + lat + "' lon='" + lon + "'/>\n";
+	}
+
+	private static String way(long id, long[] nodes, String highway, String ref) {
+		StringBuilder b = new StringBuilder();
+		b.append("<way id='").append(id).append("'>");
+		for (long n : nodes) {
+			b.append("<nd ref='").append(n).append("'/>");
+		}
+		b.append("<tag k='highway' v='").append(highway).append("'/>");
+		if (ref != null) {
+			b.append("<tag k='ref' v='").append(ref).append("'/>");
+		}
+		return b.append("</way>\n").toString();
+	}
+}
@@ -0,0 +1,140 @@
+package net.osmand.obf.preparation;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Random;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LowLevelWaysIndexTest {
+	private static final Log log = LogFactory.getLog(LowLevelWaysIndexTest.class);
+
+	private static final int NODES = 12;
+	private static final int LEVELS = 2;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testWaysOrderEqualsQueries() throws Exception {
+		File dbFile = new File(folder.getRoot(), "low_level.db");
+		Connection conn = DBDialect.SQLITE.getDatabaseConnection(dbFile.getAbsolutePath(), log);
+		try {
+			createFixture(conn);
+			// small budget, so part of the ways is spilled
+			LowLevelWaysIndex index = new LowLevelWaysIndex(500, folder.getRoot());
+			try {
+				index.load(conn);
+				assertWaysEqualQueries(conn, index);
+				assertWaysDataEqualTable(conn, index);
+			} finally {
+				index.close();
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static void assertWaysEqualQueries(Connection conn, LowLevelWaysIndex index) throws Exception {
+		// same queries as were used to combine ways
+		PreparedStatement startStat = conn.prepareStatement("SELECT id FROM low_level_map_objects"
+				+ " WHERE start_node = ? AND level = ?");
+		PreparedStatement endStat = conn.prepareStatement("SELECT id FROM low_level_map_objects"
+				+ " WHERE end_node = ? AND level = ?");
+		TIntArrayList ways = new TIntArrayList();
+		int checked = 0;
+		for (long node = 0; node < NODES; node++) {
+			for (int level = 0; level < LEVELS; level++) {
+				for (boolean start : new boolean[] { true, false }) {
+					PreparedStatement ps = start ? startStat : endStat;
+					ps.setLong(1, node);
+					ps.setShort(2, (short) level);
+					TLongArrayList expected = new TLongArrayList();
+					ResultSet rs = ps.executeQuery();
+					while (rs.next()) {
+						expected.add(rs.getLong(1));
+					}
+					rs.close();
+					index.getWays(node, level, start, ways);
+					TLongArrayList actual = new TLongArrayList();
+					for (int i = 0; i < ways.size(); i++) {
+						actual.add(index.getId(ways.get(i)));
+					}
+					Assert.assertEquals("node " + node + " level " + level + " start " + start, expected, actual);
+					if (expected.size() > 1) {
+						checked++;
+					}
+				}
+			}
+		}
+		startStat.close();
+		endStat.close();
+		Assert.assertTrue(checked > 0);
+	}
+
+	private static void assertWaysDataEqualTable(Connection conn, LowLevelWaysIndex index) throws Exception {
+		Statement stat = conn.createStatement();
+		ResultSet rs = stat.executeQuery("SELECT id, start_node, end_node, nodes, name, type, addType, level "
+				+ "FROM low_level_map_objects");
+		int way = 0;
+		while (rs.next()) {
+			Assert.assertEquals(rs.getLong(1), index.getId(way));
+			Assert.assertEquals(rs.getLong(2), index.getStartNode(way));
+			Assert.assertEquals(rs.getLong(3), index.getEndNode(way));
+			Assert.assertArrayEquals(rs.getBytes(4), index.getNodes(way));
+			Assert.assertEquals(rs.getString(5), index.getName(way));
+			Assert.assertArrayEquals(rs.getBytes(6), index.getTypes(way));
+			Assert.assertArrayEquals(rs.getBytes(7), index.getAddTypes(way));
+			Assert.assertEquals(rs.getInt(8), index.getLevel(way));
+			way++;
+		}
+		rs.close();
+		stat.close();
+		Assert.assertEquals(way, index.size());
+	}
+
+	private static void createFixture(Connection conn) throws Exception {
+		Statement stat = conn.createStatement();
+		stat.executeUpdate("create table low_level_map_objects (id bigint primary key, start_node bigint, "
+				+ "end_node bigint, name varchar(1024), nodes binary, type binary, addType binary, level smallint)");
+		stat.executeUpdate("create index low_level_map_objects_ind on low_level_map_objects (id)");
+		stat.executeUpdate("create index low_level_map_objects_ind_st on low_level_map_objects (start_node, type)");
+		stat.executeUpdate("create index low_level_map_objects_ind_end on low_level_map_objects (end_node, type)");
+		stat.close();
+		// bytes over 0x7f, blobs which are prefixes of others and same types in other order
+		byte[][] types = new byte[][] { new byte[] { 0, 1 }, new byte[] { 0, 1, 0, 2 }, new byte[] { 0, 2, 0, 1 },
+				new byte[] { (byte) 0x80, 1 }, new byte[] { 1, (byte) 0xff }, new byte[] { 0, 1, 0, 2 } };
+		byte[][] addTypes = new byte[][] { new byte[0], new byte[] { 0, 3 } };
+		PreparedStatement ps = conn.prepareStatement("insert into low_level_map_objects(id, start_node, end_node, "
+				+ "name, nodes, type, addType, level) values(?, ?, ?, ?, ?, ?, ?, ?)");
+		Random r = new Random(11);
+		for (int i = 0; i < 300; i++) {
+			// ids are not in table order
+			ps.setLong(1, (i * 7919l) % 1000 + i * 1000l);
+			// few nodes, so there are many ways with the same node and type
+			ps.setLong(2, r.nextInt(NODES));
+			ps.setLong(3, r.nextInt(NODES));
+			ps.setString(4, r.nextInt(3) == 0 ? null : "name" + i);
+			byte[] nodes = new byte[8 * (2 + r.nextInt(4))];
+			r.nextBytes(nodes);
+			ps.setBytes(5, nodes);
+			ps.setBytes(6, types[r.nextInt(types.length)]);
+			ps.setBytes(7, addTypes[r.nextInt(addTypes.length)]);
+			ps.setShort(8, (short) r.nextInt(LEVELS));
+			ps.addBatch();
+		}
+		ps.executeBatch();
+		ps.close();
+	}
+}
@@ -0,0 +1,101 @@
+package net.osmand.obf.preparation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import net.osmand.obf.preparation.NodeLocationStore.Layout;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NodeLocationStoreTest {
+
+	private static final int NODES = 5000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testDenseRoundTrip() throws Exception {
+		assertRoundTrip(Layout.DENSE);
+	}
+
+	@Test
+	public void testSparseRoundTrip() throws Exception {
+		assertRoundTrip(Layout.SPARSE);
+	}
+
+	@Test
+	public void testDenseNegativeIdsAreNotStored() throws Exception {
+		NodeLocationStore store = new NodeLocationStore(new File(folder.getRoot(), "dense.locations"), Layout.DENSE);
+		try {
+			Assert.assertFalse(store.put(-5, 50, 10));
+			Assert.assertTrue(store.put(5, 50, 10));
+			store.finishLoading();
+			Assert.assertEquals(NodeLocationStore.MISSING, store.get(-5));
+			Assert.assertEquals(50, NodeLocationStore.getLatitude(store.get(5)), 1e-7);
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testOtherLayoutIsDetected() throws Exception {
+		File f = new File(folder.getRoot(), "sparse.locations");
+		Assert.assertNull(NodeLocationStore.readLayout(f));
+		NodeLocationStore store = new NodeLocationStore(f, Layout.SPARSE);
+		store.put(1, 50, 10);
+		store.close();
+		Assert.assertEquals(Layout.SPARSE, NodeLocationStore.readLayout(f));
+		try {
+			new NodeLocationStore(f, Layout.DENSE);
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("SPARSE"));
+		}
+	}
+
+	private void assertRoundTrip(Layout layout) throws IOException {
+		File f = new File(folder.getRoot(), layout + ".locations");
+		Random r = new Random(3);
+		long[] ids = new long[NODES];
+		double[] lats = new double[NODES];
+		double[] lons = new double[NODES];
+		NodeLocationStore store = new NodeLocationStore(f, layout);
+		for (int i = 0; i < NODES; i++) {
+			// even ids only, odd ids are missing; not in id order, so sparse records are sorted
+			ids[i] = 2 * ((i * 7919l) % NODES) + 2;
+			lats[i] = (r.nextInt(1800000000) - 900000000) / 1e7;
+			lons[i] = (r.nextInt(2000000000) - 1000000000) / 1e7 + (i % 2 == 0 ? 0 : 79.9);
+			Assert.assertTrue(store.put(ids[i], lats[i], lons[i]));
+		}
+		// extreme coordinates
+		Assert.assertTrue(store.put(2 * NODES + 2, -90, -180));
+		Assert.assertTrue(store.put(2 * NODES + 4, 90, 180));
+		store.close();
+
+		store = new NodeLocationStore(f, layout);
+		try {
+			for (int i = 0; i < NODES; i++) {
+				long l = store.get(ids[i]);
+				Assert.assertNotEquals(NodeLocationStore.MISSING, l);
+				Assert.assertEquals(lats[i], NodeLocationStore.getLatitude(l), 1e-9);
+				Assert.assertEquals(lons[i], NodeLocationStore.getLongitude(l), 1e-9);
+				Assert.assertEquals(NodeLocationStore.MISSING, store.get(ids[i] + 1));
+			}
+			Assert.assertEquals(-90, NodeLocationStore.getLatitude(store.get(2 * NODES + 2)), 1e-9);
+			Assert.assertEquals(-180, NodeLocationStore.getLongitude(store.get(2 * NODES + 2)), 1e-9);
+			Assert.assertEquals(90, NodeLocationStore.getLatitude(store.get(2 * NODES + 4)), 1e-9);
+			Assert.assertEquals(180, NodeLocationStore.getLongitude(store.get(2 * NODES + 4)), 1e-9);
+			Assert.assertEquals(NodeLocationStore.MISSING, store.get(0));
+			Assert.assertEquals(NodeLocationStore.MISSING, store.get(-2));
+			Assert.assertEquals(NodeLocationStore.MISSING, store.get(2 * NODES + 6));
+			Assert.assertEquals(NodeLocationStore.MISSING, store.get(Long.MAX_VALUE));
+		} finally {
+			store.close();
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package net.osmand.obf.preparation;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.osmand.IProgress;
+import net.osmand.obf.preparation.OsmDbAccessor.OsmDbVisitor;
+import net.osmand.obf.preparation.OsmDbAccessor.ParallelOsmDbVisitor;
+import net.osmand.osm.edit.Entity;
+import net.osmand.osm.edit.Entity.EntityId;
+import net.osmand.osm.edit.Entity.EntityType;
+import net.osmand.osm.edit.Node;
+import net.osmand.osm.edit.Relation;
+import net.osmand.osm.edit.Relation.RelationMember;
+import net.osmand.osm.edit.Way;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OsmDbAccessorTest {
+	private static final Log log = LogFactory.getLog(OsmDbAccessorTest.class);
+
+	private static final int WAYS = 600;
+	private static final int RELATIONS = 1500;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testParallelVisitorEqualsSequential() throws Exception {
+		Connection conn = DBDialect.SQLITE.getDatabaseConnection(new File(folder.getRoot(), "osm.db").getAbsolutePath(),
+				log);
+		try {
+			createFixture(conn);
+			List<String> sequential = visitRelations(conn, 1, new HashSet<String>());
+			Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+			List<String> parallel = visitRelations(conn, 4, threads);
+			Assert.assertEquals(RELATIONS, sequential.size());
+			// same entities with the same loaded members in the same order
+			Assert.assertEquals(sequential, parallel);
+			Assert.assertFalse(threads.contains(Thread.currentThread().getName()));
+		} finally {
+			conn.close();
+		}
+	}
+
+	@Test
+	public void testPlainVisitorIsSequential() throws Exception {
+		Connection conn = DBDialect.SQLITE.getDatabaseConnection(new File(folder.getRoot(), "plain.db").getAbsolutePath(),
+				log);
+		try {
+			createFixture(conn);
+			OsmDbAccessor accessor = new OsmDbAccessor();
+			accessor.setDbConn(conn, DBDialect.SQLITE);
+			accessor.setConsumerThreads(4);
+			accessor.initDatabase(null);
+			final Thread current = Thread.currentThread();
+			final List<Long> ids = new ArrayList<Long>();
+			accessor.iterateOverEntities(IProgress.EMPTY_PROGRESS, EntityType.WAY, new OsmDbVisitor() {
+				@Override
+				public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+					Assert.assertSame(current, Thread.currentThread());
+					ids.add(e.getId());
+				}
+			});
+			accessor.closeReadingConnection();
+			Assert.assertEquals(WAYS, ids.size());
+		} finally {
+			conn.close();
+		}
+	}
+
+	@Test
+	public void testPreloadedRelationsEqualLoadedOneByOne() throws Exception {
+		Connection conn = DBDialect.SQLITE.getDatabaseConnection(new File(folder.getRoot(), "batch.db").getAbsolutePath(),
+				log);
+		try {
+			createFixture(conn);
+			List<String> single = visitRelations(conn, 1, new HashSet<String>());
+			OsmDbAccessor accessor = new OsmDbAccessor();
+			accessor.setDbConn(conn, DBDialect.SQLITE);
+			accessor.initDatabase(null);
+			final List<String> batch = new ArrayList<String>();
+			try {
+				// members of several batches are loaded by bulk queries
+				accessor.iterateOverEntities(IProgress.EMPTY_PROGRESS, EntityType.RELATION, new OsmDbVisitor() {
+					@Override
+					public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+						Assert.assertTrue(((Relation) e).isDataLoaded());
+						batch.add(describe((Relation) e));
+					}
+				}, true, true);
+			} finally {
+				accessor.closeReadingConnection();
+			}
+			Assert.assertTrue(RELATIONS > 2 * OsmDbAccessor.RELATION_BATCH_SIZE);
+			Assert.assertEquals(single, batch);
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static List<String> visitRelations(Connection conn, int threads, final Set<String> prepareThreads)
+			throws Exception {
+		OsmDbAccessor accessor = new OsmDbAccessor();
+		accessor.setDbConn(conn, DBDialect.SQLITE);
+		accessor.setConsumerThreads(threads);
+		accessor.initDatabase(null);
+		final List<String> visited = new ArrayList<String>();
+		try {
+			accessor.iterateOverEntities(IProgress.EMPTY_PROGRESS, EntityType.RELATION, new ParallelOsmDbVisitor() {
+				@Override
+				public void prepareEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+					prepareThreads.add(Thread.currentThread().getName());
+					ctx.loadEntityRelation((Relation) e);
+				}
+
+				@Override
+				public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+					visited.add(describe((Relation) e));
+				}
+			});
+		} finally {
+			accessor.closeReadingConnection();
+		}
+		return visited;
+	}
+
+	private static String describe(Relation r) {
+		StringBuilder b = new StringBuilder();
+		b.append(r.getId()).append(' ').append(new TreeMap<String, String>(r.getTags()));
+		for (RelationMember m : r.getMembers()) {
+			b.append(' ').append(m.getEntityId()).append(':').append(m.getRole());
+			Entity e = m.getEntity();
+			if (e instanceof Node) {
+				b.append(' ').append(((Node) e).getLatitude()).append(',').append(((Node) e).getLongitude())
+						.append(' ').append(e.getTags());
+			} else if (e instanceof Way) {
+				b.append(' ').append(e.getTags());
+				for (Node n : ((Way) e).getNodes()) {
+					b.append(' ').append(n.getId()).append(' ').append(n.getLatitude()).append(',')
+							.append(n.getLongitude()).append(' ').append(n.getTags());
+				}
+			} else if (e instanceof Relation) {
+				// members of member relation are not loaded
+				for (RelationMember sub : ((Relation) e).getMembers()) {
+					b.append(' ').append(sub.getEntityId()).append(':').append(sub.getRole());
+				}
+			} else {
+				b.append(" missing");
+			}
+		}
+		return b.toString();
+	}
+
+	private static void createFixture(Connection conn) throws Exception {
+		OsmDbCreator creator = new OsmDbCreator();
+		// raw ids, so relation members reference stored ways and nodes
+		creator.setBackwardCompatibleIds(true);
+		creator.initDatabase(DBDialect.SQLITE, conn, true);
+		long nodeId = 1;
+		List<Way> ways = new ArrayList<Way>();
+		for (int i = 0; i < WAYS; i++) {
+			Way w = new Way(100000 + i);
+			w.putTag("highway", "residential");
+			for (int k = 0; k < 3; k++) {
+				Node n = new Node(50 + nodeId * 1e-4, 10 + nodeId * 1e-4, nodeId++);
+				if (k == 1) {
+					n.putTag("barrier", "gate");
+				}
+				creator.acceptEntityToLoad(null, EntityId.valueOf(n), n);
+				w.addNode(n);
+			}
+			creator.acceptEntityToLoad(null, EntityId.valueOf(w), w);
+			ways.add(w);
+		}
+		for (int i = 0; i < RELATIONS; i++) {
+			Relation r = new Relation(200000 + i);
+			r.putTag("type", "route");
+			r.putTag("ref", String.valueOf(i));
+			r.addMember(ways.get(i % WAYS).getId(), EntityType.WAY, "");
+			r.addMember(ways.get((i * 7) % WAYS).getId(), EntityType.WAY, "forward");
+			r.addMember((long) (i % (3 * WAYS)) + 1, EntityType.NODE, "stop");
+			if (i % 10 == 0) {
+				r.addMember(200000 + (i + 1) % RELATIONS, EntityType.RELATION, "subarea");
+				// member which is not in database
+				r.addMember(999999, EntityType.WAY, "");
+			}
+			creator.acceptEntityToLoad(null, EntityId.valueOf(r), r);
+		}
+		creator.finishLoading();
+		conn.commit();
+	}
+}
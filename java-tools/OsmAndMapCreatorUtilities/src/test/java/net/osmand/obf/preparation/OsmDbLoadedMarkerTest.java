@@ -0,0 +1,151 @@
+package net.osmand.obf.preparation;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.Statement;
+
+import net.osmand.impl.ConsoleProgressImplementation;
+import net.osmand.osm.MapRenderingTypesEncoder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OsmDbLoadedMarkerTest {
+	private static final Log log = LogFactory.getLog(OsmDbLoadedMarkerTest.class);
+
+	private static final String MAP_FILE = "Test.obf";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testReusedOsmDbOutputEqualsFresh() throws Exception {
+		IndexCreatorSettings settings = createSettings();
+		Assert.assertTrue(generateTwice(folder.newFolder("maps"), settings));
+	}
+
+	@Test
+	public void testAddressWithoutRawIdsReloadsOsmDb() throws Exception {
+		IndexCreatorSettings settings = createSettings();
+		settings.backwardCompatibleIds = false;
+		Assert.assertFalse(generateTwice(folder.newFolder("converted"), settings));
+	}
+
+	/**
+	 * Generates map, marks osm database as loaded (as if previous run has failed after loading) and generates it
+	 * again with the same output.
+	 * @return whether osm database was reused by the second run
+	 */
+	private static boolean generateTwice(File workingDir, IndexCreatorSettings settings) throws Exception {
+		File osm = writeOsm(new File(workingDir, "test.osm"));
+		byte[] fresh = generate(workingDir, osm, settings);
+		File markerFile = new File(workingDir, MAP_FILE + ".osmdb_loaded");
+		Assert.assertFalse(markerFile.exists());
+		File osmDb = new File(workingDir, IndexCreator.TEMP_NODES_DB);
+		Assert.assertTrue(osmDb.exists());
+
+		OsmDbLoadedMarker marker = new OsmDbLoadedMarker(markerFile,
+				OsmDbLoadedMarker.getFingerprint(new File[] { osm }, settings, false, false));
+		marker.markLoaded();
+		Assert.assertTrue(new OsmDbLoadedMarker(markerFile, marker.getFingerprint()).isLoaded());
+		// table is kept only if osm database is not recreated
+		Connection conn = DBDialect.SQLITE.getDatabaseConnection(osmDb.getAbsolutePath(), log);
+		Statement stat = conn.createStatement();
+		stat.executeUpdate("create table reuse_marker (id int)");
+		stat.close();
+		conn.close();
+
+		byte[] second = generate(workingDir, osm, settings);
+		Assert.assertArrayEquals(fresh, second);
+		conn = DBDialect.SQLITE.getDatabaseConnection(osmDb.getAbsolutePath(), log);
+		stat = conn.createStatement();
+		boolean reused = DBDialect.SQLITE.checkTableIfExists("reuse_marker", stat);
+		stat.close();
+		conn.close();
+		return reused;
+	}
+
+	@Test
+	public void testMarkerDiscardedOnChangedSettings() throws Exception {
+		File workingDir = folder.newFolder("marker");
+		File markerFile = new File(workingDir, MAP_FILE + ".osmdb_loaded");
+		IndexCreatorSettings settings = createSettings();
+		File[] input = new File[] { writeOsm(new File(workingDir, "test.osm")) };
+		new OsmDbLoadedMarker(markerFile, OsmDbLoadedMarker.getFingerprint(input, settings, false, false))
+				.markLoaded();
+
+		settings.indexRouting = true;
+		OsmDbLoadedMarker changed = new OsmDbLoadedMarker(markerFile,
+				OsmDbLoadedMarker.getFingerprint(input, settings, false, false));
+		Assert.assertFalse(changed.isLoaded());
+	}
+
+	private static IndexCreatorSettings createSettings() {
+		IndexCreatorSettings settings = new IndexCreatorSettings();
+		settings.indexMap = false;
+		settings.indexRouting = false;
+		settings.indexTransport = false;
+		settings.indexPOI = true;
+		settings.indexAddress = true;
+		// cities can be restored from osm database only with raw ids
+		settings.backwardCompatibleIds = true;
+		settings.skipOsmDbReload = true;
+		return settings;
+	}
+
+	private static byte[] generate(File workingDir, File osm, IndexCreatorSettings settings) throws Exception {
+		IndexCreator creator = new IndexCreator(workingDir, settings);
+		creator.setMapFileName(MAP_FILE);
+		creator.setDeleteOsmDB(false);
+		creator.setLastModifiedDate(1500000000000l);
+		creator.generateIndexes(osm, new ConsoleProgressImplementation(1), null, null,
+				new MapRenderingTypesEncoder(null, "Test"), null);
+		return Files.readAllBytes(new File(workingDir, MAP_FILE).toPath());
+	}
+
+	private static File writeOsm(File f) throws IOException {
+		Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+		try {
+			w.write("<?xml version='1.0' encoding='UTF-8'?>\n<osm version='0.6'>\n");
+			long id = 1;
+			// cities with streets, buildings and shops around them
+			for (int c = 0; c < 3; c++) {
+				double lat = 52 + c * 0.1;
+				double lon = 5 + c * 0.1;
+				long city = id++;
+				w.write(node(city, lat, lon, "place", c == 0 ? "city" : "village", "name", "City" + c));
+				for (int s = 0; s < 4; s++) {
+					long n1 = id++;
+					long n2 = id++;
+					w.write(node(n1, lat + s * 0.001, lon, "addr:street", "Street" + s, "addr:housenumber",
+							Integer.toString(s + 1), "shop", "bakery", "name", "Shop" + c + s));
+					w.write(node(n2, lat + s * 0.001, lon + 0.003));
+					w.write("<way id='" + (id++) + "'><nd ref='" + n1 + "'/><nd ref='" + n2 + "'/>"
+							+ "<tag k='highway' v='residential'/><tag k='name' v='Street" + s + "'/></way>\n");
+				}
+			}
+			w.write("</osm>\n");
+		} finally {
+			w.close();
+		}
+		return f;
+	}
+
+	private static String node(long id, double lat, double lon, String... tags) {
+		StringBuilder b = new StringBuilder();
+		b.append("<node id='").append(id).append("' lat='").append(lat).append("' lon='").append(lon).append("'>");
+		for (int i = 0; i < tags.length; i += 2) {
+			b.append("<tag k='").append(tags[i]).append("' v='").append(tags[i + 1]).append("'/>");
+		}
+		return b.append("</node>\n").toString();
+	}
+}
@@ -0,0 +1,113 @@
+package net.osmand.obf.preparation;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.osmand.osm.edit.Node;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OsmDbTagsDictionaryTest {
+	private static final Log log = LogFactory.getLog(OsmDbTagsDictionaryTest.class);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testEncodedTagsEqualOriginal() throws Exception {
+		Connection conn = DBDialect.SQLITE.getDatabaseConnection(new File(folder.getRoot(), "osm.db").getAbsolutePath(),
+				log);
+		try {
+			Assert.assertFalse(OsmDbTagsDictionary.exists(DBDialect.SQLITE, conn));
+			OsmDbTagsDictionary.createTable(DBDialect.SQLITE, conn);
+			Assert.assertTrue(OsmDbTagsDictionary.exists(DBDialect.SQLITE, conn));
+
+			Random r = new Random(5);
+			List<Map<String, String>> tags = new ArrayList<Map<String, String>>();
+			List<byte[]> encoded = new ArrayList<byte[]>();
+			// more entries than a batch of inserts
+			OsmDbTagsDictionary writer = new OsmDbTagsDictionary();
+			writer.prepareToWrite(conn);
+			for (int i = 0; i < 3000; i++) {
+				Map<String, String> t = randomTags(r, i);
+				tags.add(t);
+				encoded.add(writer.encode(t));
+			}
+			writer.finishWriting();
+
+			// dictionary of the reused database is extended by the next load
+			OsmDbTagsDictionary appender = new OsmDbTagsDictionary();
+			appender.load(conn);
+			appender.prepareToWrite(conn);
+			for (int i = 3000; i < 4000; i++) {
+				Map<String, String> t = randomTags(r, i);
+				tags.add(t);
+				encoded.add(appender.encode(t));
+			}
+			appender.finishWriting();
+
+			OsmDbTagsDictionary reader = new OsmDbTagsDictionary();
+			reader.load(conn);
+			for (int i = 0; i < tags.size(); i++) {
+				Node n = new Node(0, 0, i + 1);
+				reader.decode(n, encoded.get(i));
+				Assert.assertEquals(tags.get(i), n.getTags());
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	@Test
+	public void testEmptyTags() throws Exception {
+		Connection conn = DBDialect.SQLITE.getDatabaseConnection(new File(folder.getRoot(), "empty.db").getAbsolutePath(),
+				log);
+		try {
+			OsmDbTagsDictionary.createTable(DBDialect.SQLITE, conn);
+			OsmDbTagsDictionary dictionary = new OsmDbTagsDictionary();
+			dictionary.prepareToWrite(conn);
+			byte[] b = dictionary.encode(new LinkedHashMap<String, String>());
+			dictionary.finishWriting();
+			Assert.assertEquals(0, b.length);
+			Node n = new Node(0, 0, 1);
+			dictionary.decode(n, b);
+			Assert.assertTrue(n.getTags().isEmpty());
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static Map<String, String> randomTags(Random r, int i) {
+		Map<String, String> t = new LinkedHashMap<String, String>();
+		t.put("highway", r.nextBoolean() ? "residential" : "primary");
+		if (r.nextInt(3) == 0) {
+			// unique values which are stored inline
+			t.put("name", "Street " + i);
+			t.put("name:ru", "Улица " + i);
+			t.put("addr:housenumber", String.valueOf(r.nextInt(200)));
+			t.put("ref", "A" + r.nextInt(100));
+		}
+		if (r.nextInt(4) == 0) {
+			// long value which is not in dictionary
+			StringBuilder b = new StringBuilder();
+			for (int k = 0; k < 40 + r.nextInt(200); k++) {
+				b.append((char) ('a' + r.nextInt(26)));
+			}
+			t.put("note", b.toString());
+		}
+		// many distinct keys and values, so ids need multi byte varints
+		t.put("key" + r.nextInt(500), "value" + r.nextInt(300));
+		t.put("maxspeed", "");
+		return t;
+	}
+}
@@ -0,0 +1,97 @@
+package net.osmand.obf.preparation;
+
+import java.util.Collection;
+import java.util.Random;
+
+import net.osmand.obf.preparation.IndexRouteCreator.GeneralizedCluster;
+import net.osmand.obf.preparation.IndexRouteCreator.GeneralizedWay;
+import net.osmand.osm.MapRenderingTypesEncoder;
+
+import org.apache.commons.logging.LogFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RouteGeneralizationTest {
+
+	// cluster is 2^16 31-tile units
+	private static final int STEP = 1 << 13;
+
+	@Test
+	public void testParallelGeneralizationEqualsSequential() {
+		MapRenderingTypesEncoder renderingTypes = new MapRenderingTypesEncoder("basemap");
+		IndexRouteCreator sequential = createRoads(renderingTypes, 7);
+		IndexRouteCreator parallel = createRoads(renderingTypes, 7);
+		int initial = countWays(sequential.generalClusters.valueCollection());
+
+		String expected = describe(sequential.generalizeClusters(1));
+		String actual = describe(parallel.generalizeClusters(4));
+		Assert.assertEquals(expected, actual);
+		Assert.assertTrue(countWays(sequential.generalClusters.valueCollection()) < initial);
+	}
+
+	private static IndexRouteCreator createRoads(MapRenderingTypesEncoder renderingTypes, long seed) {
+		IndexRouteCreator creator = new IndexRouteCreator(renderingTypes, LogFactory.getLog(RouteGeneralizationTest.class),
+				new IndexCreatorSettings());
+		Random r = new Random(seed);
+		long id = 1;
+		// separate towns of roads on a grid
+		for (int town = 0; town < 12; town++) {
+			int ox = (1 << 30) + (town % 4) * 200 * STEP;
+			int oy = (1 << 29) + (town / 4) * 200 * STEP;
+			for (int k = 0; k < 300; k++) {
+				GeneralizedWay w = new GeneralizedWay(id++, r.nextInt(2));
+				int x = r.nextInt(40);
+				int y = r.nextInt(40);
+				w.addPoint(ox + x * STEP, oy + y * STEP);
+				int len = 1 + r.nextInt(6);
+				boolean horizontal = r.nextBoolean();
+				for (int i = 0; i < len; i++) {
+					if (horizontal) {
+						x++;
+					} else {
+						y++;
+					}
+					// small deviations are simplified
+					w.addPoint(ox + x * STEP + r.nextInt(3), oy + y * STEP + r.nextInt(3));
+				}
+				creator.registerGeneralizedWay(w);
+			}
+			for (int k = 0; k < 5; k++) {
+				// roundabout
+				GeneralizedWay w = new GeneralizedWay(id++, 0);
+				int x = ox + r.nextInt(40) * STEP;
+				int y = oy + r.nextInt(40) * STEP;
+				w.addPoint(x, y);
+				w.addPoint(x + STEP / 4, y + STEP / 4);
+				w.addPoint(x, y + STEP / 2);
+				w.addPoint(x, y);
+				creator.registerGeneralizedWay(w);
+			}
+		}
+		return creator;
+	}
+
+	private static int countWays(Collection<GeneralizedCluster> clusters) {
+		int cnt = 0;
+		for (GeneralizedCluster c : clusters) {
+			cnt += c.ways.size();
+		}
+		return cnt;
+	}
+
+	private static String describe(Collection<GeneralizedCluster> clusters) {
+		StringBuilder b = new StringBuilder();
+		for (GeneralizedCluster c : clusters) {
+			b.append(c.x).append(' ').append(c.y).append(':');
+			for (GeneralizedWay w : c.ways) {
+				b.append(' ').append(w.hashCode()).append('[');
+				for (int i = 0; i < w.size(); i++) {
+					b.append(w.getLocation(i)).append(',');
+				}
+				b.append(']');
+			}
+			b.append('\n');
+		}
+		return b.toString();
+	}
+}
@@ -0,0 +1,112 @@
+package net.osmand.obf.preparation;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.osmand.osm.MapRenderingTypesEncoder;
+import net.osmand.osm.edit.Node;
+import net.osmand.osm.edit.Relation;
+import net.osmand.osm.edit.Way;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RoutePointNamesTest {
+	private static final Log log = LogFactory.getLog(RoutePointNamesTest.class);
+
+	// as encoded by IndexRouteCreator.encodeListNames
+	private static final char SPECIAL_CHAR = ((char) 0x60000);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private long id = 1;
+
+	@Test
+	public void testPointNamesOfEncodedWays() throws Exception {
+		Connection conn = DBDialect.SQLITE.getDatabaseConnection(new File(folder.getRoot(), "route.db").getAbsolutePath(),
+				log);
+		String rtreeFile = new File(folder.getRoot(), "route.rtree").getAbsolutePath();
+		IndexRouteCreator creator = new IndexRouteCreator(new MapRenderingTypesEncoder("basemap"), log,
+				new IndexCreatorSettings());
+		try {
+			creator.createDatabaseStructure(conn, DBDialect.SQLITE, rtreeFile);
+			OsmDbAccessorContext ctx = new OsmDbAccessorContext() {
+				@Override
+				public void loadEntityWay(Way e) {
+					// nodes are created with tags
+				}
+
+				@Override
+				public void loadEntityRelation(Relation e) {
+				}
+			};
+			Node signals = node("highway", "traffic_signals", "name", "Signals");
+			Way first = way(node(), signals, node());
+			// same named node at other point index
+			Way second = way(node(), node(), signals);
+			Way other = way(node(), node());
+			creator.iterateMainEntity(first, ctx);
+			creator.iterateMainEntity(second, ctx);
+			Assert.assertEquals(1, creator.pointNames.size());
+			creator.iterateMainEntity(other, ctx);
+			// names of previous ways are not kept
+			Assert.assertEquals(0, creator.pointNames.size());
+			creator.executePendingPreparedStatements();
+
+			Assert.assertEquals("[1 Signals]", readPointNames(conn, first.getId()).toString());
+			Assert.assertEquals("[2 Signals]", readPointNames(conn, second.getId()).toString());
+			Assert.assertEquals("[]", readPointNames(conn, other.getId()).toString());
+		} finally {
+			creator.commitAndCloseFiles(rtreeFile, null, true);
+			conn.close();
+		}
+	}
+
+	private Node node(String... tags) {
+		Node n = new Node(50 + id * 0.001, 10 + id * 0.001, id++);
+		for (int i = 0; i < tags.length; i += 2) {
+			n.putTag(tags[i], tags[i + 1]);
+		}
+		return n;
+	}
+
+	private Way way(Node... nodes) {
+		Way w = new Way(id++);
+		w.putTag("highway", "residential");
+		for (Node n : nodes) {
+			w.addNode(n);
+		}
+		return w;
+	}
+
+	/**
+	 * Returns point index and name of each point name of the route object
+	 */
+	private static List<String> readPointNames(Connection conn, long wayId) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement("SELECT pointNames FROM route_objects WHERE id = ?");
+		ps.setLong(1, wayId);
+		ResultSet rs = ps.executeQuery();
+		Assert.assertTrue(rs.next());
+		String s = rs.getString(1);
+		rs.close();
+		ps.close();
+		List<String> res = new ArrayList<String>();
+		int i = s.indexOf(SPECIAL_CHAR);
+		while (i != -1) {
+			int n = s.indexOf(SPECIAL_CHAR, i + 3);
+			res.add((int) s.charAt(i + 2) + " " + (n == -1 ? s.substring(i + 3) : s.substring(i + 3, n)));
+			i = n;
+		}
+		return res;
+	}
+}
@@ -0,0 +1,161 @@
+package net.osmand.osm.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import net.osmand.osm.edit.Entity;
+import net.osmand.osm.edit.Entity.EntityId;
+import net.osmand.osm.edit.Node;
+import net.osmand.osm.edit.Relation;
+import net.osmand.osm.edit.Relation.RelationMember;
+import net.osmand.osm.edit.Way;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+import crosby.binary.Osmformat;
+import crosby.binary.file.BlockOutputStream;
+import crosby.binary.file.FileBlock;
+
+public class OsmBaseStoragePbfTest {
+
+	private static final int BLOCKS = 24;
+	private static final int NODES_PER_BLOCK = 300;
+
+	@Test
+	public void testParallelDecodingEqualsSequential() throws Exception {
+		byte[] pbf = writePbf(new Random(7));
+		String sequential = describe(parse(pbf, 1, null));
+		String parallel = describe(parse(pbf, 4, null));
+		Assert.assertEquals(sequential, parallel);
+		// all blocks are read
+		Assert.assertEquals(BLOCKS * (NODES_PER_BLOCK + 2), parse(pbf, 4, null).size());
+	}
+
+	@Test
+	public void testPlainNodesEqualNodeObjects() throws Exception {
+		byte[] pbf = writePbf(new Random(11));
+		final OsmBoundsFilter bounds = new OsmBoundsFilter(55, 10.3, 50.5, 10.7);
+		// not a plain node filter, so node objects are created for every node
+		IOsmStorageFilter objects = new IOsmStorageFilter() {
+			@Override
+			public boolean acceptEntityToLoad(OsmBaseStorage storage, EntityId entityId, Entity entity) {
+				return bounds.acceptEntityToLoad(storage, entityId, entity);
+			}
+		};
+		String expected = describe(parse(pbf, 1, objects));
+		Assert.assertEquals(expected, describe(parse(pbf, 1, bounds)));
+		Assert.assertEquals(expected, describe(parse(pbf, 4, bounds)));
+		// part of the nodes is filtered out
+		int size = parse(pbf, 1, bounds).size();
+		Assert.assertTrue(size > 2 * BLOCKS && size < BLOCKS * (NODES_PER_BLOCK + 2));
+	}
+
+	private static Map<EntityId, Entity> parse(byte[] pbf, int threads, IOsmStorageFilter filter) throws IOException {
+		OsmBaseStoragePbf storage = new OsmBaseStoragePbf();
+		if (filter != null) {
+			storage.getFilters().add(filter);
+		}
+		storage.parseOSMPbf(new ByteArrayInputStream(pbf), null, false, threads);
+		return storage.getRegisteredEntities();
+	}
+
+	static String describe(Map<EntityId, Entity> entities) {
+		TreeMap<String, String> sorted = new TreeMap<String, String>();
+		for (Entity e : entities.values()) {
+			StringBuilder b = new StringBuilder();
+			if (e instanceof Node) {
+				b.append(((Node) e).getLatitude()).append(' ').append(((Node) e).getLongitude());
+			} else if (e instanceof Way) {
+				b.append(((Way) e).getNodeIds());
+			} else if (e instanceof Relation) {
+				for (RelationMember m : ((Relation) e).getMembers()) {
+					b.append(m.getEntityId()).append(':').append(m.getRole()).append(' ');
+				}
+			}
+			b.append(' ').append(new TreeMap<String, String>(e.getTags()));
+			sorted.put(e.getClass().getSimpleName() + " " + e.getId(), b.toString());
+		}
+		StringBuilder res = new StringBuilder();
+		for (Map.Entry<String, String> s : sorted.entrySet()) {
+			res.append(s.getKey()).append(' ').append(s.getValue()).append('\n');
+		}
+		return res.toString();
+	}
+
+	/**
+	 * Writes blocks of dense nodes (part of them tagged), a way and a relation
+	 */
+	static byte[] writePbf(Random r) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BlockOutputStream blocks = new BlockOutputStream(out);
+		Osmformat.HeaderBlock header = Osmformat.HeaderBlock.newBuilder().addRequiredFeatures("OsmSchema-V0.6")
+				.addRequiredFeatures("DenseNodes").build();
+		blocks.write(FileBlock.newInstance("OSMHeader", header.toByteString(), null));
+		long nodeId = 1;
+		long id = 1000000;
+		for (int k = 0; k < BLOCKS; k++) {
+			List<String> strings = new ArrayList<String>();
+			// 0 is a delimiter of dense tags
+			strings.add("");
+			Osmformat.DenseNodes.Builder dense = Osmformat.DenseNodes.newBuilder();
+			Osmformat.Way.Builder way = Osmformat.Way.newBuilder().setId(id++);
+			Osmformat.Relation.Builder rel = Osmformat.Relation.newBuilder().setId(id++);
+			long prevId = 0;
+			long prevLat = 0;
+			long prevLon = 0;
+			long prevRef = 0;
+			long first = nodeId;
+			for (int i = 0; i < NODES_PER_BLOCK; i++) {
+				long lat = 500000000l + r.nextInt(10000000);
+				long lon = 100000000l + r.nextInt(10000000);
+				dense.addId(nodeId - prevId).addLat(lat - prevLat).addLon(lon - prevLon);
+				prevId = nodeId;
+				prevLat = lat;
+				prevLon = lon;
+				if (r.nextInt(10) == 0) {
+					dense.addKeysVals(string(strings, "amenity")).addKeysVals(string(strings, "bench" + r.nextInt(3)));
+				}
+				dense.addKeysVals(0);
+				if (i % 3 == 0) {
+					way.addRefs(nodeId - prevRef);
+					prevRef = nodeId;
+				}
+				nodeId++;
+			}
+			way.addKeys(string(strings, "highway")).addVals(string(strings, "residential"));
+			rel.addMemids(first).addRolesSid(string(strings, "outer")).addTypes(Osmformat.Relation.MemberType.NODE);
+			rel.addMemids(way.getId() - first).addRolesSid(string(strings, "")).addTypes(Osmformat.Relation.MemberType.WAY);
+			rel.addKeys(string(strings, "type")).addVals(string(strings, "multipolygon"));
+
+			Osmformat.StringTable.Builder st = Osmformat.StringTable.newBuilder();
+			for (String s : strings) {
+				st.addS(ByteString.copyFromUtf8(s));
+			}
+			Osmformat.PrimitiveBlock block = Osmformat.PrimitiveBlock.newBuilder().setStringtable(st)
+					.addPrimitivegroup(Osmformat.PrimitiveGroup.newBuilder().setDense(dense))
+					.addPrimitivegroup(Osmformat.PrimitiveGroup.newBuilder().addWays(way))
+					.addPrimitivegroup(Osmformat.PrimitiveGroup.newBuilder().addRelations(rel)).build();
+			blocks.write(FileBlock.newInstance("OSMData", block.toByteString(), null));
+		}
+		blocks.close();
+		return out.toByteArray();
+	}
+
+	private static int string(List<String> strings, String s) {
+		int i = strings.indexOf(s);
+		if (i < 0) {
+			strings.add(s);
+			i = strings.size() - 1;
+		}
+		return i;
+	}
+}
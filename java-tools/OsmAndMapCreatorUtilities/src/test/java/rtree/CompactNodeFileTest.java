@@ -0,0 +1,112 @@
+package rtree;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CompactNodeFileTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testLeafRoundTrip() throws Exception {
+		Element[] elmts = new Element[] {
+				new LeafElement(new Rect(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE), 0),
+				new LeafElement(new Rect(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE),
+						Long.MAX_VALUE >> 1),
+				new LeafElement(new Rect(Integer.MIN_VALUE, -1, Integer.MAX_VALUE, 1), -5),
+				new LeafElement(new Rect(0, 0, 0, 0), 1l << 40),
+				new LeafElement(new Rect(1 << 30, 1 << 29, (1 << 30) + 100, (1 << 29) + 7), 3) };
+		assertRoundTrip(elmts, Node.LEAF_NODE);
+	}
+
+	@Test
+	public void testNonLeafRoundTrip() throws Exception {
+		Random r = new Random(5);
+		Element[] elmts = new Element[Node.MAX];
+		for (int i = 0; i < elmts.length; i++) {
+			int x = r.nextInt();
+			int y = r.nextInt();
+			elmts[i] = new NonLeafElement(new Rect(Math.min(x, 0), Math.min(y, 0), Math.max(x, 0), Math.max(y, 0)),
+					r.nextInt(1 << 20));
+		}
+		elmts[0] = new NonLeafElement(new Rect(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE,
+				Integer.MAX_VALUE), 0);
+		assertRoundTrip(elmts, Node.NONLEAF_NODE);
+	}
+
+	@Test
+	public void testCompactQueriesEqualPlain() throws Exception {
+		Random r = new Random(17);
+		List<Element> elmts = new ArrayList<Element>();
+		for (int i = 0; i < 20000; i++) {
+			int x = r.nextInt(1 << 20) + (i % 2 == 0 ? 0 : Integer.MAX_VALUE - (1 << 21));
+			int y = r.nextInt(1 << 20) - (i % 3 == 0 ? 1 << 25 : 0);
+			elmts.add(new LeafElement(new Rect(x, y, x + r.nextInt(300), y + r.nextInt(300)), i));
+		}
+		String plainFile = new File(folder.getRoot(), "plain.rtree").getAbsolutePath();
+		String compactFile = new File(folder.getRoot(), "compact.rtree").getAbsolutePath();
+		Assert.assertEquals(0, new Pack(Pack.STR, false).packTree(new ArrayList<Element>(elmts), plainFile));
+		Assert.assertEquals(0, new Pack(Pack.STR, true).packTree(new ArrayList<Element>(elmts), compactFile));
+		RTree plain = new RTree(plainFile);
+		RTree compact = new RTree(compactFile);
+		try {
+			Assert.assertFalse(plain.getFileHdr().isCompact());
+			Assert.assertTrue(compact.getFileHdr().isCompact());
+			for (int i = 0; i < 500; i++) {
+				Element e = elmts.get(r.nextInt(elmts.size()));
+				// query around the element, so it is never empty
+				int x = e.getRect().getMinX();
+				int y = e.getRect().getMinY();
+				Rect q = new Rect(x - r.nextInt(5000), y - r.nextInt(5000), x + r.nextInt(5000), y + r.nextInt(5000));
+				List<Long> expected = pointers(plain.overlaps(q));
+				Assert.assertFalse(expected.isEmpty());
+				Assert.assertEquals(expected, pointers(compact.overlaps(q)));
+			}
+		} finally {
+			plain.close();
+			compact.close();
+		}
+	}
+
+	private static void assertRoundTrip(Element[] elmts, int type) throws Exception {
+		Rect mbr = new Rect(elmts[0].getRect().getMinX(), elmts[0].getRect().getMinY(), elmts[0].getRect().getMaxX(),
+				elmts[0].getRect().getMaxY());
+		for (Element e : elmts) {
+			mbr.expandToInclude(e.getRect());
+		}
+		ByteBuffer record = CompactNodeFile.encode(elmts, 0, elmts.length, mbr);
+		ReadNode node = new ReadNode();
+		node.elements = new Element[Node.MAX];
+		CompactNodeFile.decode(node, record);
+		Assert.assertFalse(record.hasRemaining());
+		Assert.assertEquals(Node.NOT_DEFINED, node.getParent());
+		Assert.assertEquals(type, node.getElementType());
+		Assert.assertEquals(elmts.length, node.getTotalElements());
+		Assert.assertTrue(mbr.equals(node.getNodeMBR()));
+		Element[] decoded = node.getAllElements();
+		for (int i = 0; i < elmts.length; i++) {
+			Assert.assertEquals(type, decoded[i].getElementType());
+			Assert.assertEquals(elmts[i].getPtr(), decoded[i].getPtr());
+			Assert.assertTrue(elmts[i].getRect().equals(decoded[i].getRect()));
+		}
+	}
+
+	private static List<Long> pointers(List<?> elmts) {
+		List<Long> res = new ArrayList<Long>();
+		for (Object o : elmts) {
+			res.add(((Element) o).getPtr());
+		}
+		Collections.sort(res);
+		return res;
+	}
+}
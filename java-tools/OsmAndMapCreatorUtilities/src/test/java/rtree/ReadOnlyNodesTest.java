@@ -0,0 +1,129 @@
+package rtree;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReadOnlyNodesTest {
+
+	private static final int ELEMENTS = 20000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testMemoryMappedQueriesEqualDefault() throws Exception {
+		String packed = packTree("packed.rtree");
+		RTree plain = open(packed, "default.rtree", false);
+		RTree mapped = open(packed, "mapped.rtree", true);
+		RTree readOnly = open(packed, "readonly.rtree", false);
+		RTree mappedReadOnly = open(packed, "mapped_readonly.rtree", true);
+		try {
+			Assert.assertFalse(plain.getFileHdr().isMemoryMapped());
+			Assert.assertTrue(mapped.getFileHdr().isMemoryMapped());
+			readOnly.setReadOnly();
+			mappedReadOnly.setReadOnly();
+			Assert.assertTrue(mappedReadOnly.isReadOnly());
+			Assert.assertTrue(mappedReadOnly.getFileHdr().isMemoryMapped());
+			Random r = new Random(23);
+			for (int i = 0; i < 300; i++) {
+				Rect q = randomQuery(r);
+				List<Long> expected = pointers(plain.overlaps(q));
+				Assert.assertEquals(expected, pointers(mapped.overlaps(q)));
+				Assert.assertEquals(expected, pointers(readOnly.overlaps(q)));
+				Assert.assertEquals(expected, pointers(mappedReadOnly.overlaps(q)));
+				List<Long> contained = pointers(plain.containedBy(q));
+				Assert.assertEquals(contained, pointers(mapped.containedBy(q)));
+				Assert.assertEquals(contained, pointers(mappedReadOnly.containedBy(q)));
+			}
+			Assert.assertEquals(ELEMENTS, plain.getAllElements().size());
+			Assert.assertEquals(pointers(plain.getAllElements()), pointers(mappedReadOnly.getAllElements()));
+		} finally {
+			plain.close();
+			mapped.close();
+			readOnly.close();
+			mappedReadOnly.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentReadOnlyQueries() throws Exception {
+		String packed = packTree("concurrent.rtree");
+		RTree plain = open(packed, "concurrent_default.rtree", false);
+		final RTree mapped = open(packed, "concurrent_mapped.rtree", true);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			mapped.setReadOnly();
+			Random r = new Random(29);
+			List<Rect> queries = new ArrayList<Rect>();
+			List<Future<List<Long>>> results = new ArrayList<Future<List<Long>>>();
+			for (int i = 0; i < 400; i++) {
+				final Rect q = randomQuery(r);
+				queries.add(q);
+				results.add(executor.submit(new Callable<List<Long>>() {
+					@Override
+					public List<Long> call() throws Exception {
+						return pointers(mapped.overlaps(q));
+					}
+				}));
+			}
+			for (int i = 0; i < queries.size(); i++) {
+				Assert.assertEquals(pointers(plain.overlaps(queries.get(i))), results.get(i).get());
+			}
+		} finally {
+			executor.shutdownNow();
+			plain.close();
+			mapped.close();
+		}
+	}
+
+	private String packTree(String name) throws Exception {
+		Random r = new Random(17);
+		List<Element> elmts = new ArrayList<Element>();
+		for (int i = 0; i < ELEMENTS; i++) {
+			int x = r.nextInt(1 << 20);
+			int y = r.nextInt(1 << 20);
+			elmts.add(new LeafElement(new Rect(x, y, x + r.nextInt(3000), y + r.nextInt(3000)), i));
+		}
+		String file = new File(folder.getRoot(), name).getAbsolutePath();
+		// plain node file, mapping is not used for compact trees
+		Assert.assertEquals(0, new Pack(Pack.STR, false).packTree(elmts, file));
+		return file;
+	}
+
+	/**
+	 * Copy of the packed file, so every tree has its own file header
+	 */
+	private RTree open(String packed, String name, boolean memoryMapped) throws Exception {
+		File f = new File(folder.getRoot(), name);
+		Files.copy(new File(packed).toPath(), f.toPath());
+		return new RTree(f.getAbsolutePath(), CachedNodes.DEFAULT_CACHE_BYTES, memoryMapped);
+	}
+
+	private static Rect randomQuery(Random r) throws Exception {
+		int x = r.nextInt(1 << 20);
+		int y = r.nextInt(1 << 20);
+		return new Rect(x, y, x + r.nextInt(1 << 16), y + r.nextInt(1 << 16));
+	}
+
+	private static List<Long> pointers(List<?> elmts) {
+		List<Long> res = new ArrayList<Long>();
+		for (Object o : elmts) {
+			res.add(((Element) o).getPtr());
+		}
+		Collections.sort(res);
+		return res;
+	}
+}
@@ -0,0 +1,112 @@
+package rtree.join;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import rtree.Element;
+import rtree.LeafElement;
+import rtree.Pack;
+import rtree.RTree;
+import rtree.Rect;
+
+public class JoinTest {
+
+	private static final int ELEMENTS = 3000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testParallelJoinEqualsSequential() throws Exception {
+		List<Element> left = randomElements(new Random(3), 0);
+		List<Element> right = randomElements(new Random(5), 1);
+		RTree leftTree = pack(left, "left.rtree");
+		RTree rightTree = pack(right, "right.rtree");
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			leftTree.setReadOnly();
+			rightTree.setReadOnly();
+			Join join = new Join(leftTree, rightTree, new Pair(), new IntersectPred());
+			final List<String> sequential = new ArrayList<String>();
+			final Thread current = Thread.currentThread();
+			join.relate(new JoinCallback() {
+				@Override
+				public void joined(Pair pair) {
+					Assert.assertSame(current, Thread.currentThread());
+					sequential.add(pair.getLtPtr() + " " + pair.getRtPtr());
+				}
+			});
+
+			final Queue<String> parallel = new ConcurrentLinkedQueue<String>();
+			final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+			join.relate(new JoinCallback() {
+				@Override
+				public void joined(Pair pair) {
+					threads.add(Thread.currentThread());
+					parallel.add(pair.getLtPtr() + " " + pair.getRtPtr());
+				}
+			}, pool);
+
+			Set<String> expected = intersecting(left, right);
+			Assert.assertFalse(expected.isEmpty());
+			// no pair is reported twice
+			Assert.assertEquals(expected.size(), sequential.size());
+			Assert.assertEquals(expected, new TreeSet<String>(sequential));
+			Assert.assertEquals(expected.size(), parallel.size());
+			Assert.assertEquals(expected, new TreeSet<String>(parallel));
+			Assert.assertFalse(threads.contains(current));
+		} finally {
+			pool.shutdownNow();
+			leftTree.close();
+			rightTree.close();
+		}
+	}
+
+	private RTree pack(List<Element> elmts, String name) throws Exception {
+		String file = new File(folder.getRoot(), name).getAbsolutePath();
+		Assert.assertEquals(0, new Pack(Pack.STR, false).packTree(new ArrayList<Element>(elmts), file));
+		return new RTree(file);
+	}
+
+	/**
+	 * Coordinates of left and right elements have different parity, so they never touch
+	 */
+	private static List<Element> randomElements(Random r, int parity) throws Exception {
+		List<Element> elmts = new ArrayList<Element>();
+		for (int i = 0; i < ELEMENTS; i++) {
+			int x = 2 * r.nextInt(1 << 15) + parity;
+			int y = 2 * r.nextInt(1 << 15) + parity;
+			elmts.add(new LeafElement(new Rect(x, y, x + 2 * r.nextInt(1000), y + 2 * r.nextInt(1000)), i));
+		}
+		return elmts;
+	}
+
+	private static Set<String> intersecting(List<Element> left, List<Element> right) {
+		Set<String> res = new TreeSet<String>();
+		for (Element l : left) {
+			for (Element rt : right) {
+				Rect a = l.getRect();
+				Rect b = rt.getRect();
+				if (a.getMinX() < b.getMaxX() && b.getMinX() < a.getMaxX() && a.getMinY() < b.getMaxY()
+						&& b.getMinY() < a.getMaxY()) {
+					res.add(l.getPtr() + " " + rt.getPtr());
+				}
+			}
+		}
+		return res;
+	}
+}